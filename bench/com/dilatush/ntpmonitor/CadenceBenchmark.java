@@ -0,0 +1,141 @@
+package com.dilatush.ntpmonitor;
+
+import com.dilatush.util.HJSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks deciding the interval with the {@link AdaptiveCadence}.  Run as a program, it instead compares the adaptive cadence with fixed
+ * intervals, over a simulated day of a PPS-locked server with a few disturbances: a short PPS dropout, a longer one, an excursion of the PLL
+ * offset, and a loss of satellites.  Each cadence runs a monitor (fed {@link RecordedOutputs}, altered to show each disturbance while it
+ * lasts) through the day in simulated time, and reports how many cycles it ran, and for each disturbance how long after it began it was
+ * first seen and how many cycles saw it, so the cost of the adaptive cadence can be weighed against how closely it follows the disturbances.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime } )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class CadenceBenchmark {
+
+    private static final long DAY_MS = 86_400_000L;
+
+    // the disturbances: name, start (seconds into the day), and duration (seconds)...
+    private static final String[] NAMES     = { "PPS lost (40 s)", "PPS lost (10 min)", "offset off (5 min)", "satellites lost (20 min)" };
+    private static final long[]   STARTS    = { 20_000,            40_000,              55_000,               70_000                     };
+    private static final long[]   DURATIONS = { 40,                600,                 300,                  1_200                      };
+
+    // the simulated time, read by the monitor's command stand-ins...
+    private static long nowMs;
+
+    private AdaptiveCadence cadence;
+    private NTPSnapshot     snapshot;
+
+
+    @Setup
+    public void setup() {
+        HJSONObject config = new HJSONObject();
+        config.putDotted( "ntpControl.enabled", false );
+        NTPMonitor monitor = monitor( config );
+        monitor.fill( new HJSONObject() );
+        snapshot = monitor.latest();
+        monitor.stop();
+        cadence = new AdaptiveCadence( null, 60_000, 0 );
+    }
+
+
+    @Benchmark
+    public long update() {
+        return cadence.update( snapshot );
+    }
+
+
+    public static void main( final String[] _args ) throws Exception {
+
+        System.out.println( String.format( "%-22s %8s   %s", "cadence", "cycles", "per disturbance: first seen after (s) / cycles seeing it" ) );
+        run( "fixed 60 s", false, 60 );
+        run( "fixed 15 s", false, 15 );
+        run( "adaptive 15..60 s", true, 60 );
+    }
+
+
+    /*
+     * Runs a monitor through the simulated day at the given (longest) interval, adaptively or not, and reports what it saw...
+     */
+    private static void run( final String _name, final boolean _adaptive, final long _intervalSeconds ) {
+
+        HJSONObject config = new HJSONObject();
+        config.putDotted( "ntpControl.enabled", false );
+        config.putDotted( "monitorInterval",    _intervalSeconds );
+        config.putDotted( "cadence.enabled",    _adaptive );
+        NTPMonitor monitor = monitor( config );
+
+        long[] firstSeenMs = new long[NAMES.length];
+        int[]  seen        = new int[NAMES.length];
+        for( int i = 0; i < NAMES.length; i++ ) firstSeenMs[i] = -1;
+        int cycles = 0;
+        nowMs = 0;
+        while( nowMs < DAY_MS ) {
+            monitor.fill( new HJSONObject() );
+            cycles++;
+            for( int i = 0; i < NAMES.length; i++ ) {
+                if( !active( i ) ) continue;
+                seen[i]++;
+                if( firstSeenMs[i] < 0 ) firstSeenMs[i] = nowMs - 1000 * STARTS[i];
+            }
+            nowMs += (monitor.cadence() == null) ? 1000 * _intervalSeconds : monitor.cadence().intervalMs();
+        }
+        monitor.stop();
+
+        StringBuilder report = new StringBuilder();
+        for( int i = 0; i < NAMES.length; i++ ) {
+            report.append( (i == 0) ? "" : ";  " ).append( NAMES[i] ).append( ": " );
+            report.append( (firstSeenMs[i] < 0) ? "missed" : (firstSeenMs[i] / 1000) + " / " + seen[i] );
+        }
+        System.out.println( String.format( "%-22s %8d   %s", _name, cycles, report ) );
+    }
+
+
+    // true if the given disturbance is happening now...
+    private static boolean active( final int _disturbance ) {
+        long start = 1000 * STARTS[_disturbance];
+        return (nowMs >= start) && (nowMs < start + 1000 * DURATIONS[_disturbance]);
+    }
+
+
+    private static NTPMonitor monitor( final HJSONObject _config ) {
+        return new NTPMonitor( null, _config, null, () -> RecordedOutputs.NTPQ_PEERS, CadenceBenchmark::kernel, CadenceBenchmark::fix,
+                () -> RecordedOutputs.GPSCTL_SATELLITES );
+    }
+
+
+    // ntpq -c kerninfo as it is now: PPS lost during the dropouts, and the offset away from zero during the excursion...
+    private static String kernel() {
+        String kernel = RecordedOutputs.NTPQ_KERNEL;
+        if( active( 0 ) || active( 1 ) )
+            kernel = kernel.replace( "0115 leap_none, sync_pps", "0615 leap_none, sync_ntp" );
+        if( active( 2 ) )
+            kernel = kernel.replace( "pll offset:           -0.000213", "pll offset:           0.350000" );
+        return kernel;
+    }
+
+
+    // gpsctl --query fix as it is now: with fewer satellites used while they're lost...
+    private static String fix() {
+        String fix = RecordedOutputs.GPSCTL_FIX;
+        return active( 3 ) ? fix.replace( "\"number_of_satellites_used\":9", "\"number_of_satellites_used\":4" ) : fix;
+    }
+}
@@ -0,0 +1,162 @@
+package com.dilatush.ntpmonitor;
+
+import com.dilatush.util.HJSONObject;
+import org.json.JSONArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the {@link Checkpoint} of the monitor's state: saving the checkpoint, and restoring it into freshly made rules, peer statistics,
+ * and sky model (as a monitor does when it starts).  Run as a program, it instead checks the checkpoint: it runs a monitor (fed {@link
+ * RecordedOutputs}, locked to PPS) for a while, checkpoints it as it would be when shut down, and starts a second monitor from the checkpoint
+ * that finds PPS lost: the lock change should fire just as it would have without the restart (and doesn't without the checkpoint), and the
+ * peer statistics should carry on from where they were.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime } )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class CheckpointBenchmark {
+
+    private static final int    CYCLES     = 1000;
+    private static final String NOT_PPS    = RecordedOutputs.NTPQ_KERNEL.replace( "0115 leap_none, sync_pps", "0615 leap_none, sync_ntp" );
+
+    private File        directory;
+    private File        file;
+    private HJSONObject config;
+    private Checkpoint  saving;
+
+
+    @Setup
+    public void setup() throws Exception {
+        directory = Files.createTempDirectory( "ntpcheckpoint" ).toFile();
+        file = new File( directory, "ntpmon.checkpoint" );
+        config = new HJSONObject();
+        config.putDotted( "ntpControl.enabled", false );
+
+        // the state of a monitor that's been running for a while...
+        RuleEngine     rules = new RuleEngine( config );
+        PeerStatistics stats = new PeerStatistics( config, 60 );
+        SkyModel       sky   = new SkyModel( config );
+        PeerTable peers = new NTPDPeersProbe( null, () -> RecordedOutputs.NTPQ_PEERS, 256 ).poll();
+        List<GNSSSatellite> satellites = new GNSSSatellitesProbe( null, () -> RecordedOutputs.GPSCTL_SATELLITES ).poll();
+        for( int i = 0; i < CYCLES; i++ ) {
+            stats.update( peers, 60_000L * i );
+            sky.update( 60_000L * i, satellites );
+        }
+        saving = new Checkpoint( file, 60_000, 3_600_000 );
+        saving.add( "rules", rules );
+        saving.add( "peerStats", stats );
+        saving.add( "sky", sky );
+        if( !saving.save( System.currentTimeMillis() ) )
+            throw new IllegalStateException( "The checkpoint couldn't be saved" );
+    }
+
+
+    @TearDown
+    public void tearDown() throws IOException {
+        File[] files = directory.listFiles();
+        if( files != null )
+            for( File each : files ) Files.delete( each.toPath() );
+        Files.delete( directory.toPath() );
+    }
+
+
+    @Benchmark
+    public boolean save() {
+        return saving.save( System.currentTimeMillis() );
+    }
+
+
+    // restoring into fresh state...
+    @Benchmark
+    public int restore() {
+        Checkpoint restoring = new Checkpoint( file, 60_000, 3_600_000 );
+        restoring.add( "rules",     new RuleEngine( config )          );
+        restoring.add( "peerStats", new PeerStatistics( config, 60 ) );
+        restoring.add( "sky",       new SkyModel( config )            );
+        return restoring.restore( System.currentTimeMillis() );
+    }
+
+
+    public static void main( final String[] _args ) throws Exception {
+
+        File directory = Files.createTempDirectory( "ntpcheckpoint" ).toFile();
+        File file = new File( directory, "ntpmon.checkpoint" );
+        file.deleteOnExit();
+        directory.deleteOnExit();
+        HJSONObject config = new HJSONObject();
+        config.putDotted( "ntpControl.enabled", false );
+        config.putDotted( "checkpoint.file", file.getPath() );
+
+        // run a monitor locked to PPS, then checkpoint it as it's shut down...
+        NTPMonitor before = monitor( config, RecordedOutputs.NTPQ_KERNEL );
+        HJSONObject message = new HJSONObject();
+        for( int i = 0; i < CYCLES; i++ ) {
+            message = new HJSONObject();
+            before.fill( message );
+        }
+        before.checkpoint();
+        before.stop();
+        long samplesBefore = samples( message );
+        System.out.println( String.format( "Checkpointed %,d cycles in %,d bytes", CYCLES, file.length() ) );
+
+        // start a new monitor from the checkpoint that finds PPS lost, and one without it...
+        long start = System.nanoTime();
+        NTPMonitor after = monitor( config, NOT_PPS );
+        long constructNanos = System.nanoTime() - start;
+        message = new HJSONObject();
+        after.fill( message );
+        after.rules().putDotted( message, "monitor.ntp.rules" );
+        after.stop();
+        HJSONObject coldConfig = new HJSONObject();
+        coldConfig.putDotted( "ntpControl.enabled", false );
+        NTPMonitor cold = monitor( coldConfig, NOT_PPS );
+        HJSONObject coldMessage = new HJSONObject();
+        cold.fill( coldMessage );
+        cold.rules().putDotted( coldMessage, "monitor.ntp.rules" );
+        cold.stop();
+
+        long firedWarm = message.getLongDotted( "monitor.ntp.rules.fired" );
+        long firedCold = coldMessage.getLongDotted( "monitor.ntp.rules.fired" );
+        long samplesAfter = samples( message );
+        System.out.println( String.format( "Monitor constructed (with restore) in %.1f ms", constructNanos / 1e6 ) );
+        System.out.println( String.format( "PPS lost across the restart: %d event(s) fired with the checkpoint, %d without",
+                firedWarm, firedCold ) );
+        System.out.println( String.format( "Peer samples: %,d before the restart, %,d after its first cycle", samplesBefore, samplesAfter ) );
+        if( (firedWarm != 1) || (firedCold != 0) || (samplesAfter != samplesBefore + 1) )
+            throw new IllegalStateException( "The checkpoint wasn't restored as it should have been" );
+    }
+
+
+    private static NTPMonitor monitor( final HJSONObject _config, final String _kernel ) {
+        return new NTPMonitor( null, _config, null, () -> RecordedOutputs.NTPQ_PEERS, () -> _kernel, () -> RecordedOutputs.GPSCTL_FIX,
+                () -> RecordedOutputs.GPSCTL_SATELLITES );
+    }
+
+
+    // returns the samples in the statistics of the first peer in the given message...
+    private static long samples( final HJSONObject _message ) {
+        JSONArray peers = _message.getJSONObject( "monitor" ).getJSONObject( "ntp" ).getJSONArray( "peers" );
+        return peers.getJSONObject( 0 ).getJSONObject( "stats" ).getLong( "samples" );
+    }
+}
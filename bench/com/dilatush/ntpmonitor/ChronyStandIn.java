@@ -0,0 +1,147 @@
+package com.dilatush.ntpmonitor;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * A stand-in for chronyd's command and monitoring socket, for exercising {@link ChronyClient} and the chrony probes without a running chronyd.
+ * It answers TRACKING, N_SOURCES, and SOURCE_DATA requests on an ephemeral UDP port of localhost with canned replies: chronyd synchronized to
+ * a PPS reference clock, with that clock and one NTP server as sources.  Like chronyd, it ignores requests that aren't padded to the length of
+ * their replies.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class ChronyStandIn {
+
+    public static final double CORRECTION_S      = 1.5e-6;
+    public static final double FREQ_PPM          = -12.345;
+    public static final double ROOT_DELAY_S      = 1.0e-6;
+    public static final double ROOT_DISPERSION_S = 2.0e-5;
+    public static final double PPS_OFFSET_S      = 2.1e-7;
+    public static final double SERVER_OFFSET_S   = -1.2e-3;
+
+    private final DatagramChannel channel;
+    private final Thread          thread;
+
+
+    public ChronyStandIn() throws IOException {
+        channel = DatagramChannel.open();
+        channel.bind( new InetSocketAddress( "127.0.0.1", 0 ) );
+        thread = new Thread( this::serve, "Chrony Stand-In" );
+        thread.setDaemon( true );
+    }
+
+
+    public InetSocketAddress address() throws IOException {
+        return (InetSocketAddress) channel.getLocalAddress();
+    }
+
+
+    public void start() {
+        thread.start();
+    }
+
+
+    public void stop() throws IOException {
+        channel.close();
+    }
+
+
+    private void serve() {
+        ByteBuffer request = ByteBuffer.allocate( 1024 );
+        ByteBuffer reply   = ByteBuffer.allocate( 1024 );
+        try {
+            while( true ) {
+                request.clear();
+                SocketAddress client = channel.receive( request );
+                request.flip();
+                if( request.limit() < ChronyClient.REQUEST_HEADER ) continue;
+                int command = request.getShort( 4 ) & 0xFFFF;
+
+                reply.clear();
+                reply.put( (byte) ChronyClient.PROTOCOL_VERSION );
+                reply.put( (byte) ChronyClient.PKT_TYPE_REPLY );
+                reply.putShort( (short) 0 );
+                reply.putShort( (short) command );
+                reply.putShort( (short) 0 );              // the reply type, filled in below...
+                reply.putShort( (short) ChronyClient.STT_SUCCESS );
+                reply.putShort( (short) 0 );
+                reply.putShort( (short) 0 );
+                reply.putShort( (short) 0 );
+                reply.putInt( request.getInt( 8 ) );      // the sequence number...
+                reply.putInt( 0 );
+                reply.putInt( 0 );
+
+                int length;
+                switch( command ) {
+                    case ChronyClient.REQ_TRACKING:
+                        reply.putShort( 6, (short) ChronyClient.RPY_TRACKING );
+                        reply.putInt( 0x50505300 );       // "PPS"...
+                        reply.put( new byte[16] );
+                        reply.putShort( (short) 0 );      // a reference clock has no address...
+                        reply.putShort( (short) 0 );
+                        reply.putShort( (short) 1 );      // stratum...
+                        reply.putShort( (short) 0 );      // leap status: normal...
+                        reply.putInt( 0 );
+                        reply.putInt( (int) (System.currentTimeMillis() / 1000) );
+                        reply.putInt( 0 );
+                        reply.putInt( ChronyClient.toChronyFloat( CORRECTION_S      ) );
+                        reply.putInt( ChronyClient.toChronyFloat( PPS_OFFSET_S      ) );
+                        reply.putInt( ChronyClient.toChronyFloat( 3.0e-7            ) );
+                        reply.putInt( ChronyClient.toChronyFloat( FREQ_PPM          ) );
+                        reply.putInt( ChronyClient.toChronyFloat( 0.001             ) );
+                        reply.putInt( ChronyClient.toChronyFloat( 0.01              ) );
+                        reply.putInt( ChronyClient.toChronyFloat( ROOT_DELAY_S      ) );
+                        reply.putInt( ChronyClient.toChronyFloat( ROOT_DISPERSION_S ) );
+                        reply.putInt( ChronyClient.toChronyFloat( 16                ) );
+                        reply.putInt( 0 );
+                        length = ChronyClient.TRACKING_LENGTH;
+                        break;
+
+                    case ChronyClient.REQ_N_SOURCES:
+                        reply.putShort( 6, (short) ChronyClient.RPY_N_SOURCES );
+                        reply.putInt( 2 );
+                        reply.putInt( 0 );
+                        length = ChronyClient.N_SOURCES_LENGTH;
+                        break;
+
+                    case ChronyClient.REQ_SOURCE_DATA:
+                        reply.putShort( 6, (short) ChronyClient.RPY_SOURCE_DATA );
+                        boolean pps = request.getInt( ChronyClient.REQUEST_HEADER ) == 0;
+                        if( pps ) reply.put( new byte[] { 'P', 'P', 'S', 0 } );
+                        else      reply.put( new byte[] { (byte) 192, (byte) 168, 1, 10 } );
+                        reply.put( new byte[12] );
+                        reply.putShort( (short) (pps ? ChronyClient.IPADDR_ID : ChronyClient.IPADDR_INET4) );
+                        reply.putShort( (short) 0 );
+                        reply.putShort( (short) (pps ? 4 : 6) );  // poll...
+                        reply.putShort( (short) (pps ? 0 : 2) );  // stratum...
+                        reply.putShort( (short) (pps ? 0 : 5) );  // state: selected, or selectable...
+                        reply.putShort( (short) (pps ? ChronyClient.MODE_REFCLOCK : 0) );
+                        reply.putShort( (short) 0 );              // flags...
+                        reply.putShort( (short) 0377 );           // reach...
+                        reply.putInt( pps ? 3 : 17 );             // since sample...
+                        reply.putInt( ChronyClient.toChronyFloat( pps ? PPS_OFFSET_S : SERVER_OFFSET_S ) );
+                        reply.putInt( ChronyClient.toChronyFloat( pps ? PPS_OFFSET_S : SERVER_OFFSET_S ) );
+                        reply.putInt( ChronyClient.toChronyFloat( pps ? 1.0e-6 : 3.0e-4 ) );
+                        reply.putInt( 0 );
+                        length = ChronyClient.SOURCE_DATA_LENGTH;
+                        break;
+
+                    default:
+                        continue;
+                }
+
+                // chronyd drops requests that aren't at least as long as their replies...
+                if( request.limit() < length ) continue;
+                reply.flip();
+                channel.send( reply, client );
+            }
+        }
+        catch( IOException _e ) {
+            // we've been stopped...
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.dilatush.ntpmonitor;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Checks {@link NTPControlClient} against the {@link NTPServerStandIn}: that it reads the system variables whole, and reassembles them whole
+ * when they come in fragments (with one repeated, and one out of order); that it times out when ntpd doesn't answer, and works again when it
+ * does; that it recovers when its channel is closed under it by an interrupt; and that {@link NTPDKernelProbe} falls back to ntpq while the
+ * client fails, and goes back to the client when it works again.  Exits with a status of 1 if any check fails.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class ControlClientCheck {
+
+    private static final long TIMEOUT_MS = 200;
+
+    private static int failures;
+
+
+    public static void main( final String[] _args ) throws Exception {
+
+        NTPServerStandIn ntpd = new NTPServerStandIn( 1, 0 );
+        ntpd.start();
+        try( NTPControlClient client = new NTPControlClient( ntpd.address( 0 ), TIMEOUT_MS ) ) {
+
+            // the whole response, in one fragment, and then in many...
+            Map<String,String> whole = new HashMap<>();
+            check( "read", (client.readVariables( 0, null, whole ) == 0x0615) && "-12.345".equals( whole.get( "frequency" ) ) );
+            ntpd.setFragmentSize( 16 );
+            Map<String,String> fragmented = new HashMap<>();
+            try( NTPControlClient fresh = new NTPControlClient( ntpd.address( 0 ), TIMEOUT_MS ) ) {    // with nothing left in its buffer...
+                fresh.readVariables( 0, null, fragmented );
+            }
+            check( "fragmented read", whole.equals( fragmented ) );
+            ntpd.setFragmentSize( 0 );
+
+            // no answer, then an answer...
+            ntpd.setDropFraction( 1 );
+            long start = System.nanoTime();
+            check( "timeout", fails( client ) );
+            long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+            check( "timeout after " + elapsedMs + " ms", (elapsedMs >= TIMEOUT_MS - 10) && (elapsedMs < TIMEOUT_MS + 1000) );
+            ntpd.setDropFraction( 0 );
+            check( "read after timeout", !fails( client ) );
+
+            // the channel closed under us by an interrupt (on the JVMs that close it; others just stop waiting), then a fresh one...
+            ntpd.setDropFraction( 1 );
+            Thread.currentThread().interrupt();
+            check( "interrupted", fails( client ) );
+            Thread.interrupted();
+            ntpd.setDropFraction( 0 );
+            check( "read after interrupt", !fails( client ) );
+
+            // the kernel probe, falling back to ntpq while the client fails...
+            NTPDKernelProbe probe = new NTPDKernelProbe( client, () -> RecordedOutputs.NTPQ_KERNEL );
+            check( "probe by control", (probe.poll().pllOffsetMs == 0.001) && (probe.parseNanos() < 0) );
+            ntpd.setDropFraction( 1 );
+            check( "probe falls back to ntpq", (probe.poll().pllOffsetMs == -0.000213) && (probe.parseNanos() >= 0) );
+            Thread.currentThread().interrupt();
+            check( "interrupted probe falls back to ntpq", probe.poll().pllOffsetMs == -0.000213 );
+            Thread.interrupted();
+            ntpd.setDropFraction( 0 );
+            check( "probe by control again", (probe.poll().pllOffsetMs == 0.001) && (probe.parseNanos() < 0) );
+        }
+        finally {
+            ntpd.stop();
+        }
+        if( failures > 0 ) System.exit( 1 );
+    }
+
+
+    // true if reading the system variables with the given client fails...
+    private static boolean fails( final NTPControlClient _client ) {
+        try {
+            _client.readVariables( 0, null, new HashMap<>() );
+            return false;
+        }
+        catch( IOException _e ) {
+            return true;
+        }
+    }
+
+
+    private static void check( final String _name, final boolean _ok ) {
+        System.out.println( _name + (_ok ? " OK" : " FAILED") );
+        if( !_ok ) failures++;
+    }
+}
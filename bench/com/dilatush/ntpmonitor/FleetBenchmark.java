@@ -0,0 +1,103 @@
+package com.dilatush.ntpmonitor;
+
+import com.dilatush.util.HJSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the {@link FleetMonitor}: polling fleets of 10, 100, and 500 stand-in NTP servers (see {@link NTPServerStandIn}) on localhost,
+ * half in client mode and half in control mode.  Run as a program, it instead polls a fleet whose servers drop a quarter of their requests
+ * (plus one target that doesn't exist), and prints a few of the results and how many targets answered, to check by eye that resends and
+ * timeouts work and that the offsets measured match the stand-ins' offsets.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime } )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class FleetBenchmark {
+
+    @Param( { "10", "100", "500" } )
+    public int targets;
+
+    private NTPServerStandIn servers;
+    private FleetMonitor     monitor;
+
+
+    @Setup
+    public void setup() throws Exception {
+        servers = new NTPServerStandIn( targets, 0 );
+        servers.start();
+        monitor = new FleetMonitor( targets( servers, targets ), 2000, 1, 100, 300_000 );
+    }
+
+
+    @TearDown
+    public void tearDown() throws IOException {
+        monitor.close();
+        servers.stop();
+    }
+
+
+    @Benchmark
+    public int poll() throws IOException {
+        int valid = 0;
+        for( FleetMonitor.Result result : monitor.poll() )
+            if( result.valid ) valid++;
+        if( valid != targets ) throw new IllegalStateException( "Only " + valid + " of " + targets + " targets answered" );
+        return valid;
+    }
+
+
+    public static void main( final String[] _args ) throws Exception {
+
+        // a lossy fleet, to see resends and timeouts...
+        NTPServerStandIn lossy = new NTPServerStandIn( 50, 0.25 );
+        lossy.start();
+        List<FleetMonitor.Target> targets = targets( lossy, 50 );
+        targets.add( new FleetMonitor.Target( "nowhere", "127.0.0.1", 9, FleetMonitor.Mode.CLIENT ) );
+        FleetMonitor fleet = new FleetMonitor( targets, 500, 2, 100, 300_000 );
+        fleet.poll();   // once to warm up, then again to see...
+        List<FleetMonitor.Result> results = fleet.poll();
+        int answered = 0;
+        for( FleetMonitor.Result result : results ) {
+            if( result.valid ) answered++;
+            if( (result.name.endsWith( "-3" ) || result.name.endsWith( "-4" ) || !result.valid) ) {
+                HJSONObject json = new HJSONObject();
+                result.putDotted( json, "monitor.fleet" );
+                System.out.println( json );
+            }
+        }
+        System.out.println( answered + " of " + results.size() + " targets answered (expected offset of target 40: "
+                + NTPServerStandIn.offsetMs( 40 ) + " ms, measured " + results.get( 40 ).offsetMs + " ms)" );
+        fleet.close();
+        lossy.stop();
+    }
+
+
+    private static List<FleetMonitor.Target> targets( final NTPServerStandIn _servers, final int _count ) throws Exception {
+        List<FleetMonitor.Target> targets = new ArrayList<>();
+        for( int i = 0; i < _count; i++ )
+            targets.add( new FleetMonitor.Target( "server-" + i, "127.0.0.1", _servers.address( i ).getPort(),
+                    ((i & 1) == 0) ? FleetMonitor.Mode.CLIENT : FleetMonitor.Mode.CONTROL ) );
+        return targets;
+    }
+}
@@ -0,0 +1,83 @@
+package com.dilatush.ntpmonitor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A stand-in for gpsd's JSON socket, for exercising {@link GNSSStream#forGpsd(String, int, long)} and the GNSS probes without a running gpsd.
+ * It listens on an ephemeral TCP port of localhost; after a client sends its <code>?WATCH</code> command, it sends a VERSION record, then a
+ * SKY and a TPV record every 100 milliseconds until the client disconnects.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class GpsdStandIn {
+
+    public static final String VERSION =
+            "{\"class\":\"VERSION\",\"release\":\"3.22\",\"rev\":\"3.22\",\"proto_major\":3,\"proto_minor\":14}\r\n";
+    public static final String SKY =
+            "{\"class\":\"SKY\",\"device\":\"/dev/ttyAMA0\",\"satellites\":[" +
+            "{\"PRN\":2,\"el\":62.0,\"az\":301.0,\"ss\":44.0,\"used\":true,\"gnssid\":0,\"svid\":2}," +
+            "{\"PRN\":5,\"el\":38.0,\"az\":45.0,\"ss\":41.0,\"used\":true,\"gnssid\":0,\"svid\":5}," +
+            "{\"PRN\":13,\"el\":4.0,\"az\":88.0,\"ss\":0.0,\"used\":false,\"gnssid\":0,\"svid\":13}," +
+            "{\"PRN\":303,\"el\":44.0,\"az\":210.0,\"ss\":39.0,\"used\":true,\"gnssid\":2,\"svid\":3}," +
+            "{\"PRN\":71,\"el\":29.0,\"az\":330.0,\"ss\":35.0,\"used\":true}]}\r\n";
+    public static final String TPV =
+            "{\"class\":\"TPV\",\"device\":\"/dev/ttyAMA0\",\"mode\":3,\"time\":\"2026-10-17T12:00:00.000Z\",\"ept\":0.005," +
+            "\"lat\":41.7406,\"lon\":-111.8347,\"altMSL\":1402.3,\"eph\":2.1}\r\n";
+
+    private final ServerSocket server;
+    private final Thread       thread;
+
+
+    public GpsdStandIn() throws IOException {
+        server = new ServerSocket( 0, 1, InetAddress.getLoopbackAddress() );
+        thread = new Thread( this::serve, "Gpsd Stand-In" );
+        thread.setDaemon( true );
+    }
+
+
+    public int port() {
+        return server.getLocalPort();
+    }
+
+
+    public void start() {
+        thread.start();
+    }
+
+
+    public void stop() throws IOException {
+        server.close();
+    }
+
+
+    private void serve() {
+        while( !server.isClosed() ) {
+            try( Socket socket = server.accept() ) {
+                BufferedReader in = new BufferedReader( new InputStreamReader( socket.getInputStream(), StandardCharsets.US_ASCII ) );
+                String watch = in.readLine();
+                if( (watch == null) || !watch.startsWith( "?WATCH=" ) ) continue;
+                OutputStream out = socket.getOutputStream();
+                out.write( VERSION.getBytes( StandardCharsets.US_ASCII ) );
+                while( true ) {
+                    out.write( SKY.getBytes( StandardCharsets.US_ASCII ) );
+                    out.write( TPV.getBytes( StandardCharsets.US_ASCII ) );
+                    out.flush();
+                    Thread.sleep( 100 );
+                }
+            }
+            catch( IOException _e ) {
+                // the client went away, or we've been stopped...
+            }
+            catch( InterruptedException _e ) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package com.dilatush.ntpmonitor;
+
+import com.dilatush.util.HJSONObject;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Checks and benchmarks the ingest of ntpd's statistics files ({@link NTPDStatsParser} and {@link StatsIngest}).  It writes a directory of
+ * daily loopstats, peerstats, and clockstats files as ntpd would for a PPS-locked server with a GPS reference clock and four network peers,
+ * then checks that the parser finds every record, with the same values a straightforward parse (a BufferedReader, String.split, and
+ * Double.parseDouble) finds.  Then it measures the throughput, in millions of lines per second, and the bytes allocated per line (on all
+ * threads) of the straightforward parse and of the parser with one thread and with one per processor, and finally the rate of replaying and
+ * summarizing the records.  Accepts the number of days of files to write as an optional argument (default 90).
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class IngestBenchmark {
+
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static final int      RUNS      = 5;
+    private static final long     FIRST_MJD = 60310;        // 2024-01-01...
+
+    // the peers, and their status words (the reference clock is the system peer, the PPS clock the PPS peer)...
+    private static final String[] PEERS     = { "127.127.20.0", "127.127.22.0", "192.168.1.10", "129.6.15.28", "2001:db8::123", "10.0.0.5" };
+    private static final int[]    STATUSES  = { 0x961a,         0x9714,         0x9424,         0x9324,        0x9424,          0x9124     };
+    private static final int[]    POLLS     = { 16,             16,             64,             256,           128,             1024       };
+
+
+    public static void main( final String[] _args ) throws Exception {
+
+        int days = (_args.length > 0) ? Integer.parseInt( _args[0] ) : 90;
+        File directory = Files.createTempDirectory( "ntpstats" ).toFile();
+        long start = System.nanoTime();
+        long[] written = write( directory, days );
+        List<File> files = NTPDStatsParser.statsFiles( Collections.singletonList( directory ) );
+        long bytes = 0;
+        for( File file : files ) bytes += file.length();
+        System.out.println( String.format( "Wrote %d days of statistics: %,d lines in %d files, %.1f MB, in %.1f seconds", days,
+                written[0] + written[1] + written[2], files.size(), bytes / 1e6, (System.nanoTime() - start) / 1e9 ) );
+
+        try {
+            // check that we find everything, with the same values as the straightforward parse...
+            NTPDStats stats = parse( files, 1 );
+            stats.sort();
+            double[] naive = naive( files );
+            double[] sums  = sums( stats );
+            System.out.println( String.format( "Parsed %,d loop records, %,d peer records, and %,d fixes, from %d sources (%,d lines skipped)",
+                    stats.loops(), stats.peerRecords(), stats.fixes(), stats.sources(), stats.skipped() ) );
+            if( (stats.loops() != written[0]) || (stats.peerRecords() != written[1]) || (stats.fixes() != written[2]) || (stats.skipped() != 0)
+                    || (stats.sources() != PEERS.length) )
+                throw new IllegalStateException( "The parser didn't find every record" );
+            for( int i = 0; i < sums.length; i++ )
+                if( Math.abs( sums[i] - naive[i] ) > 1e-6 * Math.max( 1, Math.abs( naive[i] ) ) )
+                    throw new IllegalStateException( "The parser's values differ from the straightforward parse's: " + sums[i] + " vs. "
+                            + naive[i] );
+
+            // then measure the throughput...
+            int processors = Runtime.getRuntime().availableProcessors();
+            System.out.println( String.format( "%-40s %12s %10s %14s", "parse", "Mlines/s", "MB/s", "bytes/line" ) );
+            measure( "BufferedReader, split, parseDouble", files, 0 );
+            measure( "NTPDStatsParser, 1 thread", files, 1 );
+            if( processors > 1 ) measure( "NTPDStatsParser, " + processors + " threads", files, processors );
+
+            // and the rate we make messages from the records...
+            StatsIngest replaying = new StatsIngest( 60_000 );
+            StatsIngest summarizing = new StatsIngest( 86_400_000 );
+            HJSONObject[] last = new HJSONObject[1];
+            long lap = System.nanoTime();
+            int replayed = replaying.replay( stats, HJSONObject::new, _message -> last[0] = _message );
+            double replaySeconds = (System.nanoTime() - lap) / 1e9;
+            lap = System.nanoTime();
+            int summarized = summarizing.summarize( stats, HJSONObject::new, _message -> last[0] = _message );
+            double summarySeconds = (System.nanoTime() - lap) / 1e9;
+            System.out.println( String.format( "Replayed %,d messages (a minute apart) at %,.0f messages/s; summarized %,d days at %,.0f days/s",
+                    replayed, replayed / replaySeconds, summarized, summarized / summarySeconds ) );
+            System.out.println( "Last summary: " + last[0].toString() );
+        }
+        finally {
+            for( File file : files ) file.delete();
+            directory.delete();
+        }
+    }
+
+
+    /*
+     * Writes the given number of days of loopstats, peerstats, and clockstats files to the given directory, and returns the number of loop
+     * records, peer records, and fixes written...
+     */
+    private static long[] write( final File _directory, final int _days ) throws IOException {
+
+        Random random = new Random( 1 );
+        long[] counts = new long[3];
+        double offset = 0;
+        double freq = -12.345;
+        for( int day = 0; day < _days; day++ ) {
+            long mjd = FIRST_MJD + day;
+            String date = String.format( "%tY%<tm%<td", (mjd - 40587) * 86_400_000L );
+            try( BufferedWriter loops = writer( _directory, "loopstats." + date );
+                 BufferedWriter peers = writer( _directory, "peerstats." + date );
+                 BufferedWriter clock = writer( _directory, "clockstats." + date ) ) {
+                for( int second = 0; second < 86400; second += 16 ) {
+                    double fraction = second + random.nextInt( 1000 ) / 1000.0;
+                    offset = 0.9 * offset + 2e-7 * random.nextGaussian();
+                    freq  += 1e-4 * random.nextGaussian();
+                    loops.write( String.format( Locale.ROOT, "%d %.3f %.9f %.3f %.9f %.6f %d%n", mjd, fraction, offset, freq,
+                            Math.abs( 1e-7 * random.nextGaussian() ), 0.003, 4 ) );
+                    counts[0]++;
+                    for( int peer = 0; peer < PEERS.length; peer++ ) {
+                        if( second % POLLS[peer] != 0 ) continue;
+                        boolean local = (peer < 2);
+                        double scale = local ? 1e-7 : 1e-4;
+                        peers.write( String.format( Locale.ROOT, "%d %.3f %s %04x %.9f %.9f %.9f %.9f%n", mjd, fraction + 0.1 * peer,
+                                PEERS[peer], STATUSES[peer], scale * random.nextGaussian(), local ? 0 : 0.01 + 1e-4 * random.nextDouble(),
+                                local ? 0.000122070 : 0.001 * random.nextDouble(), Math.abs( scale * random.nextGaussian() ) ) );
+                        counts[1]++;
+                    }
+                    int satellites = 6 + random.nextInt( 6 );
+                    clock.write( String.format( Locale.ROOT, "%d %.3f 127.127.20.0 $GPGGA,%02d%02d%02d.00,4042.6142,N,07400.4168,W,1,"
+                            + "%02d,0.9,%.1f,M,-34.2,M,,*4F%n", mjd, fraction, second / 3600, (second / 60) % 60, second % 60, satellites,
+                            12.3 + random.nextGaussian() ) );
+                    counts[2]++;
+                }
+            }
+        }
+        return counts;
+    }
+
+
+    private static BufferedWriter writer( final File _directory, final String _name ) throws IOException {
+        return Files.newBufferedWriter( new File( _directory, _name ).toPath(), StandardCharsets.US_ASCII );
+    }
+
+
+    /*
+     * Parses the given files RUNS times (with the given number of threads, or the straightforward way if zero), and reports the best run...
+     */
+    private static void measure( final String _name, final List<File> _files, final int _threads ) throws Exception {
+
+        long bytes = 0;
+        for( File file : _files ) bytes += file.length();
+        double bestSeconds = Double.MAX_VALUE;
+        long allocated = 0;
+        long lines = 0;
+        for( int run = 0; run < RUNS; run++ ) {
+            Map<Long,Long> before = allocations();
+            long start = System.nanoTime();
+            ForkJoinPool pool = (_threads == 0) ? null : new ForkJoinPool( _threads );
+            lines = (pool == null) ? (long) naive( _files )[4] : new NTPDStatsParser( pool, 1 << 20 ).parse( _files ).lines();
+            bestSeconds = Math.min( bestSeconds, (System.nanoTime() - start) / 1e9 );
+            allocated = allocatedSince( before );       // before the pool's threads go away...
+            if( pool != null ) pool.shutdown();
+        }
+        System.out.println( String.format( "%-40s %12.2f %10.0f %14.1f", _name, lines / bestSeconds / 1e6, bytes / bestSeconds / 1e6,
+                allocated / (double) lines ) );
+    }
+
+
+    // the bytes allocated so far by each live thread...
+    private static Map<Long,Long> allocations() {
+        Map<Long,Long> result = new HashMap<>();
+        for( long id : THREADS.getAllThreadIds() ) result.put( id, THREADS.getThreadAllocatedBytes( id ) );
+        return result;
+    }
+
+
+    // the bytes allocated by all live threads since the given allocations...
+    private static long allocatedSince( final Map<Long,Long> _before ) {
+        long total = 0;
+        for( long id : THREADS.getAllThreadIds() ) {
+            long bytes = THREADS.getThreadAllocatedBytes( id );
+            if( bytes > 0 ) total += bytes - _before.getOrDefault( id, 0L );
+        }
+        return total;
+    }
+
+
+    /*
+     * The straightforward parse, returning the sums of the loop offsets, peer offsets, peer delays, and fix satellites, and the lines read...
+     */
+    private static double[] naive( final List<File> _files ) throws IOException {
+        double[] sums = new double[5];
+        for( File file : _files ) {
+            NTPDStatsParser.Kind kind = NTPDStatsParser.Kind.of( file );
+            try( BufferedReader reader = Files.newBufferedReader( file.toPath(), StandardCharsets.US_ASCII ) ) {
+                String line;
+                while( (line = reader.readLine()) != null ) {
+                    sums[4]++;
+                    String[] fields = line.split( " " );
+                    if( kind == NTPDStatsParser.Kind.LOOP )
+                        sums[0] += Double.parseDouble( fields[2] ) * 1000;
+                    else if( kind == NTPDStatsParser.Kind.PEER ) {
+                        sums[1] += Double.parseDouble( fields[4] ) * 1000;
+                        sums[2] += Double.parseDouble( fields[5] ) * 1000;
+                    }
+                    else
+                        sums[3] += Integer.parseInt( fields[3].split( "," )[7] );
+                }
+            }
+        }
+        return sums;
+    }
+
+
+    // the same sums, of the parsed records...
+    private static double[] sums( final NTPDStats _stats ) {
+        double[] sums = new double[4];
+        for( int i = 0; i < _stats.loops(); i++ ) sums[0] += _stats.loopOffsetMs[i];
+        for( int i = 0; i < _stats.peerRecords(); i++ ) {
+            sums[1] += _stats.peerOffsetMs[i];
+            sums[2] += _stats.peerDelayMs[i];
+        }
+        for( int i = 0; i < _stats.fixes(); i++ ) sums[3] += _stats.fixSatellites[i];
+        return sums;
+    }
+
+
+    private static NTPDStats parse( final List<File> _files, final int _threads ) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool( _threads );
+        try {
+            return new NTPDStatsParser( pool, 1 << 20 ).parse( _files );
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.dilatush.ntpmonitor;
+
+import com.dilatush.util.HJSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Benchmarks the {@link MetricsServer}: rendering a snapshot (built from the recorded outputs) and some self instrumentation in each text
+ * format, and whole scrapes over HTTP on the loopback interface.  It also benchmarks publishing snapshots (what the monitor does at the end of
+ * each cycle), alone and (in the "scraped" group) with another thread scraping as fast as it can, to show that scrapes don't slow the monitor
+ * down.  Run as a program, it prints a scrape, to check by eye.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime } )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class MetricsBenchmark {
+
+    private PeerTable                     peers;
+    private LocalServer                   server;
+    private GNSSFix                       fix;
+    private List<GNSSSatellite>           used;
+    private List<NTPSnapshot.ProbeStatus> probes;
+    private AtomicReference<NTPSnapshot>  latest;
+    private MetricsServer                 metrics;
+    private URL                           url;
+
+
+    @Setup
+    public void setup() throws Exception {
+        peers = new PeerTable( 16 );
+        new NTPQPeerParser().parse( RecordedOutputs.NTPQ_PEERS, peers );
+        server = new LocalServer( 0x0115, -20, 1, 0.002, 12.3, 0.5 );
+        fix = new GNSSFix( new HJSONObject( RecordedOutputs.GPSCTL_FIX ) );
+        used = new ArrayList<>();
+        for( GNSSSatellite sat : GNSSSatellite.fromRecord( new HJSONObject( RecordedOutputs.GPSCTL_SATELLITES ) ) )
+            if( sat.used ) used.add( sat );
+        probes = new ArrayList<>();
+        for( String name : new String[] { "peers", "kernel", "fix", "satellites" } )
+            probes.add( new NTPSnapshot.ProbeStatus( name, true, 12, null ) );
+
+        latest = new AtomicReference<>( snapshot() );
+        SelfMonitor self = new SelfMonitor( null );
+        for( int i = 0; i < 100; i++ ) {
+            self.beginCycle();
+            self.time( "probe.peers", 1_000_000 + 10_000 * i );
+            self.time( "send", 50_000 + 100 * i );
+            self.endCycle();
+        }
+        self.fail( "peers.timedOut" );
+        metrics = new MetricsServer( new InetSocketAddress( "127.0.0.1", 0 ), "/metrics", latest::get, self );
+        metrics.recordCycle( 15_000_000, null );
+        metrics.start();
+        url = new URL( "http://127.0.0.1:" + metrics.port() + "/metrics" );
+    }
+
+
+    @TearDown
+    public void tearDown() {
+        metrics.stop();
+    }
+
+
+    @Benchmark
+    public String renderOpenMetrics() {
+        return metrics.render( true );
+    }
+
+
+    @Benchmark
+    public String renderPrometheus() {
+        return metrics.render( false );
+    }
+
+
+    @Benchmark
+    public String scrape() throws Exception {
+        return scrape( url );
+    }
+
+
+    // publishing a snapshot, as the monitor does each cycle...
+    @Benchmark
+    public void publish() {
+        latest.set( snapshot() );
+        metrics.recordCycle( 15_000_000, null );
+    }
+
+
+    // and while being scraped continuously...
+    @Benchmark
+    @Group( "scraped" )
+    public void publishWhileScraped() {
+        publish();
+    }
+
+
+    @Benchmark
+    @Group( "scraped" )
+    public String scrapeWhilePublishing() throws Exception {
+        return scrape( url );
+    }
+
+
+    public static void main( final String[] _args ) throws Exception {
+
+        MetricsBenchmark bench = new MetricsBenchmark();
+        bench.setup();
+        System.out.println( scrape( bench.url ) );
+        bench.tearDown();
+    }
+
+
+    private NTPSnapshot snapshot() {
+        return new NTPSnapshot( System.currentTimeMillis(), 12_000_000, true, null, server, fix, peers.copy(), used, null, null, probes );
+    }
+
+
+    private static String scrape( final URL _url ) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) _url.openConnection();
+        connection.setRequestProperty( "Accept", "application/openmetrics-text; version=1.0.0" );
+        try( InputStream in = connection.getInputStream() ) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while( (n = in.read( buffer )) > 0 ) out.write( buffer, 0, n );
+            return new String( out.toByteArray(), StandardCharsets.UTF_8 );
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.dilatush.ntpmonitor;
+
+import com.dilatush.mop.Mailbox;
+import com.dilatush.util.HJSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the stages of an {@link NTPMonitor} cycle with JMH: collecting (parsing recorded ntpq and gpsctl outputs, through the same
+ * probes the monitor normally runs, on its probe threads), building the monitor message, the whole cycle (which also evaluates the rules and
+ * updates the statistics), updating the peer statistics, decoding system status words, and the monitor's own instrumentation.  Posting is
+ * benchmarked separately (see {@link MonitorPostBenchmark}), as it needs a post office.  Each benchmark reports its throughput and its latency
+ * percentiles; run with JMH's gc profiler (as the build does), it also reports the bytes allocated per operation, counted on every thread
+ * (so the collecting benchmarks include what the probes allocate on their threads) in the throughput rows.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime } )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class MonitorBenchmark {
+
+    private NTPMonitor       monitor;
+    private NTPSnapshot      snapshot;
+    private PeerTable        peers;
+    private PeerStatistics   peerStats;
+    private LatencyHistogram histogram;
+    private long             timeMs;
+    private int              status;
+    private long             latency;
+
+
+    @Setup
+    public void setup() {
+        monitor   = recorded( null );
+        snapshot  = monitor.run();
+        peers     = new PeerTable( 16 );
+        new NTPQPeerParser().parse( RecordedOutputs.NTPQ_PEERS, peers );
+        peerStats = new PeerStatistics( null, 60 );
+        histogram = new LatencyHistogram();
+    }
+
+
+    @TearDown
+    public void tearDown() {
+        monitor.stop();
+    }
+
+
+    /*
+     * Returns a monitor that runs no commands and doesn't talk to ntpd, but gets the recorded outputs instead, posting through the given
+     * mailbox (if there is one)...
+     */
+    /* package-private */ static NTPMonitor recorded( final Mailbox _box ) {
+        HJSONObject config = new HJSONObject();
+        config.putDotted( "ntpControl.enabled", false );
+        return new NTPMonitor( _box, config, null,
+                () -> RecordedOutputs.NTPQ_PEERS, () -> RecordedOutputs.NTPQ_KERNEL,
+                () -> RecordedOutputs.GPSCTL_FIX, () -> RecordedOutputs.GPSCTL_SATELLITES );
+    }
+
+
+    @Benchmark
+    public NTPSnapshot run() {
+        return monitor.run();
+    }
+
+
+    @Benchmark
+    public HJSONObject fillMessage() {
+        HJSONObject message = new HJSONObject();
+        monitor.fillMessage( message, snapshot );
+        return message;
+    }
+
+
+    @Benchmark
+    public HJSONObject runAndFillMessage() {
+        HJSONObject message = new HJSONObject();
+        monitor.fillMessage( message, monitor.run() );
+        return message;
+    }
+
+
+    @Benchmark
+    public HJSONObject fill() {
+        HJSONObject message = new HJSONObject();
+        monitor.fill( message, timeMs += 60_000 );
+        return message;
+    }
+
+
+    @Benchmark
+    public int peerStatisticsUpdate() {
+        peerStats.update( peers, timeMs += 60_000 );
+        return peerStats.size();
+    }
+
+
+    @Benchmark
+    public LeapSecondMode leapSecondModeFromStatus() {
+        return LeapSecondMode.fromStatus( status++ );
+    }
+
+
+    @Benchmark
+    public SynchronizationSource synchronizationSourceFromStatus() {
+        return SynchronizationSource.fromStatus( status++ );
+    }
+
+
+    @Benchmark
+    public Event eventFromStatus() {
+        return Event.fromStatus( status++ );
+    }
+
+
+    @Benchmark
+    public LocalServer localServerDecode() {
+        return new LocalServer( status++, -20, 1, 0, 0, 0 );
+    }
+
+
+    @Benchmark
+    public long latencyHistogramRecord() {
+        histogram.record( (latency += 7919) & 0xFFFFFFFL );
+        return histogram.count();
+    }
+
+
+    @Benchmark
+    public void selfMonitorTime() {
+        monitor.self().time( "bench", latency++ & 0xFFFFF );
+    }
+}
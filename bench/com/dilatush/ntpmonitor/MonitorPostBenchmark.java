@@ -0,0 +1,61 @@
+package com.dilatush.ntpmonitor;
+
+import com.dilatush.mop.PostOffice;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.dilatush.util.Strings.isEmpty;
+
+/**
+ * Benchmarks {@link NTPMonitor} posting its ntpstats event, with messages sent through a real post office, configured by the file given as
+ * the <code>postOffice</code> parameter (the build passes it with -PpostOffice=&lt;path&gt;, and otherwise leaves this benchmark out).
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime } )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class MonitorPostBenchmark {
+
+    @Param( "" )
+    public String postOffice;
+
+    private NTPMonitor  monitor;
+    private NTPSnapshot snapshot;
+
+
+    @Setup
+    public void setup() {
+        if( isEmpty( postOffice ) )
+            throw new IllegalStateException( "Posting can't be benchmarked without a post office configuration (-p postOffice=<path>)" );
+        monitor  = MonitorBenchmark.recorded( new PostOffice( postOffice ).createMailbox( "bench" ) );
+        snapshot = monitor.run();
+    }
+
+
+    @TearDown
+    public void tearDown() {
+        monitor.stop();
+    }
+
+
+    @Benchmark
+    public void post() {
+        monitor.post( snapshot );
+    }
+}
@@ -0,0 +1,231 @@
+package com.dilatush.ntpmonitor;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A stand-in for any number of NTP servers, for exercising {@link FleetMonitor} (and other NTP clients) without a fleet.  Each server listens on
+ * its own ephemeral UDP port of localhost, all of them served by one thread and selector.  A server answers client (mode 3) requests as an
+ * NTP server would, with its clock off ours by its own offset (server i is i microseconds fast), and answers NTP control (mode 6) READSTAT
+ * requests with a canned set of associations, and READVAR requests with a canned set of system (or peer) variables.  Each server drops the
+ * given fraction of the requests it gets, so that resends can be exercised.  The control responses can be sent in small fragments, with the
+ * first sent twice and the last out of order, so that reassembly can be exercised too.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class NTPServerStandIn {
+
+    // the associations each server reports, as (association ID, peer status word), and each one's address, host name, and reference ID...
+    private static final int[][]    ASSOCIATIONS = { { 40001, 0x961a }, { 40002, 0x941a }, { 40003, 0x911a } };
+    private static final String[][] PEERS        = { { "127.127.28.0", "SHM(0)", "GPS" }, { "10.0.0.2", "ntp2.example.net", "10.0.0.9" },
+                                                     { "10.0.0.3", "ntp3.example.net", "10.0.0.9" } };
+
+    private final List<DatagramChannel> channels;
+    private final Selector              selector;
+    private final Thread                thread;
+
+    private volatile double             dropFraction;
+    private volatile int                fragmentSize;   // the data bytes in each control response fragment, or zero for just one...
+
+
+    /**
+     * Creates a new instance of this class that stands in for the given number of NTP servers, each dropping the given fraction of requests.
+     *
+     * @param _servers the number of servers to stand in for
+     * @param _dropFraction the fraction (0..1) of requests to drop
+     * @throws IOException if the servers' channels can't be opened
+     */
+    public NTPServerStandIn( final int _servers, final double _dropFraction ) throws IOException {
+        dropFraction = _dropFraction;
+        selector     = Selector.open();
+        channels     = new ArrayList<>( _servers );
+        for( int i = 0; i < _servers; i++ ) {
+            DatagramChannel channel = DatagramChannel.open();
+            channel.bind( new InetSocketAddress( "127.0.0.1", 0 ) );
+            channel.configureBlocking( false );
+            channel.register( selector, SelectionKey.OP_READ, i );
+            channels.add( channel );
+        }
+        thread = new Thread( this::serve, "NTP Server Stand-In" );
+        thread.setDaemon( true );
+    }
+
+
+    public InetSocketAddress address( final int _server ) throws IOException {
+        return (InetSocketAddress) channels.get( _server ).getLocalAddress();
+    }
+
+
+    /**
+     * Returns the offset of the given server's clock from ours, in milliseconds.
+     *
+     * @param _server the index of the server
+     * @return its offset, in milliseconds
+     */
+    public static double offsetMs( final int _server ) {
+        return _server / 1000.0;
+    }
+
+
+    /**
+     * Sets the fraction (0..1) of requests each server drops from now on.
+     *
+     * @param _dropFraction the fraction of requests to drop
+     */
+    public void setDropFraction( final double _dropFraction ) {
+        dropFraction = _dropFraction;
+    }
+
+
+    /**
+     * Sets the number of data bytes (a multiple of four) in each fragment of the control responses from now on, or zero to send each in one
+     * fragment.  A fragmented response is sent with its first fragment twice, then its last, then the rest in order.
+     *
+     * @param _fragmentSize the data bytes in each fragment, or zero
+     */
+    public void setFragmentSize( final int _fragmentSize ) {
+        fragmentSize = _fragmentSize;
+    }
+
+
+    public void start() {
+        thread.start();
+    }
+
+
+    public void stop() throws IOException {
+        thread.interrupt();
+        selector.close();
+        for( DatagramChannel channel : channels ) channel.close();
+    }
+
+
+    private void serve() {
+        ByteBuffer request = ByteBuffer.allocate( 1024 );
+        ByteBuffer reply   = ByteBuffer.allocate( 1024 );
+        try {
+            while( !Thread.currentThread().isInterrupted() ) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while( keys.hasNext() ) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    DatagramChannel channel = (DatagramChannel) key.channel();
+                    int server = (Integer) key.attachment();
+                    request.clear();
+                    SocketAddress client;
+                    while( (client = channel.receive( request )) != null ) {
+                        request.flip();
+                        if( (request.remaining() > 0) && (ThreadLocalRandom.current().nextDouble() >= dropFraction) ) {
+                            int mode = request.get( 0 ) & 7;
+                            if( mode == 6 )
+                                answerControl( server, request, reply, channel, client );
+                            else if( (mode == NTPPacket.MODE_CLIENT) && answerClient( server, request, reply ) )
+                                channel.send( reply, client );
+                        }
+                        request.clear();
+                    }
+                }
+            }
+        }
+        catch( IOException | ClosedSelectorException _e ) {
+            // we've been stopped...
+        }
+    }
+
+
+    private static boolean answerClient( final int _server, final ByteBuffer _request, final ByteBuffer _reply ) {
+        if( _request.remaining() < NTPPacket.LENGTH ) return false;
+        long offset = NTPPacket.fromUnixNanos( (long) (offsetMs( _server ) * 1e6) ) - NTPPacket.fromUnixNanos( 0 );
+        long received = NTPPacket.now() + offset;
+        _reply.clear();
+        _reply.put( (byte) ((NTPPacket.VERSION << 3) | NTPPacket.MODE_SERVER) );
+        _reply.put( (byte) 2 );                                 // stratum...
+        _reply.put( (byte) 6 );                                 // poll...
+        _reply.put( (byte) -20 );                               // precision...
+        _reply.putInt( 0x00000042 );                            // root delay, about 1 ms...
+        _reply.putInt( 0x00000083 );                            // root dispersion, about 2 ms...
+        _reply.put( new byte[] { 10, 0, 0, 1 } );               // reference ID...
+        _reply.putLong( received - (64L << 32) );               // reference timestamp...
+        _reply.putLong( _request.getLong( NTPPacket.TRANSMIT ) );
+        _reply.putLong( received );
+        _reply.putLong( NTPPacket.now() + offset );
+        _reply.flip();
+        return true;
+    }
+
+
+    private void answerControl( final int _server, final ByteBuffer _request, final ByteBuffer _reply, final DatagramChannel _channel,
+                                final SocketAddress _client ) throws IOException {
+
+        if( _request.remaining() < NTPControlClient.HEADER_SIZE ) return;
+        int opcode  = _request.get( 1 ) & 0x1F;
+        int assocID = _request.getShort( 6 ) & 0xFFFF;
+        int status  = 0x0615;                                   // system status...
+        byte[] data;
+        if( opcode == NTPControlClient.OP_READSTAT ) {
+            data = new byte[4 * ASSOCIATIONS.length];
+            for( int i = 0; i < ASSOCIATIONS.length; i++ )
+                ByteBuffer.wrap( data, 4 * i, 4 ).putShort( (short) ASSOCIATIONS[i][0] ).putShort( (short) ASSOCIATIONS[i][1] );
+        }
+        else if( (opcode == NTPControlClient.OP_READVAR) && (assocID == 0) )
+            data = ("stratum=2, refid=10.0.0.1, leap=00, offset=" + offsetMs( _server ) + ", sys_jitter=0.012,\r\n"
+                    + "rootdelay=1.007, rootdisp=2.000, frequency=-12.345, precision=-20, koffset=0.001, kfreq=-12.345, kmaxerr=1.5")
+                    .getBytes( StandardCharsets.US_ASCII );
+        else if( opcode == NTPControlClient.OP_READVAR ) {
+            int peer = 0;
+            while( (peer < ASSOCIATIONS.length) && (ASSOCIATIONS[peer][0] != assocID) ) peer++;
+            if( peer == ASSOCIATIONS.length ) return;
+            status = ASSOCIATIONS[peer][1];
+            long rec = (NTPPacket.now() >>> 32) - 7 - peer;     // polled a few seconds ago...
+            data = String.format( "srcadr=%s, srchost=\"%s\", refid=%s, stratum=%d, hpoll=6, ppoll=6, reach=0x%x,\r\n"
+                            + "delay=%.3f, offset=%.3f, jitter=%.3f, rec=0x%08x.00000000, reftime=0x%08x.00000000",
+                    PEERS[peer][0], PEERS[peer][1], PEERS[peer][2], (peer == 0) ? 1 : 2, (peer == 2) ? 0x7f : 0xff,
+                    0.5 + peer, offsetMs( _server ) + 0.01 * peer, 0.02 + 0.01 * peer, rec, rec - 64 )
+                    .getBytes( StandardCharsets.US_ASCII );
+        }
+        else
+            return;
+        int size = (fragmentSize <= 0) ? data.length : fragmentSize;
+        int fragments = Math.max( 1, (data.length + size - 1) / size );
+
+        // the first fragment, then (if there's more than one) the first again, the last, and the rest...
+        sendFragment( _request, _reply, opcode, status, data, 0, size, _channel, _client );
+        if( fragments == 1 ) return;
+        sendFragment( _request, _reply, opcode, status, data, 0, size, _channel, _client );
+        sendFragment( _request, _reply, opcode, status, data, (fragments - 1) * size, size, _channel, _client );
+        for( int i = 1; i < fragments - 1; i++ )
+            sendFragment( _request, _reply, opcode, status, data, i * size, size, _channel, _client );
+    }
+
+
+    private static void sendFragment( final ByteBuffer _request, final ByteBuffer _reply, final int _opcode, final int _status,
+                                      final byte[] _data, final int _offset, final int _size, final DatagramChannel _channel,
+                                      final SocketAddress _client ) throws IOException {
+        int count = Math.min( _size, _data.length - _offset );
+        boolean more = (_offset + count < _data.length);
+        _reply.clear();
+        _reply.put( (byte) ((2 << 3) | 6) );
+        _reply.put( (byte) (0x80 | (more ? 0x20 : 0) | _opcode) );
+        _reply.putShort( _request.getShort( 2 ) );              // the sequence number...
+        _reply.putShort( (short) _status );
+        _reply.putShort( _request.getShort( 6 ) );              // the association ID...
+        _reply.putShort( (short) _offset );
+        _reply.putShort( (short) count );
+        _reply.put( _data, _offset, count );
+        while( (_reply.position() & 3) != 0 ) _reply.put( (byte) 0 );
+        _reply.flip();
+        _channel.send( _reply, _client );
+    }
+}
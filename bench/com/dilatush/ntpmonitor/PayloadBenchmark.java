@@ -0,0 +1,196 @@
+package com.dilatush.ntpmonitor;
+
+import com.dilatush.util.HJSONObject;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the JSON and binary forms of the monitor.ntp payload, benchmarking building and serializing each (and parsing the JSON form, and
+ * decoding the binary form).  Run as a program, it instead checks that the binary form decodes to exactly the same fields as the JSON form
+ * (for a good cycle, and for one whose probes failed), then reports the size of each.  The monitor is fed the recorded outputs in {@link
+ * RecordedOutputs}.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime } )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class PayloadBenchmark {
+
+    private NTPMonitor  jsonMonitor;
+    private NTPSnapshot jsonSnapshot;
+    private NTPMonitor  binaryMonitor;
+    private NTPSnapshot binarySnapshot;
+    private String      json;
+    private byte[]      binary;
+
+
+    @Setup
+    public void setup() {
+        jsonMonitor    = monitor( null );
+        jsonSnapshot   = jsonMonitor.run();
+        binaryMonitor  = monitor( "only" );
+        binarySnapshot = binaryMonitor.run();
+
+        // the two forms of the same payload...
+        NTPMonitor alongside = alongside();
+        HJSONObject message = new HJSONObject();
+        alongside.fillMessage( message, alongside.run() );
+        alongside.stop();
+        binary = Base64.getDecoder().decode( message.getStringDotted( "monitor.ntp.binary" ) );
+        JSONObject ntp = message.getJSONObject( "monitor" ).getJSONObject( "ntp" );
+        ntp.remove( "binary" );
+        json = ntp.toString();
+    }
+
+
+    @TearDown
+    public void tearDown() {
+        jsonMonitor.stop();
+        binaryMonitor.stop();
+    }
+
+
+    @Benchmark
+    public String jsonFillAndSerialize() {
+        HJSONObject message = new HJSONObject();
+        jsonMonitor.fillMessage( message, jsonSnapshot );
+        return message.toString();
+    }
+
+
+    @Benchmark
+    public String binaryFillAndSerialize() {
+        HJSONObject message = new HJSONObject();
+        binaryMonitor.fillMessage( message, binarySnapshot );
+        return message.toString();
+    }
+
+
+    @Benchmark
+    public HJSONObject jsonParse() {
+        return new HJSONObject( json );
+    }
+
+
+    @Benchmark
+    public HJSONObject binaryDecode() {
+        HJSONObject message = new HJSONObject();
+        NTPBinaryCodec.decode( binary, message );
+        return message;
+    }
+
+
+    public static void main( final String[] _args ) throws Exception {
+
+        NTPMonitor monitor = alongside();
+        NTPSnapshot snapshot = monitor.run();
+
+        // the round trip: the decoded binary payload must have exactly the same fields as the JSON...
+        HJSONObject message = new HJSONObject();
+        monitor.fillMessage( message, snapshot );
+        byte[] binary = Base64.getDecoder().decode( message.getStringDotted( "monitor.ntp.binary" ) );
+        JSONObject json = message.getJSONObject( "monitor" ).getJSONObject( "ntp" );
+        json.remove( "binary" );
+        HJSONObject decoded = new HJSONObject();
+        NTPBinaryCodec.decode( binary, decoded );
+        if( !json.similar( decoded.getJSONObject( "monitor" ).getJSONObject( "ntp" ) ) ) {
+            System.out.println( "Round trip FAILED" );
+            System.out.println( "JSON:    " + json );
+            System.out.println( "Decoded: " + decoded.getJSONObject( "monitor" ).getJSONObject( "ntp" ) );
+            System.exit( 1 );
+        }
+        System.out.println( "Round trip OK" );
+        failedRoundTrip();
+
+        // the sizes...
+        int jsonSize   = json.toString().getBytes( StandardCharsets.UTF_8 ).length;
+        int base64Size = Base64.getEncoder().encodeToString( binary ).length();
+        System.out.println( String.format( "JSON payload: %,d bytes; binary payload: %,d bytes (%,d as base64, %.1f%% of JSON)",
+                jsonSize, binary.length, base64Size, 100.0 * base64Size / jsonSize ) );
+
+        monitor.stop();
+    }
+
+
+    /*
+     * Returns a monitor with both forms of the payload, without what's only in the JSON form...
+     */
+    private static NTPMonitor alongside() {
+        HJSONObject config = new HJSONObject();
+        config.putDotted( "ntpControl.enabled", false );
+        config.putDotted( "binaryPayload", "alongside" );
+        config.putDotted( "peerStats.enabled", false );     // the peer statistics are only in the JSON form...
+        config.putDotted( "sky.enabled", false );           // as is the sky model...
+        return new NTPMonitor( null, config, null,
+                () -> RecordedOutputs.NTPQ_PEERS, () -> RecordedOutputs.NTPQ_KERNEL,
+                () -> RecordedOutputs.GPSCTL_FIX, () -> RecordedOutputs.GPSCTL_SATELLITES );
+    }
+
+
+    /*
+     * Returns a monitor fed the recorded outputs, with the given binary payload (or none, if null)...
+     */
+    private static NTPMonitor monitor( final String _binaryPayload ) {
+        HJSONObject config = new HJSONObject();
+        config.putDotted( "ntpControl.enabled", false );
+        if( _binaryPayload != null ) config.putDotted( "binaryPayload", _binaryPayload );
+        return new NTPMonitor( null, config, null,
+                () -> RecordedOutputs.NTPQ_PEERS, () -> RecordedOutputs.NTPQ_KERNEL,
+                () -> RecordedOutputs.GPSCTL_FIX, () -> RecordedOutputs.GPSCTL_SATELLITES );
+    }
+
+
+    /*
+     * The round trip of a cycle whose probes failed: the error messages end their sections, so they must decode right up to the last byte...
+     */
+    private static void failedRoundTrip() {
+
+        HJSONObject expected = new HJSONObject();
+        expected.putDotted( "monitor.ntp.valid", false );
+        expected.putDotted( "monitor.ntp.errorMessage", "ntpq failed" );
+        NTPMonitor.fillProbe( expected, "ntpq.peers",   false, 12, "timed out" );
+        NTPMonitor.fillProbe( expected, "ntpq.kernel",  false, 0,  "" );
+        NTPMonitor.fillProbe( expected, "gpsctl.fix",   false, 3,  "r\u00e9cepteur absent" );
+        NTPMonitor.fillProbe( expected, "gpsctl.sats",  true,  7,  null );
+
+        NTPBinaryCodec codec = new NTPBinaryCodec();
+        codec.begin( false, "ntpq failed" );
+        codec.probe( "ntpq.peers",  false, 12, "timed out" );
+        codec.probe( "ntpq.kernel", false, 0,  "" );
+        codec.probe( "gpsctl.fix",  false, 3,  "r\u00e9cepteur absent" );
+        codec.probe( "gpsctl.sats", true,  7,  null );
+        HJSONObject decoded = new HJSONObject();
+        try {
+            NTPBinaryCodec.decode( codec.toBytes(), decoded );
+        }
+        catch( IllegalArgumentException _e ) {
+            System.out.println( "Failed round trip FAILED: " + _e.getMessage() );
+            System.exit( 1 );
+        }
+        if( !expected.similar( decoded ) ) {
+            System.out.println( "Failed round trip FAILED" );
+            System.out.println( "Expected: " + expected );
+            System.out.println( "Decoded:  " + decoded );
+            System.exit( 1 );
+        }
+        System.out.println( "Failed round trip OK" );
+    }
+}
@@ -0,0 +1,136 @@
+package com.dilatush.ntpmonitor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares the allocation-free {@link NTPQPeerParser} with the regular expression parsing that {@link NTPMonitor} used to do, on
+ * <code>ntpq -p</code> output with 5, 50, and 500 peers.  The outputs are built from lines recorded on our time servers, with the addresses
+ * and readings varied.  Before measuring, it checks that both find every peer.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime } )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class PeerParserBenchmark {
+
+    // the regular expression and peer building that NTPMonitor used before NTPQPeerParser...
+    private static final Pattern NTPQ_P_PAT = Pattern.compile( "^(\\S)(\\S+)\\s+(\\S+)\\s+(\\d)\\s+([ul])\\s+(\\d+)\\s+(\\d+)\\s+(\\d+)\\s+([\\d.]+)\\s+([\\d.-]+)\\s+([\\d.]+)$", Pattern.MULTILINE );
+
+    private static final String HEADER =
+            "     remote           refid      st t when poll reach   delay   offset  jitter\n" +
+            "==============================================================================\n";
+
+    private static final String[] RECORDED = {
+            "oPPS(0)          .PPS.            0 l    3   16  377    0.000   -0.002   0.001",
+            "*SHM(0)          .GPS.            0 l    2   16  377    0.000  -12.345   3.210",
+            "+time-a-g.nist.g .NIST.           1 u   37   64  377   35.123    1.234   0.456",
+            "-ntp1.example.co 132.163.96.1     2 u  412 1024  377   48.016   -2.987   1.103",
+            "#10.4.1.22       192.168.1.1      3 u   15   64  177    0.412    0.056   0.031",
+    };
+
+
+    @Param( { "5", "50", "500" } )
+    public int peers;
+
+    private String         output;
+    private PeerTable      table;
+    private NTPQPeerParser parser;
+
+
+    @Setup
+    public void setup() {
+        output = buildOutput( peers );
+        table  = new PeerTable( peers );
+        parser = new NTPQPeerParser();
+        if( parser.parse( output, table ) != peers || parseWithRegex( output ).size() != peers )
+            throw new IllegalStateException( "Parsers didn't find all " + peers + " peers" );
+    }
+
+
+    @Benchmark
+    public List<Object[]> regexParse() {
+        return parseWithRegex( output );
+    }
+
+
+    @Benchmark
+    public int parserParse() {
+        return parser.parse( output, table );
+    }
+
+
+    /*
+     * Builds ntpq -p output with the given number of peers, by varying the recorded lines...
+     */
+    private static String buildOutput( final int _peers ) {
+        Random random = new Random( 42 );
+        StringBuilder sb = new StringBuilder( HEADER );
+        for( int i = 0; i < _peers; i++ ) {
+            String line = RECORDED[i % RECORDED.length];
+            if( i >= RECORDED.length ) {
+                String[] fields = line.substring( 1 ).trim().split( "\\s+" );
+                line = String.format( "%c%-16s %-16s %2s %s %4s %4s %5s %8s %8.3f %7.3f", line.charAt( 0 ),
+                        "10.0." + (i / 256) + "." + (i % 256), fields[1], fields[2], fields[3], fields[4], fields[5], fields[6], fields[7],
+                        (random.nextDouble() - 0.5) * 10, random.nextDouble() );
+            }
+            sb.append( line ).append( '\n' );
+        }
+        return sb.toString();
+    }
+
+
+    /*
+     * The way NTPMonitor used to parse ntpq -p output...
+     */
+    private static List<Object[]> parseWithRegex( final String _ntpq ) {
+        List<Object[]> result = new ArrayList<>();
+        Matcher mat = NTPQ_P_PAT.matcher( _ntpq );
+        while( mat.find() ) {
+            Object[] peer = new Object[11];
+            char state = mat.group( 1 ).charAt( 0 );
+            switch( state ) {
+                case ' ': peer[0] = "(none)";             break;
+                case 'x':
+                case '-': peer[0] = "Out of tolerance";   break;
+                case '#': peer[0] = "Good, not used";     break;
+                case '+': peer[0] = "Good, preferred";    break;
+                case '*': peer[0] = "Primary reference";  break;
+                case 'o': peer[0] = "PPS peer";           break;
+                default:  peer[0] = "(unknown):" + state; break;
+            }
+            peer[1]  = mat.group( 2 );
+            peer[2]  = mat.group( 3 );
+            peer[3]  = Integer.parseInt( mat.group( 4 ) );
+            peer[4]  = "l".equals(       mat.group( 5 ) );
+            peer[5]  = Integer.parseInt( mat.group( 6 ) );
+            peer[6]  = Integer.parseInt( mat.group( 7 ) );
+            peer[7]  = Integer.toBinaryString( 256 + Integer.parseInt( mat.group( 8 ), 8 ) ).substring( 1 );
+            peer[8]  = Float.parseFloat( mat.group( 9 ) );
+            peer[9]  = Float.parseFloat( mat.group( 10 ) );
+            peer[10] = Float.parseFloat( mat.group( 11 ) );
+            result.add( peer );
+        }
+        return result;
+    }
+}
@@ -0,0 +1,151 @@
+package com.dilatush.ntpmonitor;
+
+import com.dilatush.util.HJSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exercises the chrony and gpsd probes against local stand-ins for chronyd's command socket and gpsd's JSON socket (see {@link ChronyStandIn}
+ * and {@link GpsdStandIn}): benchmarks polling chronyd in-process (the alternative to forking chronyc), and a whole monitor configured for
+ * chrony and gpsd.  Run as a program, it instead checks that what the probes report matches what the stand-ins sent, and prints the whole
+ * monitor's message.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime } )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class ProbeBenchmark {
+
+    private ChronyStandIn       chronyd;
+    private GpsdStandIn         gpsd;
+    private ChronyTrackingProbe tracking;
+    private ChronySourcesProbe  sources;
+    private NTPMonitor          monitor;
+    private int                 raw;
+
+
+    @Setup
+    public void setup() throws Exception {
+        chronyd = new ChronyStandIn();
+        chronyd.start();
+        InetSocketAddress chronydAddress = chronyd.address();
+        tracking = new ChronyTrackingProbe( new ChronyClient( chronydAddress, 1000 ), 0 );
+        sources  = new ChronySourcesProbe(  new ChronyClient( chronydAddress, 1000 ), 0, 16 );
+        gpsd = new GpsdStandIn();
+        gpsd.start();
+
+        // a whole monitor, monitoring the stand-ins...
+        HJSONObject config = new HJSONObject();
+        config.putDotted( "timeSource",   "chrony"                      );
+        config.putDotted( "chrony.host",  chronydAddress.getHostString() );
+        config.putDotted( "chrony.port",  chronydAddress.getPort()       );
+        config.putDotted( "gnss.gpsdHost", "127.0.0.1"                   );
+        config.putDotted( "gnss.gpsdPort", gpsd.port()                   );
+        monitor = new NTPMonitor( null, config, null );
+        Thread.sleep( 500 );
+    }
+
+
+    @TearDown
+    public void tearDown() throws IOException {
+        monitor.stop();
+        gpsd.stop();
+        chronyd.stop();
+    }
+
+
+    @Benchmark
+    public LocalServer chronyTrackingPoll() throws ProbeException {
+        return tracking.poll();
+    }
+
+
+    @Benchmark
+    public PeerTable chronySourcesPoll() throws ProbeException {
+        return sources.poll();
+    }
+
+
+    @Benchmark
+    public double chronyFloat() {
+        return ChronyClient.chronyFloat( raw += 0x9E3779B9 );
+    }
+
+
+    @Benchmark
+    public NTPSnapshot monitorRun() {
+        return monitor.run();
+    }
+
+
+    public static void main( final String[] _args ) throws Exception {
+
+        ProbeBenchmark bench = new ProbeBenchmark();
+        bench.setup();
+
+        // what the chrony probes report must match what the stand-in sent (to within chrony's 25 bit precision)...
+        LocalServer server = bench.tracking.poll();
+        check( "tracking sync source", server.syncSource == SynchronizationSource.SYNC_SRC_PPS );
+        check( "tracking stratum", server.stratum == 1 );
+        check( "tracking PLL offset", close( server.pllOffsetMs, 1000 * ChronyStandIn.CORRECTION_S ) );
+        check( "tracking frequency", close( server.pllFrequencyOffsetPpm, ChronyStandIn.FREQ_PPM ) );
+        check( "tracking max error", close( server.maxErrMs,
+                1000 * (ChronyStandIn.ROOT_DISPERSION_S + ChronyStandIn.ROOT_DELAY_S / 2) ) );
+        PeerTable peers = bench.sources.poll();
+        check( "sources count", peers.size() == 2 );
+        check( "source 0", "PPS".equals( peers.remote( 0 ) ) && peers.local( 0 ) && (peers.tally( 0 ) == '*') && (peers.reached( 0 ) == 0377) );
+        check( "source 1", "192.168.1.10".equals( peers.remote( 1 ) ) && (peers.tally( 1 ) == '+') && (peers.pollIntervalSeconds( 1 ) == 64)
+                && close( peers.offsetMs( 1 ), 1000 * ChronyStandIn.SERVER_OFFSET_S ) );
+
+        // the gpsd stream must pick up the stand-in's TPV and SKY records (from a stand-in of its own, as they serve one client at a time)...
+        GpsdStandIn gpsd = new GpsdStandIn();
+        gpsd.start();
+        GNSSStream stream = GNSSStream.forGpsd( "127.0.0.1", gpsd.port(), 15000 );
+        stream.start();
+        long deadline = System.currentTimeMillis() + 2000;
+        while( ((stream.getFix() == null) || (stream.getSatellites() == null)) && (System.currentTimeMillis() < deadline) )
+            Thread.sleep( 10 );
+        GNSSFix fix = new GNSSFixProbe( stream, null ).poll();
+        List<GNSSSatellite> satellites = new GNSSSatellitesProbe( stream, null ).poll();
+        check( "gpsd fix", fix.validFix && fix.fixIs3D && (fix.satellitesUsed == 4) && close( fix.latitude, 41.7406 ) );
+        check( "gpsd satellites", (satellites.size() == 5) && "Galileo".equals( satellites.get( 3 ).type ) && (satellites.get( 3 ).id == 3)
+                && "GLONASS".equals( satellites.get( 4 ).type ) && (satellites.get( 4 ).id == 7) );
+        stream.stop();
+        gpsd.stop();
+
+        // and the whole monitor's message...
+        HJSONObject message = new HJSONObject();
+        bench.monitor.fillMessage( message, bench.monitor.run() );
+        System.out.println( message.toString() );
+
+        bench.tearDown();
+    }
+
+
+    private static boolean close( final double _actual, final double _expected ) {
+        return Math.abs( _actual - _expected ) <= 1e-6 * Math.max( 1, Math.abs( _expected ) );
+    }
+
+
+    private static void check( final String _what, final boolean _ok ) {
+        System.out.println( (_ok ? "OK:     " : "FAILED: ") + _what );
+    }
+}
@@ -0,0 +1,57 @@
+package com.dilatush.ntpmonitor;
+
+/**
+ * Command outputs recorded on one of our time servers, for feeding {@link NTPMonitor} in benchmarks without running ntpq or gpsctl.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class RecordedOutputs {
+
+    public static final String NTPQ_PEERS =
+            "     remote           refid      st t when poll reach   delay   offset  jitter\n" +
+            "==============================================================================\n" +
+            "oPPS(0)          .PPS.            0 l    3   16  377    0.000   -0.002   0.001\n" +
+            "*SHM(0)          .GPS.            0 l    2   16  377    0.000  -12.345   3.210\n" +
+            "+time-a-g.nist.g .NIST.           1 u   37   64  377   35.123    1.234   0.456\n" +
+            "-ntp1.example.co 132.163.96.1     2 u  412 1024  377   48.016   -2.987   1.103\n" +
+            "#10.4.1.22       192.168.1.1      3 u   15   64  177    0.412    0.056   0.031\n";
+
+    public static final String NTPQ_KERNEL =
+            "associd=0 status=0115 leap_none, sync_pps, 1 event, clock_sync,\n" +
+            "pll offset:           -0.000213\n" +
+            "pll frequency:        -12.3456\n" +
+            "maximum error:        0.003\n" +
+            "estimated error:      1e-06\n" +
+            "kernel status:        pll ppsfreq ppstime ppssignal nano\n" +
+            "pll time constant:    4\n" +
+            "precision:            1e-09\n" +
+            "frequency tolerance:  500 ppm\n" +
+            "pps frequency:        -12.3456\n" +
+            "pps stability:        0.0021 ppm\n" +
+            "pps jitter:           2.1e-07\n" +
+            "calibration interval  256 s\n" +
+            "calibration cycles:   1234\n" +
+            "jitter exceeded:      3\n" +
+            "stability exceeded:   0\n" +
+            "calibration errors:   0\n";
+
+    public static final String GPSCTL_FIX =
+            "{\"time\":{\"valid\":true,\"accuracy_ns\":23},\"number_of_satellites_used\":9," +
+            "\"fix\":{\"valid\":true,\"3d\":true,\"latitude_deg\":41.6054321,\"longitude_deg\":-111.8523456," +
+            "\"height_above_mean_sea_level_mm\":1382456,\"horizontal_accuracy_mm\":1834}}";
+
+    public static final String GPSCTL_SATELLITES =
+            "{\"satellites\":[" +
+            "{\"gnssID\":\"GPS\",\"satelliteID\":2,\"CNo\":44,\"azimuth\":301,\"elevation\":62,\"used\":true}," +
+            "{\"gnssID\":\"GPS\",\"satelliteID\":5,\"CNo\":41,\"azimuth\":45,\"elevation\":38,\"used\":true}," +
+            "{\"gnssID\":\"GPS\",\"satelliteID\":12,\"CNo\":37,\"azimuth\":178,\"elevation\":21,\"used\":true}," +
+            "{\"gnssID\":\"GPS\",\"satelliteID\":13,\"CNo\":0,\"azimuth\":88,\"elevation\":4,\"used\":false}," +
+            "{\"gnssID\":\"GPS\",\"satelliteID\":25,\"CNo\":46,\"azimuth\":250,\"elevation\":71,\"used\":true}," +
+            "{\"gnssID\":\"GPS\",\"satelliteID\":29,\"CNo\":33,\"azimuth\":122,\"elevation\":14,\"used\":true}," +
+            "{\"gnssID\":\"Galileo\",\"satelliteID\":3,\"CNo\":39,\"azimuth\":210,\"elevation\":44,\"used\":true}," +
+            "{\"gnssID\":\"Galileo\",\"satelliteID\":8,\"CNo\":42,\"azimuth\":15,\"elevation\":53,\"used\":true}," +
+            "{\"gnssID\":\"GLONASS\",\"satelliteID\":7,\"CNo\":35,\"azimuth\":330,\"elevation\":29,\"used\":true}," +
+            "{\"gnssID\":\"GLONASS\",\"satelliteID\":16,\"CNo\":31,\"azimuth\":140,\"elevation\":11,\"used\":true}," +
+            "{\"gnssID\":\"GLONASS\",\"satelliteID\":22,\"CNo\":0,\"azimuth\":275,\"elevation\":2,\"used\":false}" +
+            "]}";
+}
@@ -0,0 +1,319 @@
+package com.dilatush.ntpmonitor;
+
+import com.dilatush.mop.Mailbox;
+import com.dilatush.mop.Message;
+import com.dilatush.mop.PostOffice;
+import com.dilatush.util.HJSONObject;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+/**
+ * Replays probe captures (see {@link ProbeCapture}) through the monitor's whole pipeline: the probes parse the captured outputs (and ntpd's
+ * captured responses to their control queries, and the GNSS stream's captured records, if the capture has them), then the monitor publishes
+ * its snapshot, stores, updates its statistics, fills in its message, and evaluates its rules, exactly as it does in the field, and the
+ * message is serialized (or, with a post office, published).  Each cycle runs as of its captured time, so that everything that depends on
+ * time (the rules, the statistics, the cadence, and the GNSS stream's staleness) sees what it saw in the field.  Replays either as fast as
+ * possible, or paced to the captured cycle times (and the captured times each output arrived) sped up by a factor.  At the end it reports
+ * the sustained cycles per second, the percentiles of the cycle latency, the allocation per cycle (on the monitor's thread and its probe
+ * threads), and each stage's latency, so that two versions of the monitor can be compared on the same captured data.  Before replaying, the
+ * monitor code is warmed up on the start
+ * of the capture.  Accepts these optional arguments on the command line:
+ * <ol>
+ *    <li>a capture file, or a directory of them (replayed in the order they were captured); without it, a capture is made first, through a
+ *        monitor that's capturing (querying a {@link NTPServerStandIn}, and running stand-ins for gpsctl that return {@link RecordedOutputs},
+ *        with an occasional failed command), and replayed</li>
+ *    <li>the speed: "max" (the default) to replay as fast as possible, or the factor to speed up the captured times by (1 for real time)</li>
+ *    <li>the path of a post office configuration file; if it's given, events are posted and messages published through a real post office</li>
+ * </ol>
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class ReplayBenchmark {
+
+    private static final int WARMUP_CYCLES    = 2000;
+    private static final int GENERATED_CYCLES = 10080;      // a week of cycles, a minute apart...
+
+    // the outputs the replaying monitor's probes get, replaced (never changed) for each cycle...
+    private static volatile ProbeCapture.Cycle current;
+    private static volatile long               currentStartNanos;
+    private static volatile long               nowMs;       // the replay's clock, on the captured times...
+    private static double                      speed;       // zero for as fast as possible...
+
+
+    public static void main( final String[] _args ) throws Exception {
+
+        List<File> captures = (_args.length > 0) ? captures( new File( _args[0] ) ) : generate();
+        speed = ((_args.length > 1) && !"max".equals( _args[1] )) ? Double.parseDouble( _args[1] ) : 0;
+        Mailbox box = (_args.length > 2) ? new PostOffice( _args[2] ).createMailbox( "replay" ) : null;
+        EnumSet<ProbeCapture.Source> sources = sources( captures );
+
+        // warm up on the start of the capture (a minute apart, however often it repeats), with a monitor we then throw away...
+        GNSSStream warmupStream = stream( sources );
+        NTPMonitor warmup = monitor( box, sources, warmupStream );
+        int warmed = 0;
+        while( warmed < WARMUP_CYCLES ) {
+            int before = warmed;
+            for( File capture : captures ) {
+                try( ProbeCapture.Reader reader = new ProbeCapture.Reader( capture ) ) {
+                    ProbeCapture.Cycle cycle;
+                    while( (warmed < WARMUP_CYCLES) && ((cycle = reader.next()) != null) ) {
+                        long timeMs = warmed * 60_000L;
+                        current = cycle;
+                        currentStartNanos = System.nanoTime();
+                        nowMs = timeMs;
+                        warmup.fill( new HJSONObject(), timeMs );
+                        feed( warmupStream, cycle, timeMs );
+                        warmed++;
+                    }
+                }
+            }
+            if( warmed == before ) throw new IllegalArgumentException( "No cycles in the capture" );
+        }
+        warmup.stop();
+
+        // then replay the whole capture, with a fresh monitor...
+        GNSSStream stream = stream( sources );
+        NTPMonitor monitor = monitor( box, sources, stream );
+        Outbox outbox = (box == null) ? null : new Outbox( box );
+        SelfMonitor self = monitor.self();
+        long[] cycleNanos = new long[1024];
+        int cycles = 0;
+        int invalid = 0;
+        long allocated = 0;
+        long published = 0;
+        long firstMs = -1;
+        long lastMs = 0;
+        long start = System.nanoTime();
+        for( File capture : captures ) {
+            try( ProbeCapture.Reader reader = new ProbeCapture.Reader( capture ) ) {
+                ProbeCapture.Cycle cycle;
+                while( (cycle = reader.next()) != null ) {
+
+                    // if we're paced, wait until it's time for this cycle...
+                    if( firstMs < 0 ) firstMs = cycle.timeMs;
+                    lastMs = cycle.timeMs;
+                    if( speed > 0 ) {
+                        long due = start + (long) ((cycle.timeMs - firstMs) * 1e6 / speed);
+                        long wait = due - System.nanoTime();
+                        if( wait > 0 ) Thread.sleep( wait / 1_000_000, (int) (wait % 1_000_000) );
+                    }
+
+                    current = cycle;
+                    currentStartNanos = System.nanoTime();
+                    nowMs = cycle.timeMs;
+                    self.beginCycle();
+                    HJSONObject message = (box == null) ? new HJSONObject() : box.createPublishMessage( "ntp.replay" );
+                    monitor.fill( message, cycle.timeMs );
+                    if( outbox != null )
+                        outbox.publish( "ntp.replay", (Message) message );
+                    else
+                        published += message.toString().length();
+                    self.endCycle();
+                    feed( stream, cycle, cycle.timeMs );    // the records that arrived after the cycle started...
+
+                    if( cycles == cycleNanos.length ) cycleNanos = Arrays.copyOf( cycleNanos, 2 * cycles );
+                    cycleNanos[cycles++] = self.cycles().lastNanos();
+                    allocated += Math.max( 0, self.lastAllocated() );
+                    if( !message.getBooleanDotted( "monitor.ntp.valid" ) ) invalid++;
+                }
+            }
+        }
+        double wallSeconds = (System.nanoTime() - start) / 1e9;
+        monitor.stop();
+
+        // and report...
+        long busyNanos = 0;
+        for( int i = 0; i < cycles; i++ ) busyNanos += cycleNanos[i];
+        Arrays.sort( cycleNanos, 0, cycles );
+        System.out.println( String.format( "Replayed %,d cycles (%.1f hours captured) in %.1f seconds (%s)",
+                cycles, (lastMs - firstMs) / 3.6e6, wallSeconds, (speed > 0) ? speed + "x captured time" : "as fast as possible" ) );
+        System.out.println( String.format( "Sustained: %,.0f cycles/s (%,.0f cycles/s of wall time, with reading the capture)",
+                cycles / (busyNanos / 1e9), cycles / wallSeconds ) );
+        System.out.println( String.format( "Cycle latency: p50 %.1f us, p90 %.1f us, p99 %.1f us, p99.9 %.1f us, max %.1f us",
+                at( cycleNanos, cycles, 0.50 ), at( cycleNanos, cycles, 0.90 ), at( cycleNanos, cycles, 0.99 ), at( cycleNanos, cycles, 0.999 ),
+                cycleNanos[cycles - 1] / 1e3 ) );
+        System.out.println( String.format( "Allocated: %,.0f bytes/cycle (monitor and probe threads)", allocated / (double) cycles ) );
+        System.out.println( String.format( "Invalid cycles: %,d; %s", invalid,
+                (outbox != null) ? "messages published through the post office" : String.format( "%,.0f characters/message",
+                        published / (double) cycles ) ) );
+        System.out.println( "Stages (p50 / p99 / max, us):" );
+        for( Map.Entry<String,LatencyHistogram> entry : new TreeMap<>( self.timers() ).entrySet() ) {
+            LatencyHistogram timer = entry.getValue();
+            System.out.println( String.format( "    %-20s %10.1f %10.1f %10.1f", entry.getKey(), timer.valueAt( 0.50 ) / 1e3,
+                    timer.valueAt( 0.99 ) / 1e3, timer.maxNanos() / 1e3 ) );
+        }
+    }
+
+
+    /*
+     * Returns a monitor that runs no commands, doesn't talk to ntpd, and reads no GNSS stream, but gets the current cycle's captured outputs
+     * instead (with ntpd's captured responses to its control queries, if the capture has them, and the given stand-in for the GNSS stream)...
+     */
+    private static NTPMonitor monitor( final Mailbox _box, final EnumSet<ProbeCapture.Source> _sources, final GNSSStream _stream ) {
+        HJSONObject config = new HJSONObject();
+        boolean control = _sources.contains( ProbeCapture.Source.CONTROL_PEERS ) || _sources.contains( ProbeCapture.Source.CONTROL_KERNEL );
+        if( !control ) config.putDotted( "ntpControl.enabled", false );
+        return new NTPMonitor( _box, config, (_box == null) ? null : new Outbox( _box ),
+                replayed( ProbeCapture.Source.PEERS ), replayed( ProbeCapture.Source.KERNEL ),
+                replayed( ProbeCapture.Source.FIX ), replayed( ProbeCapture.Source.SATELLITES ),
+                control ? queried( ProbeCapture.Source.CONTROL_PEERS ) : null, control ? queried( ProbeCapture.Source.CONTROL_KERNEL ) : null,
+                _stream );
+    }
+
+
+    /*
+     * Returns a stand-in for the GNSS stream, on the replay's clock, if the capture has the stream's records; otherwise null...
+     */
+    private static GNSSStream stream( final EnumSet<ProbeCapture.Source> _sources ) {
+        return _sources.contains( ProbeCapture.Source.GNSS_STREAM ) ? GNSSStream.replaying( "replay", 15000, () -> nowMs ) : null;
+    }
+
+
+    /*
+     * Feeds the given stand-in stream (if there is one) the GNSS stream's records captured during the given cycle, each at the captured time it
+     * arrived (the cycle having started at the given time)...
+     */
+    private static void feed( final GNSSStream _stream, final ProbeCapture.Cycle _cycle, final long _timeMs ) {
+        if( _stream == null ) return;
+        List<String> records = _cycle.outputs( ProbeCapture.Source.GNSS_STREAM );
+        for( int i = 0; i < records.size(); i++ ) {
+            nowMs = _timeMs + _cycle.offsetMs( ProbeCapture.Source.GNSS_STREAM, i );
+            if( records.get( i ) != null ) _stream.feed( records.get( i ) );
+        }
+    }
+
+
+    /*
+     * Returns a stand-in for the command whose outputs were captured as the given source.  It returns the source's output in the current cycle
+     * (or the last output captured, if its probe wasn't polled that cycle), when it was captured (sped up), if we're paced...
+     */
+    private static Supplier<String> replayed( final ProbeCapture.Source _source ) {
+        String[] last = new String[1];
+        return () -> {
+            ProbeCapture.Cycle cycle = current;
+            if( !cycle.has( _source ) ) return last[0];
+            pace( cycle.offsetMs( _source ) );
+            return last[0] = cycle.output( _source );
+        };
+    }
+
+
+    /*
+     * Returns a stand-in for ntpd's responses to the control queries captured as the given source.  It returns the source's responses in the
+     * current cycle, in the order they were captured, each when it was captured (sped up), if we're paced; once they run out, the queries
+     * fail...
+     */
+    private static Supplier<String> queried( final ProbeCapture.Source _source ) {
+        ProbeCapture.Cycle[] cycle = new ProbeCapture.Cycle[1];
+        int[] next = new int[1];
+        return () -> {
+            if( cycle[0] != current ) {
+                cycle[0] = current;
+                next[0]  = 0;
+            }
+            List<String> responses = cycle[0].outputs( _source );
+            if( next[0] >= responses.size() ) return null;
+            pace( cycle[0].offsetMs( _source, next[0] ) );
+            return responses.get( next[0]++ );
+        };
+    }
+
+
+    /*
+     * If we're paced, waits until the given milliseconds (sped up) after the current cycle started...
+     */
+    private static void pace( final int _offsetMs ) {
+        if( speed <= 0 ) return;
+        long wait = currentStartNanos + (long) (_offsetMs * 1e6 / speed) - System.nanoTime();
+        if( wait <= 0 ) return;
+        try {
+            Thread.sleep( wait / 1_000_000, (int) (wait % 1_000_000) );
+        }
+        catch( InterruptedException _e ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /*
+     * Returns the sources that any cycle of the given captures has outputs from...
+     */
+    private static EnumSet<ProbeCapture.Source> sources( final List<File> _captures ) throws Exception {
+        EnumSet<ProbeCapture.Source> sources = EnumSet.noneOf( ProbeCapture.Source.class );
+        for( File capture : _captures ) {
+            try( ProbeCapture.Reader reader = new ProbeCapture.Reader( capture ) ) {
+                ProbeCapture.Cycle cycle;
+                while( (cycle = reader.next()) != null )
+                    for( ProbeCapture.Source source : ProbeCapture.Source.values() )
+                        if( cycle.has( source ) ) sources.add( source );
+            }
+        }
+        return sources;
+    }
+
+
+    private static double at( final long[] _sorted, final int _count, final double _fraction ) {
+        return _sorted[Math.min( _count - 1, (int) (_count * _fraction) )] / 1e3;
+    }
+
+
+    /*
+     * Returns the capture files in the given file (if it's a directory, in the order they were captured)...
+     */
+    private static List<File> captures( final File _file ) {
+        List<File> files = new ArrayList<>();
+        if( !_file.isDirectory() ) {
+            files.add( _file );
+            return files;
+        }
+        File[] found = _file.listFiles( ( _dir, _name ) -> _name.startsWith( ProbeCapture.PREFIX ) && _name.endsWith( ProbeCapture.SUFFIX ) );
+        if( found != null ) files.addAll( Arrays.asList( found ) );
+        files.sort( ( _a, _b ) -> Long.compare( capturedAt( _a ), capturedAt( _b ) ) );
+        return files;
+    }
+
+
+    private static long capturedAt( final File _file ) {
+        String name = _file.getName();
+        return Long.parseLong( name.substring( ProbeCapture.PREFIX.length(), name.length() - ProbeCapture.SUFFIX.length() ) );
+    }
+
+
+    /*
+     * Makes a capture through a monitor that's capturing, with its cycles a minute apart, querying a stand-in ntpd, with gpsctl failing now and
+     * then, and returns it...
+     */
+    private static List<File> generate() throws Exception {
+        File directory = Files.createTempDirectory( "ntpcapture" ).toFile();
+        directory.deleteOnExit();
+        NTPServerStandIn ntpd = new NTPServerStandIn( 1, 0 );
+        ntpd.start();
+        HJSONObject config = new HJSONObject();
+        config.putDotted( "capture.directory", directory.getPath() );
+        config.putDotted( "ntpControl.host",   ntpd.address( 0 ).getHostString() );
+        config.putDotted( "ntpControl.port",   ntpd.address( 0 ).getPort() );
+        int[] polls = new int[1];
+        NTPMonitor capturing = new NTPMonitor( null, config, null,
+                () -> RecordedOutputs.NTPQ_PEERS, () -> RecordedOutputs.NTPQ_KERNEL,
+                () -> ((++polls[0] % 97) == 0) ? null : RecordedOutputs.GPSCTL_FIX, () -> RecordedOutputs.GPSCTL_SATELLITES );
+        long startMs = System.currentTimeMillis();
+        for( int i = 0; i < GENERATED_CYCLES; i++ )
+            capturing.fill( new HJSONObject(), startMs + i * 60_000L );
+        capturing.stop();
+        ntpd.stop();
+        List<File> captures = captures( directory );
+        for( File capture : captures ) {
+            capture.deleteOnExit();
+            System.out.println( String.format( "Captured %,d cycles in %,d bytes", GENERATED_CYCLES, capture.length() ) );
+        }
+        return captures;
+    }
+}
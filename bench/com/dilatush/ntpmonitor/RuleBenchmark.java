@@ -0,0 +1,110 @@
+package com.dilatush.ntpmonitor;
+
+import com.dilatush.util.HJSONObject;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks {@link RuleEngine#evaluate} with growing numbers of rules (an even mix of threshold, hysteresis, rate, and transition rules over
+ * all the signals), to show that the cost of a sample grows only linearly, and slowly, with the number of rules.  The steady samples are
+ * all the same, as most real ones are, so no rule fires; the alternating samples flip between two states, so that many rules fire (and
+ * allocate their events) on every sample.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime } )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class RuleBenchmark {
+
+    @Param( { "10", "100", "300", "1000" } )
+    public int rules;
+
+    @Param( { "steady", "alternating" } )
+    public String samples;
+
+    private RuleEngine    engine;
+    private PeerTable     peers;
+    private LocalServer[] servers;
+    private GNSSFix[]     fixes;
+    private int           mask;
+    private int           sample;
+    private long          nowMs;
+
+
+    @Setup
+    public void setup() {
+        peers = new PeerTable( 16 );
+        new NTPQPeerParser().parse( RecordedOutputs.NTPQ_PEERS, peers );
+        servers = new LocalServer[] { new LocalServer( 0x0115, -20, 1, 0.002, 12.3, 0.5 ), new LocalServer( 0x0615, -20, 1, 1.7, 12.4, 0.9 ) };
+        fixes = new GNSSFix[] {
+                new GNSSFix( true, 2.0e-8, 9, true, true, 41.74, -111.83, 4600, 6 ),
+                new GNSSFix( true, 5.0e-8, 3, true, false, 41.74, -111.83, 4600, 40 ) };
+        engine = new RuleEngine( config( rules ) );
+        mask   = "steady".equals( samples ) ? 0 : 1;
+        nowMs  = System.currentTimeMillis();
+    }
+
+
+    @Benchmark
+    public List<RuleEngine.Firing> evaluate() {
+        int i = sample++ & mask;
+        nowMs += 60000;
+        return engine.evaluate( nowMs, true, servers[i], fixes[i], peers );
+    }
+
+
+    /*
+     * Returns a configuration with the given number of rules...
+     */
+    private static HJSONObject config( final int _count ) {
+        RuleEngine.Signal[] signals = RuleEngine.Signal.values();
+        JSONArray rules = new JSONArray();
+        for( int i = 0; i < _count; i++ ) {
+            JSONObject rule = new JSONObject();
+            rule.put( "name",   "rule." + i );
+            rule.put( "signal", signals[i % signals.length].key );
+            switch( i & 3 ) {
+                case 0:
+                    rule.put( "kind", "transition" );
+                    break;
+                case 1:
+                    rule.put( "kind",  "threshold" );
+                    rule.put( "op",    ">" );
+                    rule.put( "value", i % 7 );
+                    break;
+                case 2:
+                    rule.put( "kind",  "hysteresis" );
+                    rule.put( "above", 1.0 );
+                    rule.put( "clear", 0.5 );
+                    break;
+                default:
+                    rule.put( "kind",     "rate" );
+                    rule.put( "rising",   0.1 );
+                    rule.put( "debounce", 2 );
+                    break;
+            }
+            rules.put( rule );
+        }
+        HJSONObject config = new HJSONObject();
+        config.put( "rules", rules );
+        return config;
+    }
+}
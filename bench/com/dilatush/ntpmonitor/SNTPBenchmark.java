@@ -0,0 +1,81 @@
+package com.dilatush.ntpmonitor;
+
+import com.dilatush.util.HJSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the {@link SNTPProber}: one probe (an exchange with each target) of four stand-in NTP servers (see {@link NTPServerStandIn}) on
+ * localhost, one as the local server and three as peers, to show that an exchange allocates nothing.  Run as a program, it instead runs the
+ * prober on its own thread at 10 ms intervals for a couple of seconds and prints the published summary, to check by eye that the stand-ins'
+ * offsets (0 to 3 microseconds) are measured.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime } )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class SNTPBenchmark {
+
+    private NTPServerStandIn servers;
+    private SNTPProber       prober;
+
+
+    @Setup
+    public void setup() throws Exception {
+        servers = new NTPServerStandIn( 4, 0 );
+        servers.start();
+        prober = new SNTPProber( config( servers ), servers.address( 0 ), 60_000 );
+    }
+
+
+    @TearDown
+    public void tearDown() throws IOException {
+        prober.stop();
+        servers.stop();
+    }
+
+
+    @Benchmark
+    public void probe() {
+        prober.probe();
+    }
+
+
+    public static void main( final String[] _args ) throws Exception {
+
+        NTPServerStandIn servers = new NTPServerStandIn( 4, 0 );
+        servers.start();
+        SNTPProber prober = new SNTPProber( config( servers ), servers.address( 0 ), 2_000 );
+        prober.start();
+        Thread.sleep( 2_000 );
+        HJSONObject message = new HJSONObject();
+        NTPMonitor.fillSNTP( message, prober.drain() );
+        System.out.println( message );
+        prober.stop();
+        servers.stop();
+    }
+
+
+    // probing the stand-ins at 10 ms intervals, with the first as the local server and the rest as peers...
+    private static HJSONObject config( final NTPServerStandIn _servers ) throws Exception {
+        return new HJSONObject( "{\"sntp\":{\"intervalMs\":10,\"servers\":[" +
+                "\"127.0.0.1:" + _servers.address( 1 ).getPort() + "\",\"127.0.0.1:" + _servers.address( 2 ).getPort() + "\"," +
+                "\"127.0.0.1:" + _servers.address( 3 ).getPort() + "\"]}}" );
+    }
+}
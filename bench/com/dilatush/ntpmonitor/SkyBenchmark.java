@@ -0,0 +1,129 @@
+package com.dilatush.ntpmonitor;
+
+import com.dilatush.util.HJSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the {@link SkyModel}: updating it with a cycle's satellites in view, and publishing it, against a day of synthetic sky (four
+ * constellations passing overhead, with CNo that rises with elevation and a weak sector to the north-east), sampled once a minute, after
+ * a week of it.  For comparison, it benchmarks what the monitor did before: rebuilding the list of used satellites and filling in the full
+ * JSON for each of them.  Run as a program, it runs the model over the week, to show that satellites come and go without the model growing,
+ * and prints the published model at the end of it to check by eye.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime } )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class SkyBenchmark {
+
+    private static final String[] TYPES      = { "GPS", "Galileo", "GLONASS", "BeiDou" };
+    private static final int      PER_TYPE   = 32;
+    private static final int      MINUTES    = 24 * 60;
+
+
+    private List<List<GNSSSatellite>> day;
+    private SkyModel                  model;
+    private long                      start;
+    private long                      minute;
+
+
+    @Setup
+    public void setup() {
+        day   = day();
+        model = new SkyModel( null );
+        start = System.currentTimeMillis();
+        week( model, day, start );
+    }
+
+
+    @Benchmark
+    public int update() {
+        int m = (int) (minute++ % MINUTES);
+        model.update( start + 60_000L * (7 * MINUTES + minute), day.get( m ) );
+        return model.size();
+    }
+
+
+    @Benchmark
+    public HJSONObject putDotted() {
+        HJSONObject message = new HJSONObject();
+        model.putDotted( message, "monitor.ntp.sky" );
+        return message;
+    }
+
+
+    @Benchmark
+    public HJSONObject usedListFillSatellites() {
+        List<GNSSSatellite> used = new ArrayList<>();
+        for( GNSSSatellite sat : day.get( (int) (minute++ % MINUTES) ) )
+            if( sat.used ) used.add( sat );
+        HJSONObject message = new HJSONObject();
+        NTPMonitor.fillSatellites( message, used );
+        return message;
+    }
+
+
+    public static void main( final String[] _args ) throws Exception {
+
+        SkyModel model = new SkyModel( null );
+        week( model, day(), System.currentTimeMillis() );
+        HJSONObject json = new HJSONObject();
+        model.putDotted( json, "monitor.ntp.sky" );
+        System.out.println( json.toString() );
+        System.out.println( "Satellites tracked after a week: " + model.size() );
+    }
+
+
+    // runs the given model over a week of the given day's sky, from the given time...
+    private static void week( final SkyModel _model, final List<List<GNSSSatellite>> _day, final long _start ) {
+        for( int d = 0; d < 7; d++ )
+            for( int minute = 0; minute < MINUTES; minute++ )
+                _model.update( _start + 60_000L * (d * MINUTES + minute), _day.get( minute ) );
+    }
+
+
+    // the satellites in view at each minute of the day...
+    private static List<List<GNSSSatellite>> day() {
+        List<List<GNSSSatellite>> day = new ArrayList<>( MINUTES );
+        for( int minute = 0; minute < MINUTES; minute++ ) day.add( sky( minute ) );
+        return day;
+    }
+
+
+    /*
+     * Returns the satellites in view at the given minute of the day.  Each satellite's elevation follows a sinusoid with its own phase and a
+     * period of about half a day, so it's above the horizon about half the time...
+     */
+    private static List<GNSSSatellite> sky( final int _minute ) {
+        List<GNSSSatellite> result = new ArrayList<>();
+        for( int t = 0; t < TYPES.length; t++ ) {
+            for( int id = 1; id <= PER_TYPE; id++ ) {
+                double phase = 2 * Math.PI * ((t * PER_TYPE + id) * 0.618034 % 1.0);
+                double angle = 2 * Math.PI * _minute / (718 + 7 * t) + phase;
+                int elevation = (int) Math.round( 75 * Math.sin( angle ) );
+                if( elevation < 0 ) continue;
+                int azimuth = (int) Math.floorMod( Math.round( Math.toDegrees( angle + phase ) ), 360 );
+                int cno = 25 + elevation / 4 - ((azimuth >= 30 && azimuth < 75 && elevation < 30) ? 10 : 0);
+                result.add( new GNSSSatellite( TYPES[t], id, azimuth, elevation, cno, elevation > 15 ) );
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,137 @@
+package com.dilatush.ntpmonitor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the {@link TimeSeriesStore}: after appending a week of once-a-second samples (in day-long segments), measures range queries over
+ * the whole week and over one hour, both while the segments are still open and after they've been reopened from disk.  Run as a program, it
+ * instead times appending the week, then checks that a series appended to once a minute gets segments sized for that, and that a sweep
+ * deletes expired segments, and drops the series left without any.  The program accepts one optional argument on the command line: the
+ * directory to put the store in (by default, a new temporary directory, deleted afterwards).
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime } )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+public class TimeSeriesBenchmark {
+
+    private static final int  WEEK_SECONDS = 7 * 86400;
+    private static final long START        = 1_700_000_000_000L;
+
+    private File                       directory;
+    private TimeSeriesStore.TimeSeries series;
+    private TimeSeriesStore.TimeSeries reopened;
+
+
+    @Setup
+    public void setup() throws Exception {
+        directory = Files.createTempDirectory( "tsbench" ).toFile();
+        series = week( directory );
+
+        // and the same again, from a freshly opened store...
+        TimeSeriesStore store = new TimeSeriesStore( directory, 86400, TimeUnit.DAYS.toMillis( 1 ), TimeUnit.DAYS.toMillis( 3650 ) );
+        reopened = store.series( "samples", HighRateSampler.SERIES_COLUMNS );
+        TimeSeriesStore.Range week = reopened.query( START, START + 1000L * WEEK_SECONDS );
+        if( week.times.length != WEEK_SECONDS )
+            throw new IllegalStateException( "Reopened store has " + week.times.length + " records, not " + WEEK_SECONDS );
+    }
+
+
+    @TearDown
+    public void tearDown() throws IOException {
+        delete( directory );
+    }
+
+
+    @Benchmark
+    public TimeSeriesStore.Range queryWeekOpen() {
+        return series.query( START, START + 1000L * WEEK_SECONDS );
+    }
+
+
+    @Benchmark
+    public TimeSeriesStore.Range queryHourOpen() {
+        return series.query( START + 86_400_000L, START + 90_000_000L );
+    }
+
+
+    @Benchmark
+    public TimeSeriesStore.Range queryWeekReopened() {
+        return reopened.query( START, START + 1000L * WEEK_SECONDS );
+    }
+
+
+    public static void main( final String[] _args ) throws Exception {
+
+        File directory = (_args.length > 0) ? new File( _args[0] ) : Files.createTempDirectory( "tsbench" ).toFile();
+        try {
+            long appendStart = System.nanoTime();
+            week( directory );
+            long appendNanos = System.nanoTime() - appendStart;
+            System.out.println( String.format( "Appended %,d records in %,d ms (%,.0f ns/record)",
+                    WEEK_SECONDS, TimeUnit.NANOSECONDS.toMillis( appendNanos ), (double) appendNanos / WEEK_SECONDS ) );
+
+            // two days of a peer appended to once a minute, then gone...
+            TimeSeriesStore sweeping = new TimeSeriesStore( directory, 86400, TimeUnit.DAYS.toMillis( 1 ), TimeUnit.DAYS.toMillis( 1 ) );
+            TimeSeriesStore.TimeSeries peer = sweeping.series( "peer.gone", "offsetMs" );
+            for( int i = 0; i < 2 * 1440; i++ )
+                peer.append( START + 60_000L * i, 0.1 );
+            long largest = 0;
+            for( File file : segments( directory, "peer.gone@" ) ) largest = Math.max( largest, file.length() );
+            int dropped = sweeping.sweep( START + TimeUnit.DAYS.toMillis( 5 ) );
+            System.out.println( String.format( "Once-a-minute segments: %,d bytes at most; swept %d series, leaving %d segments of it and %d of"
+                    + " the samples", largest, dropped, segments( directory, "peer.gone@" ).length, segments( directory, "samples@" ).length ) );
+            if( (largest > 4096 + 16 * 2 * 1440) || (dropped != 1) || (sweeping.size() != 0) || (segments( directory, "peer.gone@" ).length != 0)
+                    || (segments( directory, "samples@" ).length == 0) )
+                throw new IllegalStateException( "The once-a-minute series wasn't sized, or swept, as it should have been" );
+        }
+        finally {
+            if( _args.length == 0 ) delete( directory );
+        }
+    }
+
+
+    /*
+     * Appends a week of 1 Hz samples to a new store in the given directory, returning the series appended to (and still open)...
+     */
+    private static TimeSeriesStore.TimeSeries week( final File _directory ) throws IOException {
+        TimeSeriesStore store = new TimeSeriesStore( _directory, 86400, TimeUnit.DAYS.toMillis( 1 ), TimeUnit.DAYS.toMillis( 30 ) );
+        TimeSeriesStore.TimeSeries series = store.series( "samples", HighRateSampler.SERIES_COLUMNS );
+        for( int i = 0; i < WEEK_SECONDS; i++ )
+            series.append( START + 1000L * i, 0.001 * Math.sin( i / 600.0 ), -12.3 + 0.01 * Math.cos( i / 3600.0 ), 0.003, 2.3e-8 );
+        return series;
+    }
+
+
+    private static void delete( final File _directory ) throws IOException {
+        File[] files = _directory.listFiles();
+        if( files != null )
+            for( File file : files ) Files.delete( file.toPath() );
+        Files.delete( _directory.toPath() );
+    }
+
+
+    private static File[] segments( final File _directory, final String _prefix ) {
+        File[] files = _directory.listFiles( ( _dir, _name ) -> _name.startsWith( _prefix ) );
+        return (files == null) ? new File[0] : files;
+    }
+}
@@ -9,11 +9,23 @@ scp runNTPMon.sh ntp:/apps/ntpmon
 
 # execute commands on the NTP server
 # get to the app directory
+# find out (just once, rather than on every start) whether the JVM can keep a class data sharing archive for runNTPMon.sh, and how
 # set mode and owner on files that stay in that directory
 # copy the service wrapper (if it has changed) to the systemd/system directory, change its mode and owner
 # bounce the NTP-monitor service
 ssh tom@ntp << RUN_ON_NTP
 cd /apps/ntpmon
+if /usr/bin/java -XX:+AutoCreateSharedArchive -XX:SharedArchiveFile=/tmp/ntpmon-cds.probe -version > /dev/null 2>&1
+then
+    echo auto | sudo tee cds.mode > /dev/null
+elif /usr/bin/java -XX:ArchiveClassesAtExit=/tmp/ntpmon-cds.probe -version > /dev/null 2>&1
+then
+    echo exit | sudo tee cds.mode > /dev/null
+else
+    echo none | sudo tee cds.mode > /dev/null
+fi
+rm -f /tmp/ntpmon-cds.probe
+sudo chown ntpmon:ntpmon cds.mode
 sudo chown ntpmon:ntpmon NTPMonitor.jar
 sudo chmod ug+xrw NTPMonitor.jar
 sudo chown ntpmon:ntpmon ntpconfig.json
@@ -10,33 +10,62 @@ systemd_exit () {
 # first we make sure that the serial port and GPS are properly initialized...
 #! /bin/bash
 
-# first we try to synchronize the host baud rate to whatever the GPS happens to use, with NMEA data...
-RESULT=$(/home/tom/gpsctl/gpsctl -a nmea)
+# if the GPS already answers a query (as it does when systemd is just restarting us), the serial port and GPS are still synchronized, so we
+# skip the baud rate dance and go straight to starting the monitor...
+if timeout 5 /home/tom/gpsctl/gpsctl --query fix --json 2> /dev/null | grep -q '^{'
+then
+    echo "Host serial port /dev/serial0 is already synchronized with the GPS."
+else
 
-# if that fails, we try again using ASCII data...
-if [ -n "${RESULT}" ]; then RESULT=$(/home/tom/gpsctl/gpsctl -a ascii); fi
+    # first we try to synchronize the host baud rate to whatever the GPS happens to use, with NMEA data...
+    RESULT=$(/home/tom/gpsctl/gpsctl -a nmea)
 
-# if that fails, we try again using UBX data...
-if [ -n "${RESULT}" ]; then RESULT=$(/home/tom/gpsctl/gpsctl -a ubx); fi
+    # if that fails, we try again using ASCII data...
+    if [ -n "${RESULT}" ]; then RESULT=$(/home/tom/gpsctl/gpsctl -a ascii); fi
 
-# if that fails, we exit with an error message...
-if [ -n "${RESULT}" ]
-then
-    echo "Failed to synchronize host serial port /dev/serial0 with GPS baud rate!"
-    systemd_exit 1
+    # if that fails, we try again using UBX data...
+    if [ -n "${RESULT}" ]; then RESULT=$(/home/tom/gpsctl/gpsctl -a ubx); fi
+
+    # if that fails, we exit with an error message...
+    if [ -n "${RESULT}" ]
+    then
+        echo "Failed to synchronize host serial port /dev/serial0 with GPS baud rate!"
+        systemd_exit 1
+    fi
+
+    # then we try to set the baud rate for both to 115,200 baud...
+    /home/tom/gpsctl/gpsctl -B 115200 | grep -q 'Successfully '
+    if [ '0' -eq $? ]
+    then
+        echo "Host serial port /dev/serial0 is synchronized with the GPS at 115,200 baud."
+    else
+        echo "Could not set serial port /dev/serial0 and GPS to 115,200 baud!"
+        systemd_exit 1
+    fi
 fi
 
-# then we try to set the baud rate for both to 115,200 baud...
-/home/tom/gpsctl/gpsctl -B 115200 | grep -q 'Successfully '
-if [ '0' -eq $? ]
+# if the JVM can, it keeps an archive of the monitor's classes (class data sharing), already parsed and verified, so that each start loads
+# them from the archive instead of the jar; JDK 19 and later create the archive themselves (and re-create it whenever the jar changes), while
+# JDK 13 through 18 write it when the monitor exits, for the next start to use (until the jar is newer than the archive); which of those the
+# JVM can do is found once, when the monitor is deployed (see deployNTP.sh), and kept in cds.mode...
+JAR=/apps/ntpmon/NTPMonitor.jar
+CDS_ARCHIVE=/apps/ntpmon/NTPMonitor.jsa
+CDS_MODE=$(cat /apps/ntpmon/cds.mode 2> /dev/null)
+CDS_OPTIONS=""
+if [ "${CDS_MODE}" = "auto" ]
 then
-    echo "Host serial port /dev/serial0 is synchronized with the GPS at 115,200 baud."
-else
-    echo "Could not set serial port /dev/serial0 and GPS to 115,200 baud!"
-    systemd_exit 1
+    CDS_OPTIONS="-XX:+AutoCreateSharedArchive -XX:SharedArchiveFile=${CDS_ARCHIVE}"
+elif [ "${CDS_MODE}" = "exit" ]
+then
+    if [ "${CDS_ARCHIVE}" -nt "${JAR}" ]
+    then
+        CDS_OPTIONS="-XX:SharedArchiveFile=${CDS_ARCHIVE}"
+    else
+        CDS_OPTIONS="-XX:ArchiveClassesAtExit=${CDS_ARCHIVE}"
+    fi
 fi
 
 # then if that worked, we start up the actual monitor...
 echo "Starting NTPMonitor program..."
-/usr/bin/java -jar /apps/ntpmon/NTPMonitor.jar /apps/ntpmon/ntpconfig.json /apps/ntpmon/ntplog.json
+/usr/bin/java ${CDS_OPTIONS} -jar ${JAR} /apps/ntpmon/ntpconfig.json /apps/ntpmon/ntplog.json
 systemd_exit 1
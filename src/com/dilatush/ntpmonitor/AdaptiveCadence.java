@@ -0,0 +1,323 @@
+package com.dilatush.ntpmonitor;
+
+import com.dilatush.util.HJSONObject;
+import org.json.JSONObject;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+
+/**
+ * Decides how often the monitor runs, from what it sees each cycle: it polls faster while the clock is disturbed, and backs off as the clock
+ * settles.  After each cycle, the cycle's snapshot is compared with the last: a large PLL offset, or a significant change in the PLL offset,
+ * the maximum error, the PPS lock, the number of satellites used, or the selected peer, is a disturbance.  What's a large PLL offset, or a
+ * significant change in it, depends on the server: the cadence learns its normal offset and change (as slowly smoothed averages of their
+ * magnitudes), and only a multiple of those (or of the configured least, if that's larger) is a disturbance, so that a server without a PPS
+ * source, whose offset normally wanders by a millisecond or so, isn't always disturbed.  On a disturbance the interval
+ * drops at once to the shortest allowed; then, each time a number of cycles in a row pass without one, it doubles, back up to the longest
+ * (the quiet interval, normally the <code>monitorInterval</code>).  The intervals are always the longest interval divided by a power of two,
+ * so that every cycle stays on the longest interval's boundaries or evenly between them (see {@link AlignedScheduler}).
+ * <p>
+ * The shortest interval allowed is the longer of the configured shortest and the interval at which the monitor would use more than its CPU
+ * budget.  The cost of a cycle is measured as the whole process's CPU time between cycles (smoothed), so it includes the monitor's
+ * background threads; the commands it runs (ntpq and gpsctl) are separate processes, and aren't counted.  Instances of this class are mutable
+ * and NOT threadsafe; they're used only on the monitor's thread.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class AdaptiveCadence {
+
+    private static final double COST_WEIGHT   = 0.25;   // the weight of each new measurement in the smoothed cost of a cycle...
+    private static final double NORMAL_WEIGHT = 1/32.0; // the weight of each new cycle in the server's normal offset and change...
+    private static final int    LEARN_CYCLES  = 4;      // the cycles we learn the server's normal offset for, before judging it...
+
+    private final long                  maxMs;
+    private final long                  minMs;          // the shortest interval we'll ever use (on the grid)...
+    private final long                  phaseMs;
+    private final double                cpuBudget;      // the fraction of one CPU we may use...
+    private final int                   settleCycles;
+    private final double                offsetMs;
+    private final double                offsetChangeMs;
+    private final double                jitterFactor;
+    private final double                maxErrChangeMs;
+    private final int                   satellitesChange;
+    private final OperatingSystemMXBean os;
+
+    private long                        intervalMs;
+    private long                        floorMs;        // the shortest interval allowed now (by the minimum and the CPU budget)...
+    private int                         calm;           // cycles in a row without a disturbance, at this interval...
+    private String                      disturbance;    // what disturbed the latest cycle, or null if nothing did...
+    private long                        disturbances;   // cycles that were disturbed, since we started...
+    private double                      cycleCpuNanos;  // the smoothed cost of a cycle, or NaN if it hasn't been measured...
+    private long                        lastCpuNanos;   // the process's CPU time after the last cycle, or -1 if unknown...
+    private long                        basePeriod;     // the last period of the longest interval that had a base cycle...
+
+    // what we saw in the last cycle that saw each thing...
+    private double                      lastOffsetMs;
+    private double                      lastMaxErrMs;
+    private Boolean                     lastPPS;
+    private int                         lastSatellites;
+    private String                      lastSyncPeer;
+
+    // the server's normal PLL offset and change in it (the smoothed averages of their magnitudes), and the cycles they've been learned from...
+    private double                      normalOffsetMs;
+    private double                      normalOffsetChangeMs;
+    private int                         learned;
+
+
+    /**
+     * Creates a new instance of this class configured by the given monitor configuration, with the given quiet interval.  The optional
+     * configuration items are:
+     * <ul>
+     *    <li><code>cadence.minSeconds</code> the shortest interval, when the clock is disturbed (default 15); it's rounded up to the longest
+     *        interval divided by a power of two</li>
+     *    <li><code>cadence.maxSeconds</code> the longest interval, when the clock is quiet (default the <code>monitorInterval</code>)</li>
+     *    <li><code>cadence.cpuBudgetPercent</code> the most of one CPU the monitor may use; the interval is never so short that it would use
+     *        more (default 1)</li>
+     *    <li><code>cadence.settleCycles</code> the cycles in a row without a disturbance before the interval doubles (default 5)</li>
+     *    <li><code>cadence.jitterFactor</code> a PLL offset, or a change in it, larger than this multiple of the server's normal one is a
+     *        disturbance (default 4)</li>
+     *    <li><code>cadence.offsetMs</code> the least PLL offset (either way) that's a disturbance, however small the normal offset is
+     *        (default 0.1)</li>
+     *    <li><code>cadence.offsetChangeMs</code> the least change in the PLL offset that's a disturbance, however small the normal change
+     *        is (default 0.05)</li>
+     *    <li><code>cadence.maxErrChangeMs</code> a rise in the maximum error larger than this is a disturbance (default 1)</li>
+     *    <li><code>cadence.satellitesChange</code> a change of at least this many satellites used is a disturbance (default 3)</li>
+     * </ul>
+     * Any change in the PPS lock, or in the selected peer, is a disturbance.
+     *
+     * @param _config the monitor's configuration, or <code>null</code> for the defaults
+     * @param _quietMs the default longest interval (the <code>monitorInterval</code>), in milliseconds
+     * @param _phaseMs the phase of the monitor's cycles after each boundary, in milliseconds
+     */
+    public AdaptiveCadence( final HJSONObject _config, final long _quietMs, final long _phaseMs ) {
+
+        HJSONObject config  = (_config == null) ? new HJSONObject() : _config;
+        JSONObject  cadence = config.optJSONObject( "cadence" );
+        if( cadence == null ) cadence = new JSONObject();
+        maxMs            = Math.max( 1, 1000 * config.optLongDotted( "cadence.maxSeconds", _quietMs / 1000 ) );
+        phaseMs          = _phaseMs;
+        cpuBudget        = Math.max( 1e-6, cadence.optDouble( "cpuBudgetPercent", 1.0 ) / 100 );
+        settleCycles     = Math.max( 1, config.optIntDotted( "cadence.settleCycles", 5 ) );
+        offsetMs         = cadence.optDouble( "offsetMs",       0.1  );
+        offsetChangeMs   = cadence.optDouble( "offsetChangeMs", 0.05 );
+        jitterFactor     = cadence.optDouble( "jitterFactor",   4.0  );
+        maxErrChangeMs   = cadence.optDouble( "maxErrChangeMs", 1.0  );
+        satellitesChange = Math.max( 1, config.optIntDotted( "cadence.satellitesChange", 3 ) );
+        minMs            = onGrid( 1000 * cadence.optDouble( "minSeconds", 15 ), 1 );
+        os               = ManagementFactory.getOperatingSystemMXBean();
+
+        intervalMs     = maxMs;
+        floorMs        = minMs;
+        cycleCpuNanos  = Double.NaN;
+        lastCpuNanos   = -1;
+        basePeriod     = Long.MIN_VALUE;
+        lastOffsetMs   = Double.NaN;
+        lastMaxErrMs   = Double.NaN;
+        lastSatellites = -1;
+        normalOffsetMs       = Double.NaN;
+        normalOffsetChangeMs = Double.NaN;
+    }
+
+
+    /**
+     * Creates a new instance of this class configured by the given monitor configuration (as above), or returns <code>null</code> if the
+     * configuration doesn't enable it (with <code>cadence.enabled</code>, default false).  The quiet interval and the phase are the monitor's
+     * (<code>monitorInterval</code> and <code>monitorPhaseMs</code>).
+     *
+     * @param _config the monitor's configuration
+     * @return the new cadence, or null if the cadence isn't adaptive
+     */
+    public static AdaptiveCadence fromConfig( final HJSONObject _config ) {
+        if( !_config.optBooleanDotted( "cadence.enabled", false ) ) return null;
+        return new AdaptiveCadence( _config, 1000 * _config.optLongDotted( "monitorInterval", 60 ),
+                _config.optLongDotted( "monitorPhaseMs", 0 ) );
+    }
+
+
+    /**
+     * Decides the interval to the next cycle, from the given cycle's snapshot.  Called on the monitor's thread, once per cycle.
+     *
+     * @param _snapshot the snapshot of the cycle that just ran
+     * @return the interval to the next cycle, in milliseconds
+     */
+    public long update( final NTPSnapshot _snapshot ) {
+
+        // what did the last interval cost, and how short does that let the interval be?
+        long cpuNanos = processCpuNanos();
+        if( (cpuNanos >= 0) && (lastCpuNanos >= 0) ) {
+            double cost = cpuNanos - lastCpuNanos;
+            cycleCpuNanos = Double.isNaN( cycleCpuNanos ) ? cost : cycleCpuNanos + COST_WEIGHT * (cost - cycleCpuNanos);
+        }
+        lastCpuNanos = cpuNanos;
+        floorMs = Double.isNaN( cycleCpuNanos ) ? minMs : onGrid( cycleCpuNanos / cpuBudget / 1e6, minMs );
+
+        // then tighten right away if anything was disturbed, or relax if nothing has been for a while...
+        disturbance = disturbance( _snapshot );
+        if( disturbance != null ) {
+            disturbances++;
+            calm = 0;
+            intervalMs = floorMs;
+        }
+        else if( (++calm >= settleCycles) && (intervalMs < maxMs) ) {
+            calm = 0;
+            intervalMs = Math.min( maxMs, 2 * intervalMs );
+        }
+        intervalMs = Math.max( intervalMs, floorMs );
+        return intervalMs;
+    }
+
+
+    /**
+     * Returns true if the cycle that started at the given time is the first in its period of the longest interval.  Those cycles are evenly
+     * spaced (at the longest interval) however the interval varies, so statistics that need even spacing, like the Allan deviations of the
+     * peers, are updated only on them.  Called on the monitor's thread, once per cycle.
+     *
+     * @param _timeMs when the cycle started (System.currentTimeMillis())
+     * @return true if the cycle is a base cycle
+     */
+    public boolean isBaseCycle( final long _timeMs ) {
+        long period = Math.floorDiv( _timeMs - phaseMs, maxMs );
+        if( period == basePeriod ) return false;
+        basePeriod = period;
+        return true;
+    }
+
+
+    /**
+     * Returns the interval to the next cycle, as decided by the latest update.
+     *
+     * @return the interval, in milliseconds
+     */
+    public long intervalMs() {
+        return intervalMs;
+    }
+
+
+    /**
+     * Returns the longest interval this cadence will use, when the clock is quiet, in milliseconds.
+     *
+     * @return the longest interval
+     */
+    public long maxMs() {
+        return maxMs;
+    }
+
+
+    /**
+     * Returns the shortest interval this cadence will ever use (if the CPU budget allows), in milliseconds.
+     *
+     * @return the shortest interval
+     */
+    public long minMs() {
+        return minMs;
+    }
+
+
+    /**
+     * Puts the state of the cadence into the given JSON object, at the given dotted path (normally <code>monitor.ntp.cadence</code>).
+     *
+     * @param _json the JSON object to put the state into
+     * @param _path the dotted path to put it at
+     */
+    public void putDotted( final HJSONObject _json, final String _path ) {
+        _json.putDotted( _path + ".intervalMs",   intervalMs           );
+        _json.putDotted( _path + ".minMs",        floorMs              );
+        _json.putDotted( _path + ".maxMs",        maxMs                );
+        _json.putDotted( _path + ".disturbed",    disturbance != null  );
+        _json.putDotted( _path + ".disturbances", disturbances         );
+        if( disturbance != null ) _json.putDotted( _path + ".disturbance", disturbance );
+        if( !Double.isNaN( cycleCpuNanos ) ) _json.putDotted( _path + ".cycleCpuMs", Math.round( cycleCpuNanos / 1e3 ) / 1e3 );
+        if( !Double.isNaN( normalOffsetMs ) ) _json.putDotted( _path + ".normalOffsetMs", normalOffsetMs );
+        if( !Double.isNaN( normalOffsetChangeMs ) ) _json.putDotted( _path + ".normalOffsetChangeMs", normalOffsetChangeMs );
+    }
+
+
+    /*
+     * Returns what's disturbed in the given snapshot (compared with the last), as a comma separated list of the signals, or null if nothing
+     * is; what's missing from the snapshot (because its probe failed) is left as it was...
+     */
+    private String disturbance( final NTPSnapshot _snapshot ) {
+
+        StringBuilder result = null;
+        LocalServer server = _snapshot.server;
+        if( server != null ) {
+            boolean pps = server.isPPS();
+            if( offsetDisturbed( server.pllOffsetMs ) )
+                result = add( result, "pllOffsetMs" );
+            if( server.maxErrMs - lastMaxErrMs > maxErrChangeMs )
+                result = add( result, "maxErrMs" );
+            if( (lastPPS != null) && (lastPPS != pps) )
+                result = add( result, "validPPS" );
+            lastOffsetMs = server.pllOffsetMs;
+            lastMaxErrMs = server.maxErrMs;
+            lastPPS      = pps;
+        }
+        GNSSFix fix = _snapshot.fix;
+        if( fix != null ) {
+            if( (lastSatellites >= 0) && (Math.abs( fix.satellitesUsed - lastSatellites ) >= satellitesChange) )
+                result = add( result, "satellitesUsed" );
+            lastSatellites = fix.satellitesUsed;
+        }
+        PeerView peers = _snapshot.peers;
+        if( peers != null ) {
+            String syncPeer = "";
+            for( int i = 0; i < peers.size(); i++ )
+                if( peers.tally( i ) == '*' ) syncPeer = peers.remote( i );
+            if( (lastSyncPeer != null) && !lastSyncPeer.equals( syncPeer ) )
+                result = add( result, "syncPeer" );
+            lastSyncPeer = syncPeer;
+        }
+        return (result == null) ? null : result.toString();
+    }
+
+
+    /*
+     * Returns true if the given PLL offset, or its change from the last, is large for this server, once we've learned what's normal for it;
+     * then learns from it.  The normal offset and change are learned from every cycle, disturbed or not, but slowly, so that a brief
+     * disturbance hardly moves them while a lasting change (like the loss of the PPS source) becomes normal in time...
+     */
+    private boolean offsetDisturbed( final double _offsetMs ) {
+
+        double offset = Math.abs( _offsetMs );
+        double change = Math.abs( _offsetMs - lastOffsetMs );      // NaN on the first cycle...
+        boolean disturbed = (learned >= LEARN_CYCLES)
+                && ((offset > Math.max( offsetMs,       jitterFactor * normalOffsetMs       ))
+                ||  (change > Math.max( offsetChangeMs, jitterFactor * normalOffsetChangeMs )));
+
+        // while we're learning, the averages are of every cycle so far; after that, they're smoothed...
+        learned++;
+        double weight = Math.max( NORMAL_WEIGHT, 1.0 / learned );
+        normalOffsetMs = Double.isNaN( normalOffsetMs ) ? offset : normalOffsetMs + weight * (offset - normalOffsetMs);
+        if( !Double.isNaN( change ) )
+            normalOffsetChangeMs = Double.isNaN( normalOffsetChangeMs ) ? change
+                                                                         : normalOffsetChangeMs + weight * (change - normalOffsetChangeMs);
+        return disturbed;
+    }
+
+
+    private static StringBuilder add( final StringBuilder _list, final String _signal ) {
+        if( _list == null ) return new StringBuilder( _signal );
+        return _list.append( ',' ).append( _signal );
+    }
+
+
+    /*
+     * Returns the shortest interval on our grid (the longest interval divided by a power of two, in whole milliseconds) that's at least the
+     * given interval and the given least, or the longest interval if the given interval is longer...
+     */
+    private long onGrid( final double _ms, final long _least ) {
+        long interval = maxMs;
+        while( ((interval & 1) == 0) && (interval / 2 >= _ms) && (interval / 2 >= _least) )
+            interval /= 2;
+        return interval;
+    }
+
+
+    /*
+     * Returns the CPU time this process has used, in nanoseconds, or -1 if the JVM can't tell us...
+     */
+    private long processCpuNanos() {
+        return (os instanceof com.sun.management.OperatingSystemMXBean) ? ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime()
+                                                                         : -1;
+    }
+}
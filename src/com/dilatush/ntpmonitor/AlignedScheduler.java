@@ -0,0 +1,258 @@
+package com.dilatush.ntpmonitor;
+
+import com.dilatush.util.HJSONObject;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs a task repeatedly on its own daemon thread, at wall-clock boundaries: at every multiple of the interval since the Java epoch, plus an
+ * optional phase.  With a 60 second interval, for instance, the task runs at the top of every minute, so that samples taken by monitors on
+ * different servers line up.  The wait for each tick is measured with the monotonic clock, but it's recomputed from the wall clock each tick,
+ * so the ticks stay on the boundaries even as the wall clock is disciplined (or stepped).  Each tick's lateness is measured against the wall
+ * clock.
+ * <p>
+ * The interval may be changed while the scheduler is running (see {@link #setInterval(long)}); the next tick is then on the new interval's
+ * boundaries.  If the intervals are all the same interval divided by powers of two, every tick stays on the longest interval's boundaries
+ * or between them, so monitors on different servers still line up.
+ * <p>
+ * If a run of the task takes longer than the interval, that's an overrun, and the boundaries that passed while it was running are skipped
+ * (rather than run late, back to back).  Anything thrown by the task (an error as well as an exception) is logged and counted, and doesn't
+ * stop later ticks.  The lateness of each tick (its jitter) is recorded, and along with the counts of ticks, overruns, skipped ticks, and
+ * failures, can be drained with {@link #drainStats()}.  Instances of this class are threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class AlignedScheduler {
+
+    private static final Logger LOGGER = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName() );
+
+    private final Runnable   task;
+    private final long       phaseMs;           // the phase as given; it's taken modulo the interval...
+    private final Thread     thread;
+
+    // everything below is guarded by "this"...
+    private final SampleRing jitterMs;
+    private long             ticks;
+    private long             overruns;
+    private long             skipped;
+    private long             failures;
+
+    private volatile long    intervalMs;
+    private volatile boolean running;
+    private volatile boolean runFirst;          // true if the task is to run once right away, before the first boundary...
+
+
+    /**
+     * Creates a new instance of this class that runs the given task every interval, at the given phase after each multiple of the interval.
+     *
+     * @param _name the name of the scheduler's thread
+     * @param _task the task to run
+     * @param _intervalMs the interval between ticks, in milliseconds
+     * @param _phaseMs the offset of each tick from the boundary, in milliseconds (0 to fire right on the boundaries)
+     */
+    public AlignedScheduler( final String _name, final Runnable _task, final long _intervalMs, final long _phaseMs ) {
+
+        if( _intervalMs <= 0 )
+            throw new IllegalArgumentException( "Interval must be positive: " + _intervalMs );
+
+        task       = _task;
+        intervalMs = _intervalMs;
+        phaseMs    = _phaseMs;
+        jitterMs   = new SampleRing( 1024 );
+        thread     = new Thread( this::loop, _name );
+        thread.setDaemon( true );
+    }
+
+
+    /**
+     * Starts running the task, at the next boundary.
+     */
+    public void start() {
+        running = true;
+        thread.start();
+    }
+
+
+    /**
+     * Starts running the task: once right away, then at each boundary after that.  The first run isn't on a boundary, and isn't counted as a
+     * tick; it's for a task whose first results shouldn't wait for the next boundary (which may be a whole interval away).
+     */
+    public void startNow() {
+        runFirst = true;
+        start();
+    }
+
+
+    /**
+     * Changes the interval between ticks, from the next tick on.  The next tick is the first boundary of the new interval after the current
+     * tick (or, if the task is still running then, after it finishes).
+     *
+     * @param _intervalMs the new interval between ticks, in milliseconds
+     */
+    public void setInterval( final long _intervalMs ) {
+        if( _intervalMs <= 0 )
+            throw new IllegalArgumentException( "Interval must be positive: " + _intervalMs );
+        intervalMs = _intervalMs;
+    }
+
+
+    /**
+     * Returns the interval between ticks, in milliseconds.
+     *
+     * @return the interval between ticks
+     */
+    public long getInterval() {
+        return intervalMs;
+    }
+
+
+    /**
+     * Stops running the task; if it's running now, it's interrupted.
+     */
+    public void stop() {
+        running = false;
+        thread.interrupt();
+    }
+
+
+    /*
+     * The scheduler's thread: waits for each boundary, then runs the task...
+     */
+    private void loop() {
+
+        if( runFirst ) runTask();
+        long target = nextBoundary( System.currentTimeMillis(), intervalMs );
+        while( running ) {
+
+            // wait, by the monotonic clock, for as long as the wall clock says it is to the target...
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( target - System.currentTimeMillis() );
+            long remaining;
+            while( running && ((remaining = deadline - System.nanoTime()) > 0) ) {
+                LockSupport.parkNanos( remaining );
+                if( Thread.interrupted() ) return;
+            }
+            if( !running ) return;
+            long startNanos = System.nanoTime();
+            long start      = System.currentTimeMillis();
+
+            // if the wall clock was stepped back while we waited, we're no longer on a boundary; realign...
+            if( start < target - intervalMs ) {
+                LOGGER.log( Level.WARNING, "Wall clock stepped back " + (target - start) + " ms; realigning" );
+                target = nextBoundary( start, intervalMs );
+                continue;
+            }
+
+            // if the monotonic clock ran a little fast relative to the wall clock, we're early; wait some more...
+            if( start < target ) continue;
+
+            synchronized( this ) {
+                ticks++;
+                jitterMs.add( start - target );
+            }
+
+            runTask();
+
+            // figure out when the next tick is (on the interval as it is now), skipping any boundaries that passed while we were running...
+            long interval  = intervalMs;
+            long elapsedMs = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - startNanos );
+            long due       = nextBoundary( target, interval );
+            long next      = Math.max( due, nextBoundary( System.currentTimeMillis(), interval ) );
+            long missed    = (next - due) / interval;
+            if( (elapsedMs > interval) || (missed > 0) ) {
+                synchronized( this ) {
+                    if( elapsedMs > interval ) overruns++;
+                    skipped += missed;
+                }
+                LOGGER.log( Level.WARNING, "Scheduled task took " + elapsedMs + " ms (interval is " + interval + " ms); skipped "
+                        + missed + " tick(s)" );
+            }
+            target = next;
+        }
+    }
+
+
+    /*
+     * Runs the task, making sure nothing it does stops us...
+     */
+    private void runTask() {
+        try {
+            task.run();
+        }
+        catch( Throwable _e ) {    // even an error, as nothing would run the task again if it killed our thread...
+            synchronized( this ) {
+                failures++;
+            }
+            LOGGER.log( Level.SEVERE, "Scheduled task failed", _e );
+        }
+    }
+
+
+    /*
+     * Returns the first boundary (plus our phase) of the given interval after the given wall clock time.
+     */
+    private long nextBoundary( final long _now, final long _intervalMs ) {
+        long phase    = Math.floorMod( phaseMs, _intervalMs );
+        long boundary = Math.floorDiv( _now - phase, _intervalMs ) * _intervalMs + phase;
+        return boundary + _intervalMs;
+    }
+
+
+    /**
+     * Returns the scheduler's statistics since the last drain, and starts a new interval.
+     *
+     * @return the scheduler's statistics since the last drain
+     */
+    public synchronized Stats drainStats() {
+        Stats stats = new Stats( intervalMs, ticks, overruns, skipped, failures, jitterMs.stats() );
+        ticks    = 0;
+        overruns = 0;
+        skipped  = 0;
+        failures = 0;
+        jitterMs.clear();
+        return stats;
+    }
+
+
+    /**
+     * The statistics for a scheduler over one interval.  Instances of this class are immutable and threadsafe.
+     */
+    public static class Stats {
+
+        public final long        intervalMs;    // the interval between ticks, as it is now...
+        public final long        ticks;
+        public final long        overruns;      // ticks whose task ran longer than the interval...
+        public final long        skipped;       // boundaries skipped because the task was still running...
+        public final long        failures;      // ticks whose task threw an exception or error...
+        public final SampleStats jitterMs;      // how late each tick started, in milliseconds, or null if there were no ticks...
+
+
+        private Stats( final long _intervalMs, final long _ticks, final long _overruns, final long _skipped, final long _failures,
+                       final SampleStats _jitterMs ) {
+            intervalMs = _intervalMs;
+            ticks      = _ticks;
+            overruns   = _overruns;
+            skipped    = _skipped;
+            failures   = _failures;
+            jitterMs   = _jitterMs;
+        }
+
+
+        /**
+         * Puts these statistics into the given JSON object, at the given dotted path.
+         *
+         * @param _json the JSON object to put these statistics into
+         * @param _path the dotted path to put them at
+         */
+        public void putDotted( final HJSONObject _json, final String _path ) {
+            _json.putDotted( _path + ".intervalMs", intervalMs );
+            _json.putDotted( _path + ".ticks",      ticks      );
+            _json.putDotted( _path + ".overruns",   overruns   );
+            _json.putDotted( _path + ".skipped",    skipped    );
+            _json.putDotted( _path + ".failures",   failures   );
+            if( jitterMs != null ) jitterMs.putDotted( _json, _path + ".jitterMs" );
+        }
+    }
+}
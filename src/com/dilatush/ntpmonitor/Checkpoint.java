@@ -0,0 +1,264 @@
+package com.dilatush.ntpmonitor;
+
+import com.dilatush.util.HJSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import static com.dilatush.util.Strings.isEmpty;
+
+/**
+ * A checkpoint of the monitor's state (its rules, peer statistics, and sky model), kept in a small binary file so that a restarted monitor
+ * carries on where the last one left off: a PPS lock change across a restart is still noticed, and the rolling statistics don't start over.
+ * The state is in named parts (see {@link Part}), each of which saves and restores itself.  The file is a header (the int "NTPK", a version
+ * byte, and the time it was saved as a long), then the number of parts, then for each part its name (as UTF), its length, and its bytes,
+ * and finally a CRC-32 (as an int) of everything before it.  A part in the file that the monitor no longer has is skipped, as is a part that
+ * can't be restored (it starts over, as it would without a checkpoint).  The file is written to a temporary file and then moved into place, so
+ * a checkpoint cut short by a crash leaves the previous one intact.  Instances of this class are threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class Checkpoint {
+
+    private static final Logger LOGGER  = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName() );
+
+    private static final int    MAGIC   = 0x4E54504B;       // "NTPK"...
+    private static final int    VERSION = 1;
+
+    private final File              file;
+    private final long              intervalMs;
+    private final long              maxAgeMs;
+    private final Map<String,Part>  parts;
+
+    // everything below is guarded by "this"...
+    private long                    lastSavedMs;
+
+
+    /**
+     * Something whose state is kept in the checkpoint.
+     */
+    public interface Part {
+
+        /**
+         * Writes this part's state to the given output.
+         *
+         * @param _out the output to write the state to
+         * @throws IOException if the state can't be written
+         */
+        void save( DataOutput _out ) throws IOException;
+
+
+        /**
+         * Reads this part's state from the given input, as it was written by {@link #save(DataOutput)}.  Called once, before the part is
+         * first used.
+         *
+         * @param _in the input to read the state from
+         * @param _ageMs how long ago the state was saved, in milliseconds
+         * @throws IOException if the state can't be read, or doesn't fit this part's configuration
+         */
+        void restore( DataInput _in, long _ageMs ) throws IOException;
+    }
+
+
+    /**
+     * Creates a new instance of this class that checkpoints to the given file.
+     *
+     * @param _file the checkpoint file
+     * @param _intervalMs the interval between periodic checkpoints, in milliseconds
+     * @param _maxAgeMs the oldest checkpoint that will be restored, in milliseconds
+     */
+    public Checkpoint( final File _file, final long _intervalMs, final long _maxAgeMs ) {
+        file       = _file;
+        intervalMs = _intervalMs;
+        maxAgeMs   = _maxAgeMs;
+        parts      = new LinkedHashMap<>();
+    }
+
+
+    /**
+     * Creates a new instance of this class configured by the given monitor configuration, or returns <code>null</code> if the configuration
+     * doesn't enable it.  The configuration items are:
+     * <ul>
+     *    <li><code>checkpoint.file</code> the path of the checkpoint file; without it (the default), nothing is checkpointed</li>
+     *    <li><code>checkpoint.intervalSeconds</code> the interval between periodic checkpoints (default 300); the monitor also checkpoints
+     *        when it's shut down</li>
+     *    <li><code>checkpoint.maxAgeHours</code> the oldest checkpoint that will be restored (default 24)</li>
+     * </ul>
+     *
+     * @param _config the monitor's configuration
+     * @return the new checkpoint, or null if checkpointing isn't enabled
+     */
+    public static Checkpoint fromConfig( final HJSONObject _config ) {
+        String path = _config.optStringDotted( "checkpoint.file", null );
+        if( isEmpty( path ) ) return null;
+        return new Checkpoint( new File( path ),
+                1000L * Math.max( 1, _config.optLongDotted( "checkpoint.intervalSeconds", 300 ) ),
+                3_600_000L * Math.max( 1, _config.optLongDotted( "checkpoint.maxAgeHours", 24 ) ) );
+    }
+
+
+    /**
+     * Adds the given part to this checkpoint, under the given name.
+     *
+     * @param _name the name of the part, which must be unique within this checkpoint
+     * @param _part the part
+     */
+    public synchronized void add( final String _name, final Part _part ) {
+        parts.put( _name, _part );
+    }
+
+
+    /**
+     * Returns true if a periodic checkpoint is due at the given time.
+     *
+     * @param _nowMs the time (System.currentTimeMillis())
+     * @return true if a checkpoint is due
+     */
+    public synchronized boolean isDue( final long _nowMs ) {
+        return (_nowMs - lastSavedMs >= intervalMs) || (_nowMs < lastSavedMs);
+    }
+
+
+    /**
+     * Saves the state of all our parts.  If it can't be saved, the failure is logged, and the previous checkpoint (if there is one) is left as
+     * it was.
+     *
+     * @param _nowMs the time of the checkpoint (System.currentTimeMillis())
+     * @return true if the checkpoint was saved
+     */
+    public synchronized boolean save( final long _nowMs ) {
+
+        lastSavedMs = _nowMs;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream( 16384 );
+            DataOutputStream out = new DataOutputStream( bytes );
+            out.writeInt( MAGIC );
+            out.writeByte( VERSION );
+            out.writeLong( _nowMs );
+            out.writeInt( parts.size() );
+            for( Map.Entry<String,Part> entry : parts.entrySet() ) {
+                ByteArrayOutputStream partBytes = new ByteArrayOutputStream( 4096 );
+                entry.getValue().save( new DataOutputStream( partBytes ) );
+                out.writeUTF( entry.getKey() );
+                out.writeInt( partBytes.size() );
+                partBytes.writeTo( out );
+            }
+            CRC32 crc = new CRC32();
+            crc.update( bytes.toByteArray() );
+            out.writeInt( (int) crc.getValue() );
+
+            File temp = new File( file.getPath() + ".tmp" );
+            Files.write( temp.toPath(), bytes.toByteArray() );
+            Files.move( temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+            return true;
+        }
+        catch( IOException _e ) {
+            LOGGER.log( Level.SEVERE, "Can't save the checkpoint to " + file, _e );
+            return false;
+        }
+    }
+
+
+    /**
+     * Restores the state of all our parts from the checkpoint file, if there is one, it's intact, and it isn't too old.  Parts that aren't in
+     * the checkpoint, or that can't be restored, are left as they were.
+     *
+     * @param _nowMs the time (System.currentTimeMillis())
+     * @return the number of parts restored
+     */
+    public synchronized int restore( final long _nowMs ) {
+
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes( file.toPath() );
+        }
+        catch( NoSuchFileException _e ) {
+            LOGGER.log( Level.INFO, "No checkpoint at " + file + "; starting afresh" );
+            return 0;
+        }
+        catch( IOException _e ) {
+            LOGGER.log( Level.SEVERE, "Can't read the checkpoint at " + file + "; starting afresh", _e );
+            return 0;
+        }
+
+        int restored = 0;
+        try {
+            DataInputStream in = new DataInputStream( new ByteArrayInputStream( bytes ) );
+            if( (bytes.length < 17) || (in.readInt() != MAGIC) || (in.readUnsignedByte() != VERSION) )
+                throw new IOException( "Not a checkpoint (or an unknown version of one)" );
+            CRC32 crc = new CRC32();
+            crc.update( bytes, 0, bytes.length - 4 );
+            int expected = (bytes[bytes.length - 4] << 24) | ((bytes[bytes.length - 3] & 0xFF) << 16)
+                         | ((bytes[bytes.length - 2] & 0xFF) << 8) | (bytes[bytes.length - 1] & 0xFF);
+            if( (int) crc.getValue() != expected )
+                throw new IOException( "Corrupt checkpoint (bad CRC)" );
+
+            long savedMs = in.readLong();
+            long ageMs   = _nowMs - savedMs;
+            if( ageMs > maxAgeMs ) {
+                LOGGER.log( Level.INFO, "Checkpoint at " + file + " is " + (ageMs / 60000) + " minutes old; starting afresh" );
+                return 0;
+            }
+            int count = in.readInt();
+            for( int i = 0; i < count; i++ ) {
+                String name = in.readUTF();
+                byte[] partBytes = new byte[in.readInt()];
+                in.readFully( partBytes );
+                Part part = parts.get( name );
+                if( part == null ) continue;       // a part we no longer have...
+                try {
+                    part.restore( new DataInputStream( new ByteArrayInputStream( partBytes ) ), ageMs );
+                    restored++;
+                }
+                catch( IOException | RuntimeException _e ) {
+                    LOGGER.log( Level.WARNING, "Couldn't restore " + name + " from the checkpoint; it starts afresh: " + _e.getMessage() );
+                }
+            }
+            LOGGER.log( Level.INFO, "Restored " + restored + " of " + parts.size() + " parts from the checkpoint at " + file + ", saved "
+                    + (ageMs / 1000) + " seconds ago" );
+        }
+        catch( IOException _e ) {
+            LOGGER.log( Level.SEVERE, "Can't restore the checkpoint at " + file + "; starting afresh: " + _e.getMessage() );
+        }
+        return restored;
+    }
+
+
+    /**
+     * Writes the given string, which may be <code>null</code>, to the given output.
+     *
+     * @param _out the output to write to
+     * @param _string the string to write, or null
+     * @throws IOException if it can't be written
+     */
+    /* package-private */ static void writeString( final DataOutput _out, final String _string ) throws IOException {
+        _out.writeBoolean( _string != null );
+        if( _string != null ) _out.writeUTF( _string );
+    }
+
+
+    /**
+     * Reads a string, which may be <code>null</code>, written by {@link #writeString(DataOutput, String)} from the given input.
+     *
+     * @param _in the input to read from
+     * @return the string read, or null
+     * @throws IOException if it can't be read
+     */
+    /* package-private */ static String readString( final DataInput _in ) throws IOException {
+        return _in.readBoolean() ? _in.readUTF() : null;
+    }
+}
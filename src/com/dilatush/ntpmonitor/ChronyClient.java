@@ -0,0 +1,345 @@
+package com.dilatush.ntpmonitor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A minimal client for chrony's command and monitoring protocol (the binary protocol <code>chronyc</code> speaks to chronyd over UDP, normally
+ * on port 323 of localhost), which lets us read chronyd's tracking state and sources without forking <code>chronyc</code>.  Only the read-only
+ * TRACKING, N_SOURCES, and SOURCE_DATA requests (protocol version 6, as spoken by chrony 2.x through 4.x) are implemented.  As chronyd insists,
+ * each request is padded to the length of its reply.  The channel (connected to chronyd, so that nothing else can send us replies) and the
+ * buffers are allocated once and reused for every request; after any failure the channel is closed, and the next request opens a fresh one on
+ * a fresh port, so late replies to a failed request can't be mistaken for anything.  Instances of this class are mutable and NOT threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class ChronyClient implements Closeable {
+
+    /* package-private */ static final int PROTOCOL_VERSION   = 6;
+    /* package-private */ static final int PKT_TYPE_REQUEST   = 1;
+    /* package-private */ static final int PKT_TYPE_REPLY     = 2;
+
+    /* package-private */ static final int REQ_N_SOURCES      = 14;
+    /* package-private */ static final int REQ_SOURCE_DATA    = 15;
+    /* package-private */ static final int REQ_TRACKING       = 33;
+    /* package-private */ static final int RPY_N_SOURCES      = 2;
+    /* package-private */ static final int RPY_SOURCE_DATA    = 3;
+    /* package-private */ static final int RPY_TRACKING       = 5;
+    /* package-private */ static final int STT_SUCCESS        = 0;
+
+    /* package-private */ static final int REQUEST_HEADER     = 20;
+    /* package-private */ static final int REPLY_HEADER       = 28;
+    /* package-private */ static final int N_SOURCES_LENGTH   = REPLY_HEADER + 8;
+    /* package-private */ static final int SOURCE_DATA_LENGTH = REPLY_HEADER + 52;
+    /* package-private */ static final int TRACKING_LENGTH    = REPLY_HEADER + 80;
+
+    /* package-private */ static final int IPADDR_INET4       = 1;
+    /* package-private */ static final int IPADDR_INET6       = 2;
+    /* package-private */ static final int IPADDR_ID          = 3;
+
+    /* package-private */ static final int MODE_REFCLOCK      = 2;
+
+    private static final int            MAX_PACKET         = 1024;
+
+    private final InetSocketAddress server;
+    private final long              timeoutMs;
+    private final ByteBuffer        request;
+    private final ByteBuffer        reply;
+
+    private DatagramChannel channel;
+    private Selector        selector;
+    private int             sequence;
+
+
+    /**
+     * Creates a new instance of this class that will query the chronyd at the given address, waiting no more than the given time for each
+     * reply.
+     *
+     * @param _server the address (normally localhost, port 323) of the chronyd to query
+     * @param _timeoutMs the maximum time to wait for each reply, in milliseconds
+     */
+    public ChronyClient( final InetSocketAddress _server, final long _timeoutMs ) {
+        server    = _server;
+        timeoutMs = _timeoutMs;
+        request   = ByteBuffer.allocate( MAX_PACKET );
+        reply     = ByteBuffer.allocate( MAX_PACKET );
+        sequence  = ThreadLocalRandom.current().nextInt();
+    }
+
+
+    /**
+     * Reads chronyd's tracking state (what <code>chronyc tracking</code> shows) as a {@link LocalServer}.  Chrony has no NTP system status word,
+     * so one is synthesized: the leap indicator is chronyd's leap status, and the synchronization source is PPS if chronyd's reference is a
+     * reference clock named "PPS", NTP if its reference is a server, other if it's some other reference clock, local if it's the local clock,
+     * and unspecified if chronyd isn't synchronized.  The PLL offset is chronyd's current correction of the system clock, the frequency offset is
+     * chronyd's (with chrony's sign convention: positive is fast), and the maximum error is chronyd's root distance (the root dispersion plus
+     * half the root delay).  Chrony doesn't report its precision, so that's zero.
+     *
+     * @return chronyd's tracking state
+     * @throws IOException on any I/O problem, timeout, or error reply from chronyd
+     */
+    public LocalServer readTracking() throws IOException {
+
+        query( REQ_TRACKING, RPY_TRACKING, TRACKING_LENGTH, -1 );
+
+        int    refID          = reply.getInt( REPLY_HEADER );
+        int    family         = reply.getShort( REPLY_HEADER + 20 ) & 0xFFFF;
+        int    stratum        = reply.getShort( REPLY_HEADER + 24 ) & 0xFFFF;
+        int    leap           = reply.getShort( REPLY_HEADER + 26 ) & 0xFFFF;
+        double correction     = chronyFloat( reply.getInt( REPLY_HEADER + 40 ) );
+        double freqPpm        = chronyFloat( reply.getInt( REPLY_HEADER + 52 ) );
+        double rootDelay      = chronyFloat( reply.getInt( REPLY_HEADER + 64 ) );
+        double rootDispersion = chronyFloat( reply.getInt( REPLY_HEADER + 68 ) );
+
+        SynchronizationSource source;
+        if( leap == 3 || refID == 0 )            source = SynchronizationSource.SYNC_SRC_UNSPEC;
+        else if( refID == 0x7F7F0101 )           source = SynchronizationSource.SYNC_SRC_LOCAL;    // chronyd's "local" reference...
+        else if( family != IPADDR_ID && family != 0 ) source = SynchronizationSource.SYNC_SRC_NTP;
+        else if( refID == 0x50505300 )           source = SynchronizationSource.SYNC_SRC_PPS;      // "PPS"...
+        else                                     source = SynchronizationSource.SYNC_SRC_OTHER;
+
+        int statusWord = ((leap & 0x3) << 14) | (source.info().index << 8);
+        return new LocalServer( statusWord, 0, stratum, 1000 * correction, freqPpm, 1000 * (rootDispersion + rootDelay / 2) );
+    }
+
+
+    /**
+     * Reads chronyd's sources (what <code>chronyc sources</code> shows) into the given peer table, which is cleared first.  Sources that don't
+     * fit in the table are silently ignored.  The tally code is chosen to match what ntpq would show for a source in the same state.  Chrony
+     * doesn't report a source's reference ID or delay in its source data, so those are empty and zero; the offset is the latest measurement,
+     * and the jitter is the latest measurement's error.
+     *
+     * @param _table the table to read the sources into
+     * @throws IOException on any I/O problem, timeout, or error reply from chronyd
+     */
+    public void readSources( final PeerTable _table ) throws IOException {
+
+        query( REQ_N_SOURCES, RPY_N_SOURCES, N_SOURCES_LENGTH, -1 );
+        int count = reply.getInt( REPLY_HEADER );
+
+        _table.clear();
+        for( int i = 0; i < count; i++ ) {
+
+            query( REQ_SOURCE_DATA, RPY_SOURCE_DATA, SOURCE_DATA_LENGTH, i );
+
+            int row = _table.addRow();
+            if( row < 0 ) break;
+            int    base         = REPLY_HEADER;
+            int    family       = reply.getShort( base + 16 ) & 0xFFFF;
+            int    poll         = reply.getShort( base + 20 );
+            int    stratum      = reply.getShort( base + 22 ) & 0xFFFF;
+            int    state        = reply.getShort( base + 24 ) & 0xFFFF;
+            int    mode         = reply.getShort( base + 26 ) & 0xFFFF;
+            int    reach        = reply.getShort( base + 30 ) & 0xFFFF;
+            long   sinceSample  = reply.getInt( base + 32 ) & 0xFFFFFFFFL;
+            double latestMeas   = chronyFloat( reply.getInt( base + 40 ) );
+            double latestErr    = chronyFloat( reply.getInt( base + 44 ) );
+
+            String remote = address( base, family );
+            String refid  = (mode == MODE_REFCLOCK) ? "." + remote + "." : "";
+            _table.tally[row]               = tally( state );
+            _table.setRemote( row, remote, 0, remote.length() );
+            if( mode != MODE_REFCLOCK ) _table.setSrcadr( row, remote, 0, remote.length() );     // a reference clock's "address" is its name...
+            _table.setRefid(  row, refid,  0, refid.length()  );
+            _table.stratum[row]             = stratum;
+            _table.local[row]               = (mode == MODE_REFCLOCK);
+            _table.lastPolledSeconds[row]   = (int) Math.min( Integer.MAX_VALUE, sinceSample );
+            _table.pollIntervalSeconds[row] = 1 << Math.max( 0, Math.min( 30, poll ) );
+            _table.reached[row]             = reach & 0xFF;
+            _table.delayMs[row]             = 0;
+            _table.offsetMs[row]            = (float) (1000 * latestMeas);
+            _table.jitterRmsMs[row]         = (float) (1000 * latestErr);
+        }
+    }
+
+
+    /**
+     * Closes the channel used by this client.  The client will open a new one if it is used again.
+     */
+    @Override
+    public void close() {
+        try {
+            if( selector != null ) selector.close();
+            if( channel  != null ) channel.close();
+        }
+        catch( IOException _e ) {
+            // naught to do here...
+        }
+        selector = null;
+        channel  = null;
+    }
+
+
+    /*
+     * Sends a request with the given command (and index, if it's not negative) and waits for its reply, which must be the given type and length;
+     * on success, the reply is in our reply buffer, and on any failure our channel is closed, to be reopened by the next request.
+     */
+    private void query( final int _command, final int _replyType, final int _replyLength, final int _index ) throws IOException {
+
+        try {
+            open();
+            exchange( _command, _replyType, _replyLength, _index );
+        }
+        catch( IOException _e ) {
+            close();
+            throw _e;
+        }
+    }
+
+
+    /*
+     * Does the work of query() on our open channel.
+     */
+    private void exchange( final int _command, final int _replyType, final int _replyLength, final int _index ) throws IOException {
+
+        // throw away anything left over from an earlier request...
+        reply.clear();
+        while( channel.receive( reply ) != null )
+            reply.clear();
+
+        sequence++;
+        request.clear();
+        request.put( (byte) PROTOCOL_VERSION );
+        request.put( (byte) PKT_TYPE_REQUEST );
+        request.put( (byte) 0 );                 // res1...
+        request.put( (byte) 0 );                 // res2...
+        request.putShort( (short) _command );
+        request.putShort( (short) 0 );           // attempt...
+        request.putInt( sequence );
+        request.putInt( 0 );                     // pad1...
+        request.putInt( 0 );                     // pad2...
+        if( _index >= 0 ) {
+            request.putInt( _index );
+            request.putInt( 0 );                 // EOR...
+        }
+        while( request.position() < _replyLength )
+            request.put( (byte) 0 );             // chronyd ignores requests shorter than their replies...
+        request.flip();
+        channel.write( request );
+
+        long deadline = System.nanoTime() + timeoutMs * 1_000_000L;
+        while( true ) {
+            long remainingMs = (deadline - System.nanoTime()) / 1_000_000L;
+            if( remainingMs <= 0 || selector.select( remainingMs ) == 0 ) {
+                if( System.nanoTime() - deadline >= 0 )
+                    throw new IOException( "Timed out waiting for chronyd to reply to command " + _command );
+                continue;
+            }
+            selector.selectedKeys().clear();
+
+            reply.clear();
+            if( channel.receive( reply ) == null ) continue;
+            reply.flip();
+
+            // ignore anything that isn't the reply to this request...
+            if( reply.limit() < REPLY_HEADER ) continue;
+            if( (reply.get( 0 ) & 0xFF) != PROTOCOL_VERSION || (reply.get( 1 ) & 0xFF) != PKT_TYPE_REPLY ) continue;
+            if( (reply.getShort( 4 ) & 0xFFFF) != _command || reply.getInt( 16 ) != sequence ) continue;
+
+            int status = reply.getShort( 8 ) & 0xFFFF;
+            if( status != STT_SUCCESS )
+                throw new IOException( "chronyd returned status " + status + " for command " + _command );
+            int type = reply.getShort( 6 ) & 0xFFFF;
+            if( type != _replyType || reply.limit() < _replyLength )
+                throw new IOException( "chronyd returned reply type " + type + ", length " + reply.limit() + " for command " + _command );
+            return;
+        }
+    }
+
+
+    /*
+     * Opens our channel, connected to chronyd, if it isn't already open.
+     */
+    private void open() throws IOException {
+        if( channel != null ) return;
+        channel  = DatagramChannel.open();
+        channel.connect( server );
+        channel.configureBlocking( false );
+        selector = Selector.open();
+        channel.register( selector, SelectionKey.OP_READ );
+    }
+
+
+    /*
+     * Returns the address (in chrony's IPAddr form) at the given offset in our reply as a string: dotted quad, IPv6, or (for reference clocks)
+     * the clock's name.
+     */
+    private String address( final int _offset, final int _family ) throws IOException {
+        switch( _family ) {
+            case IPADDR_INET4:
+                return (reply.get( _offset ) & 0xFF) + "." + (reply.get( _offset + 1 ) & 0xFF) + "."
+                        + (reply.get( _offset + 2 ) & 0xFF) + "." + (reply.get( _offset + 3 ) & 0xFF);
+            case IPADDR_INET6:
+                byte[] address = new byte[16];
+                for( int i = 0; i < 16; i++ )
+                    address[i] = reply.get( _offset + i );
+                return InetAddress.getByAddress( address ).getHostAddress();
+            default:
+                int length = 0;
+                while( length < 4 && reply.get( _offset + length ) != 0 ) length++;
+                byte[] name = new byte[length];
+                for( int i = 0; i < length; i++ )
+                    name[i] = reply.get( _offset + i );
+                return new String( name, StandardCharsets.US_ASCII );
+        }
+    }
+
+
+    /*
+     * Returns the ntpq tally code for the given chrony source state: selected (*), selectable (+), unselected (#, "good, not used"),
+     * falseticker (x), jittery (-, "outlier"), or not selectable (space).
+     */
+    private static char tally( final int _state ) {
+        switch( _state ) {
+            case 0:  return '*';
+            case 2:  return 'x';
+            case 3:  return '-';
+            case 4:  return '#';
+            case 5:  return '+';
+            default: return ' ';
+        }
+    }
+
+
+    /**
+     * Returns the value of the given number in chrony's 32 bit floating point format: a 7 bit signed exponent, followed by a 25 bit signed
+     * coefficient.
+     *
+     * @param _bits the number in chrony's format
+     * @return the value of the number
+     */
+    /* package-private */ static double chronyFloat( final int _bits ) {
+        int exponent = _bits >> 25;                 // arithmetic shift, so it's sign extended...
+        int coefficient = (_bits << 7) >> 7;        // likewise...
+        return coefficient * Math.pow( 2.0, exponent - 25 );
+    }
+
+
+    /**
+     * Returns the given value in chrony's 32 bit floating point format (the inverse of {@link #chronyFloat(int)}), as chronyd itself encodes
+     * it.  This is for stand-in servers.
+     *
+     * @param _value the value to encode
+     * @return the value in chrony's format
+     */
+    /* package-private */ static int toChronyFloat( final double _value ) {
+        if( _value == 0 || Double.isNaN( _value ) ) return 0;
+        int exponent = Math.getExponent( _value ) + 2;              // leaves room for the coefficient's sign bit...
+        exponent = Math.max( -64, Math.min( 63, exponent ) );
+        long coefficient = Math.round( _value * Math.pow( 2.0, 25 - exponent ) );
+        if( coefficient >= (1 << 24) ) {                            // rounded up past the top; use the next exponent...
+            exponent++;
+            coefficient = Math.round( _value * Math.pow( 2.0, 25 - exponent ) );
+        }
+        coefficient = Math.max( -(1 << 24), Math.min( (1 << 24) - 1, coefficient ) );
+        return (exponent << 25) | (int) (coefficient & 0x1FFFFFF);
+    }
+}
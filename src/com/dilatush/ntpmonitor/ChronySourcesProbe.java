@@ -0,0 +1,64 @@
+package com.dilatush.ntpmonitor;
+
+import java.io.IOException;
+
+/**
+ * A {@link Probe} for the sources of the local chronyd, read in-process with chrony's command and monitoring protocol (see
+ * {@link ChronyClient}).  Successive polls alternate between two peer tables, so that a poll never fills the table from the previous poll while
+ * it's being published.  Instances of this class are mutable and NOT threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class ChronySourcesProbe implements Probe<PeerTable> {
+
+    private final ChronyClient client;
+    private final long         intervalMs;
+    private final PeerTable[]  tables;
+    private int                polls;
+
+
+    /**
+     * Creates a new instance of this class that queries chronyd with the given client, no more often than the given interval, holding up to
+     * the given number of sources.
+     *
+     * @param _client the client to query chronyd with
+     * @param _intervalMs the shortest interval between polls, in milliseconds (zero to poll every monitor cycle)
+     * @param _maxSources the most sources to hold
+     */
+    public ChronySourcesProbe( final ChronyClient _client, final long _intervalMs, final int _maxSources ) {
+        client     = _client;
+        intervalMs = _intervalMs;
+        tables     = new PeerTable[] { new PeerTable( _maxSources ), new PeerTable( _maxSources ) };
+    }
+
+
+    @Override
+    public String name() {
+        return "peers";
+    }
+
+
+    @Override
+    public PeerTable poll() throws ProbeException {
+        PeerTable table = tables[polls++ & 1];
+        try {
+            client.readSources( table );
+            return table;
+        }
+        catch( IOException _e ) {
+            throw new ProbeException( "chronyd sources query failed: " + _e.getMessage() );
+        }
+    }
+
+
+    @Override
+    public void stop() {
+        client.close();
+    }
+
+
+    @Override
+    public long intervalMs() {
+        return intervalMs;
+    }
+}
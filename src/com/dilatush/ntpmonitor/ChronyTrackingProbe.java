@@ -0,0 +1,57 @@
+package com.dilatush.ntpmonitor;
+
+import java.io.IOException;
+
+/**
+ * A {@link Probe} for the tracking state of the local chronyd, read in-process with chrony's command and monitoring protocol (see
+ * {@link ChronyClient#readTracking()} for how chrony's tracking state maps onto a {@link LocalServer}).  Instances of this class are mutable and
+ * NOT threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class ChronyTrackingProbe implements Probe<LocalServer> {
+
+    private final ChronyClient client;
+    private final long         intervalMs;
+
+
+    /**
+     * Creates a new instance of this class that queries chronyd with the given client, no more often than the given interval.
+     *
+     * @param _client the client to query chronyd with
+     * @param _intervalMs the shortest interval between polls, in milliseconds (zero to poll every monitor cycle)
+     */
+    public ChronyTrackingProbe( final ChronyClient _client, final long _intervalMs ) {
+        client     = _client;
+        intervalMs = _intervalMs;
+    }
+
+
+    @Override
+    public String name() {
+        return "kernel";
+    }
+
+
+    @Override
+    public LocalServer poll() throws ProbeException {
+        try {
+            return client.readTracking();
+        }
+        catch( IOException _e ) {
+            throw new ProbeException( "chronyd tracking query failed: " + _e.getMessage() );
+        }
+    }
+
+
+    @Override
+    public void stop() {
+        client.close();
+    }
+
+
+    @Override
+    public long intervalMs() {
+        return intervalMs;
+    }
+}
@@ -0,0 +1,243 @@
+package com.dilatush.ntpmonitor;
+
+import com.dilatush.util.HJSONObject;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Encodes successive monitor messages as deltas against the last one sent, so that fields that rarely change (the OS and JVM information, the
+ * position of the fix, and so on) aren't sent every cycle.  Each message's <code>monitor</code> object is flattened into leaf fields, each
+ * named by its path: object keys are separated by dots, and elements of arrays of objects are named by their identifying fields in brackets
+ * (for instance, <code>monitor.ntp.peers[time-a-g.nist.gov].offsetMs</code> or <code>monitor.ntp.satellites[GPS:12].cno</code>).  Arrays
+ * without identifying fields are treated as single values.  A field is sent when it appears, disappears, or changes; numeric fields may be given
+ * a deadband, in which case they're sent only when they differ from the value last sent by more than the deadband.
+ * <p>
+ * Every message carries a sequence number and the epoch (the time this encoder was created); every so often, and whenever one is requested,
+ * the whole message is sent as a keyframe.  A subscriber that sees a gap in the sequence numbers or a new epoch can't trust its state, and
+ * should send a resync request (a direct message of type {@link #RESYNC_TYPE} to the monitor's {@link #RESYNC_MAILBOX} mailbox) and ignore
+ * deltas until the next keyframe.  Instances of this class are mutable and NOT threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class DeltaEncoder {
+
+    /**
+     * The type of the direct message a subscriber sends to request a keyframe.
+     */
+    public static final String RESYNC_TYPE = "ntp.resync";
+
+    /**
+     * The name of the monitor's mailbox that subscribers send their resync requests to (which takes nothing else).
+     */
+    public static final String RESYNC_MAILBOX = "resync";
+
+    // the identifying fields of the elements of the arrays we know about...
+    private static final Map<String,String[]> DEFAULT_ARRAY_KEYS = new HashMap<>();
+    static {
+        DEFAULT_ARRAY_KEYS.put( "monitor.ntp.peers",         new String[] { "remote"     } );
+        DEFAULT_ARRAY_KEYS.put( "monitor.ntp.satellites",    new String[] { "type", "id" } );
+        DEFAULT_ARRAY_KEYS.put( "monitor.ntp.samples.peers", new String[] { "remote"     } );
+        DEFAULT_ARRAY_KEYS.put( "monitor.ntp.sntp.targets",  new String[] { "name"       } );
+    }
+
+    private final int                 keyframeInterval;
+    private final Map<String,Double>  deadbands;        // keyed by path, with any array element names left out ("monitor.ntp.peers[].delayMs")...
+    private final Map<String,String[]> arrayKeys;       // keyed by the path of the array...
+    private final long                epoch;
+
+    private Map<String,Object>        sent;             // the value of each field as last sent, keyed by path...
+    private long                      sequence;
+    private int                       sinceKeyframe;
+    private boolean                   keyframeRequested;
+
+
+    /**
+     * Creates a new instance of this class configured by the given monitor configuration.  The optional configuration items are:
+     * <ul>
+     *    <li><code>delta.keyframeInterval</code> the number of messages from one keyframe to the next (default 10)</li>
+     *    <li><code>delta.deadbands</code> an object whose keys are field paths (with array element names left out, as in
+     *        <code>"monitor.ntp.peers[].offsetMs"</code>) and whose values are the deadbands for those fields</li>
+     * </ul>
+     *
+     * @param _config the monitor's configuration, or <code>null</code> for the defaults
+     */
+    public DeltaEncoder( final HJSONObject _config ) {
+
+        HJSONObject config = (_config == null) ? new HJSONObject() : _config;
+        keyframeInterval  = Math.max( 1, config.optIntDotted( "delta.keyframeInterval", 10 ) );
+        deadbands         = new HashMap<>();
+        arrayKeys         = new HashMap<>( DEFAULT_ARRAY_KEYS );
+        epoch             = System.currentTimeMillis();
+        sent              = new LinkedHashMap<>();
+        keyframeRequested = true;   // the first message is always a keyframe...
+
+        // the deadband keys have dots in them, so we can't read them as dotted paths...
+        JSONObject delta = config.optJSONObject( "delta" );
+        JSONObject bands = (delta == null) ? null : delta.optJSONObject( "deadbands" );
+        if( bands != null )
+            for( String path : bands.keySet() )
+                deadbands.put( path, Math.abs( bands.getDouble( path ) ) );
+    }
+
+
+    /**
+     * Requests that the next message be a keyframe.
+     */
+    public void requestKeyframe() {
+        keyframeRequested = true;
+    }
+
+
+    /**
+     * Encodes the <code>monitor</code> object in the given full message into the given message to be sent, either as a keyframe (a copy of the
+     * whole <code>monitor</code> object) or as a delta against the last message sent.  Either way, <code>monitor.delta</code> describes what
+     * was sent.
+     *
+     * @param _full the full message, as filled in by the monitors
+     * @param _out the message to be sent
+     */
+    public void encode( final HJSONObject _full, final HJSONObject _out ) {
+
+        JSONObject monitor = _full.optJSONObject( "monitor" );
+        Map<String,Object> current = new LinkedHashMap<>();
+        if( monitor != null ) flatten( monitor, "monitor", "monitor", current );
+
+        sequence++;
+        boolean keyframe = keyframeRequested || (++sinceKeyframe >= keyframeInterval);
+        if( keyframe ) {
+            if( monitor != null ) _out.put( "monitor", monitor );
+            sent              = current;
+            sinceKeyframe     = 0;
+            keyframeRequested = false;
+        }
+        else {
+            // anything new, or changed by more than its deadband...
+            JSONObject changed = new JSONObject();
+            for( Map.Entry<String,Object> entry : current.entrySet() ) {
+                Object last = sent.get( entry.getKey() );
+                if( (last == null) || isChanged( entry.getKey(), last, entry.getValue() ) ) {
+                    changed.put( entry.getKey(), entry.getValue() );
+                    sent.put( entry.getKey(), entry.getValue() );
+                }
+            }
+
+            // anything that's gone...
+            JSONArray removed = new JSONArray();
+            Iterator<String> it = sent.keySet().iterator();
+            while( it.hasNext() ) {
+                String path = it.next();
+                if( !current.containsKey( path ) ) {
+                    removed.put( path );
+                    it.remove();
+                }
+            }
+
+            _out.putDotted( "monitor.delta.changed", changed );
+            _out.putDotted( "monitor.delta.removed", removed );
+        }
+        _out.putDotted( "monitor.delta.epoch",    epoch    );
+        _out.putDotted( "monitor.delta.sequence", sequence );
+        _out.putDotted( "monitor.delta.keyframe", keyframe );
+    }
+
+
+    /*
+     * Returns true if the given value of the field at the given path has changed enough from the given value last sent to be sent again.
+     */
+    private boolean isChanged( final String _path, final Object _last, final Object _value ) {
+
+        if( (_last instanceof Number) && (_value instanceof Number) ) {
+            double last  = ((Number) _last).doubleValue();
+            double value = ((Number) _value).doubleValue();
+            if( Double.isNaN( last ) || Double.isNaN( value ) ) return Double.isNaN( last ) != Double.isNaN( value );
+            Double deadband = deadbands.isEmpty() ? null : deadbands.get( pattern( _path ) );
+            return (deadband == null) ? (last != value) : (Math.abs( value - last ) > deadband);
+        }
+        return !_last.equals( _value );
+    }
+
+
+    /*
+     * Flattens the given JSON object at the given path into the given map of leaf values.  Arrays of objects with identifying fields are
+     * flattened element by element; other arrays are kept as their JSON text, so they compare by value.
+     */
+    private void flatten( final JSONObject _object, final String _path, final String _arrayPath, final Map<String,Object> _leaves ) {
+
+        for( String key : _object.keySet() ) {
+
+            // the delta information itself is never part of the state...
+            if( "monitor".equals( _path ) && "delta".equals( key ) ) continue;
+
+            String path      = _path + "." + key;
+            String arrayPath = _arrayPath + "." + key;
+            Object value     = _object.get( key );
+            if( value instanceof JSONObject )
+                flatten( (JSONObject) value, path, arrayPath, _leaves );
+            else if( value instanceof JSONArray ) {
+                String[] keys = arrayKeys.get( arrayPath );
+                if( (keys == null) || !flattenArray( (JSONArray) value, path, arrayPath, keys, _leaves ) )
+                    _leaves.put( path, value.toString() );
+            }
+            else
+                _leaves.put( path, value );
+        }
+    }
+
+
+    /*
+     * Flattens the elements of the given array, naming each by its identifying fields, and returns true; or returns false (having added
+     * nothing) if any element isn't an object with all the identifying fields, or if any two elements have the same name.
+     */
+    private boolean flattenArray( final JSONArray _array, final String _path, final String _arrayPath, final String[] _keys,
+                                  final Map<String,Object> _leaves ) {
+
+        Map<String,Object> elements = new LinkedHashMap<>();
+        Set<String> names = new HashSet<>();
+        for( int i = 0; i < _array.length(); i++ ) {
+            JSONObject element = _array.optJSONObject( i );
+            if( element == null ) return false;
+            StringBuilder name = new StringBuilder();
+            for( String key : _keys ) {
+                if( !element.has( key ) ) return false;
+                if( name.length() > 0 ) name.append( ':' );
+                name.append( element.get( key ) );
+            }
+            String elementName = name.toString();
+            if( !names.add( elementName ) ) return false;
+            flatten( element, _path + "[" + elementName + "]", _arrayPath + "[]", elements );
+        }
+        _leaves.putAll( elements );
+        return true;
+    }
+
+
+    /*
+     * Returns the given path with the names of array elements left out, for looking up deadbands.
+     */
+    private static String pattern( final String _path ) {
+        if( _path.indexOf( '[' ) < 0 ) return _path;
+        StringBuilder result = new StringBuilder( _path.length() );
+        boolean inName = false;
+        for( int i = 0; i < _path.length(); i++ ) {
+            char c = _path.charAt( i );
+            if( c == '[' ) {
+                inName = true;
+                result.append( c );
+            }
+            else if( c == ']' ) {
+                inName = false;
+                result.append( c );
+            }
+            else if( !inName )
+                result.append( c );
+        }
+        return result.toString();
+    }
+}
@@ -29,6 +29,14 @@ public enum Event {
 
     private static EnumIndexer<Event> indexer;
 
+    // cached lookup table for decoding status words, indexed by the 4 bit event code...
+    private static final Event[] BY_CODE = new Event[16];
+
+    static {
+        for( Event event : values() )
+            BY_CODE[event.info().index] = event;
+    }
+
 
     /**
      * Creates a new instance of {@link Event} with the given index, identifying string, and descriptive string.
@@ -97,6 +105,6 @@ public enum Event {
      * @return the decoded {@link Event} value
      */
     public static Event fromStatus( final int _statusWord ) {
-        return indexer.fromIndex( _statusWord & 0xFF );
+        return BY_CODE[_statusWord & 0xF];
     }
 }
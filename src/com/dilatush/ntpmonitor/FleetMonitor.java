@@ -0,0 +1,669 @@
+package com.dilatush.ntpmonitor;
+
+import com.dilatush.util.HJSONObject;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Polls a fleet of NTP servers remotely, so that one monitor process can watch any number of them.  Each target is polled either with a plain
+ * client (mode 3) packet, which any NTP server answers, giving its offset from us, the round trip delay, and what it says about itself (stratum,
+ * reference ID, leap indicator, root delay and dispersion), or with an NTP control (mode 6) query of its system variables, as
+ * <code>ntpq -c rv</code> would, giving ntpd's own view of its offset, jitter, and frequency (the target's ntpd must allow us to query it).
+ * <p>
+ * All the targets are polled concurrently on the caller's thread, through a single non-blocking UDP channel and selector: every request is sent,
+ * then replies are taken as they arrive (matched to their targets by source address) until every target has answered or the timeout has passed.
+ * Targets that haven't answered part way through the timeout are sent their request again.  So that a burst of replies can't overflow the
+ * socket's receive buffer, only so many requests are in flight at once; the rest are sent as replies come in.  The channel, buffers, and
+ * per-target state are allocated once and reused, so a poll of hundreds of targets costs one thread and one socket.
+ * <p>
+ * The targets' host names are resolved on a thread of our own, never on the polling thread (where a slow DNS server would eat into the poll's
+ * timeout), and resolved again at intervals, so that a target whose address changes is followed to its new one.  A poll uses the addresses
+ * found by the latest resolution; if a name stops resolving, its last address is kept.  Only the first poll waits for the first resolution
+ * (no longer than the poll's timeout).  Instances of this class are mutable and NOT threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class FleetMonitor implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName() );
+
+    // the system variables we ask ntpd for, in control mode...
+    private static final byte[] CONTROL_REQUEST =
+            "stratum,refid,leap,offset,sys_jitter,rootdelay,rootdisp,frequency".getBytes( StandardCharsets.US_ASCII );
+    private static final int    MAX_CONTROL_RESPONSE = 2048;
+
+    /**
+     * How a target is polled.
+     */
+    public enum Mode {
+        CLIENT,     // an NTP client (mode 3) packet...
+        CONTROL     // an NTP control (mode 6) READVAR of the system variables...
+    }
+
+    private final List<Target>                   targets;
+    private final Map<InetSocketAddress,Target>  byAddress;
+    private final long                           timeoutNanos;
+    private final int                            retries;
+    private final long                           resendNanos;
+    private final int                            maxInFlight;
+    private final long                           resolveMs;
+    private final ByteBuffer                     packet;
+
+    private DatagramChannel          channel;
+    private Selector                 selector;
+    private ScheduledExecutorService resolver;       // resolves our targets' host names; null when we're closed...
+    private boolean                  resolved;       // true once the first resolution since we opened has finished (or we gave up waiting)...
+    private int             pending;        // the targets still to be heard from in the current poll...
+    private int             inFlight;       // the requests sent and not yet answered (or given up on)...
+    private long            polls;
+
+
+    /**
+     * Creates a new instance of this class configured by the given monitor configuration, or returns <code>null</code> if no fleet is
+     * configured.  The configuration items are:
+     * <ul>
+     *    <li><code>fleet.targets</code> an array of the servers to poll, each an object with a <code>name</code> (unique; used in the topic its
+     *        results are published under), a <code>host</code>, and optionally a <code>port</code> (default 123) and <code>mode</code>
+     *        ("client", the default, or "control")</li>
+     *    <li><code>fleet.timeoutMs</code> the longest to wait for the targets to answer each poll (default 2000)</li>
+     *    <li><code>fleet.retries</code> the number of times to resend a request to a target that hasn't answered (default 1)</li>
+     *    <li><code>fleet.maxInFlight</code> the most requests to have unanswered at once (default 100); this keeps a large fleet's replies from
+     *        overflowing the socket's receive buffer, but a fleet much larger than this needs a timeout long enough for several round trips</li>
+     *    <li><code>fleet.resolveSeconds</code> the interval at which the targets' host names are resolved again (default 300)</li>
+     * </ul>
+     *
+     * @param _config the monitor's configuration
+     * @return the fleet monitor, or null if there is no fleet
+     */
+    public static FleetMonitor fromConfig( final HJSONObject _config ) {
+
+        JSONObject fleet = _config.optJSONObject( "fleet" );
+        JSONArray array = (fleet == null) ? null : fleet.optJSONArray( "targets" );
+        if( (array == null) || (array.length() == 0) ) return null;
+
+        List<Target> targets = new ArrayList<>( array.length() );
+        for( int i = 0; i < array.length(); i++ ) {
+            JSONObject target = array.getJSONObject( i );
+            Mode mode;
+            try {
+                mode = Mode.valueOf( target.optString( "mode", "client" ).toUpperCase() );
+            }
+            catch( IllegalArgumentException _e ) {
+                throw new IllegalArgumentException( "Invalid fleet target mode: " + target );
+            }
+            targets.add( new Target( target.getString( "name" ), target.getString( "host" ), target.optInt( "port", 123 ), mode ) );
+        }
+        return new FleetMonitor( targets, _config.optLongDotted( "fleet.timeoutMs", 2000 ), _config.optIntDotted( "fleet.retries", 1 ),
+                _config.optIntDotted( "fleet.maxInFlight", 100 ), 1000 * _config.optLongDotted( "fleet.resolveSeconds", 300 ) );
+    }
+
+
+    /**
+     * Creates a new instance of this class that polls the given targets.
+     *
+     * @param _targets the targets to poll
+     * @param _timeoutMs the longest to wait for the targets to answer each poll, in milliseconds
+     * @param _retries the number of times to resend a request to a target that hasn't answered
+     * @param _maxInFlight the most requests to have unanswered at once
+     * @param _resolveMs the interval at which the targets' host names are resolved again, in milliseconds
+     */
+    public FleetMonitor( final List<Target> _targets, final long _timeoutMs, final int _retries, final int _maxInFlight,
+                         final long _resolveMs ) {
+
+        if( _timeoutMs <= 0 )
+            throw new IllegalArgumentException( "Fleet timeout must be positive: " + _timeoutMs );
+        if( _resolveMs <= 0 )
+            throw new IllegalArgumentException( "Fleet resolution interval must be positive: " + _resolveMs );
+
+        timeoutNanos = 1_000_000L * _timeoutMs;
+        retries      = Math.max( 0, _retries );
+        resendNanos  = timeoutNanos / (retries + 1);
+        maxInFlight  = Math.max( 1, _maxInFlight );
+        resolveMs    = _resolveMs;
+        packet       = ByteBuffer.allocate( NTPControlClient.HEADER_SIZE + NTPControlClient.MAX_DATA_SIZE + 4 );
+        byAddress    = new HashMap<>();
+
+        List<Target> targets = new ArrayList<>( _targets.size() );
+        Map<String,Target> byName = new HashMap<>();
+        for( Target target : _targets ) {
+            if( byName.put( target.name, target ) != null )
+                throw new IllegalArgumentException( "Duplicate fleet target name: " + target.name );
+            targets.add( target );
+        }
+        this.targets = Collections.unmodifiableList( targets );
+    }
+
+
+    /**
+     * Returns the targets this monitor polls.
+     *
+     * @return the targets
+     */
+    public List<Target> targets() {
+        return targets;
+    }
+
+
+    /**
+     * Polls all the targets concurrently, returning the results for each target (in the order of the targets) once they've all answered or the
+     * timeout has passed.  A target that didn't answer, or whose address couldn't be resolved, has an invalid result saying why.
+     *
+     * @return the results of the poll
+     * @throws IOException if the channel can't be opened or used
+     */
+    public List<Result> poll() throws IOException {
+
+        open();
+        polls++;
+        NTPPacket.calibrate();      // before any exchange, never during one...
+
+        // throw away anything left over from an earlier poll...
+        packet.clear();
+        while( channel.receive( packet ) != null )
+            packet.clear();
+
+        // pick up the addresses our resolver has found, and if any have changed, remap the addresses to their targets...
+        boolean changed = false;
+        for( Target target : targets ) {
+            InetSocketAddress address = target.resolved;
+            if( address == target.address ) continue;
+            target.address = address;
+            changed = true;
+        }
+        if( changed ) {
+            byAddress.clear();
+            for( Target target : targets ) {
+                target.sameAs = null;
+                if( target.address == null ) continue;
+                Target other = byAddress.putIfAbsent( target.address, target );
+                if( other != null ) target.sameAs = other;
+            }
+        }
+
+        // get our targets ready...
+        pending = 0;
+        for( Target target : targets ) {
+            target.reset();
+            if( target.address == null )
+                target.fail( "Can't resolve " + target.host );
+            else if( target.sameAs != null )
+                target.fail( "Same address as target " + target.sameAs.name );
+            else
+                pending++;
+        }
+
+        // send our requests, then take replies as they arrive, resending to the targets that are slow to answer...
+        long deadline = System.nanoTime() + timeoutNanos;
+        inFlight = 0;
+        while( pending > 0 ) {
+
+            long wakeAt = send();
+            long now = System.nanoTime();
+            if( now >= deadline ) break;
+
+            // wait for replies until the next request needs resending (or just a moment, if the socket's buffer is full)...
+            long waitMs = (wakeAt < 0) ? 1 : Math.max( 1, (Math.min( deadline, wakeAt ) - now + 999_999) / 1_000_000 );
+            if( selector.select( waitMs ) > 0 ) selector.selectedKeys().clear();
+
+            SocketAddress from;
+            packet.clear();
+            while( (from = channel.receive( packet )) != null ) {
+                packet.flip();
+                Target target = byAddress.get( from );
+                if( (target != null) && !target.done && receive( target ) ) done( target );
+                packet.clear();
+            }
+        }
+
+        // whoever hasn't answered has timed out...
+        List<Result> results = new ArrayList<>( targets.size() );
+        for( Target target : targets ) {
+            if( !target.done )
+                target.fail( (target.attempts == 0) ? "Not polled; too many targets for the timeout"
+                                                    : "Timed out after " + target.attempts + " request(s)" );
+            results.add( target.result() );
+        }
+        return results;
+    }
+
+
+    /**
+     * Returns the number of polls made so far.
+     *
+     * @return the number of polls made so far
+     */
+    public long polls() {
+        return polls;
+    }
+
+
+    /**
+     * Closes the channel used by this monitor, and stops resolving its targets' host names.  It will open a new channel (and start resolving
+     * again) if it's used again.
+     */
+    @Override
+    public void close() {
+        if( resolver != null ) resolver.shutdownNow();
+        try {
+            if( selector != null ) selector.close();
+            if( channel  != null ) channel.close();
+        }
+        catch( IOException _e ) {
+            // naught to do here...
+        }
+        resolver = null;
+        resolved = false;
+        selector = null;
+        channel  = null;
+    }
+
+
+    /*
+     * Sends requests to the targets that need one (those not yet sent to, and those whose last request went unanswered for too long), as long as
+     * there's room in the window of requests in flight and the socket will take them.  Returns the time (System.nanoTime()) at which the next
+     * request in flight will need resending, or -1 if the socket wouldn't take any more...
+     */
+    private long send() throws IOException {
+
+        long now = System.nanoTime();
+        long wakeAt = Long.MAX_VALUE;
+        for( Target target : targets ) {
+
+            if( target.done ) continue;
+
+            // a request unanswered for too long is no longer in flight...
+            if( target.inFlight ) {
+                if( now - target.sentNanos < resendNanos ) {
+                    wakeAt = Math.min( wakeAt, target.sentNanos + resendNanos );
+                    continue;
+                }
+                target.inFlight = false;
+                inFlight--;
+            }
+            if( (target.attempts > retries) || (inFlight >= maxInFlight) ) continue;
+
+            if( target.mode == Mode.CLIENT ) {
+                target.transmit = NTPPacket.now();
+                NTPPacket.writeRequest( packet, target.transmit );
+            }
+            else {
+                target.sequence = (target.sequence + 1) & 0xFFFF;
+                packet.clear();
+                packet.put( (byte) ((2 << 3) | 6) );
+                packet.put( (byte) NTPControlClient.OP_READVAR );
+                packet.putShort( (short) target.sequence );
+                packet.putInt( 0 );
+                packet.putShort( (short) 0 );
+                packet.putShort( (short) CONTROL_REQUEST.length );
+                packet.put( CONTROL_REQUEST );
+                while( (packet.position() & 3) != 0 ) packet.put( (byte) 0 );
+                packet.flip();
+                target.received = 0;
+                target.end      = -1;
+                target.fragments.clear();
+            }
+            try {
+                if( channel.send( packet, target.address ) == 0 ) return -1;
+            }
+            catch( IOException _e ) {
+                // an unreachable network and the like fail only this target...
+                target.fail( "Can't send to " + target.address + ": " + _e.getMessage() );
+                done( target );
+                continue;
+            }
+            target.sentNanos = System.nanoTime();
+            if( target.attempts++ == 0 ) target.startNanos = target.sentNanos;
+            target.inFlight = true;
+            inFlight++;
+            wakeAt = Math.min( wakeAt, target.sentNanos + resendNanos );
+        }
+        return wakeAt;
+    }
+
+
+    /*
+     * Notes that the given target's poll is done...
+     */
+    private void done( final Target _target ) {
+        pending--;
+        if( _target.inFlight ) {
+            _target.inFlight = false;
+            inFlight--;
+        }
+    }
+
+
+    /*
+     * Handles the packet we just received from the given target, returning true if the target's poll is now done...
+     */
+    private boolean receive( final Target _target ) {
+
+        if( _target.mode == Mode.CLIENT ) {
+            long t4 = NTPPacket.now();
+            String problem = NTPPacket.check( packet, _target.transmit );
+            if( problem != null ) {
+                if( problem.startsWith( "Kiss" ) ) {
+                    _target.fail( problem );
+                    return true;
+                }
+                return false;   // a straggler from an earlier request, or junk...
+            }
+            long t2 = NTPPacket.receiveTimestamp( packet );
+            long t3 = NTPPacket.transmitTimestamp( packet );
+            _target.stratum          = NTPPacket.stratum( packet );
+            _target.leap             = NTPPacket.leap( packet );
+            _target.refid            = NTPPacket.referenceID( packet );
+            _target.rootDelayMs      = NTPPacket.rootDelayMs( packet );
+            _target.rootDispersionMs = NTPPacket.rootDispersionMs( packet );
+            _target.offsetMs         = NTPPacket.offsetMs( _target.transmit, t2, t3, t4 );
+            _target.delayMs          = NTPPacket.delayMs(  _target.transmit, t2, t3, t4 );
+            _target.succeed();
+            return true;
+        }
+
+        // it's a control response fragment; make sure it's for our latest request...
+        if( packet.remaining() < NTPControlClient.HEADER_SIZE ) return false;
+        int flags = packet.get( 1 ) & 0xFF;
+        int seq   = packet.getShort( 2 ) & 0xFFFF;
+        if( ((flags & 0x80) == 0) || ((flags & 0x1F) != NTPControlClient.OP_READVAR) || (seq != _target.sequence) ) return false;
+        if( (flags & 0x40) != 0 ) {
+            _target.fail( "NTP control error response, code " + ((packet.getShort( 4 ) & 0xFFFF) >>> 8) );
+            return true;
+        }
+        int offset = packet.getShort( 8  ) & 0xFFFF;
+        int count  = packet.getShort( 10 ) & 0xFFFF;
+        if( (offset + count > _target.response.length) || (NTPControlClient.HEADER_SIZE + count > packet.limit()) ) {
+            _target.fail( "NTP control response too large, or malformed" );
+            return true;
+        }
+        if( _target.fragments.contains( offset ) ) return false;       // a fragment we already have...
+        if( !_target.fragments.add( offset ) ) {
+            _target.fail( "NTP control response has too many fragments" );
+            return true;
+        }
+        packet.position( NTPControlClient.HEADER_SIZE );
+        packet.get( _target.response, offset, count );
+        _target.received += count;
+        if( (flags & 0x20) == 0 ) _target.end = offset + count;
+        if( (_target.end < 0) || (_target.received < _target.end) ) return false;
+
+        // we have the whole response...
+        _target.variables.clear();
+        NTPControlClient.parseVariables( _target.response, _target.end, _target.variables );
+        try {
+            _target.stratum          = Integer.parseInt( _target.variables.getOrDefault( "stratum", "16" ) );
+            _target.leap             = Integer.parseInt( _target.variables.getOrDefault( "leap", "3" ) );
+            _target.refid            = _target.variables.getOrDefault( "refid", "" );
+            _target.offsetMs         = number( _target.variables, "offset"     );
+            _target.jitterMs         = number( _target.variables, "sys_jitter" );
+            _target.rootDelayMs      = number( _target.variables, "rootdelay"  );
+            _target.rootDispersionMs = number( _target.variables, "rootdisp"   );
+            _target.frequencyPpm     = number( _target.variables, "frequency"  );
+            _target.succeed();
+        }
+        catch( NumberFormatException _e ) {
+            _target.fail( "Malformed system variables: " + _e.getMessage() );
+        }
+        return true;
+    }
+
+
+    private static double number( final Map<String,String> _variables, final String _name ) {
+        String value = _variables.get( _name );
+        return ((value == null) || value.isEmpty()) ? Double.NaN : Double.parseDouble( value );
+    }
+
+
+    /*
+     * Resolves each target's host name; runs on our resolver's thread.  The poll picks up a new address when the target's resolved address is a
+     * different instance, so an unchanged address is left alone; a name that no longer resolves keeps its last address...
+     */
+    private void resolve() {
+        for( Target target : targets ) {
+            try {
+                InetSocketAddress address = new InetSocketAddress( target.host, target.port );
+                if( address.isUnresolved() ) {
+                    LOGGER.log( Level.WARNING, "Can't resolve fleet target " + target.name + " (" + target.host + ")"
+                            + ((target.resolved == null) ? "" : "; still using " + target.resolved) );
+                    continue;
+                }
+                if( !address.equals( target.resolved ) ) target.resolved = address;
+            }
+            catch( RuntimeException _e ) {
+                // a malformed host name or port fails only this target (and mustn't stop our resolver)...
+                LOGGER.log( Level.WARNING, "Can't resolve fleet target " + target.name + " (" + target.host + ")", _e );
+            }
+        }
+    }
+
+
+    /*
+     * Opens our channel (if it isn't already), bound to an ephemeral port, and registers it with our selector.  Also starts our resolver (if it
+     * isn't already running), and waits (no longer than our timeout) for its first resolution...
+     */
+    private void open() throws IOException {
+
+        if( resolver == null ) {
+            resolver = Executors.newSingleThreadScheduledExecutor( _runnable -> {
+                Thread thread = new Thread( _runnable, "NTP Fleet Resolver" );
+                thread.setDaemon( true );
+                return thread;
+            } );
+            resolver.scheduleWithFixedDelay( this::resolve, 0, resolveMs, TimeUnit.MILLISECONDS );
+        }
+        if( !resolved ) {
+            try {
+                resolver.submit( () -> {} ).get( timeoutNanos, TimeUnit.NANOSECONDS );    // queued behind the first resolution...
+            }
+            catch( InterruptedException _e ) {
+                Thread.currentThread().interrupt();
+            }
+            catch( ExecutionException | TimeoutException _e ) {
+                LOGGER.log( Level.WARNING, "Fleet targets not all resolved in time for the first poll" );
+            }
+            resolved = true;
+        }
+
+        if( channel != null ) return;
+
+        channel = DatagramChannel.open();
+        channel.configureBlocking( false );
+        channel.setOption( StandardSocketOptions.SO_RCVBUF, Math.max( 1 << 16, maxInFlight * 2048 ) );
+        channel.bind( null );
+        selector = Selector.open();
+        channel.register( selector, SelectionKey.OP_READ );
+        LOGGER.log( Level.INFO, "Polling a fleet of " + targets.size() + " NTP servers from " + channel.getLocalAddress() );
+    }
+
+
+    /**
+     * One NTP server in the fleet, and the state of its latest poll.
+     */
+    public static class Target {
+
+        public final String name;
+        public final String host;
+        public final int    port;
+        public final Mode   mode;
+
+        private volatile InetSocketAddress resolved;    // the latest address our resolver found; null until it finds one...
+        private InetSocketAddress   address;        // the address we're polling, picked up from resolved; null until resolved...
+        private Target              sameAs;         // the target that has the same address as this one, if there is one...
+        private final byte[]        response;       // the control response, assembled from its fragments...
+        private final Map<String,String> variables;
+        private final NTPControlClient.Fragments fragments;     // the fragments of the control response received so far...
+
+        // the state of the latest poll...
+        private boolean done;
+        private boolean inFlight;
+        private long    sentNanos;              // when we last sent our request...
+        private int     attempts;
+        private long    transmit;                   // our transmit timestamp, in client mode...
+        private int     sequence;                   // our sequence number, in control mode...
+        private int     received;
+        private int     end;
+        private long    startNanos;             // when we first sent our request...
+        private String  errorMessage;
+        private double  latencyMs;
+        private int     stratum;
+        private int     leap;
+        private String  refid;
+        private double  offsetMs;
+        private double  delayMs;
+        private double  jitterMs;
+        private double  rootDelayMs;
+        private double  rootDispersionMs;
+        private double  frequencyPpm;
+
+
+        public Target( final String _name, final String _host, final int _port, final Mode _mode ) {
+            name      = _name;
+            host      = _host;
+            port      = _port;
+            mode      = _mode;
+            response  = (_mode == Mode.CONTROL) ? new byte[MAX_CONTROL_RESPONSE] : null;
+            variables = (_mode == Mode.CONTROL) ? new HashMap<>() : null;
+            fragments = (_mode == Mode.CONTROL) ? new NTPControlClient.Fragments() : null;
+        }
+
+
+        private void reset() {
+            done         = false;
+            inFlight     = false;
+            attempts     = 0;
+            errorMessage = null;
+            latencyMs    = Double.NaN;
+            stratum      = 0;
+            leap         = NTPPacket.LEAP_UNSYNC;
+            refid        = null;
+            offsetMs = delayMs = jitterMs = rootDelayMs = rootDispersionMs = frequencyPpm = Double.NaN;
+        }
+
+
+        private void fail( final String _errorMessage ) {
+            done         = true;
+            errorMessage = _errorMessage;
+        }
+
+
+        private void succeed() {
+            done      = true;
+            latencyMs = (System.nanoTime() - startNanos) / 1e6;
+        }
+
+
+        private Result result() {
+            return new Result( name, host, port, mode, errorMessage == null, errorMessage, attempts, latencyMs, stratum, leap, refid,
+                    offsetMs, delayMs, jitterMs, rootDelayMs, rootDispersionMs, frequencyPpm );
+        }
+    }
+
+
+    /**
+     * A POJO for the results of polling one target.  Values we didn't get (all of them, if the poll failed, and some depending on the mode) are
+     * NaN.  Instances of this class are immutable and threadsafe.
+     */
+    public static class Result {
+
+        public final String  name;
+        public final String  host;
+        public final int     port;
+        public final Mode    mode;
+        public final boolean valid;
+        public final String  errorMessage;      // null if valid...
+        public final int     attempts;          // the requests sent this poll...
+        public final double  latencyMs;         // from our first request to the answer...
+        public final int     stratum;
+        public final int     leap;              // the leap indicator (3 if unsynchronized)...
+        public final String  refid;
+        public final double  offsetMs;          // client: the server's offset from us; control: ntpd's offset from its source...
+        public final double  delayMs;           // client only: the round trip delay...
+        public final double  jitterMs;          // control only: ntpd's system jitter...
+        public final double  rootDelayMs;
+        public final double  rootDispersionMs;
+        public final double  frequencyPpm;      // control only: ntpd's frequency offset...
+
+
+        /* package-private */ Result( final String _name, final String _host, final int _port, final Mode _mode, final boolean _valid,
+                                      final String _errorMessage, final int _attempts, final double _latencyMs, final int _stratum,
+                                      final int _leap, final String _refid, final double _offsetMs, final double _delayMs, final double _jitterMs,
+                                      final double _rootDelayMs, final double _rootDispersionMs, final double _frequencyPpm ) {
+            name             = _name;
+            host             = _host;
+            port             = _port;
+            mode             = _mode;
+            valid            = _valid;
+            errorMessage     = _errorMessage;
+            attempts         = _attempts;
+            latencyMs        = _latencyMs;
+            stratum          = _stratum;
+            leap             = _leap;
+            refid            = _refid;
+            offsetMs         = _offsetMs;
+            delayMs          = _delayMs;
+            jitterMs         = _jitterMs;
+            rootDelayMs      = _rootDelayMs;
+            rootDispersionMs = _rootDispersionMs;
+            frequencyPpm     = _frequencyPpm;
+        }
+
+
+        /**
+         * Puts these results into the given JSON object at the given dotted path (normally <code>monitor.fleet</code>).  Values we didn't get
+         * are left out.
+         *
+         * @param _json the JSON object to put these results into
+         * @param _path the dotted path to put them at
+         */
+        public void putDotted( final HJSONObject _json, final String _path ) {
+            _json.putDotted( _path + ".target",   name                          );
+            _json.putDotted( _path + ".host",     host                          );
+            _json.putDotted( _path + ".port",     port                          );
+            _json.putDotted( _path + ".mode",     mode.name().toLowerCase()     );
+            _json.putDotted( _path + ".valid",    valid                         );
+            _json.putDotted( _path + ".attempts", attempts                      );
+            if( !valid ) {
+                _json.putDotted( _path + ".errorMessage", errorMessage );
+                return;
+            }
+            _json.putDotted( _path + ".latencyMs", latencyMs );
+            _json.putDotted( _path + ".stratum",   stratum   );
+            _json.putDotted( _path + ".leap",      leap      );
+            if( refid != null ) _json.putDotted( _path + ".refid", refid );
+            put( _json, _path + ".offsetMs",         offsetMs         );
+            put( _json, _path + ".delayMs",          delayMs          );
+            put( _json, _path + ".jitterMs",         jitterMs         );
+            put( _json, _path + ".rootDelayMs",      rootDelayMs      );
+            put( _json, _path + ".rootDispersionMs", rootDispersionMs );
+            put( _json, _path + ".frequencyPpm",     frequencyPpm     );
+        }
+
+
+        private static void put( final HJSONObject _json, final String _path, final double _value ) {
+            if( !Double.isNaN( _value ) ) _json.putDotted( _path, _value );
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.dilatush.ntpmonitor;
+
+import com.dilatush.util.HJSONObject;
+
+/**
+ * A POJO for the time and position fix reported by the GNSS receiver (via gpsctl or gpsd).  Instances of this class are immutable and
+ * threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class GNSSFix {
+
+    public final boolean validTime;
+    public final double  timeAccuracy;      // in seconds...
+    public final int     satellitesUsed;
+    public final boolean validFix;
+    public final boolean fixIs3D;
+    public final double  latitude;          // in degrees...
+    public final double  longitude;         // in degrees...
+    public final double  altitudeFt;
+    public final double  fixAccuracyFt;
+
+
+    /**
+     * Creates a new instance of this class from the given JSON record, as produced by <code>gpsctl --query fix --json</code>.
+     *
+     * @param _fix the JSON fix record to decode
+     */
+    public GNSSFix( final HJSONObject _fix ) {
+        validTime      = _fix.getBooleanDotted( "time.valid" );
+        timeAccuracy   = 0.000000001 * _fix.getIntDotted( "time.accuracy_ns" );
+        satellitesUsed = _fix.getIntDotted( "number_of_satellites_used" );
+        validFix       = _fix.getBooleanDotted( "fix.valid" );
+        fixIs3D        = _fix.getBooleanDotted( "fix.3d" );
+        latitude       = _fix.getDoubleDotted( "fix.latitude_deg" );
+        longitude      = _fix.getDoubleDotted( "fix.longitude_deg" );
+        altitudeFt     = _fix.getDoubleDotted( "fix.height_above_mean_sea_level_mm" ) / (12.0 * 25.4);
+        fixAccuracyFt  = _fix.getDoubleDotted( "fix.horizontal_accuracy_mm" ) / (12.0 * 25.4);
+    }
+
+
+    /**
+     * Creates a new instance of this class with the given values (as decoded from a binary monitor payload, for instance).
+     */
+    /* package-private */ GNSSFix( final boolean _validTime, final double _timeAccuracy, final int _satellitesUsed, final boolean _validFix,
+                                   final boolean _fixIs3D, final double _latitude, final double _longitude, final double _altitudeFt,
+                                   final double _fixAccuracyFt ) {
+        validTime      = _validTime;
+        timeAccuracy   = _timeAccuracy;
+        satellitesUsed = _satellitesUsed;
+        validFix       = _validFix;
+        fixIs3D        = _fixIs3D;
+        latitude       = _latitude;
+        longitude      = _longitude;
+        altitudeFt     = _altitudeFt;
+        fixAccuracyFt  = _fixAccuracyFt;
+    }
+
+
+    /**
+     * Returns a new instance of this class decoded from the given gpsd TPV (time-position-velocity) record.  A TPV record doesn't say how many
+     * satellites were used in the fix, so that comes from the most recent SKY record.
+     *
+     * @param _tpv the gpsd TPV record to decode
+     * @param _satellitesUsed the number of satellites used, from the most recent SKY record
+     * @return the decoded fix
+     */
+    public static GNSSFix fromGpsd( final HJSONObject _tpv, final int _satellitesUsed ) {
+        int    mode        = _tpv.optInt( "mode", 0 );     // 0 unknown, 1 no fix, 2 2D fix, 3 3D fix...
+        double altitudeM   = _tpv.has( "altMSL" ) ? _tpv.optDouble( "altMSL", 0 ) : _tpv.optDouble( "alt", 0 );
+        double horizontalM = _tpv.has( "eph" ) ? _tpv.optDouble( "eph", 0 )
+                                               : Math.hypot( _tpv.optDouble( "epx", 0 ), _tpv.optDouble( "epy", 0 ) );
+        return new GNSSFix( _tpv.has( "time" ) && (mode >= 2), _tpv.optDouble( "ept", 0 ), _satellitesUsed, mode >= 2, mode == 3,
+                _tpv.optDouble( "lat", 0 ), _tpv.optDouble( "lon", 0 ), altitudeM * 1000 / (12.0 * 25.4), horizontalM * 1000 / (12.0 * 25.4) );
+    }
+
+
+    /**
+     * Returns true if the given JSON record is a gpsd TPV record.
+     *
+     * @param _record the JSON record to check
+     * @return true if the given JSON record is a gpsd TPV record
+     */
+    public static boolean isGpsdFix( final HJSONObject _record ) {
+        return "TPV".equals( _record.optString( "class", null ) );
+    }
+
+
+    /**
+     * Returns true if the given JSON record looks like a fix record.
+     *
+     * @param _record the JSON record to check
+     * @return true if the given JSON record looks like a fix record
+     */
+    public static boolean isFix( final HJSONObject _record ) {
+        return _record.has( "fix" ) && _record.has( "time" );
+    }
+}
@@ -0,0 +1,77 @@
+package com.dilatush.ntpmonitor;
+
+import com.dilatush.util.HJSONObject;
+import org.json.JSONException;
+
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.dilatush.util.Strings.isEmpty;
+
+/**
+ * A {@link Probe} for the GNSS receiver's fix, taken from a {@link GNSSStream} (of gpsctl or gpsd records) if there is one, otherwise by running
+ * <code>gpsctl --query fix --json</code>.  Instances of this class are mutable and NOT threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class GNSSFixProbe implements Probe<GNSSFix> {
+
+    private static final Logger LOGGER = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName() );
+
+    private final GNSSStream       stream;      // null if we're running gpsctl each poll...
+    private final Supplier<String> gpsctl;
+    private long                   parseNanos;  // how long the last poll spent parsing gpsctl's output, or -1 if it didn't...
+
+
+    /**
+     * Creates a new instance of this class that takes the fix from the given stream, or (if there is no stream) from the given command.
+     *
+     * @param _stream the stream to take the fix from, or <code>null</code> to run the command
+     * @param _gpsctl the gpsctl --query fix --json command (or a stand-in for it), returning its output, or <code>null</code> or an empty string
+     *                if it failed
+     */
+    public GNSSFixProbe( final GNSSStream _stream, final Supplier<String> _gpsctl ) {
+        stream = _stream;
+        gpsctl = _gpsctl;
+    }
+
+
+    @Override
+    public String name() {
+        return "fix";
+    }
+
+
+    @Override
+    public GNSSFix poll() throws ProbeException {
+
+        parseNanos = -1;
+        if( stream != null ) {
+            GNSSFix latest = stream.getFix();
+            if( latest == null )
+                throw new ProbeException( "GNSS stream has no current fix" );
+            return latest;
+        }
+
+        String fixJSON = gpsctl.get();
+        if( isEmpty( fixJSON ) )
+            throw new ProbeException( "Command gpsctl query fix failed" );
+        try {
+            long start = System.nanoTime();
+            GNSSFix result = new GNSSFix( new HJSONObject( fixJSON ) );
+            parseNanos = System.nanoTime() - start;
+            return result;
+        }
+        catch( JSONException _e ) {
+            LOGGER.log( Level.SEVERE, "Query fix invalid JSON: " + fixJSON, _e );
+            throw new ProbeException( "Query fix invalid JSON" );
+        }
+    }
+
+
+    @Override
+    public long parseNanos() {
+        return parseNanos;
+    }
+}
@@ -0,0 +1,132 @@
+package com.dilatush.ntpmonitor;
+
+import com.dilatush.util.HJSONObject;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A POJO for a single satellite in view of the GNSS receiver (as reported by gpsctl or gpsd).  Instances of this class are immutable and threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class GNSSSatellite {
+
+    // the names of the GNSS types, indexed by the GNSS ID that gpsd (and u-blox receivers) use...
+    private static final String[] GPSD_TYPES = { "GPS", "SBAS", "Galileo", "BeiDou", "IMES", "QZSS", "GLONASS" };
+
+    public final String  type;          // GPS, Galileo, GLONASS, etc...
+    public final int     id;            // within type...
+    public final int     azimuth;       // in degrees...
+    public final int     elevation;     // in degrees...
+    public final int     cno;           // carrier/noise ratio in dBHz...
+    public final boolean used;          // true if used in the latest fix...
+
+
+    /**
+     * Creates a new instance of this class from the given JSON satellite, an element of the array produced by
+     * <code>gpsctl --query satellites --json</code>.
+     *
+     * @param _sat the JSON satellite to decode
+     */
+    public GNSSSatellite( final JSONObject _sat ) {
+        type      = _sat.getString( "gnssID" );
+        id        = _sat.getInt( "satelliteID" );
+        cno       = _sat.getInt( "CNo" );
+        azimuth   = _sat.getInt( "azimuth" );
+        elevation = _sat.getInt( "elevation" );
+        used      = _sat.getBoolean( "used" );
+    }
+
+
+    /**
+     * Creates a new instance of this class with the given values (as decoded from a binary monitor payload, for instance).
+     */
+    /* package-private */ GNSSSatellite( final String _type, final int _id, final int _azimuth, final int _elevation, final int _cno,
+                                         final boolean _used ) {
+        type      = _type;
+        id        = _id;
+        azimuth   = _azimuth;
+        elevation = _elevation;
+        cno       = _cno;
+        used      = _used;
+    }
+
+
+    /**
+     * Returns an unmodifiable list of all the satellites in the given JSON satellites record.
+     *
+     * @param _record the JSON satellites record to decode
+     * @return the list of satellites in the record
+     */
+    public static List<GNSSSatellite> fromRecord( final HJSONObject _record ) {
+        JSONArray sats = _record.getJSONArray( "satellites" );
+        List<GNSSSatellite> result = new ArrayList<>( sats.length() );
+        for( int i = 0; i < sats.length(); i++ )
+            result.add( new GNSSSatellite( sats.getJSONObject( i ) ) );
+        return Collections.unmodifiableList( result );
+    }
+
+
+    /**
+     * Returns an unmodifiable list of all the satellites in the given gpsd SKY record, or <code>null</code> if the record has no satellites
+     * (gpsd sends some SKY records with only the dilutions of precision).
+     *
+     * @param _sky the gpsd SKY record to decode
+     * @return the list of satellites in the record, or <code>null</code> if it has none
+     */
+    public static List<GNSSSatellite> fromGpsd( final HJSONObject _sky ) {
+        JSONArray sats = _sky.optJSONArray( "satellites" );
+        if( sats == null ) return null;
+        List<GNSSSatellite> result = new ArrayList<>( sats.length() );
+        for( int i = 0; i < sats.length(); i++ ) {
+            JSONObject sat = sats.getJSONObject( i );
+            int prn = sat.getInt( "PRN" );
+            String type;
+            int id;
+            if( sat.has( "gnssid" ) ) {
+                int gnssID = sat.getInt( "gnssid" );
+                type = ((gnssID >= 0) && (gnssID < GPSD_TYPES.length)) ? GPSD_TYPES[gnssID] : "GNSS" + gnssID;
+                id   = sat.optInt( "svid", prn );
+            }
+            else {
+                // older gpsd versions only give the PRN, which encodes the type in its range...
+                type = (prn <= 63) ? "GPS" : (prn <= 96) ? "GLONASS" : (prn <= 192) ? "SBAS" : (prn <= 200) ? "QZSS"
+                     : (prn <= 300) ? "BeiDou" : "Galileo";
+                id   = (prn <= 63) ? prn : (prn <= 96) ? prn - 64 : (prn <= 192) ? prn : (prn <= 200) ? prn - 192
+                     : (prn <= 300) ? prn - 200 : prn - 300;
+            }
+            result.add( new GNSSSatellite( type, id,
+                    (int) Math.round( sat.optDouble( "az", 0 ) ),
+                    (int) Math.round( sat.optDouble( "el", 0 ) ),
+                    (int) Math.round( sat.optDouble( "ss", 0 ) ),
+                    sat.optBoolean( "used", false ) ) );
+        }
+        return Collections.unmodifiableList( result );
+    }
+
+
+    /**
+     * Returns true if the given JSON record is a gpsd SKY record.
+     *
+     * @param _record the JSON record to check
+     * @return true if the given JSON record is a gpsd SKY record
+     */
+    public static boolean isGpsdSky( final HJSONObject _record ) {
+        return "SKY".equals( _record.optString( "class", null ) );
+    }
+
+
+    /**
+     * Returns true if the given JSON record looks like a satellites record.
+     *
+     * @param _record the JSON record to check
+     * @return true if the given JSON record looks like a satellites record
+     */
+    public static boolean isSatellites( final HJSONObject _record ) {
+        return _record.has( "satellites" );
+    }
+}
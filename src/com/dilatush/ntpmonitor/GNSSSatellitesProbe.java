@@ -0,0 +1,78 @@
+package com.dilatush.ntpmonitor;
+
+import com.dilatush.util.HJSONObject;
+import org.json.JSONException;
+
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.dilatush.util.Strings.isEmpty;
+
+/**
+ * A {@link Probe} for the satellites in view of the GNSS receiver, taken from a {@link GNSSStream} (of gpsctl or gpsd records) if there is one,
+ * otherwise by running <code>gpsctl --query satellites --json</code>.  Instances of this class are mutable and NOT threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class GNSSSatellitesProbe implements Probe<List<GNSSSatellite>> {
+
+    private static final Logger LOGGER = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName() );
+
+    private final GNSSStream       stream;      // null if we're running gpsctl each poll...
+    private final Supplier<String> gpsctl;
+    private long                   parseNanos;  // how long the last poll spent parsing gpsctl's output, or -1 if it didn't...
+
+
+    /**
+     * Creates a new instance of this class that takes the satellites from the given stream, or (if there is no stream) from the given command.
+     *
+     * @param _stream the stream to take the satellites from, or <code>null</code> to run the command
+     * @param _gpsctl the gpsctl --query satellites --json command (or a stand-in for it), returning its output, or <code>null</code> or an empty
+     *                string if it failed
+     */
+    public GNSSSatellitesProbe( final GNSSStream _stream, final Supplier<String> _gpsctl ) {
+        stream = _stream;
+        gpsctl = _gpsctl;
+    }
+
+
+    @Override
+    public String name() {
+        return "satellites";
+    }
+
+
+    @Override
+    public List<GNSSSatellite> poll() throws ProbeException {
+
+        parseNanos = -1;
+        if( stream != null ) {
+            List<GNSSSatellite> latest = stream.getSatellites();
+            if( latest == null )
+                throw new ProbeException( "GNSS stream has no current satellites" );
+            return latest;
+        }
+
+        String satJSON = gpsctl.get();
+        if( isEmpty( satJSON ) )
+            throw new ProbeException( "Command gpsctl query satellites failed" );
+        try {
+            long start = System.nanoTime();
+            List<GNSSSatellite> result = GNSSSatellite.fromRecord( new HJSONObject( satJSON ) );
+            parseNanos = System.nanoTime() - start;
+            return result;
+        }
+        catch( JSONException _e ) {
+            LOGGER.log( Level.SEVERE, "Query satellites invalid JSON: " + satJSON, _e );
+            throw new ProbeException( "Query satellites invalid JSON" );
+        }
+    }
+
+
+    @Override
+    public long parseNanos() {
+        return parseNanos;
+    }
+}
@@ -0,0 +1,411 @@
+package com.dilatush.ntpmonitor;
+
+import com.dilatush.util.HJSONObject;
+import org.json.JSONException;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A long-lived, streaming source of GNSS fix and satellite records.  A single reader thread keeps one stream open (to a socket, to the output
+ * of a long-running gpsctl process, or to gpsd's JSON socket), frames the JSON records as they arrive, and updates the latest fix and
+ * satellite state as each record is decoded.  Readers get the latest state (and the time it arrived) with a single volatile read, so
+ * {@link NTPMonitor} no longer has to launch gpsctl twice per cycle.  If the stream ends or fails, the reader reconnects after a delay.
+ * Records may be on a single line or pretty-printed; they are framed by matching braces.  The raw records may be captured as they're read,
+ * and a stand-in for a stream (one that reads nothing) may be fed them again, so that what the stream saw in the field can be replayed (see
+ * {@link ProbeCapture}).  Instances of this class are threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class GNSSStream {
+
+    private static final Logger LOGGER            = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName() );
+
+    private static final long   RECONNECT_DELAY_MS = 5000;
+    private static final long   EXIT_WAIT_MS       = 1000;      // how long we give a command to exit before we kill it...
+    private static final int    MAX_RECORD_CHARS   = 1 << 20;   // anything bigger than this isn't a gpsctl record...
+    private static final String GPSD_WATCH         = "?WATCH={\"enable\":true,\"json\":true};\n";
+
+    private final String                         name;
+    private final Callable<InputStream>          connector;
+    private final long                           maxAgeMs;
+    private final LongSupplier                   clock;            // the current time (normally System.currentTimeMillis())...
+    private final Thread                         reader;
+
+    private volatile Latest<GNSSFix>             fix;              // null until the first fix arrives...
+    private volatile Latest<List<GNSSSatellite>> satellites;       // null until the first satellites arrive...
+    private volatile InputStream                 open;             // the stream the reader is reading, or null if there isn't one...
+    private volatile Consumer<String>            recorder;         // null unless we're capturing the raw records...
+    private int                                  satellitesUsed;   // the number used in the latest gpsd SKY record (only the reader uses it)...
+    private volatile long                        records;
+    private volatile long                        errors;
+    private volatile boolean                     running;
+
+
+    /**
+     * Creates a new instance of this class that reads records from the streams returned by the given connector, which is called once at startup
+     * and again each time the stream ends or fails.  State older than the given maximum age is treated as unavailable.
+     *
+     * @param _name the name of this stream, for logging
+     * @param _connector the source of input streams containing gpsctl JSON records
+     * @param _maxAgeMs the maximum age of fix or satellite state before it's considered stale, in milliseconds
+     */
+    public GNSSStream( final String _name, final Callable<InputStream> _connector, final long _maxAgeMs ) {
+        this( _name, _connector, _maxAgeMs, System::currentTimeMillis );
+    }
+
+
+    private GNSSStream( final String _name, final Callable<InputStream> _connector, final long _maxAgeMs, final LongSupplier _clock ) {
+        name       = _name;
+        connector  = _connector;
+        maxAgeMs   = _maxAgeMs;
+        clock      = _clock;
+        reader     = new Thread( this::readLoop, "GNSS Stream " + _name );
+        reader.setDaemon( true );
+    }
+
+
+    /**
+     * Returns a stand-in for a stream that reads nothing (and has nothing to start), but is fed its records with {@link #feed(String)}, and
+     * judges their age by the given clock (so that a replay can run on the captured times).
+     *
+     * @param _name the name of this stream, for logging
+     * @param _maxAgeMs the maximum age of fix or satellite state before it's considered stale, in milliseconds
+     * @param _clock the clock that gives the current time, in milliseconds
+     * @return the stand-in
+     */
+    /* package-private */ static GNSSStream replaying( final String _name, final long _maxAgeMs, final LongSupplier _clock ) {
+        return new GNSSStream( _name, null, _maxAgeMs, _clock );
+    }
+
+
+    /**
+     * Returns a new instance of this class that reads records from a TCP socket at the given host and port.
+     *
+     * @param _host the host to connect to
+     * @param _port the port to connect to
+     * @param _maxAgeMs the maximum age of fix or satellite state before it's considered stale, in milliseconds
+     * @return the new stream
+     */
+    public static GNSSStream forSocket( final String _host, final int _port, final long _maxAgeMs ) {
+        return new GNSSStream( _host + ":" + _port, () -> {
+            Socket socket = new Socket();
+            socket.connect( new InetSocketAddress( _host, _port ), 5000 );
+            return socket.getInputStream();
+        }, _maxAgeMs );
+    }
+
+
+    /**
+     * Returns a new instance of this class that reads TPV and SKY records from gpsd's JSON socket at the given host and port (normally port
+     * 2947), asking gpsd to start watching each time it connects.
+     *
+     * @param _host the host gpsd is running on
+     * @param _port the port gpsd is listening on
+     * @param _maxAgeMs the maximum age of fix or satellite state before it's considered stale, in milliseconds
+     * @return the new stream
+     */
+    public static GNSSStream forGpsd( final String _host, final int _port, final long _maxAgeMs ) {
+        return new GNSSStream( "gpsd " + _host + ":" + _port, () -> {
+            Socket socket = new Socket();
+            socket.connect( new InetSocketAddress( _host, _port ), 5000 );
+            OutputStream out = socket.getOutputStream();
+            out.write( GPSD_WATCH.getBytes( StandardCharsets.US_ASCII ) );
+            out.flush();
+            return socket.getInputStream();
+        }, _maxAgeMs );
+    }
+
+
+    /**
+     * Returns a new instance of this class that reads records from the standard output of the given long-running command, which is restarted if
+     * it exits.  The command is killed whenever its stream is closed: when the stream fails (before it's restarted), and when this stream is
+     * stopped.
+     *
+     * @param _command the command to run, with its arguments separated by spaces
+     * @param _maxAgeMs the maximum age of fix or satellite state before it's considered stale, in milliseconds
+     * @return the new stream
+     */
+    public static GNSSStream forCommand( final String _command, final long _maxAgeMs ) {
+        return new GNSSStream( _command, () -> {
+            ProcessBuilder builder = new ProcessBuilder( Arrays.asList( _command.trim().split( "\\s+" ) ) );
+            builder.redirectError( ProcessBuilder.Redirect.INHERIT );
+            Process process = builder.start();
+            return new FilterInputStream( process.getInputStream() ) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    }
+                    finally {
+                        kill( process );
+                    }
+                }
+            };
+        }, _maxAgeMs );
+    }
+
+
+    /*
+     * Asks the given process to exit, and kills it if it hasn't within a second...
+     */
+    private static void kill( final Process _process ) {
+        _process.destroy();
+        try {
+            if( !_process.waitFor( EXIT_WAIT_MS, TimeUnit.MILLISECONDS ) )
+                _process.destroyForcibly();
+        }
+        catch( InterruptedException _e ) {
+            _process.destroyForcibly();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * Starts the reader thread for this stream.
+     */
+    public void start() {
+        if( connector == null ) return;     // a stand-in has no reader...
+        running = true;
+        reader.start();
+    }
+
+
+    /**
+     * Stops the reader thread for this stream, and closes the stream that's currently open (which kills a command's process).
+     */
+    public void stop() {
+        running = false;
+        reader.interrupt();
+        InputStream in = open;
+        if( in != null ) {
+            try {
+                in.close();
+            }
+            catch( IOException _e ) {
+                LOGGER.log( Level.WARNING, "GNSS stream " + name + " failed to close: " + _e.getMessage() );
+            }
+        }
+    }
+
+
+    /**
+     * Returns the latest fix, or <code>null</code> if there isn't one or if it's stale.
+     *
+     * @return the latest fix
+     */
+    public GNSSFix getFix() {
+        return fresh( fix );
+    }
+
+
+    /**
+     * Returns the latest (unmodifiable) list of satellites in view, or <code>null</code> if there isn't one or if it's stale.
+     *
+     * @return the latest list of satellites in view
+     */
+    public List<GNSSSatellite> getSatellites() {
+        return fresh( satellites );
+    }
+
+
+    // the value of the given state, or null if there isn't one or it's stale...
+    private <T> T fresh( final Latest<T> _latest ) {
+        return ((_latest == null) || (clock.getAsLong() - _latest.timeMs > maxAgeMs)) ? null : _latest.value;
+    }
+
+
+    /**
+     * Hands each raw record this stream reads, from now on, to the given recorder, before it's decoded.
+     *
+     * @param _recorder the recorder to hand each record to
+     */
+    /* package-private */ void recordTo( final Consumer<String> _recorder ) {
+        recorder = _recorder;
+    }
+
+
+    /**
+     * Decodes the given raw record (capturing it, if we're capturing), as if this stream had just read it.
+     *
+     * @param _record the raw record
+     */
+    /* package-private */ void feed( final String _record ) {
+        received( _record );
+    }
+
+
+    /**
+     * Returns the number of records successfully decoded since this stream was started.
+     *
+     * @return the number of records successfully decoded
+     */
+    public long getRecords() {
+        return records;
+    }
+
+
+    /**
+     * Returns the number of malformed records and stream failures since this stream was started.
+     *
+     * @return the number of malformed records and stream failures
+     */
+    public long getErrors() {
+        return errors;
+    }
+
+
+    /*
+     * The reader thread: connects, reads until the stream ends or fails, and then waits a bit and does it again...
+     */
+    private void readLoop() {
+
+        while( running ) {
+
+            try( InputStream in = connector.call() ) {
+                open = in;
+                if( !running ) break;    // stopped while we were connecting, so stop() may not have seen this stream...
+                LOGGER.log( Level.INFO, "GNSS stream " + name + " connected" );
+                read( new InputStreamReader( in, StandardCharsets.UTF_8 ) );
+                LOGGER.log( Level.WARNING, "GNSS stream " + name + " ended" );
+            }
+            catch( Exception _e ) {
+                errors++;
+                LOGGER.log( Level.WARNING, "GNSS stream " + name + " failed: " + _e.getMessage() );
+            }
+            finally {
+                open = null;
+            }
+
+            try {
+                Thread.sleep( RECONNECT_DELAY_MS );
+            }
+            catch( InterruptedException _e ) {
+                break;
+            }
+        }
+    }
+
+
+    /*
+     * Frames JSON records from the given reader by tracking brace depth (outside of strings), handing each complete record to accept().
+     */
+    private void read( final Reader _in ) throws IOException {
+
+        char[] buffer = new char[4096];
+        StringBuilder record = new StringBuilder( 4096 );
+        int depth = 0;
+        boolean inString = false;
+        boolean escaped  = false;
+        int n;
+        while( running && ((n = _in.read( buffer )) >= 0) ) {
+            for( int i = 0; i < n; i++ ) {
+
+                char c = buffer[i];
+
+                // skip anything between records (newlines, log noise, etc.)...
+                if( depth == 0 && c != '{' ) continue;
+
+                record.append( c );
+                if( inString ) {
+                    if( escaped )        escaped  = false;
+                    else if( c == '\\' ) escaped  = true;
+                    else if( c == '"' )  inString = false;
+                }
+                else if( c == '"' ) inString = true;
+                else if( c == '{' ) depth++;
+                else if( c == '}' && (--depth == 0) ) {
+                    received( record.toString() );
+                    record.setLength( 0 );
+                }
+
+                if( record.length() > MAX_RECORD_CHARS ) {
+                    errors++;
+                    LOGGER.log( Level.WARNING, "GNSS stream " + name + " record too long; discarding" );
+                    record.setLength( 0 );
+                    depth = 0;
+                    inString = false;
+                }
+            }
+        }
+    }
+
+
+    /*
+     * Captures the given complete JSON record, if we're capturing, then decodes it...
+     */
+    private void received( final String _record ) {
+        Consumer<String> capture = recorder;
+        if( capture != null ) capture.accept( _record );
+        accept( _record );
+    }
+
+
+    /*
+     * Decodes the given complete JSON record and updates our state from it.
+     */
+    private void accept( final String _record ) {
+
+        try {
+            long now = clock.getAsLong();
+            HJSONObject json = new HJSONObject( _record );
+            if( GNSSFix.isGpsdFix( json ) ) {
+                fix = new Latest<>( GNSSFix.fromGpsd( json, satellitesUsed ), now );
+            }
+            else if( GNSSSatellite.isGpsdSky( json ) ) {
+                List<GNSSSatellite> sky = GNSSSatellite.fromGpsd( json );
+                if( sky == null ) return;    // just the dilutions of precision...
+                int used = 0;
+                for( GNSSSatellite sat : sky )
+                    if( sat.used ) used++;
+                satellitesUsed = used;
+                satellites     = new Latest<>( sky, now );
+            }
+            else if( GNSSFix.isFix( json ) ) {
+                fix = new Latest<>( new GNSSFix( json ), now );
+            }
+            else if( GNSSSatellite.isSatellites( json ) ) {
+                satellites = new Latest<>( GNSSSatellite.fromRecord( json ), now );
+            }
+            else
+                return;   // not a record we care about...
+            records++;
+        }
+        catch( JSONException _e ) {
+            errors++;
+            LOGGER.log( Level.WARNING, "GNSS stream " + name + " invalid JSON: " + _record, _e );
+        }
+    }
+
+
+    /*
+     * The latest state of one kind, and the time it arrived, published together through a single volatile field...
+     */
+    private static final class Latest<T> {
+
+        private final T    value;
+        private final long timeMs;     // when the value arrived, by our clock...
+
+
+        private Latest( final T _value, final long _timeMs ) {
+            value  = _value;
+            timeMs = _timeMs;
+        }
+    }
+}
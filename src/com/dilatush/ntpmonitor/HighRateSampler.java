@@ -0,0 +1,320 @@
+package com.dilatush.ntpmonitor;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Samples the kernel PLL state, GNSS time accuracy, and per-peer offset and jitter at a fast rate (typically once a second), independently of
+ * the monitor's publishing interval.  Samples go into fixed-size primitive ring buffers; each time the monitor publishes, it drains this sampler
+ * into a {@link Summary} of the statistics for the interval, so that transients show up without sending a message per sample.  Sampling uses its
+ * own NTP control client (and the GNSS stream, if there is one), so it never forks a process.  The time accuracy of each GNSS fix is sampled
+ * once, when it first arrives.  Instances of this class are threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class HighRateSampler {
+
+    private static final Logger LOGGER     = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName() );
+
+    private static final String KERN_VARS  = "koffset,kfreq,kmaxerr";
+    private static final String PEER_VARS  = "srcadr,offset,jitter";
+    private static final int    MAX_PEERS  = 64;
+
+    /**
+     * The columns of the time series that each sample is stored in, if there is one.
+     */
+    public static final String[] SERIES_COLUMNS = { "pllOffsetMs", "pllFreqOffsetPpm", "maxErrMs", "timeAccuracy" };
+
+    private final NTPControlClient         control;
+    private final GNSSStream               gnss;        // null if there's no GNSS stream...
+    private final TimeSeriesStore.TimeSeries series;    // null if we're not storing samples...
+    private final long                     sampleIntervalMs;
+    private final long                     timeoutMs;
+    private final int                      capacity;
+    private final ScheduledExecutorService scheduler;
+
+    // everything below is guarded by "this"...
+    private final SampleRing               pllOffsetMs;
+    private final SampleRing               pllFreqOffsetPpm;
+    private final SampleRing               maxErrMs;
+    private final SampleRing               timeAccuracy;
+    private final Map<String,PeerRings>    peers;
+    private long                           intervalStart;
+    private int                            failures;
+
+    // used only on the sampling thread...
+    private final Map<String,String>       vars;
+    private final int[]                    assocs;
+    private GNSSFix                        lastFix;     // the fix we last sampled time accuracy from...
+
+
+    /**
+     * Creates a new instance of this class that samples the given ntpd (and GNSS stream, if not <code>null</code>) at the given interval.  The
+     * ring buffers are sized to hold twice as many samples as are expected in one publishing interval.
+     *
+     * @param _ntpd the address of the ntpd to sample
+     * @param _timeoutMs the time to wait for ntpd to respond to each query, in milliseconds
+     * @param _gnss the GNSS stream to sample time accuracy from, or <code>null</code> if there isn't one
+     * @param _sampleIntervalMs the interval between samples, in milliseconds
+     * @param _publishIntervalMs the interval between publishes (and therefore drains), in milliseconds
+     * @param _series the time series to store each sample in (with the columns in {@link #SERIES_COLUMNS}), or <code>null</code> for none
+     */
+    public HighRateSampler( final InetSocketAddress _ntpd, final long _timeoutMs, final GNSSStream _gnss,
+                            final long _sampleIntervalMs, final long _publishIntervalMs, final TimeSeriesStore.TimeSeries _series ) {
+
+        control          = new NTPControlClient( _ntpd, _timeoutMs );
+        timeoutMs        = _timeoutMs;
+        gnss             = _gnss;
+        series           = _series;
+        sampleIntervalMs = _sampleIntervalMs;
+        capacity         = (int) Math.max( 16, 2 * _publishIntervalMs / _sampleIntervalMs );
+        pllOffsetMs      = new SampleRing( capacity );
+        pllFreqOffsetPpm = new SampleRing( capacity );
+        maxErrMs         = new SampleRing( capacity );
+        timeAccuracy     = new SampleRing( capacity );
+        peers            = new HashMap<>();
+        vars             = new HashMap<>();
+        assocs           = new int[2 * MAX_PEERS];
+        intervalStart    = System.currentTimeMillis();
+        scheduler        = Executors.newSingleThreadScheduledExecutor( _runnable -> {
+            Thread thread = new Thread( _runnable, "NTP Monitor Sampler" );
+            thread.setDaemon( true );
+            return thread;
+        } );
+    }
+
+
+    /**
+     * Starts sampling.
+     */
+    public void start() {
+        scheduler.scheduleAtFixedRate( this::sample, 0, sampleIntervalMs, TimeUnit.MILLISECONDS );
+    }
+
+
+    /**
+     * Stops sampling, waiting (no longer than twice the query timeout) for any sample in progress to finish before closing our NTP control
+     * client, which isn't threadsafe.
+     */
+    public void stop() {
+        scheduler.shutdownNow();
+        try {
+            if( !scheduler.awaitTermination( 2 * timeoutMs, TimeUnit.MILLISECONDS ) )
+                LOGGER.log( Level.WARNING, "High rate sampler didn't stop in time" );
+        }
+        catch( InterruptedException _e ) {
+            Thread.currentThread().interrupt();
+        }
+        control.close();
+    }
+
+
+    /**
+     * Returns the summary statistics for all the samples taken since the last drain, and starts a new interval.
+     *
+     * @return the summary of the samples taken since the last drain
+     */
+    public synchronized Summary drain() {
+
+        long now = System.currentTimeMillis();
+        Map<String,SampleStats> scalars = new HashMap<>();
+        putStats( scalars, "pllOffsetMs",      pllOffsetMs      );
+        putStats( scalars, "pllFreqOffsetPpm", pllFreqOffsetPpm );
+        putStats( scalars, "maxErrMs",         maxErrMs         );
+        putStats( scalars, "timeAccuracy",     timeAccuracy     );
+
+        // summarize the peers we've seen, and forget any that we didn't see in this interval...
+        List<PeerSummary> peerSummaries = new ArrayList<>( peers.size() );
+        Iterator<Map.Entry<String,PeerRings>> it = peers.entrySet().iterator();
+        while( it.hasNext() ) {
+            Map.Entry<String,PeerRings> entry = it.next();
+            PeerRings rings = entry.getValue();
+            if( rings.offsetMs.size() == 0 ) {
+                it.remove();
+                continue;
+            }
+            peerSummaries.add( new PeerSummary( entry.getKey(), rings.offsetMs.stats(), rings.jitterMs.stats() ) );
+            rings.offsetMs.clear();
+            rings.jitterMs.clear();
+        }
+
+        Summary summary = new Summary( now - intervalStart, sampleIntervalMs, failures,
+                Collections.unmodifiableMap( scalars ), Collections.unmodifiableList( peerSummaries ) );
+        intervalStart = now;
+        failures = 0;
+        return summary;
+    }
+
+
+    /*
+     * Puts the stats for the given ring into the given map (if there are any samples), and clears the ring.
+     */
+    private static void putStats( final Map<String,SampleStats> _map, final String _name, final SampleRing _ring ) {
+        SampleStats stats = _ring.stats();
+        if( stats != null ) _map.put( _name, stats );
+        _ring.clear();
+    }
+
+
+    /*
+     * Takes one sample; runs on the sampling thread.  The queries are made without holding the lock, so that drain() never waits on ntpd.
+     */
+    private void sample() {
+
+        try {
+            // first the kernel's PLL state...
+            vars.clear();
+            control.readVariables( 0, KERN_VARS, vars );
+            double offset  = parse( vars.get( "koffset" ) );
+            double freq    = parse( vars.get( "kfreq"   ) );
+            double maxErr  = parse( vars.get( "kmaxerr" ) );
+            GNSSFix fix    = newFix();
+
+            synchronized( this ) {
+                pllOffsetMs.add( offset );
+                pllFreqOffsetPpm.add( freq );
+                maxErrMs.add( maxErr );
+                if( fix != null ) timeAccuracy.add( fix.timeAccuracy );
+            }
+            store( offset, freq, maxErr, (fix == null) ? Double.NaN : fix.timeAccuracy );
+
+            // then each of our peers...
+            int count = control.readAssociations( assocs );
+            for( int i = 0; i < count; i++ ) {
+                vars.clear();
+                control.readVariables( assocs[2 * i], PEER_VARS, vars );
+                String remote = vars.get( "srcadr" );
+                if( remote == null ) continue;
+                double peerOffset = parse( vars.get( "offset" ) );
+                double peerJitter = parse( vars.get( "jitter" ) );
+
+                synchronized( this ) {
+                    PeerRings rings = peers.get( remote );
+                    if( rings == null ) {
+                        if( peers.size() >= MAX_PEERS ) continue;
+                        rings = new PeerRings( capacity );
+                        peers.put( remote, rings );
+                    }
+                    rings.offsetMs.add( peerOffset );
+                    rings.jitterMs.add( peerJitter );
+                }
+            }
+        }
+        catch( IOException _e ) {
+            synchronized( this ) {
+                if( failures++ == 0 )
+                    LOGGER.log( Level.WARNING, "High rate sample failed: " + _e.getMessage() );
+            }
+        }
+        catch( RuntimeException _e ) {
+            // if we let this escape, the scheduler would never run us again...
+            LOGGER.log( Level.SEVERE, "High rate sample failed", _e );
+        }
+    }
+
+
+    /*
+     * Returns the GNSS stream's fix if it's arrived since the last time we sampled, or null if it hasn't (or there isn't one).  The stream keeps
+     * its last fix until it's stale, and the receiver may report less often than we sample, so without this we'd count one fix's time accuracy
+     * many times over...
+     */
+    private GNSSFix newFix() {
+        GNSSFix fix = (gnss == null) ? null : gnss.getFix();
+        if( (fix == null) || (fix == lastFix) ) return null;
+        lastFix = fix;
+        return fix;
+    }
+
+
+    /*
+     * Stores a sample in our time series, if we have one.  A failure to store doesn't count as a failure to sample...
+     */
+    private void store( final double... _values ) {
+        if( series == null ) return;
+        try {
+            series.append( System.currentTimeMillis(), _values );
+        }
+        catch( IOException _e ) {
+            LOGGER.log( Level.WARNING, "Couldn't store high rate sample: " + _e.getMessage() );
+        }
+    }
+
+
+    /*
+     * Returns the given value parsed as a double, or NaN if it's missing or malformed.
+     */
+    private static double parse( final String _value ) {
+        if( _value == null ) return Double.NaN;
+        try {
+            return Double.parseDouble( _value );
+        }
+        catch( NumberFormatException _e ) {
+            return Double.NaN;
+        }
+    }
+
+
+    /**
+     * The summary statistics for the samples taken during one publishing interval.  Instances of this class are immutable and threadsafe.
+     */
+    public static class Summary {
+
+        public final long                    intervalMs;         // length of the interval summarized...
+        public final long                    sampleIntervalMs;   // the interval between samples...
+        public final int                     failures;           // number of samples that failed...
+        public final Map<String,SampleStats> scalars;            // keyed by the monitor.ntp field name...
+        public final List<PeerSummary>       peers;
+
+
+        /* package-private */ Summary( final long _intervalMs, final long _sampleIntervalMs, final int _failures,
+                                       final Map<String,SampleStats> _scalars, final List<PeerSummary> _peers ) {
+            intervalMs       = _intervalMs;
+            sampleIntervalMs = _sampleIntervalMs;
+            failures         = _failures;
+            scalars          = _scalars;
+            peers            = _peers;
+        }
+    }
+
+
+    /**
+     * The summary statistics for one peer's samples during one publishing interval.  Instances of this class are immutable and threadsafe.
+     */
+    public static class PeerSummary {
+
+        public final String      remote;
+        public final SampleStats offsetMs;
+        public final SampleStats jitterRmsMs;
+
+
+        /* package-private */ PeerSummary( final String _remote, final SampleStats _offsetMs, final SampleStats _jitterRmsMs ) {
+            remote      = _remote;
+            offsetMs    = _offsetMs;
+            jitterRmsMs = _jitterRmsMs;
+        }
+    }
+
+
+    private static class PeerRings {
+
+        private final SampleRing offsetMs;
+        private final SampleRing jitterMs;
+
+
+        private PeerRings( final int _capacity ) {
+            offsetMs = new SampleRing( _capacity );
+            jitterMs = new SampleRing( _capacity );
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.dilatush.ntpmonitor;
+
+import com.dilatush.util.HJSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies, in nanoseconds, with a fixed memory footprint (in the style of HdrHistogram).  Values below 32 ns each get their own
+ * bucket; above that, each power of two is split into 32 equal buckets, so any value is known to within about 3%.  Values from 0 to about 18
+ * minutes (2^40 ns) are held in 1,152 buckets; larger values are counted in the last bucket.  Recording a value costs a few instructions and
+ * never allocates.
+ * <p>
+ * The counts are cumulative from when the histogram was created, as a scraper expects.  Instances of this class are threadsafe: values may be
+ * recorded from any thread while others read the histogram, though a reader may see a value's count before its sum (or vice versa).
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class LatencyHistogram {
+
+    private static final int  SUB_BITS    = 5;
+    private static final int  SUB_COUNT   = 1 << SUB_BITS;
+    private static final int  MAX_MSB     = 39;                                      // the highest bit of the largest value we distinguish...
+    private static final int  BUCKETS     = (MAX_MSB - SUB_BITS + 2) << SUB_BITS;
+    private static final long MAX_VALUE   = (1L << (MAX_MSB + 1)) - 1;
+
+    private final AtomicLongArray counts;
+    private final AtomicLong      count;
+    private final AtomicLong      sum;
+    private final AtomicLong      max;
+    private volatile long         last;
+
+
+    public LatencyHistogram() {
+        counts = new AtomicLongArray( BUCKETS );
+        count  = new AtomicLong();
+        sum    = new AtomicLong();
+        max    = new AtomicLong();
+    }
+
+
+    /**
+     * Records the given latency.  Negative values are recorded as zero.
+     *
+     * @param _nanos the latency to record, in nanoseconds
+     */
+    public void record( final long _nanos ) {
+        long value = Math.max( 0, _nanos );
+        counts.incrementAndGet( index( Math.min( value, MAX_VALUE ) ) );
+        count.incrementAndGet();
+        sum.addAndGet( value );
+        last = value;
+        long current;
+        while( value > (current = max.get()) )
+            if( max.compareAndSet( current, value ) ) break;
+    }
+
+
+    public long count() {
+        return count.get();
+    }
+
+
+    public long sumNanos() {
+        return sum.get();
+    }
+
+
+    public long maxNanos() {
+        return max.get();
+    }
+
+
+    /**
+     * Returns the latency most recently recorded, in nanoseconds, or zero if none has been.
+     *
+     * @return the latency most recently recorded
+     */
+    public long lastNanos() {
+        return last;
+    }
+
+
+    /**
+     * Returns the latency (the upper bound of its bucket, but no more than the maximum recorded) that the given fraction of the recorded latencies
+     * are at or below, or zero if none have been recorded.
+     *
+     * @param _fraction the fraction (0..1) of recorded latencies
+     * @return the latency at that fraction, in nanoseconds
+     */
+    public long valueAt( final double _fraction ) {
+        long total = count.get();
+        if( total == 0 ) return 0;
+        long target = Math.max( 1, (long) Math.ceil( _fraction * total ) );
+        long seen = 0;
+        for( int i = 0; i < BUCKETS; i++ ) {
+            seen += counts.get( i );
+            if( seen >= target )
+                return Math.min( upperBound( i ), max.get() );
+        }
+        return max.get();
+    }
+
+
+    /**
+     * Returns the number of recorded latencies that are at or below the given latency (to within the resolution of the buckets).
+     *
+     * @param _nanos the latency, in nanoseconds
+     * @return the number of recorded latencies at or below it
+     */
+    public long countAtOrBelow( final long _nanos ) {
+        if( _nanos < 0 ) return 0;
+        int top = index( Math.min( _nanos, MAX_VALUE ) );
+        long result = 0;
+        for( int i = 0; i <= top; i++ )
+            result += counts.get( i );
+        return result;
+    }
+
+
+    /**
+     * Puts a summary of this histogram into the given JSON object at the given dotted path: the count, and the mean, 50th, 90th, and 99th
+     * percentiles, maximum, and last of the recorded latencies, in milliseconds.
+     *
+     * @param _json the JSON object to put the summary into
+     * @param _path the dotted path to put it at
+     */
+    public void putDotted( final HJSONObject _json, final String _path ) {
+        long total = count.get();
+        _json.putDotted( _path + ".count",  total                                     );
+        _json.putDotted( _path + ".meanMs", (total == 0) ? 0 : sum.get() / 1e6 / total );
+        _json.putDotted( _path + ".p50Ms",  valueAt( 0.50 ) / 1e6                      );
+        _json.putDotted( _path + ".p90Ms",  valueAt( 0.90 ) / 1e6                      );
+        _json.putDotted( _path + ".p99Ms",  valueAt( 0.99 ) / 1e6                      );
+        _json.putDotted( _path + ".maxMs",  max.get() / 1e6                            );
+        _json.putDotted( _path + ".lastMs", last / 1e6                                 );
+    }
+
+
+    /*
+     * Returns the index of the bucket for the given value (0..MAX_VALUE)...
+     */
+    private static int index( final long _value ) {
+        int msb = 63 - Long.numberOfLeadingZeros( _value | 1 );
+        if( msb < SUB_BITS ) return (int) _value;
+        int shift = msb - SUB_BITS;
+        return ((shift + 1) << SUB_BITS) + (int) ((_value >>> shift) - SUB_COUNT);
+    }
+
+
+    /*
+     * Returns the largest value that falls in the given bucket...
+     */
+    private static long upperBound( final int _index ) {
+        if( _index < SUB_COUNT ) return _index;
+        int shift = (_index >>> SUB_BITS) - 1;
+        return (((long) (_index & (SUB_COUNT - 1)) + SUB_COUNT + 1) << shift) - 1;
+    }
+}
@@ -17,6 +17,14 @@ public enum LeapSecondMode {
 
     private static EnumIndexer<LeapSecondMode> indexer;
 
+    // cached lookup table for decoding status words, indexed by the 2 bit leap indicator...
+    private static final LeapSecondMode[] BY_CODE = new LeapSecondMode[4];
+
+    static {
+        for( LeapSecondMode mode : values() )
+            BY_CODE[mode.info().index] = mode;
+    }
+
 
     /**
      * Creates a new instance of {@link LeapSecondMode} with the given index, identifying string, and descriptive string.
@@ -84,6 +92,6 @@ public enum LeapSecondMode {
      * @return the decoded {@link LeapSecondMode} value
      */
     public static LeapSecondMode fromStatus( final int _statusWord ) {
-        return indexer.fromIndex( (_statusWord >>> 14) & 0x3 );
+        return BY_CODE[(_statusWord >>> 14) & 0x3];
     }
 }
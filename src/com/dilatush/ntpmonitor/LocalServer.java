@@ -6,13 +6,62 @@ package com.dilatush.ntpmonitor;
  * @author Tom Dilatush  tom@dilatush.com
  */
 public class LocalServer {
-//    public final int                   precision;              // log2 seconds precision...
-//    public final int                   stratum;                // the NTP stratum of this server (1..n)...
-//    public final LeapSecondMode        leapSecMode;
-//    public final SynchronizationSource syncSource;             // source of synchronization for this server (PPS, NIST, GPS, etc.)...
-//    public final int                   count;
-//    public final NTPEvent              event;
-//    public final double                pllOffsetMs;
-//    public final double                pllFrequencyOffsetPpm;
-//    public final double                maxErrMs;
+
+    public final int                   statusWord;             // the raw system status word, as reported by ntpd...
+    public final int                   precision;              // log2 seconds precision...
+    public final int                   stratum;                // the NTP stratum of this server (1..n)...
+    public final LeapSecondMode        leapSecMode;            // leap second warning (or alarm, if not synchronized)...
+    public final SynchronizationSource syncSource;             // source of synchronization for this server (PPS, NIST, GPS, etc.)...
+    public final int                   count;                  // number of system events since the last time the last event changed...
+    public final Event                 event;                  // the most recent system event...
+    public final double                pllOffsetMs;
+    public final double                pllFrequencyOffsetPpm;
+    public final double                maxErrMs;
+
+
+    /**
+     * Creates a new instance of this class from the given system status word and kernel readings.  The status word is decoded with the cached
+     * lookup tables in each enum, so this constructor does no allocation beyond the instance itself.
+     *
+     * @param _statusWord the system status word reported by ntpd
+     * @param _precision the precision of the server's clock, as log2 seconds
+     * @param _stratum the NTP stratum of the server
+     * @param _pllOffsetMs the kernel PLL offset, in milliseconds
+     * @param _pllFrequencyOffsetPpm the kernel PLL frequency offset, in parts per million
+     * @param _maxErrMs the kernel's maximum error, in milliseconds
+     */
+    public LocalServer( final int _statusWord, final int _precision, final int _stratum,
+                        final double _pllOffsetMs, final double _pllFrequencyOffsetPpm, final double _maxErrMs ) {
+        statusWord            = _statusWord & 0xFFFF;
+        precision             = _precision;
+        stratum               = _stratum;
+        leapSecMode           = LeapSecondMode.fromStatus( _statusWord );
+        syncSource            = SynchronizationSource.fromStatus( _statusWord );
+        count                 = eventCount( _statusWord );
+        event                 = Event.fromStatus( _statusWord );
+        pllOffsetMs           = _pllOffsetMs;
+        pllFrequencyOffsetPpm = _pllFrequencyOffsetPpm;
+        maxErrMs              = _maxErrMs;
+    }
+
+
+    /**
+     * Returns true if this server is synchronized to a PPS signal.
+     *
+     * @return true if this server is synchronized to a PPS signal
+     */
+    public boolean isPPS() {
+        return syncSource == SynchronizationSource.SYNC_SRC_PPS;
+    }
+
+
+    /**
+     * Returns the decoded system event counter from the given system status word.
+     *
+     * @param _statusWord the system status word to decode
+     * @return the decoded system event counter (0..15)
+     */
+    public static int eventCount( final int _statusWord ) {
+        return (_statusWord >>> 4) & 0xF;
+    }
 }
@@ -8,8 +8,8 @@ import com.dilatush.mop.util.OSMonitor;
 import com.dilatush.util.Config;
 
 import java.io.File;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.io.IOException;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -17,8 +17,11 @@ import static com.dilatush.util.General.isNotNull;
 import static java.lang.Thread.sleep;
 
 /**
- * Implements a simple monitor of our NTP server.  Accepts the following arguments on the command line (note that if the log configuration file
- * path is specified, the post office configuration file path <i>must</i> also be specified):
+ * Implements a simple monitor of our NTP server and, if <code>fleet.targets</code> is configured (see {@link FleetMonitor}), of a fleet of NTP
+ * servers polled remotely on their own schedule (<code>fleet.intervalSeconds</code> and <code>fleet.phaseMs</code>, by default the same as the
+ * monitor's), each one's results published as <code>fleet.topicPrefix</code> (default "ntp.fleet.") followed by its name.  Accepts the
+ * following arguments on the command line (note that if the log configuration file path is specified, the post office configuration file path
+ * <i>must</i> also be specified):
  * <ol>
  *    <li>monitor configuration file path (default is "ntpconfig.json")</li>
  *    <li>logger configuration file path (default is "ntplog.json")</li>
@@ -29,9 +32,17 @@ public class Main {
 
     private static final Logger LOGGER                 = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName());
     private static Mailbox mailbox;
+    private static Mailbox resyncBox;             // null unless we're publishing deltas...
     private static OSMonitor osMonitor;
     private static JVMMonitor jvmMonitor;
     private static NTPMonitor ntpMonitor;
+    private static DeltaEncoder deltaEncoder;     // null unless we're publishing deltas...
+    private static AlignedScheduler scheduler;
+    private static Outbox outbox;
+    private static MetricsServer metrics;         // null unless we're serving metrics...
+    private static FleetMonitor fleet;            // null unless we're polling a fleet of NTP servers...
+    private static AlignedScheduler fleetScheduler;
+    private static String fleetTopicPrefix;
 
 
     public static void main( String[] _args ) {
@@ -62,14 +73,60 @@ public class Main {
         PostOffice po = new PostOffice( config );
         mailbox = po.createMailbox( "monitor" );
 
+        // set up our outbox, to keep what we send while the central post office is unreachable...
+        try {
+            outbox = new Outbox( mailbox, ntpConfig );
+        }
+        catch( IOException _e ) {
+            LOGGER.log( Level.SEVERE, "Can't open the outbox; sending without it", _e );
+            outbox = new Outbox( mailbox );
+        }
+        outbox.start();
+
         // set up our monitors...
         osMonitor = new OSMonitor();
         jvmMonitor = new JVMMonitor();
-        ntpMonitor = new NTPMonitor( mailbox );
+        ntpMonitor = new NTPMonitor( mailbox, ntpConfig, outbox );
+        if( ntpConfig.optBooleanDotted( "delta.enabled", false ) ) {
+            deltaEncoder = new DeltaEncoder( ntpConfig );
+            resyncBox = po.createMailbox( DeltaEncoder.RESYNC_MAILBOX );
+            LOGGER.log( Level.INFO, "Publishing changes only, with periodic keyframes" );
+        }
 
-        // set up our timer...
-        Timer timer = new Timer( "NTP Monitor Timer", true );
-        timer.scheduleAtFixedRate( new NTPMonitorTask(), 100, monitorInterval );
+        // serve our metrics over HTTP, if we're configured to...
+        try {
+            metrics = MetricsServer.fromConfig( ntpConfig, ntpMonitor::latest, ntpMonitor.self() );
+            if( metrics != null ) metrics.start();
+        }
+        catch( IOException _e ) {
+            LOGGER.log( Level.SEVERE, "Can't start the metrics server; metrics will not be served", _e );
+        }
+
+        // set up our scheduler, to publish right away, then at the top of each interval (plus the phase, if there is one)...
+        long monitorPhaseMs = ntpConfig.optLongDotted( "monitorPhaseMs", 0 );
+        scheduler = new AlignedScheduler( "NTP Monitor Scheduler", new NTPMonitorTask(), monitorInterval, monitorPhaseMs );
+        scheduler.startNow();
+        if( ntpMonitor.cadence() != null )
+            LOGGER.log( Level.INFO, "Publishing faster (down to every " + ntpMonitor.cadence().minMs() / 1000.0
+                    + " seconds) while the clock is disturbed" );
+
+        // when we're stopped (or restarted), stop publishing, then checkpoint our state for the next start to pick up...
+        Runtime.getRuntime().addShutdownHook( new Thread( () -> {
+            scheduler.stop();
+            ntpMonitor.checkpoint();
+            LOGGER.log( Level.INFO, "NTP Monitor is stopping" );
+        }, "NTP Monitor Shutdown" ) );
+
+        // if we're configured with a fleet of NTP servers, poll them on their own schedule...
+        fleet = FleetMonitor.fromConfig( ntpConfig );
+        if( fleet != null ) {
+            fleetTopicPrefix = ntpConfig.optStringDotted( "fleet.topicPrefix", "ntp.fleet." );
+            long fleetInterval = 1000 * ntpConfig.optLongDotted( "fleet.intervalSeconds", monitorIntervalSeconds );
+            fleetScheduler = new AlignedScheduler( "NTP Fleet Scheduler", new FleetTask(), fleetInterval,
+                    ntpConfig.optLongDotted( "fleet.phaseMs", monitorPhaseMs ) );
+            fleetScheduler.start();
+            LOGGER.log( Level.INFO, "Polling " + fleet.targets().size() + " NTP servers at " + (fleetInterval / 1000) + " second intervals" );
+        }
 
         // now we just hang about...
         while( true ) {
@@ -83,28 +140,129 @@ public class Main {
     }
 
 
-    private static class NTPMonitorTask extends TimerTask {
+    /*
+     * Polls our fleet of NTP servers, and publishes each one's results under its own topic...
+     */
+    private static class FleetTask implements Runnable {
+
+        @Override
+        public void run() {
+
+            long start = System.nanoTime();
+            List<FleetMonitor.Result> results;
+            try {
+                results = fleet.poll();
+            }
+            catch( IOException _e ) {
+                ntpMonitor.self().fail( "fleet.poll" );
+                LOGGER.log( Level.SEVERE, "Can't poll the fleet", _e );
+                return;
+            }
+            long lap = System.nanoTime();
+            ntpMonitor.self().time( "fleet.poll", lap - start );
+
+            int valid = 0;
+            for( FleetMonitor.Result result : results ) {
+                String topic = fleetTopicPrefix + result.name;
+                Message msg = mailbox.createPublishMessage( topic );
+                result.putDotted( msg, "monitor.fleet" );
+                outbox.publish( topic, msg );
+                if( result.valid ) valid++;
+                else ntpMonitor.self().fail( "fleet.target" );
+            }
+            ntpMonitor.self().time( "fleet.publish", System.nanoTime() - lap );
+            LOGGER.log( Level.INFO, "Published fleet information; " + valid + " of " + results.size() + " NTP servers answered" );
+        }
+    }
+
+
+    private static class NTPMonitorTask implements Runnable {
 
         @Override
         public void run() {
 
+            SelfMonitor self = ntpMonitor.self();
+            self.beginCycle();
+            try {
+                cycle( self );
+            }
+            finally {
+                self.endCycle();
+            }
+        }
+
+
+        private void cycle( final SelfMonitor _self ) {
+
+            long start = System.nanoTime();
+
             // get our empty message...
             Message msg = mailbox.createPublishMessage( "ntp.monitor" );
 
-            // run our monitors and fill in the info...
-            osMonitor.fill( msg );
-            jvmMonitor.fill( msg );
-            ntpMonitor.fill( msg );
+            // if we're publishing deltas, we fill in a scratch message and send only what's changed...
+            Message full = (deltaEncoder == null) ? msg : mailbox.createPublishMessage( "ntp.monitor" );
 
-            // publish the message...
-            mailbox.send( msg );
+            // run our monitors and fill in the info, timing each one...
+            long lap = System.nanoTime();
+            osMonitor.fill( full );
+            lap = lap( _self, "fill.os", lap );
+            jvmMonitor.fill( full );
+            lap = lap( _self, "fill.jvm", lap );
+            ntpMonitor.fill( full );
+            lap( _self, "fill.ntp", lap );
+            if( ntpMonitor.cadence() != null ) scheduler.setInterval( ntpMonitor.cadence().intervalMs() );
+            AlignedScheduler.Stats schedulerStats = scheduler.drainStats();
+            schedulerStats.putDotted( full, "monitor.ntp.scheduler" );
+            outbox.putDotted( full, "monitor.ntp.outbox" );
+            ntpMonitor.rules().putDotted( full, "monitor.ntp.rules" );
+            _self.putDotted( full, "monitor.self" );
+
+            // if any subscribers have lost track, send them a keyframe (their requests have a mailbox to themselves, so we take all of it)...
+            if( deltaEncoder != null ) {
+                Message request;
+                while( (request = resyncBox.poll()) != null ) {
+                    if( DeltaEncoder.RESYNC_TYPE.equals( request.optStringDotted( "type", "" ) ) )
+                        deltaEncoder.requestKeyframe();
+                    else
+                        LOGGER.log( Level.WARNING, "Ignoring unexpected message in the resync mailbox: " + request );
+                }
+                lap = System.nanoTime();
+                deltaEncoder.encode( full, msg );
+                lap( _self, "delta", lap );
+            }
+
+            // publish the message (now, or when the central post office is reachable)...
+            lap = System.nanoTime();
+            try {
+                outbox.publish( "ntp.monitor", msg );
+            }
+            catch( RuntimeException _e ) {
+                _self.fail( "send" );
+                throw _e;
+            }
+            finally {
+                lap( _self, "send", lap );
+            }
 
             LOGGER.log( Level.INFO, "Published monitor information" );
 
+            // let our scrapers know how long that took...
+            if( metrics != null ) metrics.recordCycle( System.nanoTime() - start, schedulerStats );
+
             // if we have an error, log it...
-            if( ! msg.getBooleanDotted( "monitor.ntp.valid" ) ) {
-                LOGGER.log( Level.SEVERE, msg.getStringDotted( "monitor.ntp.errorMessage" ) );
+            if( ! full.getBooleanDotted( "monitor.ntp.valid" ) ) {
+                LOGGER.log( Level.SEVERE, full.getStringDotted( "monitor.ntp.errorMessage" ) );
             }
         }
+
+
+        /*
+         * Records the time since the given start (System.nanoTime()) as the time the given stage took, and returns the current time...
+         */
+        private long lap( final SelfMonitor _self, final String _stage, final long _start ) {
+            long now = System.nanoTime();
+            _self.time( _stage, now - _start );
+            return now;
+        }
     }
 }
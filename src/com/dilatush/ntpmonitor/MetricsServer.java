@@ -0,0 +1,535 @@
+package com.dilatush.ntpmonitor;
+
+import com.dilatush.util.HJSONObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A small HTTP server that serves the monitor's latest results (and its own timing) as metrics, in the OpenMetrics text format (or the
+ * Prometheus text format it grew out of, for scrapers that don't ask for OpenMetrics).  Each scrape renders the latest {@link NTPSnapshot},
+ * which the monitor publishes with a single reference swap at the end of each cycle, so scrapes never lock anything the monitor uses, and
+ * never slow it down; scrapes are handled one at a time on the server's own daemon thread.  Peers are labeled with their remote and refid,
+ * and satellites with their type and id.  Instances of this class are threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class MetricsServer {
+
+    private static final Logger LOGGER = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName() );
+
+    private static final String OPENMETRICS_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+    private static final String PROMETHEUS_TYPE  = "text/plain; version=0.0.4; charset=utf-8";
+
+    // the upper bounds of the buckets we render latency histograms in, in seconds and in nanoseconds...
+    private static final String[] BUCKET_LABELS = { "1.0E-5", "1.0E-4", "0.001", "0.01", "0.1", "1.0", "10.0", "100.0" };
+    private static final long[]   BUCKET_NANOS  = { 10_000L, 100_000L, 1_000_000L, 10_000_000L, 100_000_000L, 1_000_000_000L,
+                                                    10_000_000_000L, 100_000_000_000L };
+
+    private final HttpServer             server;
+    private final ExecutorService        executor;
+    private final Supplier<NTPSnapshot>  snapshots;
+    private final SelfMonitor            self;          // null if we're not serving the monitor's self instrumentation...
+    private volatile CycleTotals         totals;        // replaced (never changed) by the monitor's thread after each cycle...
+    private long                         scrapes;       // changed only on the server's thread...
+    private long                         lastRenderNanos;
+
+
+    /**
+     * Creates a new instance of this class that serves the snapshots from the given supplier at the given address and path.  The server isn't
+     * started until {@link #start()} is called.
+     *
+     * @param _address the address to listen on
+     * @param _path the path to serve the metrics at (normally "/metrics")
+     * @param _snapshots supplies the latest snapshot, or null if there isn't one yet; called on the server's thread
+     * @param _self the monitor's instrumentation of itself, or <code>null</code> to serve none
+     * @throws IOException if the server can't listen on the address
+     */
+    public MetricsServer( final InetSocketAddress _address, final String _path, final Supplier<NTPSnapshot> _snapshots,
+                          final SelfMonitor _self ) throws IOException {
+        // the JDK's server writes the headers and body separately, so without this each scrape waits out a delayed ACK...
+        if( System.getProperty( "sun.net.httpserver.nodelay" ) == null )
+            System.setProperty( "sun.net.httpserver.nodelay", "true" );
+
+        snapshots = _snapshots;
+        self      = _self;
+        totals    = new CycleTotals();
+        executor  = Executors.newSingleThreadExecutor( _runnable -> {
+            Thread thread = new Thread( _runnable, "NTP Monitor Metrics" );
+            thread.setDaemon( true );
+            return thread;
+        } );
+        server = HttpServer.create( _address, 0 );
+        server.createContext( _path, this::handle );
+        server.setExecutor( executor );
+    }
+
+
+    /**
+     * Creates a new instance of this class as above, configured by the given monitor configuration, or returns <code>null</code> if the
+     * configuration doesn't enable it.  The configuration items are:
+     * <ul>
+     *    <li><code>metrics.port</code> the TCP port to serve metrics on; zero (the default) disables the server</li>
+     *    <li><code>metrics.host</code> the address to listen on (default "0.0.0.0", all addresses)</li>
+     *    <li><code>metrics.path</code> the path to serve the metrics at (default "/metrics")</li>
+     * </ul>
+     *
+     * @param _config the monitor's configuration
+     * @param _snapshots supplies the latest snapshot, or null if there isn't one yet
+     * @param _self the monitor's instrumentation of itself, or <code>null</code> to serve none
+     * @return the new server, or null if it isn't enabled
+     * @throws IOException if the server can't listen on the configured address
+     */
+    public static MetricsServer fromConfig( final HJSONObject _config, final Supplier<NTPSnapshot> _snapshots, final SelfMonitor _self )
+            throws IOException {
+        int port = _config.optIntDotted( "metrics.port", 0 );
+        if( port <= 0 ) return null;
+        return new MetricsServer( new InetSocketAddress( _config.optStringDotted( "metrics.host", "0.0.0.0" ), port ),
+                _config.optStringDotted( "metrics.path", "/metrics" ), _snapshots, _self );
+    }
+
+
+    public void start() {
+        server.start();
+        LOGGER.log( Level.INFO, "Serving metrics on port " + server.getAddress().getPort() );
+    }
+
+
+    public void stop() {
+        server.stop( 0 );
+        executor.shutdownNow();
+    }
+
+
+    /**
+     * Returns the port this server is listening on (useful when it was created to listen on port zero, any free port).
+     *
+     * @return the port this server is listening on
+     */
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+
+    /**
+     * Records the time one monitor cycle took, from the start of collection through publishing, and the scheduler's statistics for the
+     * interval.  This must be called only from the monitor's thread; the totals it updates are replaced, not changed, so scrapes read them
+     * without locking.
+     *
+     * @param _cycleNanos how long the cycle took, in nanoseconds
+     * @param _scheduler the scheduler's statistics for the interval, or null if there are none
+     */
+    public void recordCycle( final long _cycleNanos, final AlignedScheduler.Stats _scheduler ) {
+        totals = new CycleTotals( totals, _cycleNanos, _scheduler );
+    }
+
+
+    /*
+     * Serves one scrape...
+     */
+    private void handle( final HttpExchange _exchange ) throws IOException {
+
+        try {
+            if( !"GET".equals( _exchange.getRequestMethod() ) && !"HEAD".equals( _exchange.getRequestMethod() ) ) {
+                _exchange.sendResponseHeaders( 405, -1 );
+                return;
+            }
+            String accept = _exchange.getRequestHeaders().getFirst( "Accept" );
+            boolean openMetrics = (accept != null) && accept.contains( "application/openmetrics-text" );
+
+            long start = System.nanoTime();
+            scrapes++;
+            byte[] body = render( openMetrics ).getBytes( StandardCharsets.UTF_8 );
+            lastRenderNanos = System.nanoTime() - start;
+
+            _exchange.getResponseHeaders().set( "Content-Type", openMetrics ? OPENMETRICS_TYPE : PROMETHEUS_TYPE );
+            if( "HEAD".equals( _exchange.getRequestMethod() ) ) {
+                _exchange.sendResponseHeaders( 200, -1 );
+                return;
+            }
+            _exchange.sendResponseHeaders( 200, body.length );
+            try( OutputStream out = _exchange.getResponseBody() ) {
+                out.write( body );
+            }
+        }
+        catch( RuntimeException _e ) {
+            LOGGER.log( Level.SEVERE, "Failed to render metrics", _e );
+            _exchange.sendResponseHeaders( 500, -1 );
+        }
+        finally {
+            _exchange.close();
+        }
+    }
+
+
+    /**
+     * Renders the latest snapshot and the monitor's own timing as metrics text, in the OpenMetrics format if the given flag is true, and
+     * otherwise in the Prometheus text format.
+     *
+     * @param _openMetrics true to render in the OpenMetrics format
+     * @return the rendered metrics
+     */
+    /* package-private */ String render( final boolean _openMetrics ) {
+
+        Renderer out = new Renderer( _openMetrics );
+        NTPSnapshot snapshot = snapshots.get();
+        CycleTotals cycles = totals;
+
+        // the monitor's own timing...
+        out.family( "ntpmonitor_cycles", "counter", "Monitor cycles completed" );
+        out.sample( "ntpmonitor_cycles_total", cycles.cycles );
+        out.family( "ntpmonitor_cycle_seconds", "counter", "Total time spent in monitor cycles" );
+        out.sample( "ntpmonitor_cycle_seconds_total", cycles.totalNanos / 1e9 );
+        out.family( "ntpmonitor_last_cycle_seconds", "gauge", "Time the latest monitor cycle took" );
+        out.sample( "ntpmonitor_last_cycle_seconds", cycles.lastNanos / 1e9 );
+        out.family( "ntpmonitor_max_cycle_seconds", "gauge", "Longest time any monitor cycle took" );
+        out.sample( "ntpmonitor_max_cycle_seconds", cycles.maxNanos / 1e9 );
+        out.family( "ntpmonitor_scheduler_overruns", "counter", "Cycles that ran longer than the monitor interval" );
+        out.sample( "ntpmonitor_scheduler_overruns_total", cycles.overruns );
+        out.family( "ntpmonitor_scheduler_skipped", "counter", "Interval boundaries skipped because a cycle was still running" );
+        out.sample( "ntpmonitor_scheduler_skipped_total", cycles.skipped );
+        out.family( "ntpmonitor_scheduler_failures", "counter", "Cycles that failed with an exception" );
+        out.sample( "ntpmonitor_scheduler_failures_total", cycles.failures );
+        out.family( "ntpmonitor_scheduler_jitter_seconds", "gauge", "Mean lateness of the cycles in the latest interval" );
+        out.sample( "ntpmonitor_scheduler_jitter_seconds", cycles.jitterMeanMs / 1e3 );
+        out.family( "ntpmonitor_scheduler_interval_seconds", "gauge", "Interval between monitor cycles, as it is now" );
+        out.sample( "ntpmonitor_scheduler_interval_seconds", cycles.intervalMs / 1e3 );
+        out.family( "ntpmonitor_scrapes", "counter", "Metrics scrapes served" );
+        out.sample( "ntpmonitor_scrapes_total", scrapes );
+        out.family( "ntpmonitor_last_render_seconds", "gauge", "Time the previous scrape took to render" );
+        out.sample( "ntpmonitor_last_render_seconds", lastRenderNanos / 1e9 );
+
+        if( self != null )
+            renderSelf( out, self );
+
+        if( snapshot != null )
+            renderSnapshot( out, snapshot );
+
+        return out.finish();
+    }
+
+
+    private static void renderSelf( final Renderer _out, final SelfMonitor _self ) {
+
+        _out.family( "ntpmonitor_cycle_duration_seconds", "histogram", "Time each monitor cycle took" );
+        _out.histogram( "ntpmonitor_cycle_duration_seconds", null, null, _self.cycles() );
+        _out.family( "ntpmonitor_stage_duration_seconds", "histogram", "Time each stage of a monitor cycle took" );
+        for( Map.Entry<String,LatencyHistogram> entry : _self.timers().entrySet() )
+            _out.histogram( "ntpmonitor_stage_duration_seconds", "stage", entry.getKey(), entry.getValue() );
+        _out.family( "ntpmonitor_failures", "counter", "Failures of each kind" );
+        for( Map.Entry<String,Long> entry : _self.failures().entrySet() )
+            _out.sample( "ntpmonitor_failures_total", "kind", entry.getKey(), entry.getValue() );
+        _out.family( "ntpmonitor_cycles_over_budget", "counter", "Monitor cycles that took longer than their budget" );
+        _out.sample( "ntpmonitor_cycles_over_budget_total", _self.overBudget() );
+        if( _self.lastAllocated() >= 0 ) {
+            _out.family( "ntpmonitor_cycle_allocated_bytes", "gauge", "Bytes allocated by the latest monitor cycle" );
+            _out.sample( "ntpmonitor_cycle_allocated_bytes", _self.lastAllocated() );
+        }
+    }
+
+
+    private static void renderSnapshot( final Renderer _out, final NTPSnapshot _snapshot ) {
+
+        _out.family( "ntp_snapshot_timestamp_seconds", "gauge", "When the latest monitor cycle started" );
+        _out.sample( "ntp_snapshot_timestamp_seconds", _snapshot.timeMs / 1e3 );
+        _out.family( "ntp_collect_seconds", "gauge", "Time the probes took in the latest monitor cycle" );
+        _out.sample( "ntp_collect_seconds", _snapshot.collectNanos / 1e9 );
+        _out.family( "ntp_valid", "gauge", "1 if all the probes succeeded in the latest cycle" );
+        _out.sample( "ntp_valid", _snapshot.valid );
+
+        _out.family( "ntp_probe_up", "gauge", "1 if the probe succeeded in the latest cycle" );
+        for( NTPSnapshot.ProbeStatus probe : _snapshot.probes )
+            _out.sample( "ntp_probe_up", "probe", probe.name, probe.valid );
+        _out.family( "ntp_probe_latency_seconds", "gauge", "Time the probe took (or was waited for) in the latest cycle" );
+        for( NTPSnapshot.ProbeStatus probe : _snapshot.probes )
+            _out.sample( "ntp_probe_latency_seconds", "probe", probe.name, probe.latencyMs / 1e3 );
+
+        LocalServer server = _snapshot.server;
+        if( server != null ) {
+            _out.family( "ntp_pll_offset_ms", "gauge", "Kernel PLL offset, in milliseconds" );
+            _out.sample( "ntp_pll_offset_ms", server.pllOffsetMs );
+            _out.family( "ntp_pll_freq_offset_ppm", "gauge", "Kernel PLL frequency offset, in parts per million" );
+            _out.sample( "ntp_pll_freq_offset_ppm", server.pllFrequencyOffsetPpm );
+            _out.family( "ntp_max_err_ms", "gauge", "Kernel maximum error, in milliseconds" );
+            _out.sample( "ntp_max_err_ms", server.maxErrMs );
+            _out.family( "ntp_valid_pps", "gauge", "1 if the server is synchronized to PPS" );
+            _out.sample( "ntp_valid_pps", server.isPPS() );
+            _out.family( "ntp_stratum", "gauge", "Stratum of the server" );
+            _out.sample( "ntp_stratum", server.stratum );
+            _out.family( "ntp_precision_log2_seconds", "gauge", "Precision of the server's clock, as log2 seconds" );
+            _out.sample( "ntp_precision_log2_seconds", server.precision );
+            _out.family( "ntp_event_count", "gauge", "System events since the last event changed" );
+            _out.sample( "ntp_event_count", server.count );
+            _out.family( "ntp_server", "info", "The server's leap, synchronization source, and last event" );
+            _out.sample( "ntp_server_info", "leap", server.leapSecMode.name(), "sync_source", server.syncSource.name(),
+                    "last_event", server.event.name() );
+        }
+
+        GNSSFix fix = _snapshot.fix;
+        if( fix != null ) {
+            _out.family( "ntp_gnss_valid_time", "gauge", "1 if the GNSS time is valid" );
+            _out.sample( "ntp_gnss_valid_time", fix.validTime );
+            _out.family( "ntp_gnss_time_accuracy_seconds", "gauge", "GNSS time accuracy" );
+            _out.sample( "ntp_gnss_time_accuracy_seconds", fix.timeAccuracy );
+            _out.family( "ntp_gnss_satellites_used", "gauge", "Satellites used in the GNSS fix" );
+            _out.sample( "ntp_gnss_satellites_used", fix.satellitesUsed );
+            _out.family( "ntp_gnss_valid_fix", "gauge", "1 if the GNSS fix is valid" );
+            _out.sample( "ntp_gnss_valid_fix", fix.validFix );
+            _out.family( "ntp_gnss_fix_3d", "gauge", "1 if the GNSS fix is 3D" );
+            _out.sample( "ntp_gnss_fix_3d", fix.fixIs3D );
+            _out.family( "ntp_gnss_fix_accuracy_ft", "gauge", "GNSS horizontal accuracy, in feet" );
+            _out.sample( "ntp_gnss_fix_accuracy_ft", fix.fixAccuracyFt );
+        }
+
+        PeerView peers = _snapshot.peers;
+        if( peers != null ) {
+            _out.family( "ntp_peer_offset_ms", "gauge", "Offset from the peer, in milliseconds" );
+            for( int i = 0; i < peers.size(); i++ )
+                _out.sample( "ntp_peer_offset_ms", "remote", peers.remote( i ), "refid", peers.refid( i ), exact( peers.offsetMs( i ) ) );
+            _out.family( "ntp_peer_delay_ms", "gauge", "Delay to the peer, in milliseconds" );
+            for( int i = 0; i < peers.size(); i++ )
+                _out.sample( "ntp_peer_delay_ms", "remote", peers.remote( i ), "refid", peers.refid( i ), exact( peers.delayMs( i ) ) );
+            _out.family( "ntp_peer_jitter_rms_ms", "gauge", "RMS jitter from the peer, in milliseconds" );
+            for( int i = 0; i < peers.size(); i++ )
+                _out.sample( "ntp_peer_jitter_rms_ms", "remote", peers.remote( i ), "refid", peers.refid( i ), exact( peers.jitterRmsMs( i ) ) );
+            _out.family( "ntp_peer_stratum", "gauge", "Stratum of the peer" );
+            for( int i = 0; i < peers.size(); i++ )
+                _out.sample( "ntp_peer_stratum", "remote", peers.remote( i ), "refid", peers.refid( i ), peers.stratum( i ) );
+            _out.family( "ntp_peer_poll_interval_seconds", "gauge", "Interval between polls of the peer" );
+            for( int i = 0; i < peers.size(); i++ )
+                _out.sample( "ntp_peer_poll_interval_seconds", "remote", peers.remote( i ), "refid", peers.refid( i ),
+                        peers.pollIntervalSeconds( i ) );
+            _out.family( "ntp_peer_reach_ratio", "gauge", "Fraction of the last 8 polls that reached the peer" );
+            for( int i = 0; i < peers.size(); i++ )
+                _out.sample( "ntp_peer_reach_ratio", "remote", peers.remote( i ), "refid", peers.refid( i ),
+                        Integer.bitCount( peers.reached( i ) & 0xFF ) / 8.0 );
+            _out.family( "ntp_peer_selected", "gauge", "1 if the peer is the one the server is synchronized to" );
+            for( int i = 0; i < peers.size(); i++ )
+                _out.sample( "ntp_peer_selected", "remote", peers.remote( i ), "refid", peers.refid( i ), peers.tally( i ) == '*' );
+        }
+
+        List<GNSSSatellite> satellites = _snapshot.satellites;
+        if( satellites != null ) {
+            _out.family( "ntp_satellite_cno_dbhz", "gauge", "Carrier to noise ratio of a satellite used in the fix, in dBHz" );
+            for( GNSSSatellite sat : satellites )
+                if( sat.used )
+                    _out.sample( "ntp_satellite_cno_dbhz", "type", sat.type, "id", Integer.toString( sat.id ), sat.cno );
+            _out.family( "ntp_satellite_elevation_degrees", "gauge", "Elevation of a satellite used in the fix" );
+            for( GNSSSatellite sat : satellites )
+                if( sat.used )
+                    _out.sample( "ntp_satellite_elevation_degrees", "type", sat.type, "id", Integer.toString( sat.id ), sat.elevation );
+            _out.family( "ntp_satellite_azimuth_degrees", "gauge", "Azimuth of a satellite used in the fix" );
+            for( GNSSSatellite sat : satellites )
+                if( sat.used )
+                    _out.sample( "ntp_satellite_azimuth_degrees", "type", sat.type, "id", Integer.toString( sat.id ), sat.azimuth );
+        }
+    }
+
+
+    /*
+     * Returns the double closest to the decimal the given float prints as, so that (for instance) 1.234f is rendered as 1.234, not as
+     * 1.2339999675750732...
+     */
+    private static double exact( final float _value ) {
+        return Double.parseDouble( Float.toString( _value ) );
+    }
+
+
+    /*
+     * Writes metric families and samples in either text format.  The formats differ only in the content type, in how counter and info
+     * families are declared (OpenMetrics names the family without the sample's suffix), and in the "# EOF" that ends OpenMetrics...
+     */
+    private static class Renderer {
+
+        private final boolean       openMetrics;
+        private final StringBuilder sb = new StringBuilder( 8192 );
+
+
+        private Renderer( final boolean _openMetrics ) {
+            openMetrics = _openMetrics;
+        }
+
+
+        private void family( final String _name, final String _type, final String _help ) {
+            String name = _name;
+            String type = _type;
+            if( !openMetrics ) {
+                if( "counter".equals( _type ) ) name = _name + "_total";
+                if( "info".equals( _type ) ) {
+                    name = _name + "_info";
+                    type = "gauge";
+                }
+            }
+            sb.append( "# HELP " ).append( name ).append( ' ' ).append( _help ).append( '\n' );
+            sb.append( "# TYPE " ).append( name ).append( ' ' ).append( type ).append( '\n' );
+        }
+
+
+        private void sample( final String _name, final double _value ) {
+            sb.append( _name ).append( ' ' );
+            value( _value );
+        }
+
+
+        private void sample( final String _name, final boolean _value ) {
+            sample( _name, _value ? 1 : 0 );
+        }
+
+
+        private void sample( final String _name, final String _label, final String _labelValue, final double _value ) {
+            sb.append( _name ).append( '{' );
+            label( _label, _labelValue );
+            sb.append( "} " );
+            value( _value );
+        }
+
+
+        private void sample( final String _name, final String _label, final String _labelValue, final boolean _value ) {
+            sample( _name, _label, _labelValue, _value ? 1 : 0 );
+        }
+
+
+        private void sample( final String _name, final String _label1, final String _value1, final String _label2, final String _value2,
+                             final double _value ) {
+            sb.append( _name ).append( '{' );
+            label( _label1, _value1 );
+            sb.append( ',' );
+            label( _label2, _value2 );
+            sb.append( "} " );
+            value( _value );
+        }
+
+
+        private void sample( final String _name, final String _label1, final String _value1, final String _label2, final String _value2,
+                             final boolean _value ) {
+            sample( _name, _label1, _value1, _label2, _value2, _value ? 1 : 0 );
+        }
+
+
+        private void sample( final String _name, final String _label1, final String _value1, final String _label2, final String _value2,
+                             final String _label3, final String _value3 ) {
+            sb.append( _name ).append( '{' );
+            label( _label1, _value1 );
+            sb.append( ',' );
+            label( _label2, _value2 );
+            sb.append( ',' );
+            label( _label3, _value3 );
+            sb.append( "} " );
+            value( 1 );
+        }
+
+
+        // renders a histogram's cumulative buckets, count, and sum, in seconds, with the given label (if it isn't null)...
+        private void histogram( final String _name, final String _label, final String _labelValue, final LatencyHistogram _histogram ) {
+            long count = _histogram.count();
+            for( int i = 0; i <= BUCKET_NANOS.length; i++ ) {
+                sb.append( _name ).append( "_bucket{" );
+                if( _label != null ) {
+                    label( _label, _labelValue );
+                    sb.append( ',' );
+                }
+                label( "le", (i < BUCKET_NANOS.length) ? BUCKET_LABELS[i] : "+Inf" );
+                sb.append( "} " );
+                value( (i < BUCKET_NANOS.length) ? Math.min( count, _histogram.countAtOrBelow( BUCKET_NANOS[i] ) ) : count );
+            }
+            for( String suffix : new String[] { "_count", "_sum" } ) {
+                sb.append( _name ).append( suffix );
+                if( _label != null ) {
+                    sb.append( '{' );
+                    label( _label, _labelValue );
+                    sb.append( '}' );
+                }
+                sb.append( ' ' );
+                value( "_count".equals( suffix ) ? count : _histogram.sumNanos() / 1e9 );
+            }
+        }
+
+
+        private void label( final String _label, final String _value ) {
+            sb.append( _label ).append( "=\"" );
+            for( int i = 0; i < _value.length(); i++ ) {
+                char c = _value.charAt( i );
+                switch( c ) {
+                    case '\\': sb.append( "\\\\" ); break;
+                    case '"':  sb.append( "\\\"" ); break;
+                    case '\n': sb.append( "\\n"  ); break;
+                    default:   sb.append( c );      break;
+                }
+            }
+            sb.append( '"' );
+        }
+
+
+        private void value( final double _value ) {
+            if( Double.isNaN( _value ) )
+                sb.append( "NaN" );
+            else if( Double.isInfinite( _value ) )
+                sb.append( (_value > 0) ? "+Inf" : "-Inf" );
+            else if( (_value == Math.rint( _value )) && (Math.abs( _value ) < 1e15) )
+                sb.append( (long) _value );
+            else
+                sb.append( _value );
+            sb.append( '\n' );
+        }
+
+
+        private String finish() {
+            if( openMetrics ) sb.append( "# EOF\n" );
+            return sb.toString();
+        }
+    }
+
+
+    /*
+     * The running totals of the monitor's cycles.  Each cycle makes a new instance from the last, so readers need no lock...
+     */
+    private static class CycleTotals {
+
+        private final long   cycles;
+        private final long   totalNanos;
+        private final long   lastNanos;
+        private final long   maxNanos;
+        private final long   overruns;
+        private final long   skipped;
+        private final long   failures;
+        private final double jitterMeanMs;
+        private final long   intervalMs;
+
+
+        private CycleTotals() {
+            cycles       = 0;
+            totalNanos   = 0;
+            lastNanos    = 0;
+            maxNanos     = 0;
+            overruns     = 0;
+            skipped      = 0;
+            failures     = 0;
+            jitterMeanMs = 0;
+            intervalMs   = 0;
+        }
+
+
+        private CycleTotals( final CycleTotals _last, final long _cycleNanos, final AlignedScheduler.Stats _scheduler ) {
+            cycles       = _last.cycles + 1;
+            totalNanos   = _last.totalNanos + _cycleNanos;
+            lastNanos    = _cycleNanos;
+            maxNanos     = Math.max( _last.maxNanos, _cycleNanos );
+            overruns     = _last.overruns + ((_scheduler == null) ? 0 : _scheduler.overruns);
+            skipped      = _last.skipped  + ((_scheduler == null) ? 0 : _scheduler.skipped);
+            failures     = _last.failures + ((_scheduler == null) ? 0 : _scheduler.failures);
+            jitterMeanMs = ((_scheduler == null) || (_scheduler.jitterMs == null)) ? _last.jitterMeanMs : _scheduler.jitterMs.mean;
+            intervalMs   = (_scheduler == null) ? _last.intervalMs : _scheduler.intervalMs;
+        }
+    }
+}
@@ -0,0 +1,632 @@
+package com.dilatush.ntpmonitor;
+
+import com.dilatush.util.HJSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes and decodes the compact binary form of the monitor.ntp payload, which {@link NTPMonitor} can publish (as base64 text in
+ * <code>monitor.ntp.binary</code>) alongside or instead of the JSON fields.  The payload is a schema version byte followed by sections, each of
+ * which is a tag byte, the section's length as a varint, and the section's contents.  Decoders skip sections with tags they don't know, so new
+ * sections can be added without changing the schema version.  Within sections:
+ * <ul>
+ *    <li>integers are unsigned varints (seven bits per byte, least significant first), or zigzag varints if they may be negative</li>
+ *    <li>floats and doubles are fixed width (4 and 8 bytes), big-endian IEEE 754</li>
+ *    <li>strings are a varint of one more than their UTF-8 length (zero for null), followed by their UTF-8 bytes</li>
+ *    <li>booleans are bytes (or bits in a flags byte)</li>
+ * </ul>
+ * Decoding fills in exactly the same monitor.ntp fields that the JSON form has (derived fields, such as the peer states and the names decoded
+ * from the status word, are computed from the raw values), so subscribers can use either; the one exception is the rolling peer statistics
+ * (<code>monitor.ntp.peers[].stats</code>), which are only in the JSON form.  An instance of this class is a reusable encoder, and is
+ * mutable and NOT threadsafe; the decoding methods are static and threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class NTPBinaryCodec {
+
+    /**
+     * The version of the binary payload's schema, which is the first byte of every payload.
+     */
+    public static final int SCHEMA_VERSION = 1;
+
+    private static final int TAG_STATUS     = 1;
+    private static final int TAG_PROBE      = 2;
+    private static final int TAG_SERVER     = 3;
+    private static final int TAG_FIX        = 4;
+    private static final int TAG_PEERS      = 5;
+    private static final int TAG_SATELLITES = 6;
+    private static final int TAG_SAMPLES    = 7;
+
+    // satellite types are sent as one of these codes (the u-blox GNSS IDs), or as UNKNOWN_TYPE followed by the name...
+    private static final String[] SATELLITE_TYPES = { "GPS", "SBAS", "Galileo", "BeiDou", "IMES", "QZSS", "GLONASS" };
+    private static final int      UNKNOWN_TYPE    = 0xFF;
+
+    private final Buffer payload;
+    private final Buffer section;
+    private final char[] name;          // the peer name being written...
+
+
+    /**
+     * Creates a new encoder.
+     */
+    public NTPBinaryCodec() {
+        payload = new Buffer( 1024 );
+        section = new Buffer( 1024 );
+        name    = new char[PeerTable.MAX_NAME];
+    }
+
+
+    /**
+     * Starts a new payload, with the given overall validity and error message.
+     *
+     * @param _valid true if all the probes succeeded
+     * @param _errorMessage the error message if not valid
+     */
+    public void begin( final boolean _valid, final String _errorMessage ) {
+        payload.clear();
+        payload.writeByte( SCHEMA_VERSION );
+        section.clear();
+        section.writeBoolean( _valid );
+        if( !_valid ) section.writeString( _errorMessage );
+        endSection( TAG_STATUS );
+    }
+
+
+    /**
+     * Adds the results of a probe to this payload.
+     *
+     * @param _name the name of the probe
+     * @param _valid true if the probe succeeded
+     * @param _latencyMs the time the probe took, in milliseconds
+     * @param _errorMessage the error message if the probe failed
+     */
+    public void probe( final String _name, final boolean _valid, final long _latencyMs, final String _errorMessage ) {
+        section.writeString( _name );
+        section.writeBoolean( _valid );
+        section.writeVarint( Math.max( 0, _latencyMs ) );
+        if( !_valid ) section.writeString( _errorMessage );
+        endSection( TAG_PROBE );
+    }
+
+
+    /**
+     * Adds the local server's state to this payload.
+     *
+     * @param _server the local server's state
+     */
+    public void server( final LocalServer _server ) {
+        section.writeVarint( _server.statusWord );
+        section.writeZigZag( _server.precision );
+        section.writeVarint( _server.stratum );
+        section.writeDouble( _server.pllOffsetMs );
+        section.writeDouble( _server.pllFrequencyOffsetPpm );
+        section.writeDouble( _server.maxErrMs );
+        endSection( TAG_SERVER );
+    }
+
+
+    /**
+     * Adds the GNSS fix to this payload.
+     *
+     * @param _fix the GNSS fix
+     */
+    public void fix( final GNSSFix _fix ) {
+        section.writeByte( (_fix.validTime ? 1 : 0) | (_fix.validFix ? 2 : 0) | (_fix.fixIs3D ? 4 : 0) );
+        section.writeDouble( _fix.timeAccuracy );
+        section.writeVarint( _fix.satellitesUsed );
+        section.writeDouble( _fix.latitude );
+        section.writeDouble( _fix.longitude );
+        section.writeDouble( _fix.altitudeFt );
+        section.writeDouble( _fix.fixAccuracyFt );
+        endSection( TAG_FIX );
+    }
+
+
+    /**
+     * Adds the peer table to this payload.
+     *
+     * @param _peers the peer table
+     */
+    public void peers( final PeerView _peers ) {
+        section.writeVarint( _peers.size() );
+        for( int i = 0; i < _peers.size(); i++ ) {
+            section.writeByte( _peers.tally( i ) );
+            section.writeChars( name, _peers.remote( i, name ) );
+            section.writeChars( name, _peers.refid(  i, name ) );
+            section.writeVarint( _peers.stratum( i ) );
+            section.writeBoolean( _peers.local( i ) );
+            section.writeVarint( _peers.lastPolledSeconds( i ) );
+            section.writeVarint( _peers.pollIntervalSeconds( i ) );
+            section.writeByte( _peers.reached( i ) );
+            section.writeFloat( _peers.delayMs( i ) );
+            section.writeFloat( _peers.offsetMs( i ) );
+            section.writeFloat( _peers.jitterRmsMs( i ) );
+        }
+        endSection( TAG_PEERS );
+    }
+
+
+    /**
+     * Adds the satellites used in the latest fix to this payload; satellites in view but not used are left out.
+     *
+     * @param _satellites the satellites in view
+     */
+    public void satellites( final List<GNSSSatellite> _satellites ) {
+        int used = 0;
+        for( GNSSSatellite sat : _satellites )
+            if( sat.used ) used++;
+        section.writeVarint( used );
+        for( GNSSSatellite sat : _satellites ) {
+            if( !sat.used ) continue;
+            int type = UNKNOWN_TYPE;
+            for( int i = 0; i < SATELLITE_TYPES.length; i++ )
+                if( SATELLITE_TYPES[i].equals( sat.type ) ) type = i;
+            section.writeByte( type );
+            if( type == UNKNOWN_TYPE ) section.writeString( sat.type );
+            section.writeVarint( sat.id );
+            section.writeVarint( sat.azimuth );
+            section.writeZigZag( sat.elevation );
+            section.writeVarint( sat.cno );
+        }
+        endSection( TAG_SATELLITES );
+    }
+
+
+    /**
+     * Adds the summary of high rate samples to this payload.
+     *
+     * @param _samples the summary of high rate samples
+     */
+    public void samples( final HighRateSampler.Summary _samples ) {
+        section.writeVarint( _samples.intervalMs );
+        section.writeVarint( _samples.sampleIntervalMs );
+        section.writeVarint( _samples.failures );
+        section.writeVarint( _samples.scalars.size() );
+        for( Map.Entry<String,SampleStats> entry : _samples.scalars.entrySet() ) {
+            section.writeString( entry.getKey() );
+            writeStats( entry.getValue() );
+        }
+        section.writeVarint( _samples.peers.size() );
+        for( HighRateSampler.PeerSummary peer : _samples.peers ) {
+            section.writeString( peer.remote );
+            section.writeByte( ((peer.offsetMs != null) ? 1 : 0) | ((peer.jitterRmsMs != null) ? 2 : 0) );
+            if( peer.offsetMs    != null ) writeStats( peer.offsetMs    );
+            if( peer.jitterRmsMs != null ) writeStats( peer.jitterRmsMs );
+        }
+        endSection( TAG_SAMPLES );
+    }
+
+
+    private void writeStats( final SampleStats _stats ) {
+        section.writeVarint( _stats.count );
+        section.writeDouble( _stats.min );
+        section.writeDouble( _stats.max );
+        section.writeDouble( _stats.mean );
+        section.writeDouble( _stats.stdDev );
+        section.writeDouble( _stats.p50 );
+        section.writeDouble( _stats.p90 );
+        section.writeDouble( _stats.p99 );
+    }
+
+
+    /*
+     * Appends the section we've just written to the payload, with the given tag, and starts a new one.
+     */
+    private void endSection( final int _tag ) {
+        payload.writeByte( _tag );
+        payload.writeVarint( section.size );
+        payload.writeBytes( section.bytes, section.size );
+        section.clear();
+    }
+
+
+    /**
+     * Returns the length of this payload, in bytes.
+     *
+     * @return the length of this payload, in bytes
+     */
+    public int size() {
+        return payload.size;
+    }
+
+
+    /**
+     * Returns a copy of this payload.
+     *
+     * @return a copy of this payload
+     */
+    public byte[] toBytes() {
+        byte[] result = new byte[payload.size];
+        System.arraycopy( payload.bytes, 0, result, 0, payload.size );
+        return result;
+    }
+
+
+    /**
+     * Returns this payload as base64 text, as it's carried in a message.
+     *
+     * @return this payload as base64 text
+     */
+    public String toBase64() {
+        return Base64.getEncoder().encodeToString( toBytes() );
+    }
+
+
+    /**
+     * Decodes the binary payload in the given message's <code>monitor.ntp.binary</code> field (if it has one), filling in the same
+     * <code>monitor.ntp</code> fields that the JSON form has.
+     *
+     * @param _message the message to decode
+     * @return true if the message had a binary payload
+     * @throws IllegalArgumentException if the payload is malformed or has an unsupported schema version
+     */
+    public static boolean decode( final HJSONObject _message ) {
+        String base64 = _message.optStringDotted( "monitor.ntp.binary", null );
+        if( base64 == null ) return false;
+        decode( Base64.getDecoder().decode( base64 ), _message );
+        return true;
+    }
+
+
+    /**
+     * Decodes the given binary payload, filling in the same <code>monitor.ntp</code> fields in the given message that the JSON form has.
+     *
+     * @param _payload the binary payload to decode
+     * @param _message the message to fill in
+     * @throws IllegalArgumentException if the payload is malformed or has an unsupported schema version
+     */
+    public static void decode( final byte[] _payload, final HJSONObject _message ) {
+
+        Reader in = new Reader( _payload, 0, _payload.length );
+        int version = in.readByte();
+        if( version != SCHEMA_VERSION )
+            throw new IllegalArgumentException( "Unsupported binary payload schema version: " + version );
+
+        while( in.remaining() > 0 ) {
+
+            int tag = in.readByte();
+            int length = in.readCount();
+            Reader sec = new Reader( _payload, in.pos, in.pos + length );
+            in.pos += length;
+
+            switch( tag ) {
+
+                case TAG_STATUS:
+                    boolean valid = sec.readBoolean();
+                    _message.putDotted( "monitor.ntp.valid", valid );
+                    if( !valid )
+                        _message.putDotted( "monitor.ntp.errorMessage", sec.readString() );
+                    break;
+
+                case TAG_PROBE:
+                    String  name       = sec.readNonNullString();
+                    boolean probeValid = sec.readBoolean();
+                    long    latencyMs  = sec.readVarint();
+                    NTPMonitor.fillProbe( _message, name, probeValid, latencyMs, probeValid ? null : sec.readString() );
+                    break;
+
+                case TAG_SERVER:
+                    int statusWord = (int) sec.readVarint();
+                    int precision  = (int) sec.readZigZag();
+                    int stratum    = (int) sec.readVarint();
+                    NTPMonitor.fillServer( _message,
+                            new LocalServer( statusWord, precision, stratum, sec.readDouble(), sec.readDouble(), sec.readDouble() ) );
+                    break;
+
+                case TAG_FIX:
+                    int    flags          = sec.readByte();
+                    double timeAccuracy   = sec.readDouble();
+                    int    satellitesUsed = (int) sec.readVarint();
+                    NTPMonitor.fillFix( _message, new GNSSFix( (flags & 1) != 0, timeAccuracy, satellitesUsed, (flags & 2) != 0,
+                            (flags & 4) != 0, sec.readDouble(), sec.readDouble(), sec.readDouble(), sec.readDouble() ) );
+                    break;
+
+                case TAG_PEERS:
+                    NTPMonitor.fillPeers( _message, readPeers( sec ), null );
+                    break;
+
+                case TAG_SATELLITES:
+                    NTPMonitor.fillSatellites( _message, readSatellites( sec ) );
+                    break;
+
+                case TAG_SAMPLES:
+                    NTPMonitor.fillSamples( _message, readSamples( sec ) );
+                    break;
+
+                default:
+                    break;  // a section from a newer encoder; skip it...
+            }
+        }
+    }
+
+
+    private static PeerTable readPeers( final Reader _in ) {
+        int count = _in.readCount();
+        PeerTable peers = new PeerTable( count );
+        for( int i = 0; i < count; i++ ) {
+            int row = peers.addRow();
+            peers.tally[row] = (char) _in.readByte();
+            String remote = _in.readNonNullString();
+            String refid  = _in.readNonNullString();
+            peers.setRemote( row, remote, 0, remote.length() );
+            peers.setRefid(  row, refid,  0, refid.length()  );
+            peers.stratum[row]             = (int) _in.readVarint();
+            peers.local[row]               = _in.readBoolean();
+            peers.lastPolledSeconds[row]   = (int) _in.readVarint();
+            peers.pollIntervalSeconds[row] = (int) _in.readVarint();
+            peers.reached[row]             = _in.readByte();
+            peers.delayMs[row]             = _in.readFloat();
+            peers.offsetMs[row]            = _in.readFloat();
+            peers.jitterRmsMs[row]         = _in.readFloat();
+        }
+        return peers;
+    }
+
+
+    private static List<GNSSSatellite> readSatellites( final Reader _in ) {
+        int count = _in.readCount();
+        List<GNSSSatellite> satellites = new ArrayList<>( count );
+        for( int i = 0; i < count; i++ ) {
+            int    code = _in.readByte();
+            String type = (code < SATELLITE_TYPES.length) ? SATELLITE_TYPES[code] : _in.readNonNullString();
+            satellites.add( new GNSSSatellite( type, (int) _in.readVarint(), (int) _in.readVarint(), (int) _in.readZigZag(),
+                    (int) _in.readVarint(), true ) );
+        }
+        return satellites;
+    }
+
+
+    private static HighRateSampler.Summary readSamples( final Reader _in ) {
+        long intervalMs       = _in.readVarint();
+        long sampleIntervalMs = _in.readVarint();
+        int  failures         = (int) _in.readVarint();
+        int  scalarCount      = _in.readCount();
+        Map<String,SampleStats> scalars = new HashMap<>();
+        for( int i = 0; i < scalarCount; i++ )
+            scalars.put( _in.readNonNullString(), readStats( _in ) );
+        int peerCount = _in.readCount();
+        List<HighRateSampler.PeerSummary> peers = new ArrayList<>( peerCount );
+        for( int i = 0; i < peerCount; i++ ) {
+            String remote = _in.readNonNullString();
+            int    flags  = _in.readByte();
+            SampleStats offsetMs    = ((flags & 1) != 0) ? readStats( _in ) : null;
+            SampleStats jitterRmsMs = ((flags & 2) != 0) ? readStats( _in ) : null;
+            peers.add( new HighRateSampler.PeerSummary( remote, offsetMs, jitterRmsMs ) );
+        }
+        return new HighRateSampler.Summary( intervalMs, sampleIntervalMs, failures, scalars, peers );
+    }
+
+
+    private static SampleStats readStats( final Reader _in ) {
+        return new SampleStats( (int) _in.readVarint(), _in.readDouble(), _in.readDouble(), _in.readDouble(), _in.readDouble(),
+                _in.readDouble(), _in.readDouble(), _in.readDouble() );
+    }
+
+
+    /*
+     * A growable byte buffer, reused from one payload to the next...
+     */
+    private static class Buffer {
+
+        private byte[] bytes;
+        private int    size;
+
+
+        private Buffer( final int _capacity ) {
+            bytes = new byte[_capacity];
+        }
+
+
+        private void clear() {
+            size = 0;
+        }
+
+
+        private void ensure( final int _more ) {
+            if( size + _more > bytes.length ) {
+                byte[] grown = new byte[Math.max( 2 * bytes.length, size + _more )];
+                System.arraycopy( bytes, 0, grown, 0, size );
+                bytes = grown;
+            }
+        }
+
+
+        private void writeByte( final int _value ) {
+            ensure( 1 );
+            bytes[size++] = (byte) _value;
+        }
+
+
+        private void writeBoolean( final boolean _value ) {
+            writeByte( _value ? 1 : 0 );
+        }
+
+
+        private void writeBytes( final byte[] _bytes, final int _length ) {
+            ensure( _length );
+            System.arraycopy( _bytes, 0, bytes, size, _length );
+            size += _length;
+        }
+
+
+        private void writeVarint( final long _value ) {
+            ensure( 10 );
+            long value = _value;
+            while( (value & ~0x7FL) != 0 ) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+
+        private void writeZigZag( final long _value ) {
+            writeVarint( (_value << 1) ^ (_value >> 63) );
+        }
+
+
+        private void writeInt( final int _value ) {
+            ensure( 4 );
+            bytes[size++] = (byte) (_value >>> 24);
+            bytes[size++] = (byte) (_value >>> 16);
+            bytes[size++] = (byte) (_value >>> 8);
+            bytes[size++] = (byte) _value;
+        }
+
+
+        private void writeFloat( final float _value ) {
+            writeInt( Float.floatToRawIntBits( _value ) );
+        }
+
+
+        private void writeDouble( final double _value ) {
+            long bits = Double.doubleToRawLongBits( _value );
+            writeInt( (int) (bits >>> 32) );
+            writeInt( (int) bits );
+        }
+
+
+        private void writeString( final String _value ) {
+            if( _value == null ) {
+                writeVarint( 0 );
+                return;
+            }
+            byte[] utf8 = _value.getBytes( StandardCharsets.UTF_8 );
+            writeVarint( utf8.length + 1 );
+            writeBytes( utf8, utf8.length );
+        }
+
+
+        /*
+         * Writes the given characters as a string; they're host names and reference IDs, so they're nearly always ASCII...
+         */
+        private void writeChars( final char[] _chars, final int _length ) {
+            boolean ascii = true;
+            for( int i = 0; ascii && (i < _length); i++ )
+                ascii = (_chars[i] < 0x80);
+            if( !ascii ) {
+                writeString( new String( _chars, 0, _length ) );
+                return;
+            }
+            writeVarint( _length + 1 );
+            ensure( _length );
+            for( int i = 0; i < _length; i++ )
+                bytes[size++] = (byte) _chars[i];
+        }
+    }
+
+
+    /*
+     * Reads a range of a payload, throwing IllegalArgumentException if we try to read past the end of it...
+     */
+    private static class Reader {
+
+        private final byte[] bytes;
+        private final int    end;
+        private int          pos;
+
+
+        private Reader( final byte[] _bytes, final int _start, final int _end ) {
+            bytes = _bytes;
+            pos   = _start;
+            end   = _end;
+        }
+
+
+        private int remaining() {
+            return end - pos;
+        }
+
+
+        private void need( final int _count ) {
+            if( end - pos < _count )
+                throw new IllegalArgumentException( "Binary payload is truncated" );
+        }
+
+
+        private int readByte() {
+            need( 1 );
+            return bytes[pos++] & 0xFF;
+        }
+
+
+        /*
+         * Reads a varint count or length, which can't be more than the number of bytes left (as every counted thing takes at least a byte)...
+         */
+        private int readCount() {
+            long count = readVarint();
+            if( (count < 0) || (count > remaining()) )
+                throw new IllegalArgumentException( "Binary payload is truncated" );
+            return (int) count;
+        }
+
+
+        private boolean readBoolean() {
+            return readByte() != 0;
+        }
+
+
+        private long readVarint() {
+            long value = 0;
+            for( int shift = 0; shift < 64; shift += 7 ) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if( (b & 0x80) == 0 ) return value;
+            }
+            throw new IllegalArgumentException( "Binary payload has a malformed varint" );
+        }
+
+
+        private long readZigZag() {
+            long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+
+        private int readInt() {
+            need( 4 );
+            int value = ((bytes[pos] & 0xFF) << 24) | ((bytes[pos + 1] & 0xFF) << 16) | ((bytes[pos + 2] & 0xFF) << 8) | (bytes[pos + 3] & 0xFF);
+            pos += 4;
+            return value;
+        }
+
+
+        private float readFloat() {
+            return Float.intBitsToFloat( readInt() );
+        }
+
+
+        private double readDouble() {
+            long high = readInt() & 0xFFFFFFFFL;
+            long low  = readInt() & 0xFFFFFFFFL;
+            return Double.longBitsToDouble( (high << 32) | low );
+        }
+
+
+        /*
+         * Reads a string, written as its length plus one (zero for null), so the length read can be one more than the bytes left...
+         */
+        private String readString() {
+            long length = readVarint();
+            if( length == 0 ) return null;
+            if( (length < 0) || (length - 1 > remaining()) )
+                throw new IllegalArgumentException( "Binary payload is truncated" );
+            String value = new String( bytes, pos, (int) length - 1, StandardCharsets.UTF_8 );
+            pos += (int) length - 1;
+            return value;
+        }
+
+
+        private String readNonNullString() {
+            String value = readString();
+            if( value == null )
+                throw new IllegalArgumentException( "Binary payload has a missing name" );
+            return value;
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package com.dilatush.ntpmonitor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * A minimal client for the NTP control protocol (NTP mode 6), which lets us read the system, peer, and kernel variables of a running ntpd
+ * directly over UDP, the same way <code>ntpq</code> does, but without forking a process.  Only the read-only operations (READSTAT and READVAR)
+ * are implemented.  The channel and buffers are allocated once and reused for every query; if a query fails, the channel is closed, and a new
+ * one is opened for the next query.  A client's responses may be captured, and a stand-in for a client (one that queries no ntpd) may replay
+ * them, so that what ntpd said in the field can be replayed (see {@link ProbeCapture}).  Instances of this class are mutable and NOT
+ * threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class NTPControlClient implements Closeable {
+
+    /* package-private */ static final int OP_READSTAT = 1;
+    /* package-private */ static final int OP_READVAR  = 2;
+
+    /* package-private */ static final int HEADER_SIZE    = 12;
+    /* package-private */ static final int MAX_DATA_SIZE  = 468;   // the most data ntpd puts in a single response fragment...
+    private static final int            MAX_RESPONSE   = 16384; // big enough for any peer or system variable list we ask for...
+    private static final int            LI_VN_MODE     = (2 << 3) | 6;  // version 2, mode 6 (the same thing ntpq sends)...
+    private static final int            RESPONSE_BIT   = 0x80;
+    private static final int            ERROR_BIT      = 0x40;
+    private static final int            MORE_BIT       = 0x20;
+    private static final int            OPCODE_MASK    = 0x1F;
+    /* package-private */ static final int MAX_FRAGMENTS  = 64;    // more than enough fragments for MAX_RESPONSE bytes from ntpd...
+
+    private final InetSocketAddress server;
+    private final long              timeoutMs;
+    private final ByteBuffer        packet;
+    private final byte[]            response;
+    private final Fragments         fragments;
+    private final Supplier<String>  replayed;       // null unless we're a stand-in, replaying captured responses...
+    private Consumer<String>        recorder;       // null unless we're capturing our responses...
+
+    private DatagramChannel channel;
+    private Selector        selector;
+    private int             sequence;
+    private int             responseLength;
+    private int             responseStatus;
+
+
+    /**
+     * Creates a new instance of this class that will query the ntpd at the given address, waiting no more than the given time for each complete
+     * response.
+     *
+     * @param _server the address (normally localhost, port 123) of the ntpd to query
+     * @param _timeoutMs the maximum time to wait for a complete response, in milliseconds
+     */
+    public NTPControlClient( final InetSocketAddress _server, final long _timeoutMs ) {
+        this( _server, _timeoutMs, null );
+    }
+
+
+    private NTPControlClient( final InetSocketAddress _server, final long _timeoutMs, final Supplier<String> _replayed ) {
+        server    = _server;
+        timeoutMs = _timeoutMs;
+        packet    = ByteBuffer.allocate( HEADER_SIZE + MAX_DATA_SIZE + 4 );
+        response  = new byte[MAX_RESPONSE];
+        fragments = new Fragments();
+        replayed  = _replayed;
+    }
+
+
+    /**
+     * Returns a stand-in for a client that queries no ntpd, but takes each response, in order, from the given supplier, in the form that
+     * {@link #recordingTo(Consumer)} captures them in.  A <code>null</code> response fails its query, as the captured query failed.
+     *
+     * @param _responses the supplier of the captured responses
+     * @return the stand-in
+     */
+    /* package-private */ static NTPControlClient replaying( final Supplier<String> _responses ) {
+        return new NTPControlClient( null, 0, _responses );
+    }
+
+
+    /**
+     * Captures each of this client's responses from now on, handing it to the given recorder as text: the status word as four hex digits, a
+     * space, then the response's data as ISO-8859-1 characters (one for each byte), or <code>null</code> if the query failed.
+     *
+     * @param _recorder the recorder to hand each response to
+     * @return this client
+     */
+    /* package-private */ NTPControlClient recordingTo( final Consumer<String> _recorder ) {
+        recorder = _recorder;
+        return this;
+    }
+
+
+    /**
+     * Reads the named variables for the given association ID (or the system variables, if the association ID is zero) into the given map,
+     * returning the status word that ntpd sent with the response.  For association zero this is the system status word; otherwise it is the
+     * peer status word.  The map is not cleared first.
+     *
+     * @param _assocID the association ID to read variables for, or zero for the system variables
+     * @param _varList the comma-separated list of variable names to read, or <code>null</code> for ntpd's default list
+     * @param _vars the map to put the variable names and values into
+     * @return the status word returned by ntpd
+     * @throws IOException on any I/O problem, timeout, or error response from ntpd
+     */
+    public int readVariables( final int _assocID, final String _varList, final Map<String,String> _vars ) throws IOException {
+        query( OP_READVAR, _assocID, _varList );
+        parseVariables( response, responseLength, _vars );
+        return responseStatus;
+    }
+
+
+    /**
+     * Reads the association IDs and peer status words of all of ntpd's associations into the given array, as (association ID, peer status)
+     * pairs.  The system status word is available from {@link #lastStatus()} afterwards.  The array must be big enough to hold two entries for
+     * every association; any associations that don't fit are silently ignored.
+     *
+     * @param _assocs the array to put the association ID and peer status word pairs into
+     * @return the number of associations read
+     * @throws IOException on any I/O problem, timeout, or error response from ntpd
+     */
+    public int readAssociations( final int[] _assocs ) throws IOException {
+        query( OP_READSTAT, 0, null );
+        int count = Math.min( responseLength >>> 2, _assocs.length >>> 1 );
+        for( int i = 0; i < count; i++ ) {
+            _assocs[2 * i    ] = ((response[4 * i    ] & 0xFF) << 8) | (response[4 * i + 1] & 0xFF);
+            _assocs[2 * i + 1] = ((response[4 * i + 2] & 0xFF) << 8) | (response[4 * i + 3] & 0xFF);
+        }
+        return count;
+    }
+
+
+    /**
+     * Returns the status word from the most recent response.  For association zero this is the system status word.
+     *
+     * @return the status word from the most recent response
+     */
+    public int lastStatus() {
+        return responseStatus;
+    }
+
+
+    /**
+     * Closes the channel used by this client.  The client will open a new one if it is used again.
+     */
+    @Override
+    public void close() {
+        try {
+            if( selector != null ) selector.close();
+            if( channel  != null ) channel.close();
+        }
+        catch( IOException _e ) {
+            // naught to do here...
+        }
+        selector = null;
+        channel  = null;
+    }
+
+
+    /*
+     * Sends the given request and collects all the fragments of the response into our response buffer, throwing an IOException if we can't get
+     * a complete response within our timeout.  On success, responseLength and responseStatus are set.  On any failure the channel is closed,
+     * as it may have been closed under us (if the thread was interrupted) or be holding a late response, and we'll open a fresh one next time.
+     */
+    private void query( final int _opcode, final int _assocID, final String _varList ) throws IOException {
+        if( replayed != null ) {
+            replay( replayed.get() );
+            return;
+        }
+        try {
+            exchange( _opcode, _assocID, _varList );
+        }
+        catch( IOException _e ) {
+            close();
+            if( recorder != null ) recorder.accept( null );
+            throw _e;
+        }
+        if( recorder != null )
+            recorder.accept( String.format( "%04x ", responseStatus ) + new String( response, 0, responseLength, StandardCharsets.ISO_8859_1 ) );
+    }
+
+
+    /*
+     * Takes our response from the given captured response (in the form we capture them in), or fails if the captured query failed...
+     */
+    private void replay( final String _response ) throws IOException {
+        if( _response == null )
+            throw new IOException( "Captured NTP control query failed" );
+        byte[] data;
+        try {
+            responseStatus = Integer.parseInt( _response.substring( 0, 4 ), 16 );
+            data = _response.substring( 5 ).getBytes( StandardCharsets.ISO_8859_1 );
+        }
+        catch( RuntimeException _e ) {
+            throw new IOException( "Malformed captured NTP control response" );
+        }
+        if( data.length > response.length )
+            throw new IOException( "Captured NTP control response too large" );
+        System.arraycopy( data, 0, response, 0, data.length );
+        responseLength = data.length;
+    }
+
+
+    private void exchange( final int _opcode, final int _assocID, final String _varList ) throws IOException {
+
+        open();
+
+        // throw away anything left over from an earlier query that timed out...
+        packet.clear();
+        while( channel.receive( packet ) != null )
+            packet.clear();
+
+        // build and send our request...
+        sequence = (sequence + 1) & 0xFFFF;
+        byte[] data = (_varList == null) ? new byte[0] : _varList.getBytes( StandardCharsets.US_ASCII );
+        if( data.length > MAX_DATA_SIZE )
+            throw new IOException( "Variable list too long: " + _varList );
+        packet.clear();
+        packet.put( (byte) LI_VN_MODE );
+        packet.put( (byte) _opcode );
+        packet.putShort( (short) sequence );
+        packet.putShort( (short) 0 );
+        packet.putShort( (short) _assocID );
+        packet.putShort( (short) 0 );
+        packet.putShort( (short) data.length );
+        packet.put( data );
+        while( (packet.position() & 3) != 0 )
+            packet.put( (byte) 0 );
+        packet.flip();
+        channel.send( packet, server );
+
+        // now collect fragments until we have them all, or we run out of time...
+        long deadline = System.nanoTime() + 1000000L * timeoutMs;
+        int received = 0;
+        int end = -1;
+        fragments.clear();
+        while( (end < 0) || (received < end) ) {
+
+            long remainingMs = (deadline - System.nanoTime()) / 1000000L;
+            if( (remainingMs <= 0) || (selector.select( remainingMs ) == 0) ) {
+                selector.selectedKeys().clear();
+                throw new IOException( "Timed out waiting for NTP control response from " + server );
+            }
+            selector.selectedKeys().clear();
+
+            packet.clear();
+            SocketAddress from = channel.receive( packet );
+            if( from == null ) continue;
+            packet.flip();
+            if( packet.remaining() < HEADER_SIZE ) continue;
+
+            // make sure this is a response to our request, and not some straggler...
+            int flags  = packet.get( 1 ) & 0xFF;
+            int seq    = packet.getShort( 2 ) & 0xFFFF;
+            if( ((flags & RESPONSE_BIT) == 0) || ((flags & OPCODE_MASK) != _opcode) || (seq != sequence) ) continue;
+
+            int status = packet.getShort( 4 ) & 0xFFFF;
+            if( (flags & ERROR_BIT) != 0 )
+                throw new IOException( "NTP control error response, code " + (status >>> 8) + ", from " + server );
+
+            int offset = packet.getShort( 8  ) & 0xFFFF;
+            int count  = packet.getShort( 10 ) & 0xFFFF;
+            if( (offset + count > response.length) || (HEADER_SIZE + count > packet.limit()) )
+                throw new IOException( "NTP control response too large, or malformed, from " + server );
+
+            // a fragment may arrive more than once; count each only once...
+            if( fragments.contains( offset ) ) continue;
+            if( !fragments.add( offset ) )
+                throw new IOException( "NTP control response has too many fragments, from " + server );
+
+            packet.position( HEADER_SIZE );
+            packet.get( response, offset, count );
+            received += count;
+            responseStatus = status;
+            if( (flags & MORE_BIT) == 0 )
+                end = offset + count;
+        }
+        responseLength = end;
+    }
+
+
+    /*
+     * Opens our channel (if it isn't already), connected to our server so that we won't see datagrams from anyone else.
+     */
+    private void open() throws IOException {
+
+        if( (channel != null) && channel.isOpen() && selector.isOpen() ) return;
+
+        close();
+        channel = DatagramChannel.open();
+        channel.configureBlocking( false );
+        channel.connect( server );
+        selector = Selector.open();
+        channel.register( selector, SelectionKey.OP_READ );
+    }
+
+
+    /**
+     * The offsets of the fragments of a response received so far, so that a fragment that arrives more than once is recognized.  Instances of
+     * this class are mutable and NOT threadsafe.
+     */
+    /* package-private */ static final class Fragments {
+
+        private final int[] offsets = new int[MAX_FRAGMENTS];
+        private int         count;
+
+
+        /* package-private */ void clear() {
+            count = 0;
+        }
+
+
+        /* package-private */ boolean contains( final int _offset ) {
+            for( int i = 0; i < count; i++ )
+                if( offsets[i] == _offset ) return true;
+            return false;
+        }
+
+
+        /*
+         * Adds the given fragment offset, returning false if there's no room for it...
+         */
+        /* package-private */ boolean add( final int _offset ) {
+            if( count >= offsets.length ) return false;
+            offsets[count++] = _offset;
+            return true;
+        }
+    }
+
+
+    /**
+     * Parses the given NTP control variable data (of the form <code>name=value, name="quoted value", ...</code>) into the given map.  Quotes
+     * are stripped from quoted values; variables without a value are mapped to an empty string.
+     *
+     * @param _data the bytes containing the variable data
+     * @param _length the number of bytes of variable data
+     * @param _vars the map to put the variable names and values into
+     */
+    /* package-private */ static void parseVariables( final byte[] _data, final int _length, final Map<String,String> _vars ) {
+
+        int i = 0;
+        while( i < _length ) {
+
+            // skip separators and white space...
+            while( (i < _length) && ((_data[i] == ',') || (_data[i] <= ' ')) ) i++;
+            if( i >= _length ) break;
+
+            // get the name...
+            int nameStart = i;
+            while( (i < _length) && (_data[i] != '=') && (_data[i] != ',') ) i++;
+            String name = new String( _data, nameStart, i - nameStart, StandardCharsets.US_ASCII ).trim();
+
+            // get the value, if there is one...
+            String value = "";
+            if( (i < _length) && (_data[i] == '=') ) {
+                i++;
+                if( (i < _length) && (_data[i] == '"') ) {
+                    int valueStart = ++i;
+                    while( (i < _length) && (_data[i] != '"') ) i++;
+                    value = new String( _data, valueStart, i - valueStart, StandardCharsets.US_ASCII );
+                    i++;
+                }
+                else {
+                    int valueStart = i;
+                    while( (i < _length) && (_data[i] != ',') ) i++;
+                    value = new String( _data, valueStart, i - valueStart, StandardCharsets.US_ASCII ).trim();
+                }
+            }
+            if( !name.isEmpty() )
+                _vars.put( name, value );
+        }
+    }
+}
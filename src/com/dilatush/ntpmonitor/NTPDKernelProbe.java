@@ -0,0 +1,106 @@
+package com.dilatush.ntpmonitor;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.dilatush.util.Strings.isEmpty;
+
+/**
+ * A {@link Probe} for the state of the local ntpd and its kernel PLL, preferably read by querying ntpd directly with NTP control (mode 6)
+ * messages, otherwise by running <code>ntpq -c kerninfo</code>.  Instances of this class are mutable and NOT threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class NTPDKernelProbe implements Probe<LocalServer> {
+
+    private static final Logger  LOGGER     = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName() );
+
+    private static final Pattern NTPQ_C_PAT = Pattern.compile( "[^,]+,\\s*([^,]+).*?pll offset:\\s+([0-9Ee\\-.]+).*pll frequency:\\s+([0-9eE\\-.]+).*maximum error:\\s+([0-9Ee\\-.]+).*", Pattern.DOTALL );
+
+    private static final Pattern NTPQ_S_PAT = Pattern.compile( "status=([0-9a-fA-F]{4})" );
+
+    private static final String  KERN_VARS  = "koffset,kfreq,kmaxerr,stratum,precision";
+
+    private final NTPControlClient   control;       // null if we're using ntpq only...
+    private final Supplier<String>   ntpq;
+    private final Map<String,String> vars;
+    private long                     parseNanos;    // how long the last poll spent parsing ntpq's output, or -1 if it didn't...
+
+
+    /**
+     * Creates a new instance of this class that queries ntpd with the given control client, falling back to the given ntpq command if that
+     * fails.
+     *
+     * @param _control the control client to query ntpd with, or <code>null</code> to use ntpq only
+     * @param _ntpq the ntpq -c kerninfo command (or a stand-in for it), returning its output, or <code>null</code> or an empty string if it
+     *              failed
+     */
+    public NTPDKernelProbe( final NTPControlClient _control, final Supplier<String> _ntpq ) {
+        control = _control;
+        ntpq    = _ntpq;
+        vars    = new HashMap<>();
+    }
+
+
+    @Override
+    public String name() {
+        return "kernel";
+    }
+
+
+    @Override
+    public LocalServer poll() throws ProbeException {
+
+        parseNanos = -1;
+        if( control != null ) {
+            try {
+                vars.clear();
+                int status = control.readVariables( 0, KERN_VARS, vars );
+                return new LocalServer( status,
+                        Integer.parseInt(   vars.get( "precision" ) ),
+                        Integer.parseInt(   vars.get( "stratum"   ) ),
+                        Double.parseDouble( vars.get( "koffset"   ) ),
+                        Double.parseDouble( vars.get( "kfreq"     ) ),
+                        Double.parseDouble( vars.get( "kmaxerr"   ) ) );
+            }
+            catch( IOException | RuntimeException _e ) {
+                LOGGER.log( Level.WARNING, "NTP control query for kernel info failed; falling back to ntpq -c kerninfo", _e );
+            }
+        }
+
+        String output = ntpq.get();
+        if( isEmpty( output ) )
+            throw new ProbeException( "Command ntpq -c failed" );
+        long start = System.nanoTime();
+        Matcher mat = NTPQ_C_PAT.matcher( output );
+        Matcher sta = NTPQ_S_PAT.matcher( output );
+        if( !mat.matches() || !sta.find() )
+            throw new ProbeException( "Command ntpq -c output not recognized" );
+
+        // ntpq kerninfo doesn't tell us the stratum or precision...
+        LocalServer result = new LocalServer( Integer.parseInt( sta.group( 1 ), 16 ), 0, 0,
+                Double.parseDouble( mat.group( 2 ) ),
+                Double.parseDouble( mat.group( 3 ) ),
+                Double.parseDouble( mat.group( 4 ) ) );
+        parseNanos = System.nanoTime() - start;
+        return result;
+    }
+
+
+    @Override
+    public long parseNanos() {
+        return parseNanos;
+    }
+
+
+    @Override
+    public void stop() {
+        if( control != null ) control.close();
+    }
+}
@@ -0,0 +1,177 @@
+package com.dilatush.ntpmonitor;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.dilatush.util.Strings.isEmpty;
+
+/**
+ * A {@link Probe} for the peers of the local ntpd, preferably read by querying ntpd directly with NTP control (mode 6) messages, otherwise by
+ * running <code>ntpq -p</code>.  Successive polls alternate between two peer tables, so that a poll never fills the table from the previous poll
+ * while it's being published.  Instances of this class are mutable and NOT threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class NTPDPeersProbe implements Probe<PeerTable> {
+
+    private static final Logger LOGGER    = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName() );
+
+    private static final String PEER_VARS = "srcadr,srchost,refid,stratum,hpoll,ppoll,reach,delay,offset,jitter,rec,reftime";
+    private static final long   NTP_EPOCH_OFFSET_SECONDS = 2208988800L;  // seconds from 1900-01-01 (NTP epoch) to 1970-01-01 (Java epoch)...
+
+    private final NTPControlClient   control;       // null if we're using ntpq only...
+    private final Supplier<String>   ntpq;
+    private final LongSupplier       clock;         // the current time, in milliseconds...
+    private final NTPQPeerParser     parser;
+    private final PeerTable[]        tables;
+    private final int[]              assocs;
+    private final Map<String,String> vars;
+    private int                      polls;
+    private long                     parseNanos;    // how long the last poll spent parsing ntpq's output, or -1 if it didn't...
+
+
+    /**
+     * Creates a new instance of this class that queries ntpd with the given control client (falling back to the given ntpq command if that
+     * fails), holding up to the given number of peers.
+     *
+     * @param _control the control client to query ntpd with, or <code>null</code> to use ntpq only
+     * @param _ntpq the ntpq -p command (or a stand-in for it), returning its output, or <code>null</code> or an empty string if it failed
+     * @param _maxPeers the most peers to hold
+     */
+    public NTPDPeersProbe( final NTPControlClient _control, final Supplier<String> _ntpq, final int _maxPeers ) {
+        this( _control, _ntpq, _maxPeers, System::currentTimeMillis );
+    }
+
+
+    /**
+     * Creates a new instance of this class as above, but telling how long ago each peer was polled as of the time the given clock returns
+     * (rather than the time now), so that a replay gets the ages the monitor saw in the field.
+     *
+     * @param _control the control client to query ntpd with, or <code>null</code> to use ntpq only
+     * @param _ntpq the ntpq -p command (or a stand-in for it), returning its output, or <code>null</code> or an empty string if it failed
+     * @param _maxPeers the most peers to hold
+     * @param _clock the current time, in milliseconds since the epoch
+     */
+    /* package-private */ NTPDPeersProbe( final NTPControlClient _control, final Supplier<String> _ntpq, final int _maxPeers,
+                                          final LongSupplier _clock ) {
+        control = _control;
+        ntpq    = _ntpq;
+        clock   = _clock;
+        parser  = new NTPQPeerParser();
+        tables  = new PeerTable[] { new PeerTable( _maxPeers ), new PeerTable( _maxPeers ) };
+        assocs  = new int[2 * _maxPeers];
+        vars    = new HashMap<>();
+    }
+
+
+    @Override
+    public String name() {
+        return "peers";
+    }
+
+
+    @Override
+    public PeerTable poll() throws ProbeException {
+
+        PeerTable table = tables[polls++ & 1];
+        parseNanos = -1;
+
+        if( control != null ) {
+            try {
+                readViaControl( table );
+                return table;
+            }
+            catch( IOException _e ) {
+                LOGGER.log( Level.WARNING, "NTP control query for peers failed; falling back to ntpq -p", _e );
+            }
+        }
+
+        String output = ntpq.get();
+        if( isEmpty( output ) )
+            throw new ProbeException( "Command ntpq -p failed" );
+        long start = System.nanoTime();
+        parser.parse( output, table );
+        parseNanos = System.nanoTime() - start;
+        return table;
+    }
+
+
+    @Override
+    public long parseNanos() {
+        return parseNanos;
+    }
+
+
+    @Override
+    public void stop() {
+        if( control != null ) control.close();
+    }
+
+
+    /*
+     * Reads our peers directly from ntpd into the given table, with a READSTAT to get the list of associations, then a READVAR for each of them.
+     * The results are the same as we'd get by parsing "ntpq -pn".
+     */
+    private void readViaControl( final PeerTable _table ) throws IOException {
+
+        int count = control.readAssociations( assocs );
+        long nowSeconds = clock.getAsLong() / 1000 + NTP_EPOCH_OFFSET_SECONDS;
+        _table.clear();
+        for( int i = 0; i < count; i++ ) {
+
+            vars.clear();
+            int peerStatus = control.readVariables( assocs[2 * i], PEER_VARS, vars );
+
+            int row = _table.addRow();
+            if( row < 0 ) break;
+            try {
+                String srcadr  = vars.get( "srcadr" );
+                String host    = vars.get( "srchost" );
+                String remote  = isEmpty( host ) ? srcadr : host;
+                String refid   = vars.get( "refid" );
+                int    stratum = Integer.parseInt( vars.get( "stratum" ) );
+                int    hpoll   = Integer.parseInt( vars.get( "hpoll" ) );
+                int    ppoll   = Integer.parseInt( vars.get( "ppoll" ) );
+                long   rec     = ntpSeconds( vars.get( "rec" ) );
+                if( rec == 0 ) rec = ntpSeconds( vars.get( "reftime" ) );
+                if( stratum <= 1 ) refid = "." + refid + ".";
+                _table.tally[row]               = PeerTable.tallyFromStatus( peerStatus );
+                _table.setRemote( row, remote, 0, remote.length() );
+                if( srcadr != null ) _table.setSrcadr( row, srcadr, 0, srcadr.length() );
+                _table.setRefid(  row, refid,  0, refid.length()  );
+                _table.stratum[row]             = stratum;
+                _table.local[row]               = (srcadr != null) && srcadr.startsWith( "127.127." );   // reference clocks have pseudo-addresses...
+                _table.lastPolledSeconds[row]   = (rec == 0) ? 0 : (int) Math.max( 0, nowSeconds - rec );
+                _table.pollIntervalSeconds[row] = 1 << Math.max( 3, Math.min( hpoll, ppoll ) );
+                _table.reached[row]             = Integer.decode( vars.get( "reach" ) ) & 0xFF;
+                _table.delayMs[row]             = Float.parseFloat( vars.get( "delay"  ) );
+                _table.offsetMs[row]            = Float.parseFloat( vars.get( "offset" ) );
+                _table.jitterRmsMs[row]         = Float.parseFloat( vars.get( "jitter" ) );
+            }
+            catch( RuntimeException _e ) {
+                _table.removeLastRow();
+                throw new IOException( "Malformed peer variables for association " + assocs[2 * i] + ": " + vars, _e );
+            }
+        }
+    }
+
+
+    /*
+     * Returns the seconds part of the given NTP timestamp in ntpd's hex format ("0xe2b6f0a1.12345678"), or zero if it's missing or malformed.
+     */
+    private static long ntpSeconds( final String _timestamp ) {
+        if( (_timestamp == null) || !_timestamp.startsWith( "0x" ) ) return 0;
+        int dot = _timestamp.indexOf( '.' );
+        try {
+            return Long.parseLong( _timestamp.substring( 2, (dot < 0) ? _timestamp.length() : dot ), 16 );
+        }
+        catch( NumberFormatException _e ) {
+            return 0;
+        }
+    }
+}
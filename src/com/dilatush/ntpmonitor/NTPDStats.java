@@ -0,0 +1,326 @@
+package com.dilatush.ntpmonitor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The records parsed from ntpd's statistics files (see {@link NTPDStatsParser}), held structure-of-arrays: each kind of record is a set of
+ * columns in primitive arrays that grow as records are added, so that adding a record allocates nothing (apart from the occasional growth).
+ * There are three kinds of records:
+ * <ul>
+ *    <li>loop records, from <code>loopstats</code>: the time, the kernel PLL offset, and its frequency offset</li>
+ *    <li>peer records, from <code>peerstats</code>: the time, the peer (its source index), the peer status word, and the offset, delay, and
+ *        jitter measured for it</li>
+ *    <li>fix records, from the NMEA GGA sentences in <code>clockstats</code>: the time, the reference clock (its source index), the fix
+ *        quality, the satellites used, and the position</li>
+ * </ul>
+ * Peers and reference clocks are sources, named by their addresses as ntpd wrote them, and referred to by their index.  All times are in
+ * milliseconds since the epoch, and offsets, delays, and jitters are in milliseconds.  Instances of this class are mutable and NOT threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class NTPDStats {
+
+    private static final int MIN_CAPACITY = 16;
+
+    /* package-private */ long[]   loopTimeMs;
+    /* package-private */ double[] loopOffsetMs;
+    /* package-private */ double[] loopFreqPpm;
+    /* package-private */ int      loops;
+
+    /* package-private */ long[]   peerTimeMs;
+    /* package-private */ int[]    peerSource;
+    /* package-private */ int[]    peerStatus;
+    /* package-private */ double[] peerOffsetMs;
+    /* package-private */ double[] peerDelayMs;
+    /* package-private */ double[] peerJitterMs;
+    /* package-private */ int      peerRecords;
+
+    /* package-private */ long[]   fixTimeMs;
+    /* package-private */ int[]    fixSource;
+    /* package-private */ int[]    fixQuality;          // the GGA fix quality; 0 is no fix...
+    /* package-private */ int[]    fixSatellites;
+    /* package-private */ double[] fixLatitude;
+    /* package-private */ double[] fixLongitude;
+    /* package-private */ double[] fixAltitudeFt;
+    /* package-private */ int      fixes;
+
+    private final List<String>  sources;
+    /* package-private */ long  lines;                  // lines read, including any skipped...
+    /* package-private */ long  skipped;                // lines that weren't records we could parse...
+    /* package-private */ long  bytes;                  // bytes read...
+
+
+    /**
+     * Creates a new, empty instance of this class, with room for about the given number of records of each kind before it grows.
+     *
+     * @param _loops the expected number of loop records
+     * @param _peerRecords the expected number of peer records
+     * @param _fixes the expected number of fix records
+     */
+    public NTPDStats( final int _loops, final int _peerRecords, final int _fixes ) {
+        int loopCapacity = Math.max( MIN_CAPACITY, _loops       );
+        int peerCapacity = Math.max( MIN_CAPACITY, _peerRecords );
+        int fixCapacity  = Math.max( MIN_CAPACITY, _fixes       );
+        loopTimeMs    = new long[loopCapacity];
+        loopOffsetMs  = new double[loopCapacity];
+        loopFreqPpm   = new double[loopCapacity];
+        peerTimeMs    = new long[peerCapacity];
+        peerSource    = new int[peerCapacity];
+        peerStatus    = new int[peerCapacity];
+        peerOffsetMs  = new double[peerCapacity];
+        peerDelayMs   = new double[peerCapacity];
+        peerJitterMs  = new double[peerCapacity];
+        fixTimeMs     = new long[fixCapacity];
+        fixSource     = new int[fixCapacity];
+        fixQuality    = new int[fixCapacity];
+        fixSatellites = new int[fixCapacity];
+        fixLatitude   = new double[fixCapacity];
+        fixLongitude  = new double[fixCapacity];
+        fixAltitudeFt = new double[fixCapacity];
+        sources       = new ArrayList<>();
+    }
+
+
+    /**
+     * Returns a new instance of this class holding all the records in the given instances, in the order given (so that records parsed from
+     * consecutive pieces of the same file stay in the order they were in the file).  Their sources are merged by name.
+     *
+     * @param _parts the instances to concatenate
+     * @return the concatenation of the given instances
+     */
+    public static NTPDStats concat( final List<NTPDStats> _parts ) {
+
+        int loops = 0;
+        int peerRecords = 0;
+        int fixes = 0;
+        for( NTPDStats part : _parts ) {
+            loops       += part.loops;
+            peerRecords += part.peerRecords;
+            fixes       += part.fixes;
+        }
+        NTPDStats result = new NTPDStats( loops, peerRecords, fixes );
+        Map<String,Integer> sourceIndex = new HashMap<>();
+        for( NTPDStats part : _parts ) {
+
+            // map the part's sources to ours...
+            int[] map = new int[part.sources.size()];
+            for( int i = 0; i < map.length; i++ ) {
+                String name = part.sources.get( i );
+                Integer index = sourceIndex.get( name );
+                if( index == null ) {
+                    index = result.sources.size();
+                    result.sources.add( name );
+                    sourceIndex.put( name, index );
+                }
+                map[i] = index;
+            }
+
+            int n = part.loops;
+            System.arraycopy( part.loopTimeMs,   0, result.loopTimeMs,   result.loops, n );
+            System.arraycopy( part.loopOffsetMs, 0, result.loopOffsetMs, result.loops, n );
+            System.arraycopy( part.loopFreqPpm,  0, result.loopFreqPpm,  result.loops, n );
+            result.loops += n;
+
+            n = part.peerRecords;
+            System.arraycopy( part.peerTimeMs,   0, result.peerTimeMs,   result.peerRecords, n );
+            System.arraycopy( part.peerStatus,   0, result.peerStatus,   result.peerRecords, n );
+            System.arraycopy( part.peerOffsetMs, 0, result.peerOffsetMs, result.peerRecords, n );
+            System.arraycopy( part.peerDelayMs,  0, result.peerDelayMs,  result.peerRecords, n );
+            System.arraycopy( part.peerJitterMs, 0, result.peerJitterMs, result.peerRecords, n );
+            for( int i = 0; i < n; i++ ) result.peerSource[result.peerRecords + i] = map[part.peerSource[i]];
+            result.peerRecords += n;
+
+            n = part.fixes;
+            System.arraycopy( part.fixTimeMs,     0, result.fixTimeMs,     result.fixes, n );
+            System.arraycopy( part.fixQuality,    0, result.fixQuality,    result.fixes, n );
+            System.arraycopy( part.fixSatellites, 0, result.fixSatellites, result.fixes, n );
+            System.arraycopy( part.fixLatitude,   0, result.fixLatitude,   result.fixes, n );
+            System.arraycopy( part.fixLongitude,  0, result.fixLongitude,  result.fixes, n );
+            System.arraycopy( part.fixAltitudeFt, 0, result.fixAltitudeFt, result.fixes, n );
+            for( int i = 0; i < n; i++ ) result.fixSource[result.fixes + i] = map[part.fixSource[i]];
+            result.fixes += n;
+
+            result.lines   += part.lines;
+            result.skipped += part.skipped;
+            result.bytes   += part.bytes;
+        }
+        return result;
+    }
+
+
+    /* package-private */ void addLoop( final long _timeMs, final double _offsetMs, final double _freqPpm ) {
+        if( loops == loopTimeMs.length ) {
+            int capacity = 2 * loops;
+            loopTimeMs   = Arrays.copyOf( loopTimeMs,   capacity );
+            loopOffsetMs = Arrays.copyOf( loopOffsetMs, capacity );
+            loopFreqPpm  = Arrays.copyOf( loopFreqPpm,  capacity );
+        }
+        loopTimeMs[loops]   = _timeMs;
+        loopOffsetMs[loops] = _offsetMs;
+        loopFreqPpm[loops]  = _freqPpm;
+        loops++;
+    }
+
+
+    /* package-private */ void addPeer( final long _timeMs, final int _source, final int _status, final double _offsetMs,
+                                        final double _delayMs, final double _jitterMs ) {
+        if( peerRecords == peerTimeMs.length ) {
+            int capacity = 2 * peerRecords;
+            peerTimeMs   = Arrays.copyOf( peerTimeMs,   capacity );
+            peerSource   = Arrays.copyOf( peerSource,   capacity );
+            peerStatus   = Arrays.copyOf( peerStatus,   capacity );
+            peerOffsetMs = Arrays.copyOf( peerOffsetMs, capacity );
+            peerDelayMs  = Arrays.copyOf( peerDelayMs,  capacity );
+            peerJitterMs = Arrays.copyOf( peerJitterMs, capacity );
+        }
+        peerTimeMs[peerRecords]   = _timeMs;
+        peerSource[peerRecords]   = _source;
+        peerStatus[peerRecords]   = _status;
+        peerOffsetMs[peerRecords] = _offsetMs;
+        peerDelayMs[peerRecords]  = _delayMs;
+        peerJitterMs[peerRecords] = _jitterMs;
+        peerRecords++;
+    }
+
+
+    /* package-private */ void addFix( final long _timeMs, final int _source, final int _quality, final int _satellites,
+                                       final double _latitude, final double _longitude, final double _altitudeFt ) {
+        if( fixes == fixTimeMs.length ) {
+            int capacity = 2 * fixes;
+            fixTimeMs     = Arrays.copyOf( fixTimeMs,     capacity );
+            fixSource     = Arrays.copyOf( fixSource,     capacity );
+            fixQuality    = Arrays.copyOf( fixQuality,    capacity );
+            fixSatellites = Arrays.copyOf( fixSatellites, capacity );
+            fixLatitude   = Arrays.copyOf( fixLatitude,   capacity );
+            fixLongitude  = Arrays.copyOf( fixLongitude,  capacity );
+            fixAltitudeFt = Arrays.copyOf( fixAltitudeFt, capacity );
+        }
+        fixTimeMs[fixes]     = _timeMs;
+        fixSource[fixes]     = _source;
+        fixQuality[fixes]    = _quality;
+        fixSatellites[fixes] = _satellites;
+        fixLatitude[fixes]   = _latitude;
+        fixLongitude[fixes]  = _longitude;
+        fixAltitudeFt[fixes] = _altitudeFt;
+        fixes++;
+    }
+
+
+    /* package-private */ int addSource( final String _name ) {
+        sources.add( _name );
+        return sources.size() - 1;
+    }
+
+
+    /**
+     * Sorts each kind of record into time order, keeping records with the same time in the order they were added.  Records parsed from
+     * ntpd's daily files (taken in the order of their names) are almost always in order already, in which case this does nothing; they're out
+     * of order only across a step of the clock, or if the files were renamed.
+     */
+    public void sort() {
+
+        int[] order = order( loopTimeMs, loops );
+        if( order != null ) {
+            loopTimeMs   = permute( loopTimeMs,   order );
+            loopOffsetMs = permute( loopOffsetMs, order );
+            loopFreqPpm  = permute( loopFreqPpm,  order );
+        }
+        order = order( peerTimeMs, peerRecords );
+        if( order != null ) {
+            peerTimeMs   = permute( peerTimeMs,   order );
+            peerSource   = permute( peerSource,   order );
+            peerStatus   = permute( peerStatus,   order );
+            peerOffsetMs = permute( peerOffsetMs, order );
+            peerDelayMs  = permute( peerDelayMs,  order );
+            peerJitterMs = permute( peerJitterMs, order );
+        }
+        order = order( fixTimeMs, fixes );
+        if( order != null ) {
+            fixTimeMs     = permute( fixTimeMs,     order );
+            fixSource     = permute( fixSource,     order );
+            fixQuality    = permute( fixQuality,    order );
+            fixSatellites = permute( fixSatellites, order );
+            fixLatitude   = permute( fixLatitude,   order );
+            fixLongitude  = permute( fixLongitude,  order );
+            fixAltitudeFt = permute( fixAltitudeFt, order );
+        }
+    }
+
+
+    /*
+     * Returns the indices of the first given number of times in time order (stably), or null if they're in order already...
+     */
+    private static int[] order( final long[] _times, final int _count ) {
+
+        int i = 1;
+        while( (i < _count) && (_times[i - 1] <= _times[i]) ) i++;
+        if( i >= _count ) return null;
+
+        // a bottom-up merge sort of the indices, which is stable...
+        int[] order   = new int[_count];
+        int[] scratch = new int[_count];
+        for( i = 0; i < _count; i++ ) order[i] = i;
+        for( int width = 1; width < _count; width *= 2 ) {
+            for( int left = 0; left < _count; left += 2 * width ) {
+                int mid   = Math.min( left + width, _count );
+                int right = Math.min( left + 2 * width, _count );
+                int a = left;
+                int b = mid;
+                int k = left;
+                while( (a < mid) && (b < right) )
+                    scratch[k++] = (_times[order[b]] < _times[order[a]]) ? order[b++] : order[a++];
+                while( a < mid   ) scratch[k++] = order[a++];
+                while( b < right ) scratch[k++] = order[b++];
+            }
+            int[] swap = order;
+            order   = scratch;
+            scratch = swap;
+        }
+        return order;
+    }
+
+
+    private static long[] permute( final long[] _column, final int[] _order ) {
+        long[] result = new long[_column.length];
+        for( int i = 0; i < _order.length; i++ ) result[i] = _column[_order[i]];
+        return result;
+    }
+
+
+    private static int[] permute( final int[] _column, final int[] _order ) {
+        int[] result = new int[_column.length];
+        for( int i = 0; i < _order.length; i++ ) result[i] = _column[_order[i]];
+        return result;
+    }
+
+
+    private static double[] permute( final double[] _column, final int[] _order ) {
+        double[] result = new double[_column.length];
+        for( int i = 0; i < _order.length; i++ ) result[i] = _column[_order[i]];
+        return result;
+    }
+
+
+    /**
+     * Returns the name (the address, as ntpd wrote it) of the source with the given index.
+     *
+     * @param _source the index of the source
+     * @return the name of the source
+     */
+    public String source( final int _source ) {
+        return sources.get( _source );
+    }
+
+
+    public int  sources()     { return sources.size(); }
+    public int  loops()       { return loops;          }
+    public int  peerRecords() { return peerRecords;    }
+    public int  fixes()       { return fixes;          }
+    public long lines()       { return lines;          }
+    public long skipped()     { return skipped;        }
+    public long bytes()       { return bytes;          }
+}
@@ -0,0 +1,541 @@
+package com.dilatush.ntpmonitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * A parallel parser for the statistics files ntpd writes (when <code>statistics loopstats peerstats clockstats</code> is configured), into
+ * {@link NTPDStats}.  Each file is memory mapped, and split at line boundaries into chunks that are parsed in parallel on a fork/join pool; each
+ * chunk's records are collected in its own {@link NTPDStats}, and the chunks are concatenated in order at the end.  Lines are parsed straight
+ * from the mapped bytes, so nothing is allocated per line: only a source's name, the first time a chunk sees it.  The files are recognized by
+ * their names, which are the kind of statistics and the day's date, as ntpd names them (like <code>peerstats.20240101</code>); the current
+ * files ntpd links to (<code>peerstats</code>), and compressed or otherwise renamed ones, are not parsed.  Lines are in these forms (fields
+ * after those shown are ignored):
+ * <pre>
+ * loopstats:  60310 3600.021 -0.000000213 -12.345 0.000000954 0.003 4
+ *             (MJD, seconds past midnight UTC, offset in seconds, frequency offset in ppm, ...)
+ * peerstats:  60310 3600.456 127.127.20.0 971a -0.000000123 0.000000000 0.000122070 0.000000477
+ *             (MJD, seconds, address, status word in hex, offset, delay, dispersion, and jitter in seconds)
+ * clockstats: 60310 3600.000 127.127.20.0 $GPGGA,010000.00,4042.6142,N,07400.4168,W,1,09,0.9,12.3,M,-34.2,M,,*4F
+ *             (MJD, seconds, address, and the last timecode from the reference clock; only NMEA GGA sentences are parsed)
+ * </pre>
+ * Anything else (including a partial line at the end of a file that ntpd is still writing) is counted as skipped.  A single file may be no
+ * larger than 2 GB (ntpd's daily files are far smaller).  Instances of this class hold only their configuration, and are threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class NTPDStatsParser {
+
+    private static final long MJD_EPOCH = 40587;        // the MJD of 1970-01-01...
+    private static final long DAY_MS    = 86_400_000L;
+
+    private static final int  WINDOW_BYTES = 65536;         // the most of a file we copy out of the mapping at once...
+
+    // powers of ten that are exactly representable as doubles, for correctly rounded decimal conversion...
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18
+    };
+
+    private final ForkJoinPool pool;
+    private final int          chunkBytes;
+
+
+    /**
+     * The kinds of statistics files we can parse, each named by the prefix of its files' names (which are that prefix, a period, and the date
+     * as YYYYMMDD).
+     */
+    public enum Kind {
+
+        LOOP( "loopstats", 48 ), PEER( "peerstats", 64 ), CLOCK( "clockstats", 80 );
+
+        public final String prefix;
+        private final int   lineBytes;      // a little less than the length of a typical line, for sizing the records...
+
+
+        Kind( final String _prefix, final int _lineBytes ) {
+            prefix    = _prefix;
+            lineBytes = _lineBytes;
+        }
+
+
+        /**
+         * Returns the kind of statistics in the given file, judged by its name, or <code>null</code> if it isn't a daily statistics file
+         * (named like <code>peerstats.20240101</code>).
+         *
+         * @param _file the file
+         * @return the kind of statistics in the file, or null if it isn't one
+         */
+        public static Kind of( final File _file ) {
+            String name = _file.getName();
+            for( Kind kind : values() )
+                if( name.startsWith( kind.prefix ) ) return dated( name, kind.prefix.length() ) ? kind : null;
+            return null;
+        }
+
+
+        // true if all that follows the given length of prefix in the given name is a period and an eight digit date...
+        private static boolean dated( final String _name, final int _prefixLength ) {
+            if( (_name.length() != _prefixLength + 9) || (_name.charAt( _prefixLength ) != '.') ) return false;
+            for( int i = _prefixLength + 1; i < _name.length(); i++ )
+                if( (_name.charAt( i ) < '0') || (_name.charAt( i ) > '9') ) return false;
+            return true;
+        }
+    }
+
+
+    /**
+     * Creates a new instance of this class that parses on the given pool, in chunks of about the given size.
+     *
+     * @param _pool the fork/join pool to parse on
+     * @param _chunkBytes the largest chunk of a file that's parsed as a single task, in bytes
+     */
+    public NTPDStatsParser( final ForkJoinPool _pool, final int _chunkBytes ) {
+        pool       = _pool;
+        chunkBytes = Math.max( 4096, _chunkBytes );
+    }
+
+
+    /**
+     * Returns the statistics files among the given files and directories (the files directly in a directory), sorted by name; for ntpd's
+     * daily files, that puts each kind in the order it was written.
+     *
+     * @param _paths the files and directories
+     * @return the statistics files found
+     */
+    public static List<File> statsFiles( final List<File> _paths ) {
+        List<File> files = new ArrayList<>();
+        for( File path : _paths ) {
+            File[] found = path.isDirectory() ? path.listFiles() : new File[] { path };
+            if( found == null ) continue;
+            for( File file : found )
+                if( file.isFile() && (Kind.of( file ) != null) ) files.add( file );
+        }
+        files.sort( ( _a, _b ) -> _a.getName().compareTo( _b.getName() ) );
+        return files;
+    }
+
+
+    /**
+     * Parses the given statistics files, in parallel, returning their records in the order of the files given (and within each file, in the
+     * order they were in the file).  Files that aren't statistics files (by their names) are ignored.
+     *
+     * @param _files the statistics files to parse
+     * @return the records parsed
+     * @throws IOException if a file can't be read
+     */
+    public NTPDStats parse( final List<File> _files ) throws IOException {
+
+        // map each file, and start parsing it...
+        List<ForkJoinTask<List<NTPDStats>>> tasks = new ArrayList<>( _files.size() );
+        for( File file : _files ) {
+            Kind kind = Kind.of( file );
+            if( kind == null ) continue;
+            try( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ ) ) {
+                long size = channel.size();
+                if( size > Integer.MAX_VALUE ) throw new IOException( "Statistics file too large to map: " + file );
+                ByteBuffer bytes = channel.map( FileChannel.MapMode.READ_ONLY, 0, size );
+                tasks.add( pool.submit( new ChunkTask( bytes, kind, 0, (int) size, chunkBytes ) ) );
+            }
+        }
+
+        // then collect the chunks, in order...
+        List<NTPDStats> chunks = new ArrayList<>();
+        for( ForkJoinTask<List<NTPDStats>> task : tasks )
+            chunks.addAll( task.join() );
+        return NTPDStats.concat( chunks );
+    }
+
+
+    /*
+     * Parses a range of a mapped file: directly if it's small enough, or else by splitting it in two at a line boundary, and parsing the halves
+     * in parallel.  Returns the records of each chunk parsed, in order...
+     */
+    private static class ChunkTask extends RecursiveTask<List<NTPDStats>> {
+
+        private static final long serialVersionUID = 1L;    // tasks are never serialized, but RecursiveTask is Serializable...
+
+        private final ByteBuffer bytes;
+        private final Kind       kind;
+        private final int        start;
+        private final int        end;
+        private final int        chunkBytes;
+
+
+        private ChunkTask( final ByteBuffer _bytes, final Kind _kind, final int _start, final int _end, final int _chunkBytes ) {
+            bytes      = _bytes;
+            kind       = _kind;
+            start      = _start;
+            end        = _end;
+            chunkBytes = _chunkBytes;
+        }
+
+
+        @Override
+        protected List<NTPDStats> compute() {
+
+            // if we're big enough to split, split just after the first newline past the middle...
+            if( end - start > chunkBytes ) {
+                int split = start + (end - start) / 2;
+                while( (split < end) && (bytes.get( split ) != '\n') ) split++;
+                if( split < end - 1 ) {
+                    ChunkTask first = new ChunkTask( bytes, kind, start, split + 1, chunkBytes );
+                    first.fork();
+                    List<NTPDStats> second = new ChunkTask( bytes, kind, split + 1, end, chunkBytes ).compute();
+                    List<NTPDStats> result = first.join();
+                    result.addAll( second );
+                    return result;
+                }
+            }
+
+            List<NTPDStats> result = new ArrayList<>( 1 );
+            result.add( new ChunkParser( bytes, kind, end - start ).parse( start, end ) );
+            return result;
+        }
+    }
+
+
+    /*
+     * Parses the lines in a range of a mapped file into a new NTPDStats.  Holds the parsing position, and the sources it has seen (by their
+     * bytes, so that finding one allocates nothing)...
+     */
+    private static class ChunkParser {
+
+        private final ByteBuffer mapped;
+        private final Kind       kind;
+        private final NTPDStats  stats;
+        private final byte[]     window;    // the piece of the mapped file we're parsing, copied in bulk...
+        private int              pos;       // the current parsing position in the window...
+        private int              end;       // the end of the current line in the window...
+
+        // the sources we've seen, in an open-addressed hash table of their indices (plus one; zero is empty)...
+        private byte[][]         sourceNames;
+        private int[]            sourceSlots;
+        private int              sourceCount;
+
+
+        private ChunkParser( final ByteBuffer _mapped, final Kind _kind, final int _bytes ) {
+            mapped      = _mapped.duplicate();     // with our own position, as the mapping is shared by all the file's chunks...
+            kind        = _kind;
+            int records = _bytes / _kind.lineBytes;
+            stats       = new NTPDStats( (_kind == Kind.LOOP)  ? records : 0, (_kind == Kind.PEER) ? records : 0,
+                                         (_kind == Kind.CLOCK) ? records : 0 );
+            window      = new byte[Math.min( WINDOW_BYTES, _bytes )];
+            sourceNames = new byte[16][];
+            sourceSlots = new int[64];
+        }
+
+
+        private NTPDStats parse( final int _start, final int _end ) {
+
+            // copy the range into our window a piece at a time, starting each piece at the start of a line...
+            int windowStart = _start;
+            while( windowStart < _end ) {
+                int length = Math.min( window.length, _end - windowStart );
+                mapped.position( windowStart );
+                mapped.get( window, 0, length );
+                boolean last = (windowStart + length == _end);
+
+                int lineStart = 0;
+                while( lineStart < length ) {
+
+                    // find the end of this line, ignoring any carriage return; a line that runs past the window is parsed in the next one, and
+                    // a line at the end of the range with no newline is one that's still being written...
+                    int lineEnd = lineStart;
+                    while( (lineEnd < length) && (window[lineEnd] != '\n') ) lineEnd++;
+                    if( (lineEnd == length) && !last ) break;
+                    end = ((lineEnd > lineStart) && (window[lineEnd - 1] == '\r')) ? lineEnd - 1 : lineEnd;
+                    pos = lineStart;
+
+                    stats.lines++;
+                    if( (lineEnd == length) || !parseLine() ) stats.skipped++;
+                    lineStart = lineEnd + 1;
+                }
+
+                // if a line didn't fit in the whole window, it's no line of ours; skip it...
+                if( (lineStart == 0) && !last ) {
+                    lineStart = length;
+                    while( (windowStart + lineStart < _end) && (mapped.get( windowStart + lineStart ) != '\n') ) lineStart++;
+                    lineStart++;
+                    stats.lines++;
+                    stats.skipped++;
+                }
+                windowStart += lineStart;
+            }
+            stats.bytes = _end - _start;
+            return stats;
+        }
+
+
+        /*
+         * Parses the line from pos to end, adding its record, and returning true if it's a well-formed line of our kind...
+         */
+        private boolean parseLine() {
+
+            // every kind starts with the day (MJD) and the seconds since midnight...
+            skipSpaces();
+            long mjd = parseInt();
+            if( (mjd < 0) || !skipSpaces() ) return false;
+            double seconds = parseDecimal();
+            if( Double.isNaN( seconds ) || !atSpaceOrEnd() || !skipSpaces() ) return false;
+            long timeMs = (mjd - MJD_EPOCH) * DAY_MS + Math.round( seconds * 1000 );
+
+            switch( kind ) {
+
+                case LOOP: {
+                    double offset = parseDecimal();
+                    if( Double.isNaN( offset ) || !atSpaceOrEnd() || !skipSpaces() ) return false;
+                    double freq = parseDecimal();
+                    if( Double.isNaN( freq ) || !atSpaceOrEnd() ) return false;
+                    stats.addLoop( timeMs, offset * 1000, freq );
+                    return true;
+                }
+
+                case PEER: {
+                    int source = parseSource();
+                    if( (source < 0) || !skipSpaces() ) return false;
+                    int status = parseHex();
+                    if( (status < 0) || !skipSpaces() ) return false;
+                    double offset = parseDecimal();
+                    if( Double.isNaN( offset ) || !atSpaceOrEnd() || !skipSpaces() ) return false;
+                    double delay = parseDecimal();
+                    if( Double.isNaN( delay ) || !atSpaceOrEnd() || !skipSpaces() ) return false;
+                    skipToken();                          // the dispersion, which we have nowhere to put...
+                    if( !skipSpaces() ) return false;
+                    double jitter = parseDecimal();
+                    if( Double.isNaN( jitter ) || !atSpaceOrEnd() ) return false;
+                    stats.addPeer( timeMs, source, status, offset * 1000, delay * 1000, jitter * 1000 );
+                    return true;
+                }
+
+                case CLOCK: {
+                    int source = parseSource();
+                    if( (source < 0) || !skipSpaces() ) return false;
+                    return parseGGA( timeMs, source );
+                }
+
+                default:
+                    return false;
+            }
+        }
+
+
+        /*
+         * Parses an NMEA GGA sentence (from any talker), adding its fix, and returning true if it is one.  Fields that are empty (as they are
+         * without a fix) are read as NaN, or as zero satellites...
+         */
+        private boolean parseGGA( final long _timeMs, final int _source ) {
+
+            if( (end - pos < 7) || (window[pos] != '$') || (window[pos + 3] != 'G') || (window[pos + 4] != 'G')
+                    || (window[pos + 5] != 'A') || (window[pos + 6] != ',') ) return false;
+            pos += 7;
+
+            // skip the UTC time, then the latitude and longitude, each in degrees and minutes...
+            if( !skipField() ) return false;
+            double latitude = degrees( parseDecimal() );
+            if( !skipField() ) return false;
+            if( (pos < end) && (window[pos] == 'S') ) latitude = -latitude;
+            if( !skipField() ) return false;
+            double longitude = degrees( parseDecimal() );
+            if( !skipField() ) return false;
+            if( (pos < end) && (window[pos] == 'W') ) longitude = -longitude;
+            if( !skipField() ) return false;
+
+            // the fix quality, the satellites used, the HDOP (which we skip), and the altitude in meters...
+            int quality = (int) parseInt();
+            if( !skipField() ) return false;
+            int satellites = (int) parseInt();
+            if( !skipField() || !skipField() ) return false;
+            double altitudeM = parseDecimal();
+            stats.addFix( _timeMs, _source, Math.max( 0, quality ), Math.max( 0, satellites ), latitude, longitude,
+                    altitudeM * 1000 / (12.0 * 25.4) );
+            return true;
+        }
+
+
+        // converts NMEA's degrees and minutes (DDDMM.MMMM) to degrees...
+        private static double degrees( final double _degreesMinutes ) {
+            double degrees = Math.floor( _degreesMinutes / 100 );
+            return degrees + (_degreesMinutes - 100 * degrees) / 60;
+        }
+
+
+        /*
+         * Parses the source's address (up to the next white space), returning the source's index, or -1 if there isn't one.  The address is
+         * looked up by its bytes, and only made into a string the first time it's seen...
+         */
+        private int parseSource() {
+
+            int start = pos;
+            int hash = 0x811C9DC5;      // FNV-1a...
+            while( (pos < end) && (window[pos] > ' ') ) hash = (hash ^ window[pos++]) * 0x01000193;
+            if( pos == start ) return -1;
+            int length = pos - start;
+
+            int mask = sourceSlots.length - 1;
+            int slot = hash & mask;
+            while( sourceSlots[slot] != 0 ) {
+                byte[] name = sourceNames[sourceSlots[slot] - 1];
+                if( matches( name, start, length ) ) return sourceSlots[slot] - 1;
+                slot = (slot + 1) & mask;
+            }
+
+            // a new source; remember it (growing the table if it's getting full), and add it to our stats...
+            byte[] name = Arrays.copyOfRange( window, start, pos );
+            int index = stats.addSource( new String( name, StandardCharsets.US_ASCII ) );
+            if( index == sourceNames.length ) sourceNames = Arrays.copyOf( sourceNames, 2 * index );
+            sourceNames[index] = name;
+            sourceSlots[slot] = index + 1;
+            sourceCount++;
+            if( 2 * sourceCount > sourceSlots.length ) rehash();
+            return index;
+        }
+
+
+        private boolean matches( final byte[] _name, final int _start, final int _length ) {
+            if( _name.length != _length ) return false;
+            for( int i = 0; i < _length; i++ )
+                if( _name[i] != window[_start + i] ) return false;
+            return true;
+        }
+
+
+        private void rehash() {
+            sourceSlots = new int[2 * sourceSlots.length];
+            int mask = sourceSlots.length - 1;
+            for( int index = 0; index < sourceCount; index++ ) {
+                int hash = 0x811C9DC5;
+                for( byte b : sourceNames[index] ) hash = (hash ^ b) * 0x01000193;
+                int slot = hash & mask;
+                while( sourceSlots[slot] != 0 ) slot = (slot + 1) & mask;
+                sourceSlots[slot] = index + 1;
+            }
+        }
+
+
+        /*
+         * Skips non-space characters.
+         */
+        private void skipToken() {
+            while( (pos < end) && (window[pos] > ' ') ) pos++;
+        }
+
+
+        /*
+         * Skips spaces (and tabs), returning true if there's something other than white space left on the line.
+         */
+        private boolean skipSpaces() {
+            while( (pos < end) && (window[pos] <= ' ') ) pos++;
+            return pos < end;
+        }
+
+
+        /*
+         * Skips past the next comma, returning true if there was one.
+         */
+        private boolean skipField() {
+            while( (pos < end) && (window[pos] != ',') ) pos++;
+            return (pos < end) && (window[pos++] == ',');
+        }
+
+
+        /*
+         * Returns true if we're at the end of the line or at white space.
+         */
+        private boolean atSpaceOrEnd() {
+            return (pos >= end) || (window[pos] <= ' ');
+        }
+
+
+        /*
+         * Parses an unsigned decimal integer, returning -1 if there isn't one here.
+         */
+        private long parseInt() {
+            int start = pos;
+            long value = 0;
+            while( (pos < end) && (window[pos] >= '0') && (window[pos] <= '9') && (pos - start < 18) )
+                value = value * 10 + (window[pos++] - '0');
+            return (pos == start) ? -1 : value;
+        }
+
+
+        /*
+         * Parses an unsigned hexadecimal integer (as a peer status word), returning -1 if there isn't one here.
+         */
+        private int parseHex() {
+            int start = pos;
+            int value = 0;
+            while( (pos < end) && (pos - start < 8) ) {
+                int digit = Character.digit( window[pos], 16 );
+                if( digit < 0 ) break;
+                value = (value << 4) | digit;
+                pos++;
+            }
+            return ((pos == start) || !atSpaceOrEnd()) ? -1 : value;
+        }
+
+
+        /*
+         * Parses a signed decimal number with an optional fraction and an optional exponent, returning NaN if there isn't one here, and leaving
+         * the position just past it.  The significant digits are accumulated as a long and scaled by an exact power of ten, so the result is
+         * correctly rounded for up to 15 significant digits (ntpd writes at most nine decimal places); leading zeros don't count, and fraction
+         * digits past the eighteenth are ignored.
+         */
+        private double parseDecimal() {
+
+            boolean negative = false;
+            if( (pos < end) && ((window[pos] == '-') || (window[pos] == '+')) )
+                negative = (window[pos++] == '-');
+
+            long    mantissa = 0;
+            int     digits   = 0;
+            int     scale    = 0;
+            boolean any      = false;
+            boolean point    = false;
+            while( pos < end ) {
+                byte c = window[pos];
+                if( (c >= '0') && (c <= '9') ) {
+                    any = true;
+                    if( point && (scale == POWERS_OF_TEN.length - 1) ) {
+                        // too many places to matter; ignore it...
+                    }
+                    else if( digits < 18 ) {
+                        mantissa = mantissa * 10 + (c - '0');
+                        if( mantissa != 0 ) digits++;
+                        if( point ) scale++;
+                    }
+                    else if( !point )
+                        return Double.NaN;  // too big to be anything ntpd would write...
+                }
+                else if( (c == '.') && !point )
+                    point = true;
+                else
+                    break;
+                pos++;
+            }
+            if( !any ) return Double.NaN;
+            double value = mantissa / POWERS_OF_TEN[scale];
+
+            // an exponent, if there is one...
+            if( (pos < end) && ((window[pos] == 'e') || (window[pos] == 'E')) ) {
+                pos++;
+                boolean negativeExponent = false;
+                if( (pos < end) && ((window[pos] == '-') || (window[pos] == '+')) )
+                    negativeExponent = (window[pos++] == '-');
+                long exponent = parseInt();
+                if( (exponent < 0) || (exponent > 300) ) return Double.NaN;
+                value = negativeExponent ? value / Math.pow( 10, exponent ) : value * Math.pow( 10, exponent );
+            }
+            return negative ? -value : value;
+        }
+    }
+}
@@ -5,16 +5,27 @@ import com.dilatush.mop.Message;
 import com.dilatush.util.Executor;
 import com.dilatush.util.HJSONObject;
 import org.json.JSONArray;
-import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import static com.dilatush.util.Strings.isEmpty;
 
@@ -30,34 +41,391 @@ public class NTPMonitor {
     private static final Executor FIX_EX     = new Executor( "/home/tom/gpsctl/gpsctl --query fix --json"        );
     private static final Executor SAT_EX     = new Executor( "/home/tom/gpsctl/gpsctl --query satellites --json" );
 
-    private static final Pattern  NTPQ_P_PAT = Pattern.compile( "^(\\S)(\\S+)\\s+(\\S+)\\s+(\\d)\\s+([ul])\\s+(\\d+)\\s+(\\d+)\\s+(\\d+)\\s+([\\d.]+)\\s+([\\d.-]+)\\s+([\\d.]+)$", Pattern.MULTILINE );
-    private static final Pattern  NTPQ_C_PAT = Pattern.compile( "[^,]+,\\s*([^,]+).*?pll offset:\\s+([0-9Ee\\-.]+).*pll frequency:\\s+([0-9eE\\-.]+).*maximum error:\\s+([0-9Ee\\-.]+).*", Pattern.DOTALL );
-
-    private final Mailbox box;
-
-    private boolean valid;
-    private String errorMessage;
-    private List<Peer> peers;
-    private boolean validPPS;
-    private double pllOffsetMs;
-    private double pllFrequencyOffsetPpm;
-    private double maxErrMs;
-    private boolean validTime;
-    private double timeAccuracy;
-    private int satellitesUsed;
-    private boolean validFix;
-    private boolean fixIs3D;
-    private double latitude;
-    private double longitude;
-    private double altitudeFt;
-    private double fixAccuracyFt;
-    private List<Sat> satellites;
-    private Boolean previousValidPPS;
+    private static final int      MAX_PEERS  = 256;
+    private static final long     SWEEP_MS   = 3_600_000L;     // how often we sweep expired series out of our local store...
+
+    // the columns of the time series we keep in our local store...
+    private static final String[] MONITOR_COLUMNS = {
+            "pllOffsetMs", "pllFreqOffsetPpm", "maxErrMs", "validPPS", "timeAccuracy", "satellitesUsed", "validFix" };
+    private static final String[] PEER_COLUMNS = {
+            "offsetMs", "delayMs", "jitterRmsMs", "reached", "stratum", "pollIntervalSeconds" };
+
+    private final Mailbox             box;
+    private final Outbox              outbox;
+    private final GNSSStream          gnss;             // null if we're running gpsctl each cycle...
+    private final boolean             ownsGnss;         // false if our GNSS stream is a stand-in we were given, that we don't start or stop...
+    private final ExecutorService     probeExecutor;
+    private final long                probeTimeoutMs;
+    private final HighRateSampler     sampler;          // null if high rate sampling is disabled...
+    private final SNTPProber          prober;           // null if SNTP probing is disabled...
+    private final BinaryPayload       binaryPayload;
+    private final NTPBinaryCodec      binaryEncoder;    // null if we're not sending a binary payload...
+    private final TimeSeriesStore     store;            // null if we're not storing what we collect...
+    private long                      lastSweepMs;      // when we last swept our local store...
+    private volatile long             cycleMs;          // when the current cycle started, for the probes that need the time...
+    private final PeerStatistics      peerStats;        // null if we're not keeping peer statistics...
+    private final RuleEngine          rules;
+    private final AtomicReference<NTPSnapshot> latest;  // the snapshot of the latest cycle, for everything that reads it...
+    private final SelfMonitor         self;
+    private final SkyModel            sky;          // null if sky tracking is disabled...
+    private final ProbeCapture        capture;      // null if we're not capturing our probes' outputs...
+    private final Checkpoint          checkpoint;   // null if we're not checkpointing our state...
+    private final AdaptiveCadence     cadence;      // null if we run at a fixed interval...
+
+    // the four probes we run concurrently each cycle (or at their own cadence)...
+    private final ProbeSlot<PeerTable>           peerProbe;
+    private final ProbeSlot<LocalServer>         kernelProbe;
+    private final ProbeSlot<GNSSFix>             fixProbe;
+    private final ProbeSlot<List<GNSSSatellite>> satelliteProbe;
 
 
     public NTPMonitor( final Mailbox _box ) {
-        box = _box;
-        previousValidPPS = null;  // to indicate that we haven't yet recorded the PPS state...
+        this( _box, null );
+    }
+
+
+    /**
+     * Creates a new instance of this class that posts events through the given mailbox and is configured by the given configuration.  If the
+     * configuration is <code>null</code>, or if <code>ntpControl.enabled</code> is true (the default), ntpd is queried directly with NTP
+     * control (mode 6) messages, and <code>ntpq</code> is run only if that fails.  Each kind of information is collected by a {@link Probe};
+     * which probes are used depends on the configuration.  The optional configuration items are:
+     * <ul>
+     *    <li><code>timeSource</code> "ntpd" (the default) to monitor ntpd, or "chrony" to monitor chronyd, queried in-process with chrony's
+     *        command and monitoring protocol (see {@link ChronyClient})</li>
+     *    <li><code>chrony.host</code> the host chronyd is running on (default "127.0.0.1")</li>
+     *    <li><code>chrony.port</code> the UDP port chronyd is listening on for commands (default 323)</li>
+     *    <li><code>chrony.timeoutMs</code> the time to wait for chronyd to reply to each request (default 1000)</li>
+     *    <li><code>chrony.intervalMs</code> the shortest interval between queries of chronyd (default 0, every cycle)</li>
+     *    <li><code>ntpControl.enabled</code> true to query ntpd directly (default true)</li>
+     *    <li><code>ntpControl.host</code> the host ntpd is running on (default "127.0.0.1")</li>
+     *    <li><code>ntpControl.port</code> the UDP port ntpd is listening on (default 123)</li>
+     *    <li><code>ntpControl.timeoutMs</code> the time to wait for ntpd to respond to each query (default 1000)</li>
+     *    <li><code>gnss.streamHost</code> and <code>gnss.streamPort</code> the host and port of a socket streaming gpsctl JSON records</li>
+     *    <li><code>gnss.streamCommand</code> a long-running command that writes gpsctl JSON records to its standard output</li>
+     *    <li><code>gnss.gpsdHost</code> and <code>gnss.gpsdPort</code> the host and port (default 2947) of gpsd's JSON socket, to take the fix
+     *        and satellites from gpsd's TPV and SKY reports</li>
+     *    <li><code>gnss.maxAgeMs</code> how old streamed GNSS records may be before they're considered stale (default 15000)</li>
+     *    <li><code>probeTimeoutMs</code> the longest any one probe may take before its results are abandoned for a cycle (default 10000)</li>
+     *    <li><code>probes.&lt;name&gt;.intervalMs</code> and <code>probes.&lt;name&gt;.timeoutMs</code> override the interval and timeout of
+     *        the named probe ("peers", "kernel", "fix", or "satellites")</li>
+     *    <li><code>sampleIntervalMs</code> the interval for high rate sampling of the PLL state and peers, summarized in each publish; zero
+     *        (the default) disables high rate sampling, as does disabling <code>ntpControl</code> or monitoring chronyd</li>
+     *    <li><code>binaryPayload</code> "none" (the default) to publish our results as JSON, "alongside" to publish the JSON and a compact
+     *        binary payload (see {@link NTPBinaryCodec}) in <code>monitor.ntp.binary</code>, or "only" to publish just the binary payload</li>
+     *    <li><code>store.directory</code> the directory of a {@link TimeSeriesStore} to keep what we collect in (by default, nothing is
+     *        kept); the server and fix fields go in series "monitor", each peer's fields in series "peer.&lt;remote&gt;", and high rate
+     *        samples in series "samples"</li>
+     *    <li><code>store.retentionDays</code> how long to keep stored records (default 30)</li>
+     *    <li><code>store.segmentRows</code> and <code>store.segmentHours</code> the most records and hours in each segment file (defaults
+     *        86400 and 24); each segment is sized from how often its series is actually appended to, up to the most records</li>
+     *    <li><code>rules</code> an array of the rules (see {@link RuleEngine}) that decide which events to post; by default, an event is
+     *        posted when the PPS lock changes, on offset spikes, selected peer changes, low satellite counts, loss of a 3D fix, growing maximum
+     *        error, and system events</li>
+     *    <li><code>sntp.enabled</code> true to measure the offset and delay of the local server (at <code>sntp.localHost</code> and
+     *        <code>sntp.localPort</code>, default 127.0.0.1:123) and its peers with SNTP requests, as a client would (default false; see
+     *        {@link SNTPProber} for its other configuration items), published in <code>monitor.ntp.sntp</code></li>
+     *    <li><code>peerStats.enabled</code> true (the default) to keep rolling statistics for each peer (see {@link PeerStatistics} for its
+     *        other configuration items), published in <code>monitor.ntp.peers[].stats</code></li>
+     *    <li><code>sky.enabled</code> true (the default) to keep a model of the sky (see {@link SkyModel} for its other configuration items),
+     *        updated each time the satellites are polled and published in <code>monitor.ntp.sky</code></li>
+     *    <li><code>capture.directory</code> the directory to capture the raw outputs of our probes in, for replaying off-box (see
+     *        {@link ProbeCapture}); what's captured is whatever the probes actually read (the output of ntpq and gpsctl, ntpd's responses to
+     *        NTP control messages, and the GNSS stream's records), so capturing doesn't change how the monitor runs, but chronyd can't be
+     *        captured</li>
+     *    <li><code>checkpoint.file</code> the file to checkpoint the state of our rules, peer statistics, and sky model to, periodically
+     *        and when we're shut down, and to restore it from when we start (see {@link Checkpoint} for its other configuration items);
+     *        without it (the default), all of it starts afresh each time the monitor starts</li>
+     *    <li><code>cadence.enabled</code> true to run faster while the clock is disturbed, and back off as it settles, in place of the fixed
+     *        <code>monitorInterval</code> (default false; see {@link AdaptiveCadence} for its other configuration items); the peer statistics
+     *        are then updated only on the cycles that are a <code>cadence.maxSeconds</code> apart, and the cadence is published in
+     *        <code>monitor.ntp.cadence</code></li>
+     * </ul>
+     * If no GNSS stream socket, command, or gpsd is configured, gpsctl is run twice each cycle to query the fix and satellites, one query after
+     * the other (as both use the GNSS receiver's serial port).
+     *
+     * @param _box the mailbox to post events through
+     * @param _config the monitor's configuration, or <code>null</code> for the defaults
+     */
+    public NTPMonitor( final Mailbox _box, final HJSONObject _config ) {
+        this( _box, _config, null );
+    }
+
+
+    /**
+     * Creates a new instance of this class as above, but that posts events through the given outbox (so they're kept until the central post
+     * office is reachable).
+     *
+     * @param _box the mailbox to create events with
+     * @param _config the monitor's configuration, or <code>null</code> for the defaults
+     * @param _outbox the outbox to post events through, or <code>null</code> to post them straight through the mailbox
+     */
+    public NTPMonitor( final Mailbox _box, final HJSONObject _config, final Outbox _outbox ) {
+        this( _box, _config, _outbox, NTPQ_P_EX::run, NTPQ_C_EX::run, FIX_EX::run, SAT_EX::run );
+    }
+
+
+    /**
+     * Creates a new instance of this class as above, but with the given stand-ins for the commands it would otherwise run (ntpq -p,
+     * ntpq -c kerninfo, gpsctl --query fix, and gpsctl --query satellites).  Each returns the command's output, or <code>null</code> or an
+     * empty string if the command failed.  This lets benchmarks and replays feed the monitor recorded outputs.
+     *
+     * @param _box the mailbox to create events with, or <code>null</code> to post no events
+     * @param _config the monitor's configuration, or <code>null</code> for the defaults
+     * @param _outbox the outbox to post events through, or <code>null</code> to post them straight through the mailbox
+     * @param _ntpqPeers the stand-in for ntpq -p
+     * @param _ntpqKernel the stand-in for ntpq -c kerninfo
+     * @param _gpsctlFix the stand-in for gpsctl --query fix --json
+     * @param _gpsctlSatellites the stand-in for gpsctl --query satellites --json
+     */
+    /* package-private */ NTPMonitor( final Mailbox _box, final HJSONObject _config, final Outbox _outbox,
+                                      final Supplier<String> _ntpqPeers, final Supplier<String> _ntpqKernel,
+                                      final Supplier<String> _gpsctlFix, final Supplier<String> _gpsctlSatellites ) {
+        this( _box, _config, _outbox, _ntpqPeers, _ntpqKernel, _gpsctlFix, _gpsctlSatellites, null, null, null );
+    }
+
+
+    /**
+     * Creates a new instance of this class as above, but also with stand-ins for ntpd's responses to the NTP control queries of the peers and
+     * kernel probes (in the form {@link NTPControlClient} captures them in, taken in order, each <code>null</code> if its query failed), and
+     * for the GNSS stream.  This lets replays feed the monitor everything a capture recorded, by the same paths it took in the field.
+     *
+     * @param _box the mailbox to create events with, or <code>null</code> to post no events
+     * @param _config the monitor's configuration, or <code>null</code> for the defaults
+     * @param _outbox the outbox to post events through, or <code>null</code> to post them straight through the mailbox
+     * @param _ntpqPeers the stand-in for ntpq -p
+     * @param _ntpqKernel the stand-in for ntpq -c kerninfo
+     * @param _gpsctlFix the stand-in for gpsctl --query fix --json
+     * @param _gpsctlSatellites the stand-in for gpsctl --query satellites --json
+     * @param _controlPeers the stand-in for ntpd's responses to the peers probe, or <code>null</code> to query ntpd (if configured to)
+     * @param _controlKernel the stand-in for ntpd's responses to the kernel probe, or <code>null</code> to query ntpd (if configured to)
+     * @param _gnss the stand-in for the GNSS stream (which is neither started nor stopped), or <code>null</code> for the configured stream
+     */
+    /* package-private */ NTPMonitor( final Mailbox _box, final HJSONObject _config, final Outbox _outbox,
+                                      final Supplier<String> _ntpqPeers, final Supplier<String> _ntpqKernel,
+                                      final Supplier<String> _gpsctlFix, final Supplier<String> _gpsctlSatellites,
+                                      final Supplier<String> _controlPeers, final Supplier<String> _controlKernel, final GNSSStream _gnss ) {
+        box              = _box;
+        outbox           = (_outbox == null) ? new Outbox( _box ) : _outbox;
+
+        HJSONObject config = (_config == null) ? new HJSONObject() : _config;
+        self = new SelfMonitor( config );
+
+        // capture the raw outputs of our probes, if we're configured to (and we're monitoring ntpd, as chronyd has no raw outputs)...
+        String timeSource = config.optStringDotted( "timeSource", "ntpd" );
+        ProbeCapture capturing = null;
+        try {
+            capturing = ProbeCapture.fromConfig( config );
+        }
+        catch( IOException _e ) {
+            LOGGER.log( Level.SEVERE, "Can't open the capture; nothing will be captured", _e );
+        }
+        if( (capturing != null) && "chrony".equals( timeSource ) ) {
+            LOGGER.log( Level.WARNING, "Probe outputs can't be captured while monitoring chronyd; nothing will be captured" );
+            capturing.close();
+            capturing = null;
+        }
+        capture = capturing;
+        Supplier<String> ntpqPeers        = captured( ProbeCapture.Source.PEERS,      _ntpqPeers        );
+        Supplier<String> ntpqKernel       = captured( ProbeCapture.Source.KERNEL,     _ntpqKernel       );
+        // the two gpsctl queries share the GNSS receiver's serial port, so they take turns (while their probes still run concurrently)...
+        Lock gpsctl = new ReentrantLock();
+        Supplier<String> gpsctlFix        = serialized( gpsctl, captured( ProbeCapture.Source.FIX,        _gpsctlFix        ) );
+        Supplier<String> gpsctlSatellites = serialized( gpsctl, captured( ProbeCapture.Source.SATELLITES, _gpsctlSatellites ) );
+
+        // where we get our GNSS records from: a stream of gpsctl or gpsd records (whose records we capture, if we're capturing), or gpsctl run
+        // each cycle...
+        String streamHost    = config.optStringDotted( "gnss.streamHost",    null  );
+        String streamCommand = config.optStringDotted( "gnss.streamCommand", null  );
+        String gpsdHost      = config.optStringDotted( "gnss.gpsdHost",      null  );
+        long   maxAgeMs      = config.optLongDotted(   "gnss.maxAgeMs",      15000 );
+        ownsGnss = (_gnss == null);
+        if( _gnss != null )
+            gnss = _gnss;
+        else if( !isEmpty( gpsdHost ) )
+            gnss = GNSSStream.forGpsd( gpsdHost, config.optIntDotted( "gnss.gpsdPort", 2947 ), maxAgeMs );
+        else if( !isEmpty( streamHost ) )
+            gnss = GNSSStream.forSocket( streamHost, config.optIntDotted( "gnss.streamPort", 2948 ), maxAgeMs );
+        else if( !isEmpty( streamCommand ) )
+            gnss = GNSSStream.forCommand( streamCommand, maxAgeMs );
+        else
+            gnss = null;
+        if( (gnss != null) && (capture != null) ) gnss.recordTo( capture.recorder( ProbeCapture.Source.GNSS_STREAM ) );
+        if( (gnss != null) && ownsGnss ) gnss.start();
+
+        // the time service we're monitoring; each probe that talks to it gets its own client, as they run concurrently...
+        boolean useControl = (_controlPeers != null) || config.optBooleanDotted( "ntpControl.enabled", true );
+        InetSocketAddress ntpd = new InetSocketAddress(
+                config.optStringDotted( "ntpControl.host", "127.0.0.1" ),
+                config.optIntDotted(    "ntpControl.port", 123         ) );
+        long controlTimeoutMs = config.optLongDotted( "ntpControl.timeoutMs", 1000 );
+        Probe<PeerTable>   peers;
+        Probe<LocalServer> kernel;
+        if( "chrony".equals( timeSource ) ) {
+            InetSocketAddress chronyd = new InetSocketAddress(
+                    config.optStringDotted( "chrony.host", "127.0.0.1" ),
+                    config.optIntDotted(    "chrony.port", 323         ) );
+            long chronyTimeoutMs  = config.optLongDotted( "chrony.timeoutMs",  1000 );
+            long chronyIntervalMs = config.optLongDotted( "chrony.intervalMs", 0    );
+            peers  = new ChronySourcesProbe(  new ChronyClient( chronyd, chronyTimeoutMs ), chronyIntervalMs, MAX_PEERS );
+            kernel = new ChronyTrackingProbe( new ChronyClient( chronyd, chronyTimeoutMs ), chronyIntervalMs );
+            useControl = false;
+        }
+        else if( "ntpd".equals( timeSource ) ) {
+            NTPControlClient peersClient  = !useControl ? null
+                    : control( ntpd, controlTimeoutMs, ProbeCapture.Source.CONTROL_PEERS,  _controlPeers  );
+            NTPControlClient kernelClient = !useControl ? null
+                    : control( ntpd, controlTimeoutMs, ProbeCapture.Source.CONTROL_KERNEL, _controlKernel );
+            peers  = new NTPDPeersProbe(  peersClient,  ntpqPeers, MAX_PEERS, () -> cycleMs );
+            kernel = new NTPDKernelProbe( kernelClient, ntpqKernel );
+        }
+        else
+            throw new IllegalArgumentException( "Invalid timeSource: " + timeSource );
+
+        // set up our probes, and the daemon threads to run them on...
+        probeTimeoutMs = config.optLongDotted( "probeTimeoutMs", 10000 );
+        peerProbe      = new ProbeSlot<>( peers,                                           config );
+        kernelProbe    = new ProbeSlot<>( kernel,                                          config );
+        fixProbe       = new ProbeSlot<>( new GNSSFixProbe(        gnss, gpsctlFix        ), config );
+        satelliteProbe = new ProbeSlot<>( new GNSSSatellitesProbe( gnss, gpsctlSatellites ), config );
+        probeExecutor  = Executors.newFixedThreadPool( 4, _runnable -> {
+            Thread thread = new Thread( _runnable, "NTP Monitor Probe" );
+            thread.setDaemon( true );
+            return thread;
+        } );
+        for( ProbeSlot<?> probe : new ProbeSlot<?>[] { peerProbe, kernelProbe, fixProbe, satelliteProbe } )
+            probe.probe.start();
+
+        // how often we run, if that adapts to what we see...
+        cadence = AdaptiveCadence.fromConfig( config );
+
+        // rolling peer statistics, updated each time the peers are polled (this is the nominal interval; the statistics measure the actual)...
+        double baseSeconds = (cadence == null) ? config.optLongDotted( "monitorInterval", 60 ) : cadence.maxMs() / 1000.0;
+        double peerIntervalSeconds = Math.max( baseSeconds, peerProbe.intervalMs / 1e3 );
+        peerStats = config.optBooleanDotted( "peerStats.enabled", true ) ? new PeerStatistics( config, peerIntervalSeconds ) : null;
+
+        // the model of the sky, updated each time the satellites are polled...
+        sky = config.optBooleanDotted( "sky.enabled", true ) ? new SkyModel( config ) : null;
+
+        // the rules that decide which events we post...
+        rules = new RuleEngine( config );
+
+        // our local store, if we're configured for it...
+        String storeDirectory = config.optStringDotted( "store.directory", null );
+        TimeSeriesStore localStore = null;
+        if( !isEmpty( storeDirectory ) ) {
+            try {
+                localStore = new TimeSeriesStore( new File( storeDirectory ),
+                        config.optIntDotted( "store.segmentRows", 86400 ),
+                        TimeUnit.HOURS.toMillis( config.optLongDotted( "store.segmentHours", 24 ) ),
+                        TimeUnit.DAYS.toMillis( config.optLongDotted( "store.retentionDays", 30 ) ) );
+            }
+            catch( IOException _e ) {
+                LOGGER.log( Level.SEVERE, "Can't open the local store; nothing will be stored", _e );
+            }
+        }
+        store = localStore;
+
+        // high rate sampling, if we're configured for it...
+        long sampleIntervalMs  = config.optLongDotted( "sampleIntervalMs", 0 );
+        long publishIntervalMs = 1000 * config.optLongDotted( "monitorInterval", 60 );
+        if( (sampleIntervalMs > 0) && useControl ) {
+            sampler = new HighRateSampler( ntpd, Math.min( controlTimeoutMs, sampleIntervalMs ), gnss, sampleIntervalMs, publishIntervalMs,
+                    (store == null) ? null : store.series( "samples", HighRateSampler.SERIES_COLUMNS ) );
+            sampler.start();
+        }
+        else {
+            if( sampleIntervalMs > 0 )
+                LOGGER.log( Level.WARNING, "High rate sampling requires ntpd with ntpControl enabled; sampling is disabled" );
+            sampler = null;
+        }
+
+        // SNTP probing of the local server and its peers, if we're configured for it...
+        if( config.optBooleanDotted( "sntp.enabled", false ) ) {
+            prober = new SNTPProber( config, new InetSocketAddress( config.optStringDotted( "sntp.localHost", "127.0.0.1" ),
+                    config.optIntDotted( "sntp.localPort", 123 ) ), publishIntervalMs );
+            prober.start();
+        }
+        else
+            prober = null;
+
+        // the form we publish our results in...
+        String payload = config.optStringDotted( "binaryPayload", "none" );
+        try {
+            binaryPayload = BinaryPayload.valueOf( payload.toUpperCase() );
+        }
+        catch( IllegalArgumentException _e ) {
+            throw new IllegalArgumentException( "Invalid binaryPayload: " + payload );
+        }
+        binaryEncoder = (binaryPayload == BinaryPayload.NONE) ? null : new NTPBinaryCodec();
+
+        latest = new AtomicReference<>();
+
+        // pick up where we left off, if we're checkpointing our state...
+        checkpoint = Checkpoint.fromConfig( config );
+        if( checkpoint != null ) {
+            checkpoint.add( "rules", rules );
+            if( peerStats != null ) checkpoint.add( "peerStats", peerStats );
+            if( sky       != null ) checkpoint.add( "sky",       sky       );
+            checkpoint.restore( System.currentTimeMillis() );
+        }
+    }
+
+
+    /*
+     * Returns a control client for the given ntpd (capturing its responses as the given source's if we're capturing), or a stand-in for one
+     * that replays the given responses, if there are any...
+     */
+    private NTPControlClient control( final InetSocketAddress _ntpd, final long _timeoutMs, final ProbeCapture.Source _source,
+                                      final Supplier<String> _replayed ) {
+        if( _replayed != null ) return NTPControlClient.replaying( _replayed );
+        NTPControlClient client = new NTPControlClient( _ntpd, _timeoutMs );
+        return (capture == null) ? client : client.recordingTo( capture.recorder( _source ) );
+    }
+
+
+    /*
+     * Returns the given command (or stand-in), capturing its outputs as the given source's if we're capturing...
+     */
+    private Supplier<String> captured( final ProbeCapture.Source _source, final Supplier<String> _command ) {
+        return (capture == null) ? _command : capture.recorder( _source, _command );
+    }
+
+
+    /*
+     * Returns the given command, run only while holding the given lock; if the probe running it is cancelled while it waits for the lock, the
+     * command isn't run, and fails...
+     */
+    private static Supplier<String> serialized( final Lock _lock, final Supplier<String> _command ) {
+        return () -> {
+            try {
+                _lock.lockInterruptibly();
+            }
+            catch( InterruptedException _e ) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            try {
+                return _command.get();
+            }
+            finally {
+                _lock.unlock();
+            }
+        };
+    }
+
+
+    /**
+     * Stops this monitor: stops its probes, its GNSS stream, its high rate sampler and SNTP prober, and the threads it runs its probes on, and
+     * closes its capture.
+     */
+    public void stop() {
+        for( ProbeSlot<?> probe : new ProbeSlot<?>[] { peerProbe, kernelProbe, fixProbe, satelliteProbe } )
+            probe.probe.stop();
+        if( (gnss   != null) && ownsGnss ) gnss.stop();
+        if( sampler != null ) sampler.stop();
+        if( prober  != null ) prober.stop();
+        probeExecutor.shutdownNow();
+        if( capture != null ) capture.close();
     }
 
 
@@ -66,121 +434,309 @@ public class NTPMonitor {
      *
      * @param _message the message to be filled.
      */
-    /* package-private */ void fill( final Message _message ) {
+    /* package-private */ void fill( final HJSONObject _message ) {
+        fill( _message, System.currentTimeMillis() );
+    }
 
-        // first run the monitor...
-        run();  // collect our data...
-        fillMessage( _message );    // fill in the message...
-        post();                     // post event for our important readings...
-        postValidPPSChange();       // post an event if validPPS has changed...
+
+    /**
+     * Runs this monitor as of the given time, and fills the specified message with the results.  Everything that depends on time (the rules'
+     * debouncing and suppression, the peer statistics, the sky model, the cadence, the store, and the events) takes the cycle to have started
+     * at the given time, so that a replay can run on the captured times, however fast it runs.
+     *
+     * @param _message the message to be filled.
+     * @param _timeMs when the cycle started (normally System.currentTimeMillis())
+     */
+    /* package-private */ synchronized void fill( final HJSONObject _message, final long _timeMs ) {
+
+        // first run the monitor, timing each stage...
+        long start = System.nanoTime();
+        NTPSnapshot snapshot = run( _timeMs );  // collect our data...
+        latest.set( snapshot );         // make it available to readers on other threads...
+        start = lap( "ntp.collect", start );
+        record( snapshot );             // keep it, if we have a store...
+        start = lap( "ntp.store", start );
+        boolean base = (cadence == null) || cadence.isBaseCycle( snapshot.timeMs );    // evenly spaced, for the Allan deviations...
+        if( (peerStats != null) && peerProbe.isFresh() && base ) peerStats.update( snapshot.peers, snapshot.timeMs );
+        if( (sky != null) && satelliteProbe.isFresh() ) sky.update( snapshot.timeMs, snapshot.satellites );
+        if( (prober != null) && peerProbe.isFresh() ) prober.setPeers( snapshot.peers );
+        if( cadence != null ) cadence.update( snapshot );
+        start = lap( "ntp.statistics", start );
+        fillMessage( _message, snapshot );  // fill in the message...
+        start = lap( "ntp.message", start );
+        post( snapshot );                   // post event for our important readings...
+        start = lap( "ntp.post", start );
+        postRuleEvents( snapshot );         // post an event for each rule that fired...
+        start = lap( "ntp.rules", start );
+        if( (checkpoint != null) && checkpoint.isDue( snapshot.timeMs ) ) {
+            if( !checkpoint.save( snapshot.timeMs ) ) self.fail( "ntp.checkpoint" );
+            lap( "ntp.checkpoint", start );
+        }
+    }
+
+
+    /**
+     * Checkpoints this monitor's state now, if it's configured to checkpoint, waiting for any cycle that's running to finish first.  Called when
+     * the monitor is shut down.
+     */
+    public synchronized void checkpoint() {
+        if( checkpoint != null ) checkpoint.save( System.currentTimeMillis() );
+    }
+
+
+    /*
+     * Records the time since the given start (System.nanoTime()) as the time the given stage took, and returns the current time...
+     */
+    private long lap( final String _stage, final long _start ) {
+        long now = System.nanoTime();
+        self.time( _stage, now - _start );
+        return now;
     }
 
 
     /**
-     * Post an event if validPPS has changed...
+     * Returns the monitor's instrumentation of itself, which times each stage of a cycle and counts failures.
+     *
+     * @return this monitor's self instrumentation
      */
-    private void postValidPPSChange() {
+    /* package-private */ SelfMonitor self() {
+        return self;
+    }
+
 
-        // if we haven't recorded one yet, record it leave...
-        if( previousValidPPS == null ) {
-            previousValidPPS = validPPS;
-            return;
+    /**
+     * Returns the snapshot of what this monitor collected in its latest cycle, or <code>null</code> if it hasn't finished a cycle yet.  This may
+     * be called from any thread, and never waits for the monitor.
+     *
+     * @return the latest snapshot, or null if there isn't one yet
+     */
+    public NTPSnapshot latest() {
+        return latest.get();
+    }
+
+
+    /*
+     * Appends what we've just collected to our local store, if we have one, and now and then sweeps expired series out of it.  Only what the
+     * probes read this cycle is stored; what's missing (because a probe failed, or is resting until it's due again) is stored as NaN, and
+     * nothing is stored if nothing was read...
+     */
+    private void record( final NTPSnapshot _snapshot ) {
+
+        if( store == null ) return;
+        long now = _snapshot.timeMs;
+        if( now - lastSweepMs >= SWEEP_MS ) {
+            lastSweepMs = now;
+            int dropped = store.sweep( now );
+            if( dropped > 0 ) LOGGER.log( Level.INFO, "Dropped " + dropped + " expired series from the local store" );
+        }
+        LocalServer server = kernelProbe.isFresh() ? _snapshot.server : null;
+        GNSSFix     fix    = fixProbe.isFresh()    ? _snapshot.fix    : null;
+        PeerView    peers  = peerProbe.isFresh()   ? _snapshot.peers  : null;
+        try {
+            if( (server != null) || (fix != null) ) store.series( "monitor", MONITOR_COLUMNS ).append( now,
+                    (server == null) ? Double.NaN : server.pllOffsetMs,
+                    (server == null) ? Double.NaN : server.pllFrequencyOffsetPpm,
+                    (server == null) ? Double.NaN : server.maxErrMs,
+                    (server == null) ? Double.NaN : (server.isPPS() ? 1 : 0),
+                    (fix    == null) ? Double.NaN : fix.timeAccuracy,
+                    (fix    == null) ? Double.NaN : fix.satellitesUsed,
+                    (fix    == null) ? Double.NaN : (fix.validFix ? 1 : 0) );
+            if( peers != null ) {
+                for( int i = 0; i < peers.size(); i++ ) {
+                    store.series( "peer." + TimeSeriesStore.seriesName( peers.remote( i ) ), PEER_COLUMNS ).append( now,
+                            peers.offsetMs( i ), peers.delayMs( i ), peers.jitterRmsMs( i ), peers.reached( i ), peers.stratum( i ),
+                            peers.pollIntervalSeconds( i ) );
+                }
+            }
+        }
+        catch( IOException _e ) {
+            LOGGER.log( Level.WARNING, "Couldn't store monitor results: " + _e.getMessage() );
         }
+    }
 
-        // otherwise, see if things have changed...
-        if( previousValidPPS != validPPS ) {
 
-            // yup, they've changed - so send the event...
-            String message = "As reported by 'ntpq -c kerninfo', and noted at " + new Date().toString();
-            String subject = validPPS ? "NTP now locked to PPS" : "NTP now NOT locked to PPS";
+    /*
+     * Evaluates our rules against what we've just collected, and posts an event for each one that fired...
+     */
+    private void postRuleEvents( final NTPSnapshot _snapshot ) {
+
+        long now = _snapshot.timeMs;
+        List<RuleEngine.Firing> firings = rules.evaluate( now, _snapshot.valid, _snapshot.server, _snapshot.fix, _snapshot.peers );
+        if( box == null ) return;   // the rules still keep their state, even if there's no mailbox to post with...
+        for( RuleEngine.Firing firing : firings ) {
             Message msg = box.createDirectMessage( "events.post", "event.post", false );
-            msg.putDotted( "tag",          "pps.change"               );
-            msg.putDotted( "timestamp",    System.currentTimeMillis() );
-            msg.putDotted( "event.source", "ntp.monitor"              );
-            msg.putDotted( "event.type",    "valid.pps.changed"       );
-            msg.putDotted( "event.message", message                   );
-            msg.putDotted( "event.level",   5                         );
-            msg.putDotted( "event.subject", subject                   );
-            box.send( msg );
+            msg.putDotted( "tag",           firing.tag     );
+            msg.putDotted( "timestamp",     now            );
+            msg.putDotted( "event.source",  "ntp.monitor"  );
+            msg.putDotted( "event.type",    firing.type    );
+            msg.putDotted( "event.message", firing.message );
+            msg.putDotted( "event.level",   firing.level   );
+            msg.putDotted( "event.subject", firing.subject );
+            outbox.direct( "events.post", "event.post", msg );
         }
+    }
+
 
-        // record the latest...
-        previousValidPPS = validPPS;
+    /**
+     * Returns the cadence that decides how often this monitor runs, or <code>null</code> if it runs at a fixed interval.
+     *
+     * @return this monitor's cadence, or null if it's fixed
+     */
+    /* package-private */ AdaptiveCadence cadence() {
+        return cadence;
+    }
+
+
+    /**
+     * Returns the rule engine that decides which events this monitor posts.
+     *
+     * @return this monitor's rule engine
+     */
+    /* package-private */ RuleEngine rules() {
+        return rules;
     }
 
 
     /*
-     * Post event...
+     * Post event for the given snapshot...
      */
-    private void post() {
+    /* package-private */ void post( final NTPSnapshot _snapshot ) {
 
-        // if we don't have a valid capture, skip all this...
-        if( !valid ) return;
+        // if we don't have both the kernel's state and the GNSS fix (or we have no mailbox to post with), skip all this...
+        LocalServer server = _snapshot.server;
+        GNSSFix     fix    = _snapshot.fix;
+        if( (server == null) || (fix == null) || (box == null) ) return;
 
         // build our event message...
         Message msg = box.createDirectMessage( "events.post", "event.post", false );
         msg.putDotted( "tag",                          "ntpstats" );
-        msg.putDotted( "timestamp",                    System.currentTimeMillis() );
-        msg.putDotted( "fields.validPPS",              validPPS              );
-        msg.putDotted( "fields.pllOffsetMs",           pllOffsetMs           );
-        msg.putDotted( "fields.pllFrequencyOffsetPpm", pllFrequencyOffsetPpm );
-        msg.putDotted( "fields.maxErrMs",              maxErrMs              );
-        msg.putDotted( "fields.validTime",             validTime             );
-        msg.putDotted( "fields.timeAccuracy",          timeAccuracy          );
-        msg.putDotted( "fields.satellitesUsed",        satellitesUsed        );
+        msg.putDotted( "timestamp",                    _snapshot.timeMs             );
+        msg.putDotted( "fields.validPPS",              server.isPPS()               );
+        msg.putDotted( "fields.pllOffsetMs",           server.pllOffsetMs           );
+        msg.putDotted( "fields.pllFrequencyOffsetPpm", server.pllFrequencyOffsetPpm );
+        msg.putDotted( "fields.maxErrMs",              server.maxErrMs              );
+        msg.putDotted( "fields.validTime",             fix.validTime                );
+        msg.putDotted( "fields.timeAccuracy",          fix.timeAccuracy             );
+        msg.putDotted( "fields.satellitesUsed",        fix.satellitesUsed           );
+        if( _snapshot.samples != null ) {
+            for( Map.Entry<String,SampleStats> entry : _snapshot.samples.scalars.entrySet() ) {
+                msg.putDotted( "fields." + entry.getKey() + "Min",    entry.getValue().min    );
+                msg.putDotted( "fields." + entry.getKey() + "Max",    entry.getValue().max    );
+                msg.putDotted( "fields." + entry.getKey() + "StdDev", entry.getValue().stdDev );
+            }
+        }
 
         // send it!
-        box.send( msg );
+        outbox.direct( "events.post", "event.post", msg );
     }
 
 
     /*
-     * Fills in the given message, from the data we've collected...
+     * Fills in the given message from the given snapshot.  Whatever probes succeeded have their results filled in, even if others failed.
+     * Depending on our configuration, the results are filled in as JSON, as a binary payload, or both...
      */
-    private void fillMessage( final Message _message ) {
-        // no matter what, fill in the validity...
-        _message.putDotted( "monitor.ntp.valid", valid );
-
-        // if the results were not valid, fill in the error message and leave...
-        if( !valid ) {
-            _message.putDotted( "monitor.ntp.errorMessage", errorMessage );
-            return;
+    /* package-private */ void fillMessage( final HJSONObject _message, final NTPSnapshot _snapshot ) {
+
+        // no matter what, fill in the overall validity...
+        _message.putDotted( "monitor.ntp.valid", _snapshot.valid );
+        if( !_snapshot.valid )
+            _message.putDotted( "monitor.ntp.errorMessage", _snapshot.errorMessage );
+        if( cadence != null ) cadence.putDotted( _message, "monitor.ntp.cadence" );
+
+        if( binaryPayload != BinaryPayload.ONLY ) {
+            for( NTPSnapshot.ProbeStatus probe : _snapshot.probes )
+                fillProbe( _message, probe.name, probe.valid, probe.latencyMs, probe.errorMessage );
+            if( _snapshot.server     != null ) fillServer(     _message, _snapshot.server     );
+            if( _snapshot.fix        != null ) fillFix(        _message, _snapshot.fix        );
+            if( _snapshot.peers      != null ) fillPeers(      _message, _snapshot.peers, peerStats );
+            if( _snapshot.satellites != null ) fillSatellites( _message, _snapshot.satellites );
+            if( sky                  != null ) sky.putDotted( _message, "monitor.ntp.sky" );
+            if( _snapshot.samples    != null ) fillSamples(    _message, _snapshot.samples    );
+            if( _snapshot.sntp       != null ) fillSNTP(       _message, _snapshot.sntp       );
         }
 
-        // otherwise, fill in our collected data...
-        _message.putDotted( "monitor.ntp.pllOffsetMs",      pllOffsetMs           );
-        _message.putDotted( "monitor.ntp.pllFreqOffsetPpm", pllFrequencyOffsetPpm );
-        _message.putDotted( "monitor.ntp.maxErrMs",         maxErrMs              );
-        _message.putDotted( "monitor.ntp.validPPS",         validPPS              );
-        _message.putDotted( "monitor.ntp.validTime",        validTime             );
-        _message.putDotted( "monitor.ntp.timeAccuracy",     timeAccuracy          );
-        _message.putDotted( "monitor.ntp.satellitesUsed",   satellitesUsed        );
-        _message.putDotted( "monitor.ntp.validFix",         validFix              );
-        _message.putDotted( "monitor.ntp.fixIs3D",          fixIs3D               );
-        _message.putDotted( "monitor.ntp.latitude",         latitude              );
-        _message.putDotted( "monitor.ntp.longitude",        longitude             );
-        _message.putDotted( "monitor.ntp.altitudeFt",       altitudeFt            );
-        _message.putDotted( "monitor.ntp.fixAccuracyFt",    fixAccuracyFt         );
+        if( binaryPayload != BinaryPayload.NONE ) {
+            binaryEncoder.begin( _snapshot.valid, _snapshot.errorMessage );
+            for( NTPSnapshot.ProbeStatus probe : _snapshot.probes )
+                binaryEncoder.probe( probe.name, probe.valid, probe.latencyMs, probe.errorMessage );
+            if( _snapshot.server     != null ) binaryEncoder.server(     _snapshot.server     );
+            if( _snapshot.fix        != null ) binaryEncoder.fix(        _snapshot.fix        );
+            if( _snapshot.peers      != null ) binaryEncoder.peers(      _snapshot.peers      );
+            if( _snapshot.satellites != null ) binaryEncoder.satellites( _snapshot.satellites );
+            if( _snapshot.samples    != null ) binaryEncoder.samples(    _snapshot.samples    );
+            _message.putDotted( "monitor.ntp.binary", binaryEncoder.toBase64() );
+        }
+    }
+
+
+    /*
+     * The methods below fill in the monitor.ntp fields for each kind of result.  They're shared with NTPBinaryCodec, so that a decoded binary
+     * payload produces exactly the same fields as the JSON does...
+     */
+    /* package-private */ static void fillProbe( final HJSONObject _message, final String _name, final boolean _valid, final long _latencyMs,
+                                                 final String _errorMessage ) {
+        _message.putDotted( "monitor.ntp.probes." + _name + ".valid",     _valid     );
+        _message.putDotted( "monitor.ntp.probes." + _name + ".latencyMs", _latencyMs );
+        if( !_valid )
+            _message.putDotted( "monitor.ntp.probes." + _name + ".errorMessage", _errorMessage );
+    }
+
+
+    /* package-private */ static void fillServer( final HJSONObject _message, final LocalServer _server ) {
+        _message.putDotted( "monitor.ntp.pllOffsetMs",       _server.pllOffsetMs           );
+        _message.putDotted( "monitor.ntp.pllFreqOffsetPpm",  _server.pllFrequencyOffsetPpm );
+        _message.putDotted( "monitor.ntp.maxErrMs",          _server.maxErrMs              );
+        _message.putDotted( "monitor.ntp.validPPS",          _server.isPPS()               );
+        _message.putDotted( "monitor.ntp.server.statusWord", _server.statusWord            );
+        _message.putDotted( "monitor.ntp.server.leap",       _server.leapSecMode.name()    );
+        _message.putDotted( "monitor.ntp.server.syncSource", _server.syncSource.name()     );
+        _message.putDotted( "monitor.ntp.server.eventCount", _server.count                 );
+        _message.putDotted( "monitor.ntp.server.lastEvent",  _server.event.name()          );
+        _message.putDotted( "monitor.ntp.server.stratum",    _server.stratum               );
+        _message.putDotted( "monitor.ntp.server.precision",  _server.precision             );
+    }
+
+
+    /* package-private */ static void fillFix( final HJSONObject _message, final GNSSFix _fix ) {
+        _message.putDotted( "monitor.ntp.validTime",         _fix.validTime                );
+        _message.putDotted( "monitor.ntp.timeAccuracy",      _fix.timeAccuracy             );
+        _message.putDotted( "monitor.ntp.satellitesUsed",    _fix.satellitesUsed           );
+        _message.putDotted( "monitor.ntp.validFix",          _fix.validFix                 );
+        _message.putDotted( "monitor.ntp.fixIs3D",           _fix.fixIs3D                  );
+        _message.putDotted( "monitor.ntp.latitude",          _fix.latitude                 );
+        _message.putDotted( "monitor.ntp.longitude",         _fix.longitude                );
+        _message.putDotted( "monitor.ntp.altitudeFt",        _fix.altitudeFt               );
+        _message.putDotted( "monitor.ntp.fixAccuracyFt",     _fix.fixAccuracyFt            );
+    }
+
+
+    /* package-private */ static void fillPeers( final HJSONObject _message, final PeerView _peers, final PeerStatistics _stats ) {
         JSONArray peersJSON = new JSONArray();
         _message.putDotted( "monitor.ntp.peers",          peersJSON      );
-        for( Peer peer : peers ) {
+        for( int i = 0; i < _peers.size(); i++ ) {
             JSONObject peerJSON = new JSONObject();
-            peerJSON.put( "state",               peer.state               );
-            peerJSON.put( "remote",              peer.remote              );
-            peerJSON.put( "refid",               peer.refid               );
-            peerJSON.put( "stratum",             peer.stratum             );
-            peerJSON.put( "local",               peer.local               );
-            peerJSON.put( "lastPolledSeconds",   peer.lastPolledSeconds   );
-            peerJSON.put( "pollIntervalSeconds", peer.pollIntervalSeconds );
-            peerJSON.put( "reached",             peer.reached             );
-            peerJSON.put( "delayMs",             peer.delayMs             );
-            peerJSON.put( "offsetMs",            peer.offsetMs            );
-            peerJSON.put( "jitterRmsMs",         peer.jitterRmsMs         );
+            peerJSON.put( "state",               _peers.state( i )               );
+            peerJSON.put( "remote",              _peers.remote( i )              );
+            peerJSON.put( "refid",               _peers.refid( i )               );
+            peerJSON.put( "stratum",             _peers.stratum( i )             );
+            peerJSON.put( "local",               _peers.local( i )               );
+            peerJSON.put( "lastPolledSeconds",   _peers.lastPolledSeconds( i )   );
+            peerJSON.put( "pollIntervalSeconds", _peers.pollIntervalSeconds( i ) );
+            peerJSON.put( "reached",             _peers.reachedString( i )       );
+            peerJSON.put( "delayMs",             _peers.delayMs( i )             );
+            peerJSON.put( "offsetMs",            _peers.offsetMs( i )            );
+            peerJSON.put( "jitterRmsMs",         _peers.jitterRmsMs( i )         );
+            if( _stats != null ) _stats.put( _peers.remote( i ), peerJSON );
             peersJSON.put( peerJSON );
         }
+    }
+
+
+    /* package-private */ static void fillSatellites( final HJSONObject _message, final List<GNSSSatellite> _satellites ) {
         JSONArray satellitesJSON = new JSONArray();
         _message.putDotted( "monitor.ntp.satellites",     satellitesJSON  );
-        for( Sat sat : satellites ) {
+        for( GNSSSatellite sat : _satellites ) {
+            if( !sat.used ) continue;
             JSONObject satJSON = new JSONObject();
             satJSON.put( "type",      sat.type      );
             satJSON.put( "id",        sat.id        );
@@ -192,160 +748,240 @@ public class NTPMonitor {
     }
 
 
-    /**
-     * Runs this monitor, executing operating system commands to find its current state.
-     */
-    private void run() {
+    /* package-private */ static void fillSamples( final HJSONObject _message, final HighRateSampler.Summary _samples ) {
+        _message.putDotted( "monitor.ntp.samples.intervalMs",       _samples.intervalMs       );
+        _message.putDotted( "monitor.ntp.samples.sampleIntervalMs", _samples.sampleIntervalMs );
+        _message.putDotted( "monitor.ntp.samples.failures",         _samples.failures         );
+        for( Map.Entry<String,SampleStats> entry : _samples.scalars.entrySet() )
+            entry.getValue().putDotted( _message, "monitor.ntp.samples." + entry.getKey() );
+        JSONArray peerSamplesJSON = new JSONArray();
+        _message.putDotted( "monitor.ntp.samples.peers", peerSamplesJSON );
+        for( HighRateSampler.PeerSummary peer : _samples.peers ) {
+            HJSONObject peerJSON = new HJSONObject();
+            peerJSON.put( "remote", peer.remote );
+            if( peer.offsetMs    != null ) peer.offsetMs.putDotted(    peerJSON, "offsetMs"    );
+            if( peer.jitterRmsMs != null ) peer.jitterRmsMs.putDotted( peerJSON, "jitterRmsMs" );
+            peerSamplesJSON.put( peerJSON );
+        }
+    }
 
-        valid = false;
 
-        // first we run ntpq -p and analyze it...
-        String ntpq = NTPQ_P_EX.run();
-        if( isEmpty( ntpq ) ) {
-            errorMessage = "Command ntpq -p failed";
-            return;
+    /* package-private */ static void fillSNTP( final HJSONObject _message, final SNTPProber.Summary _sntp ) {
+
+        // the local server's filtered offset and delay go next to its own idea of its offset...
+        SNTPProber.TargetSummary local = _sntp.local();
+        if( (local != null) && !Double.isNaN( local.filterOffsetMs ) ) {
+            _message.putDotted( "monitor.ntp.sntpOffsetMs", local.filterOffsetMs );
+            _message.putDotted( "monitor.ntp.sntpDelayMs",  local.filterDelayMs  );
         }
-        peers = new ArrayList<>();
-        Matcher mat = NTPQ_P_PAT.matcher( ntpq );
-        while( mat.find() ) {
-            Peer peer = new Peer();
-            char state = mat.group( 1 ).charAt( 0 );
-            switch( state ) {
-                case ' ': peer.state = "(none)";             break;
-                case 'x':
-                case '-': peer.state = "Out of tolerance";   break;
-                case '#': peer.state = "Good, not used";     break;
-                case '+': peer.state = "Good, preferred";    break;
-                case '*': peer.state = "Primary reference";  break;
-                case 'o': peer.state = "PPS peer";           break;
-                default:  peer.state = "(unknown):" + state; break;
+        _message.putDotted( "monitor.ntp.sntp.intervalMs",      _sntp.intervalMs      );
+        _message.putDotted( "monitor.ntp.sntp.probeIntervalMs", _sntp.probeIntervalMs );
+        JSONArray targetsJSON = new JSONArray();
+        _message.putDotted( "monitor.ntp.sntp.targets", targetsJSON );
+        for( SNTPProber.TargetSummary target : _sntp.targets ) {
+            HJSONObject targetJSON = new HJSONObject();
+            targetJSON.put( "name",     target.name     );
+            targetJSON.put( "sent",     target.sent     );
+            targetJSON.put( "received", target.received );
+            if( target.received > 0 ) {
+                targetJSON.put( "stratum", target.stratum );
+                targetJSON.put( "leap",    target.leap    );
+                target.offsetMs.putDotted(         targetJSON, "offsetMs"         );
+                target.delayMs.putDotted(          targetJSON, "delayMs"          );
+                target.asymmetryMs.putDotted(      targetJSON, "asymmetryMs"      );
+                target.filteredOffsetMs.putDotted( targetJSON, "filteredOffsetMs" );
+                targetJSON.putDotted( "filter.offsetMs",   target.filterOffsetMs   );
+                targetJSON.putDotted( "filter.delayMs",    target.filterDelayMs    );
+                targetJSON.putDotted( "filter.jitterMs",   target.filterJitterMs   );
+                targetJSON.putDotted( "minDelay.offsetMs", target.minDelayOffsetMs );
+                targetJSON.putDotted( "minDelay.delayMs",  target.minDelayMs       );
             }
-            peer.remote              = mat.group( 2 );
-            peer.refid               = mat.group( 3 );
-            peer.stratum             = Integer.parseInt( mat.group( 4 ) );
-            peer.local               = "l".equals(       mat.group( 5 ) );
-            peer.lastPolledSeconds   = Integer.parseInt( mat.group( 6 ) );
-            peer.pollIntervalSeconds = Integer.parseInt( mat.group( 7 ) );
-            peer.reached             = Integer.toBinaryString( 256 + Integer.parseInt( mat.group( 8 ), 8 ) ).substring( 1 );
-            peer.delayMs             = Float.parseFloat( mat.group( 9 ) );
-            peer.offsetMs            = Float.parseFloat( mat.group( 10 ) );
-            peer.jitterRmsMs         = Float.parseFloat( mat.group( 11 ) );
-            peers.add( peer );
+            targetsJSON.put( targetJSON );
         }
+    }
 
-        // then we run ntpq -c rv and analyze it...
-        validPPS = false;
-        ntpq = NTPQ_C_EX.run();
-        if( isEmpty( ntpq ) ) {
-            errorMessage = "Command ntpq -c failed";
-            return;
-        }
-        mat = NTPQ_C_PAT.matcher( ntpq );
-        if( mat.matches() ) {
-            validPPS              = "sync_pps".equals( mat.group( 1 ) );
-            pllOffsetMs           = Double.parseDouble( mat.group( 2 ) );
-            pllFrequencyOffsetPpm = Double.parseDouble( mat.group( 3 ) );
-            maxErrMs              = Double.parseDouble( mat.group( 4 ) );
-        }
 
-        // now we get our fix, in JSON, and analyze it...
-        String fixJSON = FIX_EX.run();
-        if( isEmpty( fixJSON ) ) {
-            errorMessage = "Command gpsctl query fix failed";
-            return;
-        }
-        HJSONObject fix;
-        try {
-            fix = new HJSONObject( fixJSON );
-        }
-        catch( JSONException _e ) {
-            errorMessage = "Query fix invalid JSON";
-            LOGGER.log( Level.SEVERE, "Query fix invalid JSON: " + fixJSON, _e );
-            return;
-        }
-        validTime = fix.getBooleanDotted( "time.valid" );
-        timeAccuracy = 0.000000001 * fix.getIntDotted( "time.accuracy_ns" );
-        satellitesUsed = fix.getIntDotted( "number_of_satellites_used" );
-        validFix = fix.getBooleanDotted( "fix.valid" );
-        fixIs3D = fix.getBooleanDotted( "fix.3d" );
-        latitude = fix.getDoubleDotted( "fix.latitude_deg" );
-        longitude = fix.getDoubleDotted( "fix.longitude_deg" );
-        altitudeFt = fix.getDoubleDotted( "fix.height_above_mean_sea_level_mm" ) / (12.0 * 25.4);
-        fixAccuracyFt = fix.getDoubleDotted( "fix.horizontal_accuracy_mm" ) / (12.0 * 25.4);
-
-        // now we get our satellites...
-        String satJSON = SAT_EX.run();
-        if( isEmpty( satJSON ) ) {
-            errorMessage = "Command gpsctl query satellites failed";
-            return;
-        }
-        HJSONObject satData;
-        try {
-            satData = new HJSONObject( satJSON );
-        }
-        catch( JSONException _e ) {
-            errorMessage = "Query satellites invalid JSON";
-            LOGGER.log( Level.SEVERE, "Query satellites invalid JSON: " + fixJSON, _e );
-            return;
-        }
-        satellites = new ArrayList<>();
-        JSONArray sats = satData.getJSONArray( "satellites" );
-        for( int i = 0; i < sats.length(); i++ ) {
-
-            JSONObject sat = sats.getJSONObject( i );
-            if( !sat.getBoolean( "used" ) ) continue;
-
-            Sat usedSat = new Sat();
-            usedSat.type = sat.getString( "gnssID" );
-            usedSat.id = sat.getInt( "satelliteID" );
-            usedSat.cno = sat.getInt( "CNo" );
-            usedSat.azimuth = sat.getInt( "azimuth" );
-            usedSat.elevation = sat.getInt( "elevation" );
-            satellites.add( usedSat );
-        }
+    /**
+     * Runs this monitor, polling its probes to find the current state of the time service and the GNSS receiver, and returns a snapshot of
+     * what it found (along with the high rate samples and SNTP exchanges of the interval, if we have them).  The four probes run concurrently,
+     * and each one gets at most its timeout, so a cycle takes no longer than its slowest probe (or the longest timeout).  A probe that isn't
+     * due to be polled this cycle contributes its last results.  A probe that fails or times out doesn't stop the others' results from being
+     * used.
+     *
+     * @return the snapshot of this cycle
+     */
+    /* package-private */ NTPSnapshot run() {
+        return run( System.currentTimeMillis() );
+    }
+
 
-        valid = true;
+    /*
+     * Runs this monitor once, as of the given time (see fill( HJSONObject, long ))...
+     */
+    private NTPSnapshot run( final long _timeMs ) {
+
+        // start all our probes, then collect their results...
+        long timeMs = _timeMs;
+        long start  = System.nanoTime();
+        cycleMs = timeMs;
+        if( capture != null ) capture.cycle( timeMs );
+        peerProbe.start( start, timeMs );
+        kernelProbe.start( start, timeMs );
+        fixProbe.start( start, timeMs );
+        satelliteProbe.start( start, timeMs );
+
+        PeerTable           peers      = peerProbe.await();
+        LocalServer         server     = kernelProbe.await();
+        GNSSFix             fix        = fixProbe.await();
+        List<GNSSSatellite> satellites = satelliteProbe.await();
+
+        // we're valid only if everything worked; otherwise we report the first problem...
+        boolean valid = peerProbe.valid && kernelProbe.valid && fixProbe.valid && satelliteProbe.valid;
+        String errorMessage = !peerProbe.valid   ? peerProbe.errorMessage
+                            : !kernelProbe.valid ? kernelProbe.errorMessage
+                            : !fixProbe.valid    ? fixProbe.errorMessage
+                            : satelliteProbe.errorMessage;
+        long collectNanos = System.nanoTime() - start;
+
+        // the probes reuse their peer tables, so the snapshot gets a copy...
+        List<NTPSnapshot.ProbeStatus> statuses = new ArrayList<>( 4 );
+        for( ProbeSlot<?> probe : new ProbeSlot<?>[] { peerProbe, kernelProbe, fixProbe, satelliteProbe } )
+            statuses.add( new NTPSnapshot.ProbeStatus( probe.name, probe.valid, probe.latencyMs, probe.valid ? null : probe.errorMessage ) );
+        return new NTPSnapshot( timeMs, collectNanos, valid, errorMessage, server, fix, (peers == null) ? null : peers.copy(), satellites,
+                (sampler == null) ? null : sampler.drain(), (prober == null) ? null : prober.drain(), statuses );
     }
 
 
-    private enum NTPLeap   { LEAP_NONE, LEAP_ADD_SECOND, LEAP_DELETE_SECOND, LEAP_ALARM; }
-    private enum NTPSource { SYNC_UNSPEC, SYNC_PPS, SYNC_LF_RADIO, SYNC_HF_RADIO,   SYNC_UHF_RADIO,
-                             SYNC_LOCAL,  SYNC_NTP, SYNC_OTHER,    SYNC_WRISTWATCH, SYNC_TELEPHONE };
-    private enum NTPEvent  { UNSPECIFIED, FREQ_NOT_SET, FREQ_SET, SPIKE_DETECT, FREQ_MODE, CLOCK_SYNC, RESTART, PANIC_STOP, NO_SYSTEM_PEER,
-                             LEAP_ARMED, LEAP_DISARMED, LEAP_EVENT, CLOCK_STEP, KERN, TAI, STALE_LEAPSECOND_VALUES  };
+    /*
+     * The forms we can publish our results in...
+     */
+    private enum BinaryPayload { NONE, ALONGSIDE, ONLY }
 
 
-    private static class NTPStatus {
-        private NTPLeap   leap;
-        private NTPSource source;
-        private int       count;
-        private NTPEvent  event;
-        private double    pllOffsetMs;
-        private double    pllFrequencyOffsetPpm;
-        private double    maxErrMs;
-    }
+    /*
+     * A probe that we run concurrently with the others each cycle, or less often if it has an interval.  If a probe is still running from an
+     * earlier cycle (because it hung past its timeout), it isn't started again until it finishes, so that no probe ever runs concurrently with
+     * itself.  All methods are called only from the monitor's thread.
+     */
+    private class ProbeSlot<T> {
+
+        private final Probe<T>   probe;
+        private final String     name;
+        private final long       intervalMs;
+        private final long       timeoutNanos;
+        private final String     probeStage;     // the names we time this probe's polls and parses as...
+        private final String     parseStage;
+
+        private Future<T>        pending;
+        private volatile boolean running;        // true from when the probe is submitted until it actually stops running...
+        private boolean          skipped;        // true if the probe wasn't started this cycle because it's still running...
+        private boolean          resting;        // true if the probe wasn't started this cycle because it isn't due yet...
+        private long             startNanos;
+        private long             lastPollMs;
+        private T                last;           // the results of the last successful poll...
+        private boolean          valid;
+        private String           errorMessage;
+        private long             latencyMs;
+
+
+        private ProbeSlot( final Probe<T> _probe, final HJSONObject _config ) {
+            probe = _probe;
+            name  = _probe.name();
+            long timeoutMs = _config.optLongDotted( "probes." + name + ".timeoutMs",  _probe.timeoutMs()  );
+            intervalMs     = _config.optLongDotted( "probes." + name + ".intervalMs", _probe.intervalMs() );
+            timeoutNanos   = TimeUnit.MILLISECONDS.toNanos( (timeoutMs > 0) ? timeoutMs : probeTimeoutMs );
+            probeStage     = "probe." + name;
+            parseStage     = "parse." + name;
+        }
 
 
-    private static class Sat {
-        private String type;
-        private int id;
-        private int azimuth;
-        private int elevation;
-        private int cno;
-    }
+        /*
+         * Starts this probe running, unless it's still running from an earlier cycle, or it succeeded the last time and isn't due again yet (as
+         * of the given cycle time, in milliseconds; its timeout runs from the given System.nanoTime())...
+         */
+        private void start( final long _startNanos, final long _timeMs ) {
+            startNanos = _startNanos;
+            resting    = valid && (_timeMs - lastPollMs < intervalMs);
+            skipped    = !resting && running;
+            if( resting || skipped ) return;
+            lastPollMs = _timeMs;
+            running = true;
+            pending = probeExecutor.submit( () -> {
+                long allocated = self.threadAllocated();
+                long pollStart = System.nanoTime();
+                try {
+                    return probe.poll();
+                }
+                finally {
+                    self.time( probeStage, System.nanoTime() - pollStart );
+                    long parseNanos = probe.parseNanos();
+                    if( parseNanos >= 0 ) self.time( parseStage, parseNanos );
+                    if( allocated >= 0 ) self.addProbeAllocated( self.threadAllocated() - allocated );
+                    running = false;
+                }
+            } );
+        }
+
+
+        /*
+         * Returns true if this probe was polled this cycle, and succeeded.
+         */
+        private boolean isFresh() {
+            return valid && !resting;
+        }
 
 
-    private static class Peer {
-        private String  state;
-        private String  remote;
-        private String  refid;
-        private int     stratum;
-        private boolean local;
-        private int     lastPolledSeconds;
-        private int     pollIntervalSeconds;
-        private String  reached;
-        private float   delayMs;
-        private float   offsetMs;
-        private float   jitterRmsMs;
+        /*
+         * Waits (no longer than our timeout after we started) for this probe to finish, and returns its results, or null if it failed or timed
+         * out.  If the probe is resting, its last results are returned, and it remains valid.
+         */
+        private T await() {
+
+            if( resting )
+                return last;
+
+            if( skipped ) {
+                valid        = false;
+                errorMessage = "Probe " + name + " still running from an earlier cycle";
+                self.fail( name + ".skipped" );
+                latencyMs    = 0;
+                return null;
+            }
+
+            valid = false;
+            try {
+                T result = pending.get( Math.max( 0, startNanos + timeoutNanos - System.nanoTime() ), TimeUnit.NANOSECONDS );
+                valid = true;
+                errorMessage = null;
+                last = result;
+                return result;
+            }
+            catch( TimeoutException _e ) {
+                errorMessage = "Probe " + name + " timed out";
+                self.fail( name + ".timedOut" );
+                pending.cancel( true );
+                return null;
+            }
+            catch( ExecutionException _e ) {
+                Throwable cause = _e.getCause();
+                errorMessage = (cause instanceof ProbeException) ? cause.getMessage() : "Probe " + name + " failed: " + cause;
+                self.fail( name + ".failed" );
+                if( !(cause instanceof ProbeException) )
+                    LOGGER.log( Level.SEVERE, "Probe " + name + " failed", cause );
+                return null;
+            }
+            catch( CancellationException _e ) {
+                errorMessage = "Probe " + name + " cancelled";
+                return null;
+            }
+            catch( InterruptedException _e ) {
+                Thread.currentThread().interrupt();
+                errorMessage = "Probe " + name + " interrupted";
+                return null;
+            }
+            finally {
+                latencyMs = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - startNanos );
+            }
+        }
     }
 }
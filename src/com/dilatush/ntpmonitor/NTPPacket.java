@@ -0,0 +1,258 @@
+package com.dilatush.ntpmonitor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The pieces of the NTP packet format (RFC 5905) that an SNTP client needs: building a client (mode 3) request, checking and reading a server
+ * (mode 4) reply, and NTP timestamps.  Timestamps are the 64 bit NTP format (32 bits of seconds since 1900, 32 bits of fraction) held in a
+ * <code>long</code>; differences between timestamps less than 68 years apart are correct even across an NTP era rollover.  Our own timestamps
+ * come from an anchor, the system clock and {@link System#nanoTime()} read together just as the system clock ticks over to a new millisecond,
+ * advanced with nanoTime(), so that they have nanosecond resolution and don't jump if the system clock is stepped in the middle of an
+ * exchange.  The anchor is renewed by {@link #calibrate()}, which clients call between their exchanges, every few minutes or as soon as the
+ * system clock and our timestamps drift apart (as they do if the system clock is stepped).  Instances of this class are immutable and
+ * threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public final class NTPPacket {
+
+    /* package-private */ static final int  LENGTH           = 48;
+    /* package-private */ static final int  MODE_CLIENT      = 3;
+    /* package-private */ static final int  MODE_SERVER      = 4;
+    /* package-private */ static final int  VERSION          = 4;
+    /* package-private */ static final int  LEAP_UNSYNC      = 3;
+
+    /* package-private */ static final int  ROOT_DELAY       = 4;      // offsets of the fields we read...
+    /* package-private */ static final int  ROOT_DISPERSION  = 8;
+    /* package-private */ static final int  REFERENCE_ID     = 12;
+    /* package-private */ static final int  ORIGINATE        = 24;
+    /* package-private */ static final int  RECEIVE          = 32;
+    /* package-private */ static final int  TRANSMIT         = 40;
+
+    private static final long UNIX_TO_NTP_SECONDS = 2_208_988_800L;    // seconds from 1900 to 1970...
+    private static final long NANOS_PER_SECOND    = 1_000_000_000L;
+    private static final double FRACTION          = 4294967296.0;       // 2^32...
+    private static final long REANCHOR_NANOS      = 300 * NANOS_PER_SECOND; // how often we renew the anchor, at least...
+    private static final long DRIFT_NANOS         = 2_000_000L;         // the most our timestamps may differ from the system clock's...
+
+    private static volatile Anchor  anchor  = Anchor.calibrate();
+    private static volatile boolean drifted;                            // true if our timestamps have drifted from the system clock's...
+
+
+    private NTPPacket() {
+        // nothing to construct; this class is just static methods...
+    }
+
+
+    /**
+     * Returns the current time as an NTP timestamp.
+     *
+     * @return the current time as an NTP timestamp
+     */
+    public static long now() {
+        Anchor current = anchor;
+        long unixNanos = current.unixNanos + (System.nanoTime() - current.nanoTime);
+        if( Math.abs( System.currentTimeMillis() * 1_000_000L - unixNanos ) > DRIFT_NANOS )
+            drifted = true;
+        return fromUnixNanos( unixNanos );
+    }
+
+
+    /**
+     * Renews the anchor of our timestamps if it's due: if it's a few minutes old, or if our timestamps have drifted from the system clock.
+     * Renewing it takes up to a millisecond (the time to see the system clock tick over), so it should be called between exchanges, never
+     * in the middle of one.
+     */
+    public static void calibrate() {
+        if( drifted || (System.nanoTime() - anchor.nanoTime > REANCHOR_NANOS) ) {
+            drifted = false;
+            anchor  = Anchor.calibrate();
+        }
+    }
+
+
+    /**
+     * Returns the NTP timestamp for the given time, in nanoseconds since the Unix epoch.
+     *
+     * @param _unixNanos the time, in nanoseconds since the Unix epoch
+     * @return the NTP timestamp for that time
+     */
+    public static long fromUnixNanos( final long _unixNanos ) {
+        long seconds  = Math.floorDiv( _unixNanos, NANOS_PER_SECOND );
+        long nanos    = Math.floorMod( _unixNanos, NANOS_PER_SECOND );
+        return ((seconds + UNIX_TO_NTP_SECONDS) << 32) | ((nanos << 32) / NANOS_PER_SECOND);
+    }
+
+
+    /**
+     * Returns the time from the first given NTP timestamp to the second, in seconds.
+     *
+     * @param _from the earlier NTP timestamp
+     * @param _to the later NTP timestamp
+     * @return the time between them, in seconds (negative if _to is earlier)
+     */
+    public static double seconds( final long _from, final long _to ) {
+        return (_to - _from) / FRACTION;
+    }
+
+
+    /**
+     * Writes a client (mode 3) request into the given buffer, which is cleared first and flipped afterwards, ready to send.  The given transmit
+     * timestamp is what the server will echo as the originate timestamp of its reply.
+     *
+     * @param _buffer the buffer to write the request into (at least 48 bytes)
+     * @param _transmit the transmit timestamp (normally {@link #now()})
+     */
+    public static void writeRequest( final ByteBuffer _buffer, final long _transmit ) {
+        _buffer.clear();
+        _buffer.put( (byte) ((VERSION << 3) | MODE_CLIENT) );
+        for( int i = 1; i < TRANSMIT; i++ ) _buffer.put( (byte) 0 );
+        _buffer.putLong( _transmit );
+        _buffer.flip();
+    }
+
+
+    /**
+     * Returns <code>null</code> if the given buffer (positioned at the start of a received packet, with its limit at the end) holds a server
+     * reply to the request with the given transmit timestamp, or a description of what's wrong with it.  A Kiss-o'-Death reply (stratum 0) is
+     * wrong, with its kiss code as the description.
+     *
+     * @param _buffer the buffer holding the packet
+     * @param _transmit the transmit timestamp of our request
+     * @return null if the reply is good, or a description of what's wrong with it
+     */
+    public static String check( final ByteBuffer _buffer, final long _transmit ) {
+        if( _buffer.remaining() < LENGTH )               return "short packet";
+        int base = _buffer.position();
+        if( (_buffer.get( base ) & 7) != MODE_SERVER )   return "not a server reply";
+        if( _buffer.getLong( base + ORIGINATE ) != _transmit ) return "not a reply to our request";
+        if( stratum( _buffer ) == 0 )                    return "Kiss-o'-Death " + referenceID( _buffer );
+        if( _buffer.getLong( base + TRANSMIT ) == 0 )    return "no transmit timestamp";
+        return null;
+    }
+
+
+    public static int leap( final ByteBuffer _buffer ) {
+        return (_buffer.get( _buffer.position() ) >>> 6) & 3;
+    }
+
+
+    public static int stratum( final ByteBuffer _buffer ) {
+        return _buffer.get( _buffer.position() + 1 ) & 0xFF;
+    }
+
+
+    public static long receiveTimestamp( final ByteBuffer _buffer ) {
+        return _buffer.getLong( _buffer.position() + RECEIVE );
+    }
+
+
+    public static long transmitTimestamp( final ByteBuffer _buffer ) {
+        return _buffer.getLong( _buffer.position() + TRANSMIT );
+    }
+
+
+    /**
+     * Returns the root delay in the given reply, in milliseconds.
+     *
+     * @param _buffer the buffer holding the reply
+     * @return the root delay, in milliseconds
+     */
+    public static double rootDelayMs( final ByteBuffer _buffer ) {
+        return (_buffer.getInt( _buffer.position() + ROOT_DELAY ) & 0xFFFFFFFFL) * 1000.0 / 65536.0;
+    }
+
+
+    /**
+     * Returns the root dispersion in the given reply, in milliseconds.
+     *
+     * @param _buffer the buffer holding the reply
+     * @return the root dispersion, in milliseconds
+     */
+    public static double rootDispersionMs( final ByteBuffer _buffer ) {
+        return (_buffer.getInt( _buffer.position() + ROOT_DISPERSION ) & 0xFFFFFFFFL) * 1000.0 / 65536.0;
+    }
+
+
+    /**
+     * Returns the reference ID in the given reply, as ntpq shows it: four ASCII characters for stratum 0 (a kiss code) or 1 (a reference clock),
+     * and an IPv4 address otherwise.
+     *
+     * @param _buffer the buffer holding the reply
+     * @return the reference ID
+     */
+    public static String referenceID( final ByteBuffer _buffer ) {
+        int base = _buffer.position() + REFERENCE_ID;
+        StringBuilder sb = new StringBuilder( 15 );
+        if( stratum( _buffer ) <= 1 ) {
+            for( int i = 0; i < 4; i++ ) {
+                int c = _buffer.get( base + i ) & 0xFF;
+                if( (c >= ' ') && (c < 0x7F) ) sb.append( (char) c );
+            }
+        }
+        else {
+            for( int i = 0; i < 4; i++ ) {
+                if( i > 0 ) sb.append( '.' );
+                sb.append( _buffer.get( base + i ) & 0xFF );
+            }
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * Returns the offset of the server's clock from ours, in milliseconds, from the four timestamps of an exchange: our transmit, the server's
+     * receive, the server's transmit, and our receive.
+     *
+     * @return the server's offset from us, in milliseconds
+     */
+    public static double offsetMs( final long _t1, final long _t2, final long _t3, final long _t4 ) {
+        return 500.0 * (seconds( _t1, _t2 ) + seconds( _t4, _t3 ));
+    }
+
+
+    /**
+     * Returns the round trip delay of an exchange, in milliseconds, from its four timestamps (as for {@link #offsetMs(long, long, long, long)}),
+     * less the time the server held the request.
+     *
+     * @return the round trip delay, in milliseconds
+     */
+    public static double delayMs( final long _t1, final long _t2, final long _t3, final long _t4 ) {
+        return 1000.0 * (seconds( _t1, _t4 ) - seconds( _t2, _t3 ));
+    }
+
+
+    /*
+     * The system clock and nanoTime() read at the same moment: the moment the system clock ticks over to a new millisecond, so that the
+     * system clock's reading is exact, rather than up to a millisecond behind.  Instances of this class are immutable and threadsafe.
+     */
+    private static final class Anchor {
+
+        private final long unixNanos;
+        private final long nanoTime;
+
+
+        private Anchor( final long _unixNanos, final long _nanoTime ) {
+            unixNanos = _unixNanos;
+            nanoTime  = _nanoTime;
+        }
+
+
+        /*
+         * Spins until the system clock ticks over, and returns the new millisecond with the nanoTime() midway between the last reading before
+         * the tick and the first after it...
+         */
+        private static Anchor calibrate() {
+            long start  = System.currentTimeMillis();
+            long after  = System.nanoTime();
+            long before;
+            long millis;
+            do {
+                before = after;
+                millis = System.currentTimeMillis();
+                after  = System.nanoTime();
+            } while( millis == start );
+            return new Anchor( millis * 1_000_000L, before + (after - before) / 2 );
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.dilatush.ntpmonitor;
+
+/**
+ * A hand-written parser for the peer table output of <code>ntpq -p</code>, which fills a {@link PeerTable} without allocating anything.  Each
+ * line of the form
+ * <pre>
+ * *SHM(0)          .PPS.            0 l    3   16  377    0.000   -0.002   0.001
+ * </pre>
+ * becomes a row; header lines, separator lines, and anything else that doesn't have all the fields in the right form are skipped.  The "when"
+ * and "poll" columns may have ntpq's m/h/d suffixes (minutes, hours, days), and a "when" of "-" (never polled) is read as zero.  A remote name
+ * shorter than the width ntpq truncates names to is complete, so (unless it's a reference clock's) it's also the row's source address; a
+ * longer one may be truncated, so the row has none.  Instances of this class hold only the parsing position, so a single instance may be
+ * reused indefinitely, but it is mutable and NOT threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class NTPQPeerParser {
+
+    private static final String TALLY_CODES  = " x.-+#*o";
+    private static final int    REMOTE_WIDTH = 15;          // ntpq truncates remote names to this many characters...
+
+    // powers of ten that are exactly representable as doubles, for correctly rounded decimal conversion...
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18
+    };
+
+    private CharSequence text;
+    private int          pos;       // the current parsing position...
+    private int          end;       // the end of the current line...
+
+
+    /**
+     * Parses the given <code>ntpq -p</code> output into the given peer table, which is cleared first.  Peers that don't fit in the table are
+     * ignored.
+     *
+     * @param _text the output of <code>ntpq -p</code>
+     * @param _table the table to fill
+     * @return the number of peers parsed
+     */
+    public int parse( final CharSequence _text, final PeerTable _table ) {
+
+        _table.clear();
+        text = _text;
+        int length = _text.length();
+        int lineStart = 0;
+        while( lineStart < length ) {
+
+            // find the end of this line, ignoring any carriage return...
+            int lineEnd = lineStart;
+            while( (lineEnd < length) && (_text.charAt( lineEnd ) != '\n') ) lineEnd++;
+            end = ((lineEnd > lineStart) && (_text.charAt( lineEnd - 1 ) == '\r')) ? lineEnd - 1 : lineEnd;
+            pos = lineStart;
+
+            int row = _table.addRow();
+            if( row < 0 ) break;
+            if( !parseLine( row, _table ) )
+                _table.removeLastRow();
+
+            lineStart = lineEnd + 1;
+        }
+        text = null;
+        return _table.size();
+    }
+
+
+    /*
+     * Parses the line from pos to end into the given row of the given table, returning true if it's a well-formed peer line.
+     */
+    private boolean parseLine( final int _row, final PeerTable _table ) {
+
+        // the tally code, immediately followed by the remote name...
+        if( end - pos < 2 ) return false;
+        char tally = text.charAt( pos++ );
+        if( TALLY_CODES.indexOf( tally ) < 0 ) return false;
+        int start = pos;
+        if( !skipToken() || (pos == start) ) return false;
+        _table.tally[_row] = tally;
+        _table.setRemote( _row, text, start, pos );
+        int remoteStart = start;
+        int remoteEnd   = pos;
+
+        // the reference ID...
+        if( !skipSpaces() ) return false;
+        start = pos;
+        skipToken();
+        _table.setRefid( _row, text, start, pos );
+
+        // the stratum...
+        if( !skipSpaces() ) return false;
+        int stratum = parseInt();
+        if( stratum < 0 ) return false;
+        _table.stratum[_row] = stratum;
+
+        // the type; we only care if it's local...
+        if( !skipSpaces() ) return false;
+        start = pos;
+        if( !skipToken() || (pos - start != 1) ) return false;
+        _table.local[_row] = (text.charAt( start ) == 'l');
+
+        // a remote name that ntpq can't have truncated is the address, unless it's a reference clock's name...
+        if( !_table.local[_row] && (remoteEnd - remoteStart < REMOTE_WIDTH) ) _table.setSrcadr( _row, text, remoteStart, remoteEnd );
+
+        // when (the seconds since the last poll), and the poll interval...
+        if( !skipSpaces() ) return false;
+        int when;
+        if( text.charAt( pos ) == '-' ) {
+            pos++;
+            when = 0;
+        }
+        else
+            when = parseDuration();
+        if( when < 0 ) return false;
+        _table.lastPolledSeconds[_row] = when;
+        if( !skipSpaces() ) return false;
+        int poll = parseDuration();
+        if( poll < 0 ) return false;
+        _table.pollIntervalSeconds[_row] = poll;
+
+        // the reach register, in octal...
+        if( !skipSpaces() ) return false;
+        int reach = 0;
+        start = pos;
+        while( (pos < end) && (text.charAt( pos ) >= '0') && (text.charAt( pos ) <= '7') )
+            reach = (reach << 3) | (text.charAt( pos++ ) - '0');
+        if( (pos == start) || !atSpaceOrEnd() ) return false;
+        _table.reached[_row] = reach & 0xFF;
+
+        // and finally delay, offset, and jitter...
+        if( !skipSpaces() ) return false;
+        double delay = parseDecimal();
+        if( Double.isNaN( delay ) || !skipSpaces() ) return false;
+        double offset = parseDecimal();
+        if( Double.isNaN( offset ) || !skipSpaces() ) return false;
+        double jitter = parseDecimal();
+        if( Double.isNaN( jitter ) ) return false;
+        _table.delayMs[_row]     = (float) delay;
+        _table.offsetMs[_row]    = (float) offset;
+        _table.jitterRmsMs[_row] = (float) jitter;
+
+        // there shouldn't be anything else on the line...
+        while( (pos < end) && (text.charAt( pos ) == ' ') ) pos++;
+        return pos == end;
+    }
+
+
+    /*
+     * Skips non-space characters, returning true if we're not at the end of the line afterwards.
+     */
+    private boolean skipToken() {
+        while( (pos < end) && (text.charAt( pos ) > ' ') ) pos++;
+        return pos < end;
+    }
+
+
+    /*
+     * Skips spaces (and tabs), returning true if there's something other than white space left on the line.
+     */
+    private boolean skipSpaces() {
+        while( (pos < end) && (text.charAt( pos ) <= ' ') ) pos++;
+        return pos < end;
+    }
+
+
+    /*
+     * Returns true if we're at the end of the line or at white space.
+     */
+    private boolean atSpaceOrEnd() {
+        return (pos >= end) || (text.charAt( pos ) <= ' ');
+    }
+
+
+    /*
+     * Parses an unsigned decimal integer, returning -1 if there isn't one here.
+     */
+    private int parseInt() {
+        int start = pos;
+        int value = 0;
+        while( (pos < end) && (text.charAt( pos ) >= '0') && (text.charAt( pos ) <= '9') && (pos - start < 9) )
+            value = value * 10 + (text.charAt( pos++ ) - '0');
+        return ((pos == start) || !atSpaceOrEnd()) ? -1 : value;
+    }
+
+
+    /*
+     * Parses an unsigned decimal integer, with an optional m, h, or d suffix (minutes, hours, or days), returning it in seconds, or -1 if there
+     * isn't one here.
+     */
+    private int parseDuration() {
+        int start = pos;
+        int value = 0;
+        while( (pos < end) && (text.charAt( pos ) >= '0') && (text.charAt( pos ) <= '9') && (pos - start < 7) )
+            value = value * 10 + (text.charAt( pos++ ) - '0');
+        if( pos == start ) return -1;
+        if( pos < end ) {
+            switch( text.charAt( pos ) ) {
+                case 'm': value *= 60;    pos++; break;
+                case 'h': value *= 3600;  pos++; break;
+                case 'd': value *= 86400; pos++; break;
+                default:                         break;
+            }
+        }
+        return atSpaceOrEnd() ? value : -1;
+    }
+
+
+    /*
+     * Parses a signed decimal number with an optional fraction (no exponent), returning NaN if there isn't one here.  The digits are
+     * accumulated as a long and scaled by an exact power of ten, so the result is correctly rounded for up to 15 significant digits (far more
+     * than ntpq ever prints).
+     */
+    private double parseDecimal() {
+
+        boolean negative = false;
+        if( (pos < end) && ((text.charAt( pos ) == '-') || (text.charAt( pos ) == '+')) )
+            negative = (text.charAt( pos++ ) == '-');
+
+        long mantissa = 0;
+        int  digits   = 0;
+        int  scale    = 0;
+        boolean point = false;
+        while( pos < end ) {
+            char c = text.charAt( pos );
+            if( (c >= '0') && (c <= '9') ) {
+                if( digits < 18 ) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    digits++;
+                    if( point ) scale++;
+                }
+                else if( !point )
+                    return Double.NaN;  // too big to be anything ntpq would print...
+            }
+            else if( (c == '.') && !point )
+                point = true;
+            else
+                break;
+            pos++;
+        }
+        if( (digits == 0) || !atSpaceOrEnd() ) return Double.NaN;
+        double value = mantissa / POWERS_OF_TEN[scale];
+        return negative ? -value : value;
+    }
+}
@@ -0,0 +1,72 @@
+package com.dilatush.ntpmonitor;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A POJO for everything one monitor cycle collected: the state of the local server, the GNSS fix, the peers, the satellites in view, the
+ * high rate samples and SNTP exchanges of the interval, and how each probe fared.  The monitor's collector produces one of these each cycle,
+ * and everything the monitor then does with the cycle (storing it, filling in its message, posting its events, and evaluating its rules)
+ * reads from it.  It is published with a single reference swap (see {@link NTPMonitor#latest()}), so any number of readers on other threads
+ * (the metrics endpoint, for instance) can read the latest consistent sample without locks or copying, and the monitor never waits for them.
+ * Instances of this class are immutable and threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class NTPSnapshot {
+
+    public final long                timeMs;            // when the cycle started (normally System.currentTimeMillis())...
+    public final long                collectNanos;      // how long the probes took to collect this snapshot...
+    public final boolean             valid;             // true if all the probes succeeded...
+    public final String              errorMessage;      // the first probe failure, or null if valid...
+    public final LocalServer         server;            // null if the kernel probe failed...
+    public final GNSSFix             fix;               // null if the fix probe failed...
+    public final PeerView            peers;             // null if the peers probe failed; a copy that nothing else ever changes...
+    public final List<GNSSSatellite> satellites;        // the satellites in view, or null if the satellites probe failed...
+    public final HighRateSampler.Summary samples;       // the high rate samples for the interval, or null if we're not sampling...
+    public final SNTPProber.Summary  sntp;              // the SNTP exchanges for the interval, or null if we're not probing...
+    public final List<ProbeStatus>   probes;
+
+
+    /**
+     * Creates a new instance of this class with the given values.  The peer table must be one that no one will change (normally a
+     * {@link PeerTable#copy()}, which is published only as a read-only {@link PeerView}), and the lists must not be changed after they're
+     * given to this constructor.
+     */
+    /* package-private */ NTPSnapshot( final long _timeMs, final long _collectNanos, final boolean _valid, final String _errorMessage,
+                                       final LocalServer _server, final GNSSFix _fix, final PeerView _peers,
+                                       final List<GNSSSatellite> _satellites, final HighRateSampler.Summary _samples,
+                                       final SNTPProber.Summary _sntp, final List<ProbeStatus> _probes ) {
+        timeMs       = _timeMs;
+        collectNanos = _collectNanos;
+        valid        = _valid;
+        errorMessage = _errorMessage;
+        server       = _server;
+        fix          = _fix;
+        peers        = _peers;
+        satellites   = (_satellites == null) ? null : Collections.unmodifiableList( _satellites );
+        samples      = _samples;
+        sntp         = _sntp;
+        probes       = Collections.unmodifiableList( _probes );
+    }
+
+
+    /**
+     * A POJO for how one probe fared in a cycle.  Instances of this class are immutable and threadsafe.
+     */
+    public static class ProbeStatus {
+
+        public final String  name;
+        public final boolean valid;
+        public final long    latencyMs;
+        public final String  errorMessage;      // null if valid...
+
+
+        /* package-private */ ProbeStatus( final String _name, final boolean _valid, final long _latencyMs, final String _errorMessage ) {
+            name         = _name;
+            valid        = _valid;
+            latencyMs    = _latencyMs;
+            errorMessage = _errorMessage;
+        }
+    }
+}
@@ -0,0 +1,575 @@
+package com.dilatush.ntpmonitor;
+
+import com.dilatush.mop.Mailbox;
+import com.dilatush.mop.Message;
+import com.dilatush.util.HJSONObject;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import static com.dilatush.util.Strings.isEmpty;
+
+/**
+ * A durable, bounded, store-and-forward outbox for the messages we send through our mailbox.  While the central post office is reachable and
+ * nothing is waiting, messages are sent straight through.  Otherwise they're appended to an on-disk log (a series of segment files, each
+ * record length-prefixed and checksummed), and a replay thread sends them, in order and at a limited rate, once the central post office is
+ * reachable again.  Messages sent while the log isn't empty go to the back of the log, so nothing is ever sent out of order.  The replay
+ * position is saved after each batch, so a restart resumes where it left off (at worst resending one batch).  Appended messages are synced to
+ * disk by the replay thread, once a second, rather than one at a time by their senders, so a crash may lose the last second of them.
+ * <p>
+ * The log is bounded: when it has more than the configured number of segments, the oldest segment is deleted, and the messages in it are
+ * counted as dropped.  Whether the central post office is reachable is decided by our sends through the mailbox: it's unreachable from the
+ * first send that fails, and reachable again from the first replayed message that's sent (while it's unreachable, one is tried each check
+ * interval).  If this outbox has no directory, it simply sends everything straight through.  Replayed messages are rebuilt through the
+ * mailbox (so they get a fresh envelope), with the original fields, plus <code>outbox.queuedAt</code> and <code>outbox.replayed</code>.
+ * Instances of this class are threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class Outbox {
+
+    private static final Logger LOGGER           = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName() );
+
+    private static final String PREFIX           = "outbox-";
+    private static final String SUFFIX           = ".log";
+    private static final String POSITION_FILE    = "outbox.pos";
+    private static final int    MAX_RECORD_BYTES = 16 << 20;    // anything bigger than this is corruption...
+
+    private final Mailbox            box;
+    private final File               directory;         // null if we just send everything straight through...
+    private final long               segmentBytes;
+    private final int                maxSegments;
+    private final int                replayPerSecond;
+    private final long               checkIntervalMs;
+    private final Thread             replayer;
+
+    // everything below is guarded by "this"...
+    private final TreeMap<Long,Integer> unsent;         // the number of records not yet replayed in each segment we have, by segment number...
+    private long                     readSegment;       // the position of the next record to replay...
+    private long                     readOffset;
+    private FileChannel              writer;            // the newest segment, open for appending, or null if we need a new one...
+    private long                     writeSegment;      // the number of the newest segment...
+    private boolean                  unsynced;          // true if we've appended to the writer since it was last synced...
+    private long                     replayed;
+    private long                     dropped;
+
+    private volatile boolean         reachable;
+    private volatile boolean         running;
+
+
+    /**
+     * Creates a new instance of this class that sends everything straight through the given mailbox.
+     *
+     * @param _box the mailbox to send through
+     */
+    public Outbox( final Mailbox _box ) {
+        box             = _box;
+        directory       = null;
+        segmentBytes    = 0;
+        maxSegments     = 0;
+        replayPerSecond = 0;
+        checkIntervalMs = 0;
+        replayer        = null;
+        unsent          = new TreeMap<>();
+        reachable       = true;
+    }
+
+
+    /**
+     * Creates a new instance of this class that sends through the given mailbox, configured by the given monitor configuration.  The optional
+     * configuration items are:
+     * <ul>
+     *    <li><code>outbox.directory</code> the directory to keep the log in; without it, everything is sent straight through</li>
+     *    <li><code>outbox.segmentKB</code> the size of each log segment, in kilobytes (default 1024)</li>
+     *    <li><code>outbox.maxSegments</code> the most segments the log may have (default 64)</li>
+     *    <li><code>outbox.replayPerSecond</code> the most messages to replay each second (default 10)</li>
+     *    <li><code>outbox.checkIntervalMs</code> the interval between tries to replay a message while the central post office is unreachable
+     *        (default 10000)</li>
+     * </ul>
+     *
+     * @param _box the mailbox to send through
+     * @param _config the monitor's configuration
+     * @throws IOException if the log can't be opened
+     */
+    public Outbox( final Mailbox _box, final HJSONObject _config ) throws IOException {
+
+        box             = _box;
+        String dir      = _config.optStringDotted( "outbox.directory", null );
+        directory       = isEmpty( dir ) ? null : new File( dir );
+        segmentBytes    = 1024L * Math.max( 1, _config.optLongDotted( "outbox.segmentKB", 1024 ) );
+        maxSegments     = Math.max( 2, _config.optIntDotted( "outbox.maxSegments", 64 ) );
+        replayPerSecond = Math.max( 1, _config.optIntDotted( "outbox.replayPerSecond", 10 ) );
+        checkIntervalMs = Math.max( 1000, _config.optLongDotted( "outbox.checkIntervalMs", 10000 ) );
+        unsent          = new TreeMap<>();
+        reachable       = true;
+
+        if( directory == null ) {
+            replayer = null;
+            return;
+        }
+        if( !directory.isDirectory() && !directory.mkdirs() )
+            throw new IOException( "Can't create outbox directory " + directory );
+        open();
+        replayer = new Thread( this::replayLoop, "NTP Monitor Outbox" );
+        replayer.setDaemon( true );
+    }
+
+
+    /**
+     * Starts the replay thread.
+     */
+    public void start() {
+        if( replayer == null ) return;
+        running = true;
+        replayer.start();
+    }
+
+
+    /**
+     * Stops the replay thread, and syncs anything appended since the last sync.
+     */
+    public void stop() {
+        running = false;
+        if( replayer == null ) return;
+        replayer.interrupt();
+        sync();
+    }
+
+
+    /**
+     * Publishes the given message (created with {@link Mailbox#createPublishMessage(String)} and the given type), now or later.
+     *
+     * @param _type the type the message was created with
+     * @param _message the message to publish
+     */
+    public void publish( final String _type, final Message _message ) {
+        send( "publish", null, _type, _message );
+    }
+
+
+    /**
+     * Sends the given direct message (created with {@link Mailbox#createDirectMessage(String, String, boolean)} and the given destination and
+     * type), now or later.
+     *
+     * @param _to the destination the message was created with
+     * @param _type the type the message was created with
+     * @param _message the message to send
+     */
+    public void direct( final String _to, final String _type, final Message _message ) {
+        send( "direct", _to, _type, _message );
+    }
+
+
+    private synchronized void send( final String _kind, final String _to, final String _type, final Message _message ) {
+
+        // if we can, just send it...
+        if( directory == null ) {
+            box.send( _message );
+            return;
+        }
+        if( reachable && (pending() == 0) ) {
+            try {
+                box.send( _message );
+                return;
+            }
+            catch( RuntimeException _e ) {
+                unreachable( _e );
+            }
+        }
+
+        // otherwise, it goes at the back of the log...
+        JSONObject record = new JSONObject();
+        record.put( "kind",     _kind                      );
+        record.put( "to",       _to                        );
+        record.put( "type",     _type                      );
+        record.put( "queuedAt", System.currentTimeMillis() );
+        record.put( "message",  _message                   );
+        try {
+            append( record.toString().getBytes( StandardCharsets.UTF_8 ) );
+        }
+        catch( IOException _e ) {
+            dropped++;
+            LOGGER.log( Level.SEVERE, "Couldn't append to outbox; message dropped", _e );
+        }
+    }
+
+
+    /**
+     * Puts this outbox's counters into the given JSON object, at the given dotted path: the number of messages pending, the number replayed
+     * and dropped since we started, and whether the central post office is reachable.
+     *
+     * @param _json the JSON object to put the counters into
+     * @param _path the dotted path to put them at
+     */
+    public synchronized void putDotted( final HJSONObject _json, final String _path ) {
+        _json.putDotted( _path + ".pending",   pending() );
+        _json.putDotted( _path + ".replayed",  replayed  );
+        _json.putDotted( _path + ".dropped",   dropped   );
+        _json.putDotted( _path + ".reachable", reachable );
+    }
+
+
+    private long pending() {
+        long total = 0;
+        for( int count : unsent.values() ) total += count;
+        return total;
+    }
+
+
+    /*
+     * The replay thread: every second, syncs what's been appended, and replays a batch of messages if we can (or, while the central post office
+     * is unreachable, tries one each check interval)...
+     */
+    private void replayLoop() {
+
+        long lastTry = 0;
+        while( running ) {
+
+            try {
+                Thread.sleep( 1000 );
+            }
+            catch( InterruptedException _e ) {
+                break;
+            }
+
+            sync();
+
+            boolean backlog;
+            synchronized( this ) {
+                backlog = (pending() > 0);
+            }
+
+            long now = System.currentTimeMillis();
+            if( backlog && (reachable || (now - lastTry >= checkIntervalMs)) ) {
+                lastTry = now;
+                try {
+                    replayBatch();
+                }
+                catch( IOException | RuntimeException _e ) {
+                    LOGGER.log( Level.SEVERE, "Outbox replay failed", _e );
+                }
+            }
+        }
+    }
+
+
+    /*
+     * Marks the central post office unreachable, because the given failure of a send through our mailbox...
+     */
+    private void unreachable( final RuntimeException _e ) {
+        if( reachable )
+            LOGGER.log( Level.WARNING, "Central post office is now unreachable: " + _e );
+        reachable = false;
+    }
+
+
+    /*
+     * Syncs the newest segment to disk, if anything's been appended to it since it was last synced.  The sync itself happens outside our lock,
+     * so senders aren't held up by it...
+     */
+    private void sync() {
+        FileChannel channel;
+        synchronized( this ) {
+            if( !unsynced ) return;
+            channel  = writer;
+            unsynced = false;
+        }
+        try {
+            channel.force( false );
+        }
+        catch( ClosedChannelException _e ) {
+            // the segment was closed (and synced) while we were getting to it...
+        }
+        catch( IOException _e ) {
+            LOGGER.log( Level.WARNING, "Couldn't sync outbox segment", _e );
+        }
+    }
+
+
+    /*
+     * Replays up to a second's worth of messages (or, while the central post office is unreachable, just the first, to see if it's reachable
+     * again), then saves our position.  If a send fails, the message stays where it is, to be replayed again later...
+     */
+    private synchronized void replayBatch() throws IOException {
+
+        int sent = 0;
+        while( (sent < (reachable ? replayPerSecond : 1)) && (pending() > 0) ) {
+
+            // if we've replayed everything in the oldest segment (and we're not still appending to it), we're done with it...
+            int count = unsent.get( readSegment );
+            if( count == 0 ) {
+                deleteSegment( readSegment );
+                readSegment = unsent.firstKey();
+                readOffset  = 0;
+                continue;
+            }
+
+            long recordOffset = readOffset;
+            byte[] bytes;
+            try( RandomAccessFile raf = new RandomAccessFile( segmentFile( readSegment ), "r" ) ) {
+                raf.seek( readOffset );
+                bytes = readRecord( raf );
+                readOffset = raf.getFilePointer();
+            }
+            catch( EOFException _e ) {
+                bytes = null;
+            }
+
+            // if the record is damaged, we can't trust anything after it in this segment, so we skip the rest of it...
+            if( bytes == null ) {
+                LOGGER.log( Level.WARNING, "Damaged outbox segment " + readSegment + "; skipping the rest of it" );
+                dropped += count;
+                unsent.put( readSegment, 0 );
+                if( readSegment == writeSegment ) closeWriter();
+                continue;
+            }
+
+            Message message;
+            try {
+                message = rebuild( new JSONObject( new String( bytes, StandardCharsets.UTF_8 ) ) );
+            }
+            catch( JSONException _e ) {
+                unsent.put( readSegment, count - 1 );
+                dropped++;
+                LOGGER.log( Level.WARNING, "Invalid outbox record; dropped", _e );
+                continue;
+            }
+            try {
+                box.send( message );
+            }
+            catch( RuntimeException _e ) {
+                readOffset = recordOffset;
+                unreachable( _e );
+                break;
+            }
+            if( !reachable ) {
+                reachable = true;
+                LOGGER.log( Level.INFO, "Central post office is now reachable" );
+            }
+            unsent.put( readSegment, count - 1 );
+            replayed++;
+            sent++;
+        }
+
+        // if we've replayed everything, start afresh...
+        if( pending() == 0 ) {
+            for( Long number : unsent.keySet().toArray( new Long[0] ) ) deleteSegment( number );
+            readSegment = writeSegment + 1;
+            readOffset  = 0;
+            LOGGER.log( Level.INFO, "Outbox replay is complete" );
+        }
+        savePosition();
+    }
+
+
+    /*
+     * Rebuilds a message from the given outbox record, through our mailbox, so that it gets a fresh envelope...
+     */
+    private Message rebuild( final JSONObject _record ) {
+
+        String type = _record.getString( "type" );
+        Message message = "publish".equals( _record.getString( "kind" ) )
+                ? box.createPublishMessage( type )
+                : box.createDirectMessage( _record.getString( "to" ), type, false );
+        JSONObject original = _record.getJSONObject( "message" );
+        for( String key : original.keySet() )
+            if( !message.has( key ) ) message.put( key, original.get( key ) );
+        message.putDotted( "outbox.queuedAt", _record.getLong( "queuedAt" ) );
+        message.putDotted( "outbox.replayed", true );
+        return message;
+    }
+
+
+    /*
+     * Appends the given record to the newest segment, starting a new segment (and deleting the oldest, if we have too many) if it's full...
+     */
+    private void append( final byte[] _bytes ) throws IOException {
+
+        if( (writer == null) || (writer.size() >= segmentBytes) ) {
+            closeWriter();
+            writeSegment++;
+            writer = FileChannel.open( segmentFile( writeSegment ).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND );
+            unsent.put( writeSegment, 0 );
+            while( unsent.size() > maxSegments ) {
+                long oldest = unsent.firstKey();
+                int lost = unsent.get( oldest );
+                dropped += lost;
+                deleteSegment( oldest );
+                LOGGER.log( Level.WARNING, "Outbox is full; dropped " + lost + " oldest messages" );
+            }
+            if( readSegment < unsent.firstKey() ) {
+                readSegment = unsent.firstKey();
+                readOffset  = 0;
+                savePosition();
+            }
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update( _bytes );
+        ByteBuffer buffer = ByteBuffer.allocate( 8 + _bytes.length );
+        buffer.putInt( _bytes.length ).putInt( (int) crc.getValue() ).put( _bytes ).flip();
+        while( buffer.hasRemaining() ) writer.write( buffer );
+        unsynced = true;
+        unsent.put( writeSegment, unsent.get( writeSegment ) + 1 );
+    }
+
+
+    /*
+     * Opens the log we have on disk (if any): deletes segments we've already replayed, counts the records still to be replayed, and trims any
+     * partly written record from the end of the newest segment...
+     */
+    private void open() throws IOException {
+
+        // where we left off...
+        File position = new File( directory, POSITION_FILE );
+        if( position.exists() ) {
+            String[] parts = new String( Files.readAllBytes( position.toPath() ), StandardCharsets.UTF_8 ).trim().split( "\\s+" );
+            try {
+                readSegment = Long.parseLong( parts[0] );
+                readOffset  = Long.parseLong( parts[1] );
+            }
+            catch( RuntimeException _e ) {
+                LOGGER.log( Level.WARNING, "Invalid outbox position; replaying everything" );
+            }
+        }
+
+        // the segments we have...
+        File[] files = directory.listFiles( ( _dir, _name ) -> _name.startsWith( PREFIX ) && _name.endsWith( SUFFIX ) );
+        TreeMap<Long,File> segments = new TreeMap<>();
+        if( files != null ) {
+            for( File file : files ) {
+                String name = file.getName();
+                try {
+                    segments.put( Long.parseLong( name.substring( PREFIX.length(), name.length() - SUFFIX.length() ) ), file );
+                }
+                catch( NumberFormatException _e ) {
+                    LOGGER.log( Level.WARNING, "Ignoring unexpected file in outbox: " + file );
+                }
+            }
+        }
+
+        // if the segment we were reading is gone, we start at the beginning of the oldest one we have...
+        if( !segments.isEmpty() && (segments.lastKey() >= readSegment) && !segments.containsKey( readSegment ) ) {
+            readSegment = segments.ceilingKey( readSegment );
+            readOffset  = 0;
+        }
+
+        for( Map.Entry<Long,File> entry : segments.entrySet() ) {
+
+            long number = entry.getKey();
+            if( number < readSegment ) {
+                if( !entry.getValue().delete() )
+                    LOGGER.log( Level.WARNING, "Couldn't delete outbox segment " + number );
+                continue;
+            }
+
+            // count the good records after where we'll start reading, and trim anything after them...
+            int count = 0;
+            try( RandomAccessFile raf = new RandomAccessFile( entry.getValue(), "rw" ) ) {
+                raf.seek( (number == readSegment) ? readOffset : 0 );
+                long end = raf.getFilePointer();
+                try {
+                    while( readRecord( raf ) != null ) {
+                        count++;
+                        end = raf.getFilePointer();
+                    }
+                }
+                catch( EOFException _e ) {
+                    // we've reached the end...
+                }
+                if( (number == segments.lastKey()) && (end < raf.length()) ) {
+                    LOGGER.log( Level.WARNING, "Trimming damaged or partly written records from outbox segment " + number );
+                    raf.setLength( end );
+                }
+            }
+            unsent.put( number, count );
+        }
+
+        // if there's nothing to replay, we start afresh; otherwise we pick up appending to the newest segment...
+        if( pending() == 0 ) {
+            for( Long number : unsent.keySet().toArray( new Long[0] ) ) deleteSegment( number );
+            writeSegment = Math.max( readSegment, segments.isEmpty() ? 0 : segments.lastKey() );
+            readSegment  = writeSegment + 1;
+            readOffset   = 0;
+        }
+        else {
+            writeSegment = unsent.lastKey();
+            writer = FileChannel.open( segmentFile( writeSegment ).toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND );
+            LOGGER.log( Level.INFO, "Outbox has " + pending() + " messages to replay" );
+        }
+        savePosition();
+    }
+
+
+    /*
+     * Reads one record at the file's current position, returning null if it's damaged, or throwing EOFException if it's incomplete...
+     */
+    private static byte[] readRecord( final RandomAccessFile _raf ) throws IOException {
+        int length = _raf.readInt();
+        int check  = _raf.readInt();
+        if( (length < 0) || (length > MAX_RECORD_BYTES) ) return null;
+        byte[] bytes = new byte[length];
+        _raf.readFully( bytes );
+        CRC32 crc = new CRC32();
+        crc.update( bytes );
+        return ((int) crc.getValue() == check) ? bytes : null;
+    }
+
+
+    /*
+     * Saves our replay position, atomically...
+     */
+    private void savePosition() throws IOException {
+        File temp = new File( directory, POSITION_FILE + ".tmp" );
+        Files.write( temp.toPath(), (readSegment + " " + readOffset + "\n").getBytes( StandardCharsets.UTF_8 ) );
+        Files.move( temp.toPath(), new File( directory, POSITION_FILE ).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+    }
+
+
+    private void deleteSegment( final long _number ) {
+        unsent.remove( _number );
+        if( _number == writeSegment ) closeWriter();
+        if( !segmentFile( _number ).delete() )
+            LOGGER.log( Level.WARNING, "Couldn't delete outbox segment " + _number );
+    }
+
+
+    /*
+     * Closes the newest segment, so the next append starts a new one...
+     */
+    private void closeWriter() {
+        if( writer == null ) return;
+        try {
+            if( unsynced ) writer.force( false );
+            writer.close();
+        }
+        catch( IOException _e ) {
+            LOGGER.log( Level.WARNING, "Couldn't close outbox segment " + writeSegment, _e );
+        }
+        writer   = null;
+        unsynced = false;
+    }
+
+
+    private File segmentFile( final long _number ) {
+        return new File( directory, PREFIX + _number + SUFFIX );
+    }
+}
@@ -0,0 +1,364 @@
+package com.dilatush.ntpmonitor;
+
+import com.dilatush.util.HJSONObject;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Rolling statistics for each of our NTP peers, updated incrementally from each new peer table: the mean and standard deviation of each peer's
+ * offset, delay, and jitter, the fraction of recent polls that reached it, and the overlapping Allan deviation of its offset at several
+ * averaging times.  Every update costs O(1) per peer (O(taus) for the Allan deviations), and each peer's memory is fixed when it's first seen.
+ * <p>
+ * The means and variances are computed with Welford's method for the first <code>window</code> samples, and as exponentially weighted
+ * averages (with weight 1/window) after that, so they follow the peer's recent behavior rather than its whole history.  The Allan deviations
+ * are computed from each peer's offsets (as phase samples, one per update) at averaging times that are multiples of the update interval; each
+ * one is the square root of a likewise rolling average of the squared second differences of the offsets, divided by 2&tau;&sup2;.  The update
+ * interval (&tau;<sub>0</sub>) is measured, as the median of the last several intervals between updates, as it depends on how the monitor is
+ * scheduled.  Any interval between a peer's offsets that's not close to it (because the peer was missing from an update, or an update failed,
+ * or was skipped) breaks the peer's sequence of offsets, so its Allan deviations start over from that point (but keep their averages).
+ * <p>
+ * Peers come and go (pool servers, in particular), so a peer that hasn't been seen for <code>evictAfter</code> updates is forgotten, and if
+ * there are ever more than <code>maxPeers</code> peers, the one seen least recently is forgotten.  The statistics can be kept in a
+ * {@link Checkpoint}, so they carry on across a restart of the monitor.  Instances of this class are mutable and NOT threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class PeerStatistics implements Checkpoint.Part {
+
+    private static final int           GAPS = 9;        // the intervals between updates that tau0 is the median of...
+
+    private final int                  window;
+    private final int[]                taus;            // the averaging times, as multiples of the update interval...
+    private final long[]               gapsMs;          // a ring of the latest intervals between updates...
+    private final long[]               sortedGapsMs;    // scratch, for finding their median...
+    private double                     tau0Seconds;     // the update interval: the median of the latest intervals, or the nominal one...
+    private long                       lastUpdateMs;    // when the latest update was, or Long.MIN_VALUE if there hasn't been one...
+    private long                       gaps;
+    private final int                  maxPeers;
+    private final int                  evictAfter;
+    private final Map<String,PeerStats> peers;          // in order of when they were last seen (least recent first)...
+    private long                       updates;
+
+
+    /**
+     * Creates a new instance of this class configured by the given monitor configuration.  The optional configuration items are:
+     * <ul>
+     *    <li><code>peerStats.window</code> the number of samples the rolling averages follow (default 60)</li>
+     *    <li><code>peerStats.taus</code> an array of the Allan deviation averaging times, as multiples of the update interval (default
+     *        [1, 2, 4, 8, 16])</li>
+     *    <li><code>peerStats.maxPeers</code> the most peers to keep statistics for (default 64)</li>
+     *    <li><code>peerStats.evictAfter</code> the number of updates a peer may be missing from before it's forgotten (default 10)</li>
+     * </ul>
+     *
+     * @param _config the monitor's configuration, or <code>null</code> for the defaults
+     * @param _tau0Seconds the nominal interval between updates, in seconds, used until the actual interval has been measured
+     */
+    public PeerStatistics( final HJSONObject _config, final double _tau0Seconds ) {
+
+        HJSONObject config = (_config == null) ? new HJSONObject() : _config;
+        window       = Math.max( 1, config.optIntDotted( "peerStats.window",     60 ) );
+        maxPeers     = Math.max( 1, config.optIntDotted( "peerStats.maxPeers",   64 ) );
+        evictAfter   = Math.max( 1, config.optIntDotted( "peerStats.evictAfter", 10 ) );
+        tau0Seconds  = _tau0Seconds;
+        peers        = new LinkedHashMap<>( 16, 0.75f, true );
+        gapsMs       = new long[GAPS];
+        sortedGapsMs = new long[GAPS];
+        lastUpdateMs = Long.MIN_VALUE;
+
+        JSONObject peerStats = config.optJSONObject( "peerStats" );
+        JSONArray  tauArray  = (peerStats == null) ? null : peerStats.optJSONArray( "taus" );
+        if( tauArray == null )
+            taus = new int[] { 1, 2, 4, 8, 16 };
+        else {
+            taus = new int[tauArray.length()];
+            for( int i = 0; i < taus.length; i++ ) {
+                taus[i] = tauArray.getInt( i );
+                if( taus[i] < 1 )
+                    throw new IllegalArgumentException( "Invalid peerStats.taus: " + tauArray );
+            }
+        }
+    }
+
+
+    /**
+     * Updates the statistics from the given peer table, then forgets any peers that haven't been seen for too long.
+     *
+     * @param _peers the latest peer table
+     * @param _timeMs when the peer table was read (System.currentTimeMillis())
+     */
+    public void update( final PeerView _peers, final long _timeMs ) {
+
+        // measure the interval between updates...
+        if( (lastUpdateMs != Long.MIN_VALUE) && (_timeMs > lastUpdateMs) ) {
+            gapsMs[(int) (gaps++ % GAPS)] = _timeMs - lastUpdateMs;
+            int count = (int) Math.min( gaps, GAPS );
+            System.arraycopy( gapsMs, 0, sortedGapsMs, 0, count );
+            Arrays.sort( sortedGapsMs, 0, count );
+            tau0Seconds = sortedGapsMs[count / 2] / 1000.0;
+        }
+        lastUpdateMs = _timeMs;
+
+        updates++;
+        for( int i = 0; i < _peers.size(); i++ ) {
+            String remote = _peers.remote( i );
+            PeerStats stats = peers.get( remote );      // moves it to the most recently seen end...
+            if( stats == null ) {
+                stats = new PeerStats();
+                peers.put( remote, stats );
+            }
+            stats.add( _peers.offsetMs( i ), _peers.delayMs( i ), _peers.jitterRmsMs( i ), _peers.reached( i ), updates, _timeMs );
+        }
+
+        // forget the peers we haven't seen for a while, or (if there are too many) the one we saw least recently...
+        Iterator<PeerStats> it = peers.values().iterator();
+        while( it.hasNext() ) {
+            PeerStats stats = it.next();
+            if( (updates - stats.lastSeen < evictAfter) && (peers.size() <= maxPeers) ) break;
+            it.remove();
+        }
+    }
+
+
+    /**
+     * Returns the interval between updates, as measured (or the nominal interval, until it has been), in seconds.  It's the interval the
+     * Allan deviations' averaging times are multiples of.
+     *
+     * @return the interval between updates
+     */
+    public double tau0Seconds() {
+        return tau0Seconds;
+    }
+
+
+    /**
+     * Returns the number of peers we have statistics for.
+     *
+     * @return the number of peers we have statistics for
+     */
+    public int size() {
+        return peers.size();
+    }
+
+
+    /**
+     * Puts the statistics for the given peer into the given JSON object, as fields of <code>stats</code>.  Nothing is put if we have no
+     * statistics for the peer.
+     *
+     * @param _remote the peer to put the statistics for
+     * @param _json the JSON object (normally an element of <code>monitor.ntp.peers</code>) to put the statistics into
+     */
+    public void put( final String _remote, final JSONObject _json ) {
+
+        PeerStats stats = peers.get( _remote );
+        if( stats == null ) return;
+
+        JSONObject statsJSON = new JSONObject();
+        statsJSON.put( "samples",        stats.samples                 );
+        statsJSON.put( "offsetMs",       stats.offsetMs.toJSON()       );
+        statsJSON.put( "delayMs",        stats.delayMs.toJSON()        );
+        statsJSON.put( "jitterRmsMs",    stats.jitterRmsMs.toJSON()    );
+        statsJSON.put( "reachRatio",     stats.reachRatio              );
+        statsJSON.put( "reachRatioMean", stats.reachRatioMean.mean     );
+        JSONArray adevJSON = new JSONArray();
+        for( int t = 0; t < taus.length; t++ ) {
+            if( stats.adevSquares[t].count == 0 ) continue;
+            double tau = taus[t] * tau0Seconds;
+            JSONObject point = new JSONObject();
+            point.put( "tauSeconds", tau );
+            point.put( "adev",       Math.sqrt( stats.adevSquares[t].mean / (2 * tau * tau) ) );
+            point.put( "samples",    stats.adevSquares[t].count );
+            adevJSON.put( point );
+        }
+        statsJSON.put( "adev", adevJSON );
+        _json.put( "stats", statsJSON );
+    }
+
+
+    /**
+     * Writes the statistics to the given output: the averaging times they were kept at, then each peer's statistics, least recently seen
+     * first.
+     *
+     * @param _out the output to write the statistics to
+     * @throws IOException if they can't be written
+     */
+    @Override
+    public void save( final DataOutput _out ) throws IOException {
+        _out.writeLong( updates );
+        _out.writeInt( taus.length );
+        for( int tau : taus ) _out.writeInt( tau );
+        _out.writeInt( peers.size() );
+        for( Map.Entry<String,PeerStats> entry : peers.entrySet() ) {
+            _out.writeUTF( entry.getKey() );
+            entry.getValue().save( _out );
+        }
+    }
+
+
+    /**
+     * Reads the statistics, as written by {@link #save(DataOutput)}, from the given input.  If the averaging times have been changed since they
+     * were saved, the Allan deviations start afresh (but the other statistics are restored).  The updates around a restart aren't evenly
+     * spaced, so each peer's sequence of offsets breaks, just as if it had been missing from an update (the Allan deviations keep their
+     * averages).
+     *
+     * @param _in the input to read the statistics from
+     * @param _ageMs how long ago the statistics were saved, in milliseconds
+     * @throws IOException if the statistics can't be read
+     */
+    @Override
+    public void restore( final DataInput _in, final long _ageMs ) throws IOException {
+
+        // read it all before changing anything, so that if it can't be read we start afresh...
+        long savedUpdates = _in.readLong();
+        int[] savedTaus = new int[_in.readInt()];
+        for( int t = 0; t < savedTaus.length; t++ ) savedTaus[t] = _in.readInt();
+        boolean sameTaus = Arrays.equals( taus, savedTaus );
+        Map<String,PeerStats> saved = new LinkedHashMap<>( 16, 0.75f, true );
+        int count = _in.readInt();
+        for( int i = 0; i < count; i++ ) {
+            String remote = _in.readUTF();
+            PeerStats stats = new PeerStats();
+            stats.restore( _in, savedTaus.length, sameTaus );
+            saved.put( remote, stats );
+        }
+
+        updates = savedUpdates;
+        peers.clear();
+        peers.putAll( saved );
+    }
+
+
+    /*
+     * The statistics for one peer...
+     */
+    private class PeerStats {
+
+        private final RollingStats   offsetMs       = new RollingStats();
+        private final RollingStats   delayMs        = new RollingStats();
+        private final RollingStats   jitterRmsMs    = new RollingStats();
+        private final RollingStats   reachRatioMean = new RollingStats();
+        private final RollingStats[] adevSquares;   // the rolling mean of the squared second differences at each tau...
+        private final double[]       phase;         // a ring of the most recent offsets, in seconds...
+        private int                  phaseCount;    // the number of offsets in the ring since the sequence last broke...
+        private long                 samples;
+        private long                 lastSeen;
+        private long                 lastSeenMs;    // when we last saw it, or zero if not since we started...
+        private double               reachRatio;
+
+
+        private PeerStats() {
+            adevSquares = new RollingStats[taus.length];
+            int maxTau = 1;
+            for( int t = 0; t < taus.length; t++ ) {
+                adevSquares[t] = new RollingStats();
+                maxTau = Math.max( maxTau, taus[t] );
+            }
+            phase = new double[2 * maxTau + 1];
+        }
+
+
+        private void add( final double _offsetMs, final double _delayMs, final double _jitterRmsMs, final int _reached, final long _update,
+                          final long _timeMs ) {
+
+            // if this offset isn't about one update interval after the last, they're no longer evenly spaced...
+            double gapSeconds = (_timeMs - lastSeenMs) / 1000.0;
+            if( (lastSeenMs == 0) || (Math.abs( gapSeconds - tau0Seconds ) > tau0Seconds / 2) ) phaseCount = 0;
+            lastSeen   = _update;
+            lastSeenMs = _timeMs;
+            samples++;
+
+            offsetMs.add(    _offsetMs    );
+            delayMs.add(     _delayMs     );
+            jitterRmsMs.add( _jitterRmsMs );
+            reachRatio = Integer.bitCount( _reached & 0xFF ) / 8.0;
+            reachRatioMean.add( reachRatio );
+
+            // the newest offset goes at index phaseCount (mod the ring's size); then each tau with enough history gets a second difference...
+            double x = _offsetMs / 1000;
+            phase[phaseCount % phase.length] = x;
+            phaseCount++;
+            for( int t = 0; t < taus.length; t++ ) {
+                int m = taus[t];
+                if( phaseCount <= 2 * m ) continue;
+                int newest = phaseCount - 1;
+                double d = x - 2 * phase[(newest - m) % phase.length] + phase[(newest - 2 * m) % phase.length];
+                adevSquares[t].add( d * d );
+            }
+        }
+
+
+        private void save( final DataOutput _out ) throws IOException {
+            offsetMs.save( _out );
+            delayMs.save( _out );
+            jitterRmsMs.save( _out );
+            reachRatioMean.save( _out );
+            _out.writeLong( samples );
+            _out.writeLong( lastSeen );
+            _out.writeDouble( reachRatio );
+            for( RollingStats adev : adevSquares ) adev.save( _out );
+        }
+
+
+        // reads what save() wrote, with the given number of taus; the Allan deviations are kept only if the taus are the same as ours...
+        private void restore( final DataInput _in, final int _taus, final boolean _sameTaus ) throws IOException {
+            offsetMs.restore( _in );
+            delayMs.restore( _in );
+            jitterRmsMs.restore( _in );
+            reachRatioMean.restore( _in );
+            samples    = _in.readLong();
+            lastSeen   = _in.readLong();
+            reachRatio = _in.readDouble();
+            RollingStats ignored = new RollingStats();
+            for( int t = 0; t < _taus; t++ ) (_sameTaus ? adevSquares[t] : ignored).restore( _in );
+        }
+    }
+
+
+    /*
+     * A rolling mean and variance: Welford's method for the first window samples, then exponentially weighted with weight 1/window...
+     */
+    private class RollingStats {
+
+        private long   count;
+        private double mean;
+        private double variance;
+
+
+        private void add( final double _value ) {
+            count++;
+            double weight = 1.0 / Math.min( count, window );
+            double delta  = _value - mean;
+            mean     += weight * delta;
+            variance  = (1 - weight) * (variance + weight * delta * delta);
+        }
+
+
+        private void save( final DataOutput _out ) throws IOException {
+            _out.writeLong( count );
+            _out.writeDouble( mean );
+            _out.writeDouble( variance );
+        }
+
+
+        private void restore( final DataInput _in ) throws IOException {
+            count    = _in.readLong();
+            mean     = _in.readDouble();
+            variance = _in.readDouble();
+        }
+
+
+        private JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            json.put( "mean",   mean                  );
+            json.put( "stdDev", Math.sqrt( variance ) );
+            return json;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package com.dilatush.ntpmonitor;
+
+/**
+ * A preallocated, structure-of-arrays table of NTP peers, as shown by <code>ntpq -p</code>.  Each peer is a row, and each field is a column held
+ * in a primitive array, so that filling the table allocates nothing.  Names (remote, srcadr, and refid) are held as characters in fixed-size
+ * buffers, and are only turned into strings when asked for.  The reach register is kept as an int bitmask.  Only the probes (and decoders) in
+ * this package fill a table; everything else sees it through the read-only {@link PeerView}.  Instances of this class are mutable and NOT
+ * threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class PeerTable implements PeerView {
+
+    /* package-private */ static final int MAX_NAME = 64;     // longer names are truncated...
+
+    // the descriptive states for each tally code, indexed by the peer status word's selection field...
+    private static final String TALLY_CODES = " x.-+#*o";
+    private static final String[] STATES = {
+            "(none)", "Out of tolerance", "Excess", "Out of tolerance", "Good, preferred", "Good, not used", "Primary reference", "PPS peer"
+    };
+
+    private final int       capacity;
+    private int             size;
+
+    /* package-private */ final char[]    tally;
+    /* package-private */ final char[][]  remote;
+    /* package-private */ final int[]     remoteLength;
+    /* package-private */ final char[][]  srcadr;
+    /* package-private */ final int[]     srcadrLength;
+    /* package-private */ final char[][]  refid;
+    /* package-private */ final int[]     refidLength;
+    /* package-private */ final int[]     stratum;
+    /* package-private */ final boolean[] local;
+    /* package-private */ final int[]     lastPolledSeconds;
+    /* package-private */ final int[]     pollIntervalSeconds;
+    /* package-private */ final int[]     reached;              // the reach register; bit 0 is the most recent poll...
+    /* package-private */ final float[]   delayMs;
+    /* package-private */ final float[]   offsetMs;
+    /* package-private */ final float[]   jitterRmsMs;
+
+
+    /**
+     * Creates a new instance of this class that can hold up to the given number of peers.
+     *
+     * @param _capacity the maximum number of peers this table can hold
+     */
+    public PeerTable( final int _capacity ) {
+        capacity            = _capacity;
+        tally               = new char[_capacity];
+        remote              = new char[_capacity][MAX_NAME];
+        remoteLength        = new int[_capacity];
+        srcadr              = new char[_capacity][MAX_NAME];
+        srcadrLength        = new int[_capacity];
+        refid               = new char[_capacity][MAX_NAME];
+        refidLength         = new int[_capacity];
+        stratum             = new int[_capacity];
+        local               = new boolean[_capacity];
+        lastPolledSeconds   = new int[_capacity];
+        pollIntervalSeconds = new int[_capacity];
+        reached             = new int[_capacity];
+        delayMs             = new float[_capacity];
+        offsetMs            = new float[_capacity];
+        jitterRmsMs         = new float[_capacity];
+    }
+
+
+    /**
+     * Removes all the peers from this table.
+     */
+    /* package-private */ void clear() {
+        size = 0;
+    }
+
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+
+    /**
+     * Returns the maximum number of peers this table can hold.
+     *
+     * @return the maximum number of peers this table can hold
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+
+    /**
+     * Returns a new table, exactly as large as it needs to be, holding a copy of the peers in this table.  The probes reuse their tables, so
+     * anything that keeps a table past the cycle it was collected in (a published snapshot, for instance) must keep a copy.
+     *
+     * @return a copy of this table
+     */
+    public PeerTable copy() {
+        PeerTable copy = new PeerTable( size );
+        copy.size = size;
+        System.arraycopy( tally, 0, copy.tally, 0, size );
+        for( int i = 0; i < size; i++ ) {
+            System.arraycopy( remote[i], 0, copy.remote[i], 0, remoteLength[i] );
+            System.arraycopy( srcadr[i], 0, copy.srcadr[i], 0, srcadrLength[i] );
+            System.arraycopy( refid[i],  0, copy.refid[i],  0, refidLength[i]  );
+        }
+        System.arraycopy( remoteLength,        0, copy.remoteLength,        0, size );
+        System.arraycopy( srcadrLength,        0, copy.srcadrLength,        0, size );
+        System.arraycopy( refidLength,         0, copy.refidLength,         0, size );
+        System.arraycopy( stratum,             0, copy.stratum,             0, size );
+        System.arraycopy( local,               0, copy.local,               0, size );
+        System.arraycopy( lastPolledSeconds,   0, copy.lastPolledSeconds,   0, size );
+        System.arraycopy( pollIntervalSeconds, 0, copy.pollIntervalSeconds, 0, size );
+        System.arraycopy( reached,             0, copy.reached,             0, size );
+        System.arraycopy( delayMs,             0, copy.delayMs,             0, size );
+        System.arraycopy( offsetMs,            0, copy.offsetMs,            0, size );
+        System.arraycopy( jitterRmsMs,         0, copy.jitterRmsMs,         0, size );
+        return copy;
+    }
+
+
+    /**
+     * Adds an empty row to this table, returning its index, or -1 if the table is full.  The new row has no source address until one is set,
+     * as not every source of peers knows it.
+     *
+     * @return the index of the new row, or -1 if the table is full
+     */
+    /* package-private */ int addRow() {
+        if( size >= capacity ) return -1;
+        srcadrLength[size] = 0;
+        return size++;
+    }
+
+
+    /**
+     * Removes the last row added to this table (used when a row turns out to be malformed part way through being filled).
+     */
+    /* package-private */ void removeLastRow() {
+        if( size > 0 ) size--;
+    }
+
+
+    /**
+     * Sets the remote name for the given row from the given characters (truncated if necessary).
+     *
+     * @param _row the row to set the remote name for
+     * @param _chars the characters containing the name
+     * @param _start the index of the first character of the name
+     * @param _end the index just past the last character of the name
+     */
+    /* package-private */ void setRemote( final int _row, final CharSequence _chars, final int _start, final int _end ) {
+        remoteLength[_row] = copy( _chars, _start, _end, remote[_row] );
+    }
+
+
+    /**
+     * Sets the source address (ntpd's <code>srcadr</code>) for the given row from the given characters (truncated if necessary).
+     *
+     * @param _row the row to set the source address for
+     * @param _chars the characters containing the address
+     * @param _start the index of the first character of the address
+     * @param _end the index just past the last character of the address
+     */
+    /* package-private */ void setSrcadr( final int _row, final CharSequence _chars, final int _start, final int _end ) {
+        srcadrLength[_row] = copy( _chars, _start, _end, srcadr[_row] );
+    }
+
+
+    /**
+     * Sets the reference ID for the given row from the given characters (truncated if necessary).
+     *
+     * @param _row the row to set the reference ID for
+     * @param _chars the characters containing the reference ID
+     * @param _start the index of the first character of the reference ID
+     * @param _end the index just past the last character of the reference ID
+     */
+    /* package-private */ void setRefid( final int _row, final CharSequence _chars, final int _start, final int _end ) {
+        refidLength[_row] = copy( _chars, _start, _end, refid[_row] );
+    }
+
+
+    /*
+     * Copies the given range of characters into the given buffer, truncating if needed, and returns the number of characters copied.
+     */
+    private static int copy( final CharSequence _chars, final int _start, final int _end, final char[] _buffer ) {
+        int length = Math.min( _end - _start, _buffer.length );
+        for( int i = 0; i < length; i++ )
+            _buffer[i] = _chars.charAt( _start + i );
+        return length;
+    }
+
+
+    @Override
+    public String remote( final int _row ) {
+        return new String( remote[_row], 0, remoteLength[_row] );
+    }
+
+
+    @Override
+    public int remote( final int _row, final char[] _chars ) {
+        System.arraycopy( remote[_row], 0, _chars, 0, remoteLength[_row] );
+        return remoteLength[_row];
+    }
+
+
+    @Override
+    public String srcadr( final int _row ) {
+        return new String( srcadr[_row], 0, srcadrLength[_row] );
+    }
+
+
+    @Override
+    public String refid( final int _row ) {
+        return new String( refid[_row], 0, refidLength[_row] );
+    }
+
+
+    @Override
+    public int refid( final int _row, final char[] _chars ) {
+        System.arraycopy( refid[_row], 0, _chars, 0, refidLength[_row] );
+        return refidLength[_row];
+    }
+
+
+    @Override
+    public char tally( final int _row ) {
+        return tally[_row];
+    }
+
+
+    @Override
+    public String state( final int _row ) {
+        return stateOf( tally[_row] );
+    }
+
+
+    /**
+     * Returns the descriptive state for the given tally code.  The strings returned are constants, so this doesn't allocate.
+     *
+     * @param _tally the tally code
+     * @return the descriptive state for the tally code
+     */
+    public static String stateOf( final char _tally ) {
+        int code = TALLY_CODES.indexOf( _tally );
+        return (code < 0) ? "(unknown)" : STATES[code];
+    }
+
+
+    @Override
+    public String reachedString( final int _row ) {
+        return Integer.toBinaryString( 256 + (reached[_row] & 0xFF) ).substring( 1 );
+    }
+
+
+    @Override public int     stratum(             final int _row ) { return stratum[_row];             }
+    @Override public boolean local(               final int _row ) { return local[_row];               }
+    @Override public int     lastPolledSeconds(   final int _row ) { return lastPolledSeconds[_row];   }
+    @Override public int     pollIntervalSeconds( final int _row ) { return pollIntervalSeconds[_row]; }
+    @Override public int     reached(             final int _row ) { return reached[_row];             }
+    @Override public float   delayMs(             final int _row ) { return delayMs[_row];             }
+    @Override public float   offsetMs(            final int _row ) { return offsetMs[_row];            }
+    @Override public float   jitterRmsMs(         final int _row ) { return jitterRmsMs[_row];         }
+
+
+    /**
+     * Returns the tally code for the given selection field (bits 8..10) of a peer status word.
+     *
+     * @param _peerStatus the peer status word
+     * @return the tally code for the peer status word
+     */
+    public static char tallyFromStatus( final int _peerStatus ) {
+        return TALLY_CODES.charAt( (_peerStatus >>> 8) & 0x7 );
+    }
+}
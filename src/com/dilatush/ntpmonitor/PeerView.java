@@ -0,0 +1,108 @@
+package com.dilatush.ntpmonitor;
+
+/**
+ * A read-only view of a table of NTP peers, as shown by <code>ntpq -p</code>, with each peer in a row.  This is how everything downstream of
+ * the probes (the snapshot, and everything that reads it) sees a peer table, so that nothing but the probe that fills a {@link PeerTable} can
+ * change it.  Only the methods that make strings (the names and the reach register) allocate.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public interface PeerView {
+
+    /**
+     * Returns the number of peers in this table.
+     *
+     * @return the number of peers in this table
+     */
+    int size();
+
+
+    /**
+     * Returns the remote name of the peer in the given row.
+     *
+     * @param _row the row of the peer
+     * @return the remote name of the peer
+     */
+    String remote( int _row );
+
+
+    /**
+     * Copies the remote name of the peer in the given row into the given buffer (which must hold at least {@link PeerTable#MAX_NAME}
+     * characters), without allocating.
+     *
+     * @param _row the row of the peer
+     * @param _chars the buffer to copy the name into
+     * @return the number of characters copied
+     */
+    int remote( int _row, char[] _chars );
+
+
+    /**
+     * Returns the address to reach the peer in the given row at, as ntpd knows it (its <code>srcadr</code>), or an empty string if that isn't
+     * known.  Unlike the remote name, this is never truncated: it's known when the peers were read with mode 6 control queries, or from
+     * chronyd; from <code>ntpq -p</code>, it's the remote name (a host name or an address) when that's short enough that ntpq didn't truncate
+     * it, and otherwise it isn't known.
+     *
+     * @param _row the row of the peer
+     * @return the address of the peer, or an empty string if it isn't known
+     */
+    String srcadr( int _row );
+
+
+    /**
+     * Returns the reference ID of the peer in the given row.
+     *
+     * @param _row the row of the peer
+     * @return the reference ID of the peer
+     */
+    String refid( int _row );
+
+
+    /**
+     * Copies the reference ID of the peer in the given row into the given buffer (which must hold at least {@link PeerTable#MAX_NAME}
+     * characters), without allocating.
+     *
+     * @param _row the row of the peer
+     * @param _chars the buffer to copy the reference ID into
+     * @return the number of characters copied
+     */
+    int refid( int _row, char[] _chars );
+
+
+    /**
+     * Returns the tally code (the character ntpq shows before the remote name) of the peer in the given row.
+     *
+     * @param _row the row of the peer
+     * @return the tally code of the peer
+     */
+    char tally( int _row );
+
+
+    /**
+     * Returns the descriptive state of the peer in the given row.  The strings returned are constants, so this doesn't allocate.
+     *
+     * @param _row the row of the peer
+     * @return the descriptive state of the peer
+     */
+    String state( int _row );
+
+
+    /**
+     * Returns the reach register of the peer in the given row as a string of eight binary digits, in the same order as the reach register
+     * (so the most recent poll is the last character).
+     *
+     * @param _row the row of the peer
+     * @return the reach register as a string of binary digits
+     */
+    String reachedString( int _row );
+
+
+    int     stratum(             int _row );
+    boolean local(               int _row );
+    int     lastPolledSeconds(   int _row );
+    int     pollIntervalSeconds( int _row );
+    int     reached(             int _row );    // the reach register; bit 0 is the most recent poll...
+    float   delayMs(             int _row );
+    float   offsetMs(            int _row );
+    float   jitterRmsMs(         int _row );
+}
@@ -0,0 +1,81 @@
+package com.dilatush.ntpmonitor;
+
+/**
+ * A source of one kind of information about the time service (the peers, the local server's state, the GNSS fix, or the satellites in view),
+ * polled by {@link NTPMonitor} on one of its probe threads.  The monitor starts each of its probes once, when it's created, and stops them when
+ * it's stopped; in between, it polls each probe at most once per monitor cycle, and no more often than the probe's interval (if it has one), so
+ * that slow or expensive sources can run at their own cadence.  A probe is never polled concurrently with itself, but different probes are
+ * polled concurrently with each other.  A probe that takes longer than its timeout to poll has its result abandoned for that cycle.
+ * <p>
+ * The result of a poll is the probe's typed output; it must not be changed by the probe until it has been superseded by the result of a later
+ * poll, as the monitor publishes it after the poll returns.
+ *
+ * @param <T> the type of output this probe produces
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public interface Probe<T> {
+
+    /**
+     * Returns the name of this probe, as published in <code>monitor.ntp.probes</code>.
+     *
+     * @return the name of this probe
+     */
+    String name();
+
+
+    /**
+     * Starts this probe: opens connections, starts any threads it needs, and so on.  The default implementation does nothing.
+     */
+    default void start() {
+    }
+
+
+    /**
+     * Polls this probe for its current output.
+     *
+     * @return the current output of this probe
+     * @throws ProbeException if the probe failed, with a message suitable for publishing
+     */
+    T poll() throws ProbeException;
+
+
+    /**
+     * Stops this probe, releasing anything it holds.  The default implementation does nothing.
+     */
+    default void stop() {
+    }
+
+
+    /**
+     * Returns the shortest interval between polls of this probe, in milliseconds; between polls the monitor publishes the probe's last output.
+     * The default implementation returns zero, so the probe is polled every monitor cycle.
+     *
+     * @return the shortest interval between polls, in milliseconds
+     */
+    default long intervalMs() {
+        return 0;
+    }
+
+
+    /**
+     * Returns the longest a poll of this probe may take before its result is abandoned, in milliseconds.  The default implementation returns
+     * zero, so the monitor's probe timeout applies.
+     *
+     * @return the longest a poll of this probe may take, in milliseconds
+     */
+    default long timeoutMs() {
+        return 0;
+    }
+
+
+    /**
+     * Returns how long the last poll spent parsing the output of its source (a command's output, for instance), in nanoseconds, or -1 if it
+     * didn't parse anything this probe measures.  The monitor times each poll as a whole, and publishes this as the parsing part of it.  The
+     * default implementation returns -1.
+     *
+     * @return how long the last poll spent parsing, in nanoseconds, or -1
+     */
+    default long parseNanos() {
+        return -1;
+    }
+}
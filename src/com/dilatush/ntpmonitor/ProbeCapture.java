@@ -0,0 +1,372 @@
+package com.dilatush.ntpmonitor;
+
+import com.dilatush.util.HJSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static com.dilatush.util.Strings.isEmpty;
+
+/**
+ * A capture of the raw outputs of the monitor's probes, as they actually ran: the outputs of the commands (ntpq -p, ntpq -c kerninfo, gpsctl
+ * --query fix, and gpsctl --query satellites), ntpd's responses to the NTP control (mode 6) queries of the peers and kernel probes, and the raw
+ * records read from the GNSS stream, with when each monitor cycle started and how long into the cycle each output arrived, so that what the
+ * monitor saw in the field can be replayed off-box through the monitor (see {@link Reader}).  Each capture is a gzipped file of records: a
+ * header (the int "NTPC" and a version byte), then for each cycle a cycle record (a zero byte and the cycle's start time as a long), followed
+ * by an output record for each output during the cycle (one plus the {@link Source} ordinal as a byte, the milliseconds since the cycle
+ * started as an int, then the output's length and UTF-8 bytes, or a length of -1 if the command or query failed), and finally an end record
+ * (the byte 255) when the capture is closed.  A source may have any number of outputs in a cycle (a poll of the peers makes a query for each
+ * peer, and the GNSS stream's records arrive whenever the receiver sends them); outputs that arrive before the first cycle starts aren't
+ * captured.  The file is flushed at the start of each cycle, so a capture that was cut short loses at most its last cycle.  If writing fails,
+ * capturing stops, but the monitor carries on.  Instances of this class are threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class ProbeCapture implements Closeable {
+
+    private static final Logger LOGGER   = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName() );
+
+    private static final int    MAGIC    = 0x4E545043;      // "NTPC"...
+    private static final int    VERSION  = 2;               // version 1 had only the command outputs...
+    private static final int    CYCLE    = 0;
+    private static final int    END      = 255;
+
+    /* package-private */ static final String PREFIX = "capture-";
+    /* package-private */ static final String SUFFIX = ".ntpcap.gz";
+
+    // everything below is guarded by "this"...
+    private DataOutputStream    out;                        // null if we've stopped capturing...
+    private long                cycleStartNanos;            // System.nanoTime() when the current cycle started...
+    private boolean             cycling;                    // true once the first cycle has started...
+
+
+    /**
+     * The raw outputs we capture: the commands' outputs, ntpd's responses to the control queries of the peers and kernel probes (in the form
+     * {@link NTPControlClient} captures them in), and the GNSS stream's records.
+     */
+    public enum Source { PEERS, KERNEL, FIX, SATELLITES, CONTROL_PEERS, CONTROL_KERNEL, GNSS_STREAM }
+
+
+    /**
+     * Creates a new instance of this class that captures to the given file, replacing anything already in it.
+     *
+     * @param _file the file to capture to
+     * @throws IOException if the file can't be created
+     */
+    public ProbeCapture( final File _file ) throws IOException {
+        out = new DataOutputStream( new BufferedOutputStream( new GZIPOutputStream( new FileOutputStream( _file ), 8192, true ), 65536 ) );
+        out.writeInt( MAGIC );
+        out.writeByte( VERSION );
+    }
+
+
+    /**
+     * Creates a new instance of this class configured by the given monitor configuration, or returns <code>null</code> if the configuration
+     * doesn't enable it.  The configuration item is:
+     * <ul>
+     *    <li><code>capture.directory</code> the directory to write captures to; each time the monitor starts, it begins a new capture named
+     *        for when it started ("capture-&lt;milliseconds&gt;.ntpcap.gz"); without it (the default), nothing is captured</li>
+     * </ul>
+     *
+     * @param _config the monitor's configuration
+     * @return the new capture, or null if capturing isn't enabled
+     * @throws IOException if the capture can't be created
+     */
+    public static ProbeCapture fromConfig( final HJSONObject _config ) throws IOException {
+        String dir = _config.optStringDotted( "capture.directory", null );
+        if( isEmpty( dir ) ) return null;
+        File directory = new File( dir );
+        if( !directory.isDirectory() && !directory.mkdirs() )
+            throw new IOException( "Can't create capture directory " + directory );
+        File file = new File( directory, PREFIX + System.currentTimeMillis() + SUFFIX );
+        LOGGER.log( Level.INFO, "Capturing probe outputs to " + file );
+        return new ProbeCapture( file );
+    }
+
+
+    /**
+     * Returns a supplier that gets its output from the given supplier, capturing it as the given source's output.
+     *
+     * @param _source the source the output is from
+     * @param _supplier the supplier of the raw output (normally a command)
+     * @return the capturing supplier
+     */
+    public Supplier<String> recorder( final Source _source, final Supplier<String> _supplier ) {
+        return () -> {
+            String output = _supplier.get();
+            output( _source, output );
+            return output;
+        };
+    }
+
+
+    /**
+     * Returns a recorder that captures each output handed to it (<code>null</code> if its query failed) as the given source's output.
+     *
+     * @param _source the source the outputs are from
+     * @return the recorder
+     */
+    public Consumer<String> recorder( final Source _source ) {
+        return _output -> output( _source, _output );
+    }
+
+
+    /**
+     * Marks the start of a monitor cycle, at the given time.  Called on the monitor's thread before it starts its probes.
+     *
+     * @param _timeMs when the cycle started (System.currentTimeMillis())
+     */
+    public synchronized void cycle( final long _timeMs ) {
+        if( out == null ) return;
+        try {
+            out.flush();
+            out.writeByte( CYCLE );
+            out.writeLong( _timeMs );
+            cycleStartNanos = System.nanoTime();
+            cycling         = true;
+        }
+        catch( IOException _e ) {
+            fail( _e );
+        }
+    }
+
+
+    /*
+     * Captures the given output (null if the command failed) from the given source, unless it arrived before the first cycle...
+     */
+    private synchronized void output( final Source _source, final String _output ) {
+        if( (out == null) || !cycling ) return;
+        try {
+            out.writeByte( 1 + _source.ordinal() );
+            out.writeInt( (int) ((System.nanoTime() - cycleStartNanos) / 1_000_000) );
+            if( _output == null )
+                out.writeInt( -1 );
+            else {
+                byte[] bytes = _output.getBytes( StandardCharsets.UTF_8 );
+                out.writeInt( bytes.length );
+                out.write( bytes );
+            }
+        }
+        catch( IOException _e ) {
+            fail( _e );
+        }
+    }
+
+
+    /*
+     * Stops capturing, after a write failed...
+     */
+    private void fail( final IOException _e ) {
+        LOGGER.log( Level.SEVERE, "Can't write the capture; capturing has stopped", _e );
+        close();
+    }
+
+
+    /**
+     * Stops capturing, and closes the capture file.
+     */
+    @Override
+    public synchronized void close() {
+        if( out == null ) return;
+        try {
+            out.writeByte( END );
+            out.close();
+        }
+        catch( IOException _e ) {
+            LOGGER.log( Level.WARNING, "Couldn't close the capture", _e );
+        }
+        out = null;
+    }
+
+
+    /**
+     * The outputs captured during one monitor cycle.  Instances of this class are immutable and threadsafe.
+     */
+    public static class Cycle {
+
+        public final long                  timeMs;         // when the cycle started...
+        private final List<List<String>>  outputs;        // indexed by source ordinal, each in the order they arrived...
+        private final List<List<Integer>> offsetsMs;
+
+
+        private Cycle( final long _timeMs, final List<List<String>> _outputs, final List<List<Integer>> _offsetsMs ) {
+            timeMs    = _timeMs;
+            outputs   = _outputs;
+            offsetsMs = _offsetsMs;
+        }
+
+
+        /**
+         * Returns true if any of the given source's outputs were captured during this cycle (they won't be if its probe wasn't polled).
+         *
+         * @param _source the source
+         * @return true if its output was captured
+         */
+        public boolean has( final Source _source ) {
+            return !outputs.get( _source.ordinal() ).isEmpty();
+        }
+
+
+        /**
+         * Returns the given source's (first) output during this cycle, or <code>null</code> if its command failed or it wasn't captured.
+         *
+         * @param _source the source
+         * @return its output
+         */
+        public String output( final Source _source ) {
+            return has( _source ) ? outputs.get( _source.ordinal() ).get( 0 ) : null;
+        }
+
+
+        /**
+         * Returns all the given source's outputs during this cycle, in the order they arrived (each <code>null</code> if its command or query
+         * failed), or an empty list if none were captured.
+         *
+         * @param _source the source
+         * @return its outputs
+         */
+        public List<String> outputs( final Source _source ) {
+            return outputs.get( _source.ordinal() );
+        }
+
+
+        /**
+         * Returns how long after the start of this cycle the given source's (first) output arrived, in milliseconds, or -1 if it wasn't
+         * captured.
+         *
+         * @param _source the source
+         * @return the milliseconds after the cycle started that its output arrived
+         */
+        public int offsetMs( final Source _source ) {
+            return offsetMs( _source, 0 );
+        }
+
+
+        /**
+         * Returns how long after the start of this cycle the given one of the given source's outputs arrived, in milliseconds, or -1 if it
+         * wasn't captured.
+         *
+         * @param _source the source
+         * @param _index the index of the output, in the order they arrived
+         * @return the milliseconds after the cycle started that the output arrived
+         */
+        public int offsetMs( final Source _source, final int _index ) {
+            List<Integer> offsets = offsetsMs.get( _source.ordinal() );
+            return (_index < offsets.size()) ? offsets.get( _index ) : -1;
+        }
+    }
+
+
+    /**
+     * Reads a capture, one cycle at a time.  A capture that was cut short (with a partly written last cycle) reads as if it ended before the
+     * partly written cycle.  Instances of this class are mutable and NOT threadsafe.
+     */
+    public static class Reader implements Closeable {
+
+        private final DataInputStream in;
+        private long                  nextTimeMs;       // the start of the next cycle, or -1 if there isn't one...
+
+
+        /**
+         * Creates a new instance of this class that reads the given capture file.
+         *
+         * @param _file the capture file to read
+         * @throws IOException if the file can't be opened or isn't a capture
+         */
+        public Reader( final File _file ) throws IOException {
+            in = new DataInputStream( new BufferedInputStream( new GZIPInputStream( new FileInputStream( _file ), 65536 ), 65536 ) );
+            try {
+                if( (in.readInt() != MAGIC) || (in.readUnsignedByte() > VERSION) )
+                    throw new IOException( "Not a capture (or an unknown version of one): " + _file );
+                nextTimeMs = (in.readUnsignedByte() == CYCLE) ? in.readLong() : -1;     // a capture might have no cycles at all...
+            }
+            catch( EOFException _e ) {
+                nextTimeMs = -1;
+            }
+        }
+
+
+        /**
+         * Returns the next cycle in this capture, or <code>null</code> if there are no more.
+         *
+         * @return the next cycle, or null if there are no more
+         * @throws IOException if the capture can't be read, or is corrupt
+         */
+        public Cycle next() throws IOException {
+
+            if( nextTimeMs < 0 ) return null;
+            int                 sources   = Source.values().length;
+            List<List<String>>  outputs   = new ArrayList<>( sources );
+            List<List<Integer>> offsetsMs = new ArrayList<>( sources );
+            for( int i = 0; i < sources; i++ ) {
+                outputs.add( new ArrayList<>( 1 ) );
+                offsetsMs.add( new ArrayList<>( 1 ) );
+            }
+            long timeMs = nextTimeMs;
+            try {
+                while( true ) {
+                    int tag = in.readUnsignedByte();
+                    if( tag == CYCLE ) {
+                        nextTimeMs = in.readLong();
+                        return cycle( timeMs, outputs, offsetsMs );
+                    }
+                    if( tag == END ) {
+                        nextTimeMs = -1;
+                        return cycle( timeMs, outputs, offsetsMs );
+                    }
+                    if( tag > sources )
+                        throw new IOException( "Corrupt capture: unknown record type " + tag );
+                    int source = tag - 1;
+                    offsetsMs.get( source ).add( in.readInt() );
+                    int length = in.readInt();
+                    if( length >= 0 ) {
+                        byte[] bytes = new byte[length];
+                        in.readFully( bytes );
+                        outputs.get( source ).add( new String( bytes, StandardCharsets.UTF_8 ) );
+                    }
+                    else
+                        outputs.get( source ).add( null );
+                }
+            }
+            catch( EOFException _e ) {
+                // the capture was cut short, so its last cycle may be incomplete; we drop it...
+                nextTimeMs = -1;
+                return null;
+            }
+        }
+
+
+        // a cycle of the given outputs, which nothing can change from now on...
+        private static Cycle cycle( final long _timeMs, final List<List<String>> _outputs, final List<List<Integer>> _offsetsMs ) {
+            for( int i = 0; i < _outputs.size(); i++ ) {
+                _outputs.set(   i, Collections.unmodifiableList( _outputs.get( i )   ) );
+                _offsetsMs.set( i, Collections.unmodifiableList( _offsetsMs.get( i ) ) );
+            }
+            return new Cycle( _timeMs, Collections.unmodifiableList( _outputs ), Collections.unmodifiableList( _offsetsMs ) );
+        }
+
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
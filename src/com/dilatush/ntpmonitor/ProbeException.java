@@ -0,0 +1,20 @@
+package com.dilatush.ntpmonitor;
+
+/**
+ * Thrown by a {@link Probe} that failed, with a message suitable for publishing.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class ProbeException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Creates a new instance of this class with the given message.
+     *
+     * @param _message the message describing the failure
+     */
+    public ProbeException( final String _message ) {
+        super( _message );
+    }
+}
@@ -0,0 +1,706 @@
+package com.dilatush.ntpmonitor;
+
+import com.dilatush.util.HJSONObject;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Evaluates declarative anomaly rules over each monitor sample, producing the events to post.  Each sample is first reduced, in one pass, to
+ * the current value of each {@link Signal} (the PLL offset, the number of satellites used, the remote of the selected peer, and so on); then
+ * each rule is evaluated against the value of its signal.  Rules are compiled when they're loaded, so evaluating one is a few comparisons on
+ * primitives with no lookups or allocation (unless it fires), and the cost of a sample grows only with the number of rules, not with how
+ * they're written.  Transition rules whose signal hasn't changed aren't evaluated at all.
+ * <p>
+ * There are four kinds of rule:
+ * <ul>
+ *    <li><b>threshold</b>: raised while the signal compares (with <code>op</code>: &gt;, &gt;=, &lt;, &lt;=, ==, or !=) to <code>value</code></li>
+ *    <li><b>hysteresis</b>: raised when the signal goes <code>above</code> (or <code>below</code>) a threshold, and cleared only when it
+ *        comes back past <code>clear</code></li>
+ *    <li><b>rate</b>: raised while the signal is rising faster than <code>rising</code>, or falling faster than <code>falling</code>, per
+ *        minute</li>
+ *    <li><b>transition</b>: fires when the signal changes, optionally only <code>from</code> and/or <code>to</code> given values</li>
+ * </ul>
+ * Every rule has a <code>name</code> (its event type), a <code>signal</code>, and optionally a <code>level</code> (default 5), a
+ * <code>tag</code> (default "ntp.rule"), a <code>debounce</code> (the number of consecutive samples a condition or new value must hold before
+ * the rule acts, default 1), a <code>suppressMs</code> (the least time between events from the rule; events sooner than that are dropped,
+ * default 0), and <code>subject</code> and <code>message</code> templates, in which ${rule}, ${signal}, ${value}, ${previous}, and ${date}
+ * are replaced.  The subject of a transition rule may instead be chosen by its new value, from a <code>subjects</code> object.  The stateful
+ * rules (threshold, hysteresis, and rate) post an event when they're raised and, unless <code>notifyClear</code> is false, another when they
+ * clear.  A rule whose signal is unavailable in a sample (because a probe failed) is left as it was.  The previous value of each signal, and
+ * the state of each rule, can be kept in a {@link Checkpoint}, so that a change across a restart of the monitor still fires (and a raised rule
+ * doesn't fire again).  Instances of this class are mutable and NOT threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class RuleEngine implements Checkpoint.Part {
+
+    // the rules we use when none are configured: the PPS lock change we've always posted, and the common anomalies...
+    private static final String DEFAULT_RULES = "[" +
+            "{\"name\":\"valid.pps.changed\",\"kind\":\"transition\",\"signal\":\"validPPS\",\"tag\":\"pps.change\"," +
+                "\"subjects\":{\"true\":\"NTP now locked to PPS\",\"false\":\"NTP now NOT locked to PPS\"}," +
+                "\"message\":\"As reported by 'ntpq -c kerninfo', and noted at ${date}\"}," +
+            "{\"name\":\"offset.spike\",\"kind\":\"threshold\",\"signal\":\"absPllOffsetMs\",\"op\":\">\",\"value\":1.0,\"debounce\":2," +
+                "\"suppressMs\":3600000}," +
+            "{\"name\":\"sync.peer.changed\",\"kind\":\"transition\",\"signal\":\"syncPeer\",\"debounce\":2,\"suppressMs\":600000}," +
+            "{\"name\":\"satellites.low\",\"kind\":\"hysteresis\",\"signal\":\"satellitesUsed\",\"below\":4,\"clear\":6,\"debounce\":2}," +
+            "{\"name\":\"fix.3d.lost\",\"kind\":\"transition\",\"signal\":\"fixIs3D\",\"to\":\"false\",\"debounce\":2}," +
+            "{\"name\":\"maxerr.growing\",\"kind\":\"rate\",\"signal\":\"maxErrMs\",\"rising\":1.0,\"debounce\":3,\"suppressMs\":3600000}," +
+            "{\"name\":\"system.event\",\"kind\":\"transition\",\"signal\":\"lastEvent\",\"level\":6}" +
+            "]";
+
+    private static final String DEFAULT_TAG       = "ntp.rule";
+    private static final String DEFAULT_SUBJECT   = "NTP ${rule}: ${signal} is ${value}";
+    private static final String DEFAULT_MESSAGE   = "Rule ${rule} noted ${signal} changing from ${previous} to ${value} at ${date}";
+
+    private final Rule[]       rules;
+    private final double[]     numbers;         // the value of each numeric signal in the current sample, or NaN if it's unavailable...
+    private final String[]     strings;         // the value of each signal as a string in the current sample, or null if it's unavailable...
+    private final String[]     previous;        // the value of each signal as a string in the previous sample it was available in...
+    private final boolean[]    changed;         // true for each signal whose (string) value changed in the current sample...
+    private final List<Firing> firings;
+    private long               fired;
+    private long               suppressed;
+
+
+    /**
+     * Creates a new instance of this class with the rules in the given monitor configuration (in <code>rules</code>, an array of rule objects),
+     * or the default rules if there are none.
+     *
+     * @param _config the monitor's configuration, or <code>null</code> for the defaults
+     * @throws IllegalArgumentException if any rule is invalid
+     */
+    public RuleEngine( final HJSONObject _config ) {
+        this( rulesFrom( _config ) );
+    }
+
+
+    /**
+     * Creates a new instance of this class with the given rules.
+     *
+     * @param _rules the rules to evaluate
+     */
+    /* package-private */ RuleEngine( final List<Rule> _rules ) {
+        rules    = _rules.toArray( new Rule[_rules.size()] );
+        numbers  = new double[Signal.values().length];
+        strings  = new String[Signal.values().length];
+        previous = new String[Signal.values().length];
+        changed  = new boolean[Signal.values().length];
+        firings  = new ArrayList<>();
+    }
+
+
+    /**
+     * Evaluates all our rules against the given sample, and returns the events they fired (an empty list if none did).  The list is reused by
+     * the next evaluation.  Any of the parts of the sample may be <code>null</code>, if the probe that collects them failed.
+     *
+     * @param _now the time of the sample (System.currentTimeMillis())
+     * @param _valid true if all the probes succeeded
+     * @param _server the state of the local server
+     * @param _fix the GNSS fix
+     * @param _peers the peers
+     * @return the events the rules fired
+     */
+    public List<Firing> evaluate( final long _now, final boolean _valid, final LocalServer _server, final GNSSFix _fix,
+                                  final PeerView _peers ) {
+
+        firings.clear();
+        extract( _valid, _server, _fix, _peers );
+        for( Rule rule : rules ) {
+            int signal = rule.signal.ordinal();
+            if( strings[signal] == null ) continue;                      // nothing to go on this time...
+            if( (rule instanceof TransitionRule) && !changed[signal] && !((TransitionRule) rule).isPending() ) continue;
+            rule.evaluate( this, _now );
+        }
+        for( int i = 0; i < strings.length; i++ )
+            if( strings[i] != null ) previous[i] = strings[i];
+        return firings;
+    }
+
+
+    /**
+     * Puts the counts of events fired and suppressed since this engine was created into the given JSON object, at the given dotted path.
+     *
+     * @param _json the JSON object to put the counts into
+     * @param _path the dotted path to put them at
+     */
+    public void putDotted( final HJSONObject _json, final String _path ) {
+        _json.putDotted( _path + ".rules",      rules.length );
+        _json.putDotted( _path + ".fired",      fired        );
+        _json.putDotted( _path + ".suppressed", suppressed   );
+    }
+
+
+    /**
+     * Writes this engine's state to the given output: the previous value of each signal, and the state of each rule (with its name and kind).
+     * The counts of events fired and suppressed aren't saved.
+     *
+     * @param _out the output to write the state to
+     * @throws IOException if the state can't be written
+     */
+    @Override
+    public void save( final DataOutput _out ) throws IOException {
+        _out.writeInt( previous.length );
+        for( Signal signal : Signal.values() ) {
+            _out.writeUTF( signal.key );
+            Checkpoint.writeString( _out, previous[signal.ordinal()] );
+        }
+        _out.writeInt( rules.length );
+        for( Rule rule : rules ) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream( 64 );
+            rule.save( new DataOutputStream( bytes ) );
+            _out.writeUTF( rule.name );
+            _out.writeUTF( rule.getClass().getSimpleName() );
+            _out.writeInt( bytes.size() );
+            _out.write( bytes.toByteArray() );
+        }
+    }
+
+
+    /**
+     * Reads this engine's state, as written by {@link #save(DataOutput)}, from the given input.  Signals that no longer exist are ignored, and
+     * each rule's state is restored only to a rule of the same name and kind (so a rule that's been added since starts afresh, and one that's
+     * been removed is forgotten).
+     *
+     * @param _in the input to read the state from
+     * @param _ageMs how long ago the state was saved, in milliseconds
+     * @throws IOException if the state can't be read
+     */
+    @Override
+    public void restore( final DataInput _in, final long _ageMs ) throws IOException {
+
+        // read it all before changing anything, so that if it can't be read we start afresh...
+        String[] savedPrevious = new String[previous.length];
+        int signals = _in.readInt();
+        for( int i = 0; i < signals; i++ ) {
+            String key   = _in.readUTF();
+            String value = Checkpoint.readString( _in );
+            for( Signal signal : Signal.values() )
+                if( signal.key.equals( key ) ) savedPrevious[signal.ordinal()] = value;
+        }
+        byte[][] states = new byte[rules.length][];
+        int saved = _in.readInt();
+        for( int i = 0; i < saved; i++ ) {
+            String name  = _in.readUTF();
+            String kind  = _in.readUTF();
+            byte[] state = new byte[_in.readInt()];
+            _in.readFully( state );
+            for( int r = 0; r < rules.length; r++ )
+                if( (states[r] == null) && rules[r].name.equals( name ) && rules[r].getClass().getSimpleName().equals( kind ) ) {
+                    states[r] = state;
+                    break;
+                }
+        }
+
+        System.arraycopy( savedPrevious, 0, previous, 0, previous.length );
+        for( int r = 0; r < rules.length; r++ )
+            if( states[r] != null ) rules[r].restore( new DataInputStream( new ByteArrayInputStream( states[r] ) ) );
+    }
+
+
+    /*
+     * Reduces the given sample to the value of each signal, in a single pass...
+     */
+    private void extract( final boolean _valid, final LocalServer _server, final GNSSFix _fix, final PeerView _peers ) {
+
+        set( Signal.VALID, _valid );
+        if( _server != null ) {
+            set( Signal.VALID_PPS,           _server.isPPS()                 );
+            set( Signal.PLL_OFFSET_MS,       _server.pllOffsetMs             );
+            set( Signal.ABS_PLL_OFFSET_MS,   Math.abs( _server.pllOffsetMs ) );
+            set( Signal.PLL_FREQ_OFFSET_PPM, _server.pllFrequencyOffsetPpm   );
+            set( Signal.MAX_ERR_MS,          _server.maxErrMs                );
+            set( Signal.STRATUM,             _server.stratum                 );
+            set( Signal.EVENT_COUNT,         _server.count                   );
+            set( Signal.LEAP,                _server.leapSecMode.name()      );
+            set( Signal.SYNC_SOURCE,         _server.syncSource.name()       );
+            set( Signal.LAST_EVENT,          _server.event.name()            );
+        }
+        else
+            clear( Signal.VALID_PPS, Signal.PLL_OFFSET_MS, Signal.ABS_PLL_OFFSET_MS, Signal.PLL_FREQ_OFFSET_PPM, Signal.MAX_ERR_MS,
+                    Signal.STRATUM, Signal.EVENT_COUNT, Signal.LEAP, Signal.SYNC_SOURCE, Signal.LAST_EVENT );
+        if( _fix != null ) {
+            set( Signal.VALID_TIME,      _fix.validTime      );
+            set( Signal.VALID_FIX,       _fix.validFix       );
+            set( Signal.FIX_IS_3D,       _fix.fixIs3D        );
+            set( Signal.TIME_ACCURACY,   _fix.timeAccuracy   );
+            set( Signal.SATELLITES_USED, _fix.satellitesUsed );
+        }
+        else
+            clear( Signal.VALID_TIME, Signal.VALID_FIX, Signal.FIX_IS_3D, Signal.TIME_ACCURACY, Signal.SATELLITES_USED );
+        if( _peers != null ) {
+            int selected = -1;
+            int reachable = 0;
+            for( int i = 0; i < _peers.size(); i++ ) {
+                if( _peers.tally( i ) == '*' ) selected = i;
+                if( (_peers.reached( i ) & 1) != 0 ) reachable++;
+            }
+            set( Signal.SYNC_PEER,       (selected < 0) ? "" : _peers.remote( selected ) );
+            set( Signal.REACHABLE_PEERS, reachable                                     );
+        }
+        else
+            clear( Signal.SYNC_PEER, Signal.REACHABLE_PEERS );
+    }
+
+
+    private void set( final Signal _signal, final double _value ) {
+        int i = _signal.ordinal();
+        numbers[i] = _value;
+        String value = (_value == Math.rint( _value ) && Math.abs( _value ) < 1e15) ? Long.toString( (long) _value ) : Double.toString( _value );
+        changed[i] = (previous[i] != null) && !value.equals( previous[i] );
+        strings[i] = value;
+    }
+
+
+    private void set( final Signal _signal, final boolean _value ) {
+        int i = _signal.ordinal();
+        numbers[i] = _value ? 1 : 0;
+        String value = _value ? "true" : "false";
+        changed[i] = (previous[i] != null) && !value.equals( previous[i] );
+        strings[i] = value;
+    }
+
+
+    private void set( final Signal _signal, final String _value ) {
+        int i = _signal.ordinal();
+        numbers[i] = Double.NaN;
+        changed[i] = (previous[i] != null) && !_value.equals( previous[i] );
+        strings[i] = _value;
+    }
+
+
+    private void clear( final Signal... _signals ) {
+        for( Signal signal : _signals ) {
+            numbers[signal.ordinal()] = Double.NaN;
+            strings[signal.ordinal()] = null;
+            changed[signal.ordinal()] = false;
+        }
+    }
+
+
+    /*
+     * Records that the given rule fired (the signal having been the given previous value), unless it's within its suppression time of the last
+     * time it did...
+     */
+    private void fire( final Rule _rule, final long _now, final String _subject, final String _message, final boolean _raised,
+                       final String _previous ) {
+        if( (_rule.suppressMs > 0) && (_rule.lastFired != 0) && (_now - _rule.lastFired < _rule.suppressMs) ) {
+            suppressed++;
+            return;
+        }
+        _rule.lastFired = _now;
+        fired++;
+        int signal = _rule.signal.ordinal();
+        firings.add( new Firing( _rule.name, _rule.tag, _rule.level, _raised,
+                expand( _subject, _rule, strings[signal], _previous, _now ),
+                expand( _message, _rule, strings[signal], _previous, _now ) ) );
+    }
+
+
+    private static String expand( final String _template, final Rule _rule, final String _value, final String _previous, final long _now ) {
+        return _template
+                .replace( "${rule}",     _rule.name              )
+                .replace( "${signal}",   _rule.signal.key        )
+                .replace( "${value}",    String.valueOf( _value    ) )
+                .replace( "${previous}", String.valueOf( _previous ) )
+                .replace( "${date}",     new Date( _now ).toString() );
+    }
+
+
+    /*
+     * Returns the rules in the given configuration, or the default rules if there are none...
+     */
+    private static List<Rule> rulesFrom( final HJSONObject _config ) {
+        JSONArray array = (_config == null) ? null : _config.optJSONArray( "rules" );
+        if( array == null ) array = new JSONArray( DEFAULT_RULES );
+        List<Rule> result = new ArrayList<>( array.length() );
+        for( int i = 0; i < array.length(); i++ )
+            result.add( Rule.fromJSON( array.getJSONObject( i ) ) );
+        return result;
+    }
+
+
+    /**
+     * The signals that rules can be written against, each with the key it's named by in a rule's <code>signal</code>.
+     */
+    public enum Signal {
+
+        VALID               ( "valid"            ),
+        VALID_PPS           ( "validPPS"         ),
+        PLL_OFFSET_MS       ( "pllOffsetMs"      ),
+        ABS_PLL_OFFSET_MS   ( "absPllOffsetMs"   ),
+        PLL_FREQ_OFFSET_PPM ( "pllFreqOffsetPpm" ),
+        MAX_ERR_MS          ( "maxErrMs"         ),
+        STRATUM             ( "stratum"          ),
+        EVENT_COUNT         ( "eventCount"       ),
+        LEAP                ( "leap"             ),
+        SYNC_SOURCE         ( "syncSource"       ),
+        LAST_EVENT          ( "lastEvent"        ),
+        VALID_TIME          ( "validTime"        ),
+        VALID_FIX           ( "validFix"         ),
+        FIX_IS_3D           ( "fixIs3D"          ),
+        TIME_ACCURACY       ( "timeAccuracy"     ),
+        SATELLITES_USED     ( "satellitesUsed"   ),
+        SYNC_PEER           ( "syncPeer"         ),     // the remote of the peer ntpd has selected ('*'), or empty if there isn't one...
+        REACHABLE_PEERS     ( "reachablePeers"   );     // the number of peers that were reached on their latest poll...
+
+        public final String key;
+
+
+        Signal( final String _key ) {
+            key = _key;
+        }
+
+
+        /**
+         * Returns the signal with the given key.
+         *
+         * @param _key the key of the signal
+         * @return the signal with the given key
+         * @throws IllegalArgumentException if there's no signal with the given key
+         */
+        public static Signal fromKey( final String _key ) {
+            for( Signal signal : values() )
+                if( signal.key.equals( _key ) ) return signal;
+            throw new IllegalArgumentException( "Unknown signal: " + _key );
+        }
+    }
+
+
+    /**
+     * An event fired by a rule.  Instances of this class are immutable and threadsafe.
+     */
+    public static class Firing {
+
+        public final String  type;          // the name of the rule that fired...
+        public final String  tag;
+        public final int     level;
+        public final boolean raised;        // false if a stateful rule cleared...
+        public final String  subject;
+        public final String  message;
+
+
+        private Firing( final String _type, final String _tag, final int _level, final boolean _raised, final String _subject,
+                        final String _message ) {
+            type    = _type;
+            tag     = _tag;
+            level   = _level;
+            raised  = _raised;
+            subject = _subject;
+            message = _message;
+        }
+    }
+
+
+    /*
+     * The parts common to all rules...
+     */
+    /* package-private */ abstract static class Rule {
+
+        /* package-private */ final String name;
+        /* package-private */ final Signal signal;
+        /* package-private */ final String tag;
+        /* package-private */ final int    level;
+        /* package-private */ final int    debounce;
+        /* package-private */ final long   suppressMs;
+        /* package-private */ final String subject;
+        /* package-private */ final String message;
+        /* package-private */ long         lastFired;
+
+
+        /* package-private */ Rule( final JSONObject _json ) {
+            name       = _json.getString( "name" );
+            signal     = Signal.fromKey( _json.getString( "signal" ) );
+            tag        = _json.optString( "tag", DEFAULT_TAG );
+            level      = _json.optInt( "level", 5 );
+            debounce   = Math.max( 1, _json.optInt( "debounce", 1 ) );
+            suppressMs = Math.max( 0, _json.optLong( "suppressMs", 0 ) );
+            subject    = _json.optString( "subject", DEFAULT_SUBJECT );
+            message    = _json.optString( "message", DEFAULT_MESSAGE );
+        }
+
+
+        /* package-private */ abstract void evaluate( RuleEngine _engine, long _now );
+
+
+        // writes (and reads back) the rule's state, for a checkpoint; subclasses with more state add theirs...
+        /* package-private */ void save( final DataOutput _out ) throws IOException {
+            _out.writeLong( lastFired );
+        }
+
+
+        /* package-private */ void restore( final DataInput _in ) throws IOException {
+            lastFired = _in.readLong();
+        }
+
+
+        /* package-private */ static Rule fromJSON( final JSONObject _json ) {
+            String kind = _json.optString( "kind", null );
+            try {
+                if( "threshold".equals(  kind ) ) return new ThresholdRule(  _json );
+                if( "hysteresis".equals( kind ) ) return new HysteresisRule( _json );
+                if( "rate".equals(       kind ) ) return new RateRule(       _json );
+                if( "transition".equals( kind ) ) return new TransitionRule( _json );
+            }
+            catch( RuntimeException _e ) {
+                throw new IllegalArgumentException( "Invalid rule: " + _json + " (" + _e.getMessage() + ")", _e );
+            }
+            throw new IllegalArgumentException( "Invalid rule kind: " + _json );
+        }
+    }
+
+
+    /*
+     * The parts common to the rules that are raised while a condition holds, and cleared when it doesn't...
+     */
+    private abstract static class StatefulRule extends Rule {
+
+        private final boolean notifyClear;
+        private boolean       raised;
+        private int           streak;       // the number of consecutive samples the opposite of our state has held...
+
+
+        private StatefulRule( final JSONObject _json ) {
+            super( _json );
+            notifyClear = _json.optBoolean( "notifyClear", true );
+        }
+
+
+        // returns 1 if the rule's condition holds for the given value, 0 if it doesn't, or NaN if it can't be decided this time...
+        abstract double condition( RuleEngine _engine, double _value, boolean _raised, long _now );
+
+
+        @Override
+        void save( final DataOutput _out ) throws IOException {
+            super.save( _out );
+            _out.writeBoolean( raised );
+            _out.writeInt( streak );
+        }
+
+
+        @Override
+        void restore( final DataInput _in ) throws IOException {
+            super.restore( _in );
+            raised = _in.readBoolean();
+            streak = _in.readInt();
+        }
+
+
+        @Override
+        void evaluate( final RuleEngine _engine, final long _now ) {
+            double holds = condition( _engine, _engine.numbers[signal.ordinal()], raised, _now );
+            if( Double.isNaN( holds ) ) return;
+            if( (holds != 0) == raised ) {
+                streak = 0;
+                return;
+            }
+            if( ++streak < debounce ) return;
+            streak = 0;
+            raised = !raised;
+            if( raised || notifyClear )
+                _engine.fire( this, _now, raised ? subject : subject + " (cleared)", message, raised, _engine.previous[signal.ordinal()] );
+        }
+    }
+
+
+    /*
+     * Raised while the signal compares to a value...
+     */
+    private static class ThresholdRule extends StatefulRule {
+
+        private final int    op;        // the index of the operator in OPS...
+        private final double value;
+
+        private static final String[] OPS = { ">", ">=", "<", "<=", "==", "!=" };
+
+
+        private ThresholdRule( final JSONObject _json ) {
+            super( _json );
+            String opString = _json.getString( "op" );
+            int index = -1;
+            for( int i = 0; i < OPS.length; i++ )
+                if( OPS[i].equals( opString ) ) index = i;
+            if( index < 0 ) throw new IllegalArgumentException( "Unknown op: " + opString );
+            op    = index;
+            value = _json.getDouble( "value" );
+        }
+
+
+        @Override
+        double condition( final RuleEngine _engine, final double _value, final boolean _raised, final long _now ) {
+            if( Double.isNaN( _value ) ) return Double.NaN;
+            boolean holds;
+            switch( op ) {
+                case 0:  holds = _value >  value; break;
+                case 1:  holds = _value >= value; break;
+                case 2:  holds = _value <  value; break;
+                case 3:  holds = _value <= value; break;
+                case 4:  holds = _value == value; break;
+                default: holds = _value != value; break;
+            }
+            return holds ? 1 : 0;
+        }
+    }
+
+
+    /*
+     * Raised when the signal passes one threshold, and cleared only when it comes back past another...
+     */
+    private static class HysteresisRule extends StatefulRule {
+
+        private final boolean above;
+        private final double  threshold;
+        private final double  clear;
+
+
+        private HysteresisRule( final JSONObject _json ) {
+            super( _json );
+            above     = _json.has( "above" );
+            threshold = above ? _json.getDouble( "above" ) : _json.getDouble( "below" );
+            clear     = _json.getDouble( "clear" );
+            if( above ? (clear > threshold) : (clear < threshold) )
+                throw new IllegalArgumentException( "clear must be on the near side of the threshold" );
+        }
+
+
+        @Override
+        double condition( final RuleEngine _engine, final double _value, final boolean _raised, final long _now ) {
+            if( Double.isNaN( _value ) ) return Double.NaN;
+            boolean holds = _raised ? (above ? (_value > clear) : (_value < clear))
+                                    : (above ? (_value > threshold) : (_value < threshold));
+            return holds ? 1 : 0;
+        }
+    }
+
+
+    /*
+     * Raised while the signal is changing faster than a rate (per minute)...
+     */
+    private static class RateRule extends StatefulRule {
+
+        private final double rising;        // NaN if we don't care how fast it's rising...
+        private final double falling;       // NaN if we don't care how fast it's falling...
+        private double       lastValue;
+        private long         lastTime;
+
+
+        private RateRule( final JSONObject _json ) {
+            super( _json );
+            rising  = _json.has( "rising"  ) ? _json.getDouble( "rising"  ) : Double.NaN;
+            falling = _json.has( "falling" ) ? _json.getDouble( "falling" ) : Double.NaN;
+            if( Double.isNaN( rising ) && Double.isNaN( falling ) )
+                throw new IllegalArgumentException( "rate rule needs rising or falling" );
+            lastValue = Double.NaN;
+        }
+
+
+        @Override
+        void save( final DataOutput _out ) throws IOException {
+            super.save( _out );
+            _out.writeDouble( lastValue );
+            _out.writeLong( lastTime );
+        }
+
+
+        @Override
+        void restore( final DataInput _in ) throws IOException {
+            super.restore( _in );
+            lastValue = _in.readDouble();
+            lastTime  = _in.readLong();
+        }
+
+
+        @Override
+        double condition( final RuleEngine _engine, final double _value, final boolean _raised, final long _now ) {
+            if( Double.isNaN( _value ) ) return Double.NaN;
+            double last = lastValue;
+            long   dt   = _now - lastTime;
+            lastValue = _value;
+            lastTime  = _now;
+            if( Double.isNaN( last ) || (dt <= 0) ) return Double.NaN;
+            double perMinute = (_value - last) * 60000.0 / dt;
+            boolean holds = (!Double.isNaN( rising ) && (perMinute > rising)) || (!Double.isNaN( falling ) && (-perMinute > falling));
+            return holds ? 1 : 0;
+        }
+    }
+
+
+    /*
+     * Fires when the signal changes (optionally only from and/or to given values), once the new value has held for the debounce...
+     */
+    private static class TransitionRule extends Rule {
+
+        private final String     from;      // null for any...
+        private final String     to;        // null for any...
+        private final JSONObject subjects;  // null if the subject doesn't depend on the new value...
+        private String           settled;   // the value we last acted on...
+        private String           pending;   // a new value we haven't yet seen for the debounce...
+        private int              streak;
+
+
+        private TransitionRule( final JSONObject _json ) {
+            super( _json );
+            from     = _json.has( "from" ) ? String.valueOf( _json.get( "from" ) ) : null;
+            to       = _json.has( "to"   ) ? String.valueOf( _json.get( "to"   ) ) : null;
+            subjects = _json.optJSONObject( "subjects" );
+        }
+
+
+        private boolean isPending() {
+            return pending != null;
+        }
+
+
+        @Override
+        void save( final DataOutput _out ) throws IOException {
+            super.save( _out );
+            Checkpoint.writeString( _out, settled );
+            Checkpoint.writeString( _out, pending );
+            _out.writeInt( streak );
+        }
+
+
+        @Override
+        void restore( final DataInput _in ) throws IOException {
+            super.restore( _in );
+            settled = Checkpoint.readString( _in );
+            pending = Checkpoint.readString( _in );
+            streak  = _in.readInt();
+        }
+
+
+        @Override
+        void evaluate( final RuleEngine _engine, final long _now ) {
+
+            String value = _engine.strings[signal.ordinal()];
+            if( settled == null ) settled = _engine.previous[signal.ordinal()];
+            if( settled == null || value.equals( settled ) ) {
+                settled = value;
+                pending = null;
+                return;
+            }
+            if( !value.equals( pending ) ) {
+                pending = value;
+                streak  = 0;
+            }
+            if( ++streak < debounce ) return;
+
+            String old = settled;
+            settled = value;
+            pending = null;
+            if( ((from == null) || from.equals( old )) && ((to == null) || to.equals( value )) )
+                _engine.fire( this, _now, ((subjects != null) && subjects.has( value )) ? subjects.getString( value ) : subject, message,
+                        true, old );
+        }
+    }
+}
@@ -0,0 +1,530 @@
+package com.dilatush.ntpmonitor;
+
+import com.dilatush.util.HJSONObject;
+import org.json.JSONArray;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Measures, as a client would, the offset of the local NTP server and of ntpd's peers (and any other configured servers) from our clock, by
+ * sending each of them an SNTP client request at a fast rate (typically once a second).  This is an independent check on what the time service
+ * reports about itself: ntpd's <code>pllOffsetMs</code> is its estimate of its own error, while these are what a client actually sees.
+ * <p>
+ * Each exchange gives an offset, a round trip delay, and (taking the filtered offset as the true offset) the asymmetry between the outbound and
+ * return legs; for the local server, which shares our clock, the true offset is zero, so its measured offset is all asymmetry.  The samples are
+ * put through a clock filter in the style of RFC 5905 (of the last eight exchanges, the one with the least delay gives the offset, and the
+ * others its jitter), and the exchange with the least delay in each publishing interval is kept too, as queuing delays only ever add to the
+ * delay and (on one leg) skew the offset.  Each time the monitor publishes, it drains this prober into a {@link Summary} of the distributions
+ * for the interval.
+ * <p>
+ * Every target has its own connected UDP channel, all of them served by one thread and selector, and the request and reply buffers are reused,
+ * so sending and receiving allocate nothing; timestamps come from {@link NTPPacket#now()}.  Instances of this class are threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class SNTPProber {
+
+    private static final Logger LOGGER = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName() );
+
+    private static final int    MAX_TARGETS = 64;
+
+    private final long                     intervalMs;
+    private final long                     timeoutNanos;
+    private final int                      capacity;
+    private final int                      filterSize;
+    private final boolean                  probePeers;
+    private final ScheduledExecutorService scheduler;
+
+    // used only on the probing thread...
+    private final ByteBuffer               request;
+    private final ByteBuffer               reply;
+    private Selector                       selector;
+    private List<String>                   peersProbed;     // the peer list our targets were last made from...
+
+    // everything below is guarded by "this"...
+    private final List<Target>             targets;
+    private final List<Target>             fixed;           // the local server and configured servers, which we always probe...
+    private List<String>                   peers;           // the addresses of the peers we've been told about, or null...
+    private List<String>                   peerNames;       // and their remote names, in the same order...
+    private long                           intervalStart;
+
+
+    /**
+     * Creates a new instance of this class configured by the given monitor configuration, probing the local NTP server at the given address.
+     * The rings of samples are sized to hold twice as many samples as are expected in one publishing interval.  The optional configuration
+     * items are:
+     * <ul>
+     *    <li><code>sntp.intervalMs</code> the interval between requests to each target, in milliseconds (default 1000)</li>
+     *    <li><code>sntp.timeoutMs</code> the longest to wait for a reply (default half the interval)</li>
+     *    <li><code>sntp.local</code> true (the default) to probe the local server</li>
+     *    <li><code>sntp.peers</code> true (the default) to probe the NTP servers ntpd is using (not its reference clocks)</li>
+     *    <li><code>sntp.servers</code> an array of other servers to probe, each "host" or "host:port"</li>
+     *    <li><code>sntp.filterSize</code> the number of exchanges in the clock filter (default 8)</li>
+     * </ul>
+     *
+     * @param _config the monitor's configuration
+     * @param _local the address of the local NTP server
+     * @param _publishIntervalMs the interval between publishes (and therefore drains), in milliseconds
+     */
+    public SNTPProber( final HJSONObject _config, final InetSocketAddress _local, final long _publishIntervalMs ) {
+
+        intervalMs    = Math.max( 10, _config.optLongDotted( "sntp.intervalMs", 1000 ) );
+        timeoutNanos  = 1_000_000L * Math.max( 1, Math.min( intervalMs, _config.optLongDotted( "sntp.timeoutMs", intervalMs / 2 ) ) );
+        capacity      = (int) Math.max( 16, 2 * _publishIntervalMs / intervalMs );
+        filterSize    = Math.max( 1, _config.optIntDotted( "sntp.filterSize", 8 ) );
+        probePeers    = _config.optBooleanDotted( "sntp.peers", true );
+        request       = ByteBuffer.allocate( NTPPacket.LENGTH );
+        reply         = ByteBuffer.allocate( 1024 );
+        targets       = new ArrayList<>();
+        fixed         = new ArrayList<>();
+        intervalStart = System.currentTimeMillis();
+
+        if( _config.optBooleanDotted( "sntp.local", true ) )
+            fixed.add( new Target( "local", _local.getHostString(), _local.getPort(), true ) );
+        JSONArray servers = (_config.optJSONObject( "sntp" ) == null) ? null : _config.optJSONObject( "sntp" ).optJSONArray( "servers" );
+        if( servers != null ) {
+            for( int i = 0; i < servers.length(); i++ ) {
+                String server = servers.getString( i );
+                int colon = server.lastIndexOf( ':' );
+                boolean hasPort = (colon > 0) && (server.indexOf( ':' ) == colon);    // an IPv6 address has more than one...
+                fixed.add( new Target( server, hasPort ? server.substring( 0, colon ) : server,
+                        hasPort ? Integer.parseInt( server.substring( colon + 1 ) ) : 123, false ) );
+            }
+        }
+        targets.addAll( fixed );
+
+        scheduler = Executors.newSingleThreadScheduledExecutor( _runnable -> {
+            Thread thread = new Thread( _runnable, "NTP Monitor SNTP Prober" );
+            thread.setDaemon( true );
+            return thread;
+        } );
+    }
+
+
+    /**
+     * Starts probing.
+     */
+    public void start() {
+        scheduler.scheduleAtFixedRate( this::probe, 0, intervalMs, TimeUnit.MILLISECONDS );
+    }
+
+
+    /**
+     * Stops probing.
+     */
+    public void stop() {
+        scheduler.shutdownNow();
+        try {
+            scheduler.awaitTermination( 1, TimeUnit.SECONDS );
+        }
+        catch( InterruptedException _e ) {
+            // naught to do here...
+        }
+        synchronized( this ) {
+            for( Target target : targets ) target.close();
+        }
+        try {
+            if( selector != null ) selector.close();
+        }
+        catch( IOException _e ) {
+            // naught to do here...
+        }
+    }
+
+
+    /**
+     * Tells this prober which peers ntpd is using, from the given peer table.  Each peer is probed at its source address (see {@link
+     * PeerView#srcadr(int)}), and named by its remote name; reference clocks, and peers whose address isn't known (because ntpq truncated
+     * their names), are left out.  If the peers have changed, the targets are changed to match at the next probe.
+     *
+     * @param _peers the latest peer table
+     */
+    public void setPeers( final PeerView _peers ) {
+        if( !probePeers ) return;
+        List<String> addresses = new ArrayList<>( _peers.size() );
+        List<String> names     = new ArrayList<>( _peers.size() );
+        for( int i = 0; i < _peers.size(); i++ ) {
+            if( _peers.local( i ) ) continue;
+            String address = _peers.srcadr( i );
+            if( address.isEmpty() ) continue;
+            addresses.add( address );
+            names.add( _peers.remote( i ) );
+        }
+        synchronized( this ) {
+            if( !addresses.equals( peers ) || !names.equals( peerNames ) ) {
+                peers     = addresses;
+                peerNames = names;
+            }
+        }
+    }
+
+
+    /**
+     * Returns the summary of the exchanges with each target since the last drain, and starts a new interval.
+     *
+     * @return the summary of the exchanges since the last drain
+     */
+    public synchronized Summary drain() {
+        long now = System.currentTimeMillis();
+        List<TargetSummary> summaries = new ArrayList<>( targets.size() );
+        for( Target target : targets ) {
+            summaries.add( target.summarize() );
+            target.clear();
+        }
+        Summary summary = new Summary( now - intervalStart, intervalMs, Collections.unmodifiableList( summaries ) );
+        intervalStart = now;
+        return summary;
+    }
+
+
+    /*
+     * Makes one exchange with each target, concurrently; runs on the probing thread (or a benchmark's).  Nothing here allocates unless the
+     * targets change...
+     */
+    /* package-private */ void probe() {
+
+        try {
+            if( selector == null ) selector = Selector.open();
+            List<Target> probing = reconcile();
+            NTPPacket.calibrate();      // before any exchange, never during one...
+
+            // send all our requests...
+            int pending = 0;
+            for( int i = 0; i < probing.size(); i++ ) {
+                Target target = probing.get( i );
+                target.answered = false;
+                if( !target.open( selector ) ) continue;
+                target.transmit = NTPPacket.now();
+                NTPPacket.writeRequest( request, target.transmit );
+                try {
+                    if( target.channel.write( request ) == 0 )
+                        throw new IOException( "Request not sent (no room in the socket's send buffer)" );
+                    pending++;
+                    synchronized( this ) {
+                        target.sent++;
+                    }
+                }
+                catch( IOException _e ) {
+                    target.failed( _e );
+                }
+            }
+
+            // then read replies as they arrive, until we have them all or we run out of time...
+            long deadline = System.nanoTime() + timeoutNanos;
+            while( pending > 0 ) {
+                long remainingMs = (deadline - System.nanoTime()) / 1_000_000;
+                if( remainingMs <= 0 ) break;
+                if( selector.select( remainingMs ) == 0 ) continue;
+                selector.selectedKeys().clear();
+                for( int i = 0; i < probing.size(); i++ ) {
+                    Target target = probing.get( i );
+                    if( target.answered || (target.channel == null) ) continue;
+                    reply.clear();
+                    int length;
+                    try {
+                        length = target.channel.read( reply );
+                    }
+                    catch( IOException _e ) {
+                        // most likely port unreachable; the target will be reopened next time...
+                        target.failed( _e );
+                        pending--;
+                        continue;
+                    }
+                    if( length <= 0 ) continue;
+                    long t4 = NTPPacket.now();
+                    reply.flip();
+                    if( NTPPacket.check( reply, target.transmit ) != null ) continue;    // a straggler, or junk...
+                    target.answered = true;
+                    pending--;
+                    long t2 = NTPPacket.receiveTimestamp(  reply );
+                    long t3 = NTPPacket.transmitTimestamp( reply );
+                    int stratum = NTPPacket.stratum( reply );
+                    int leap    = NTPPacket.leap( reply );
+                    synchronized( this ) {
+                        target.add( NTPPacket.offsetMs( target.transmit, t2, t3, t4 ), NTPPacket.delayMs( target.transmit, t2, t3, t4 ),
+                                stratum, leap );
+                    }
+                }
+            }
+        }
+        catch( IOException _e ) {
+            LOGGER.log( Level.WARNING, "SNTP probe failed: " + _e.getMessage() );
+        }
+        catch( RuntimeException _e ) {
+            // if we let this escape, the scheduler would never run us again...
+            LOGGER.log( Level.SEVERE, "SNTP probe failed", _e );
+        }
+    }
+
+
+    /*
+     * Returns the targets to probe, first changing them to match the peers we've been told about, if they've changed...
+     */
+    private List<Target> reconcile() {
+        synchronized( this ) {
+            if( peers == peersProbed ) return targets;
+            peersProbed = peers;
+
+            // a peer's target is known by its address, which is what we probe...
+            Set<String> wanted = new HashSet<>( peers );
+            List<Target> kept = new ArrayList<>( fixed );
+            for( Target target : targets ) {
+                if( fixed.contains( target ) ) continue;
+                if( wanted.remove( target.host ) ) kept.add( target );
+                else target.close();
+            }
+            for( int i = 0; i < peers.size(); i++ )
+                if( wanted.remove( peers.get( i ) ) && (kept.size() < MAX_TARGETS) )
+                    kept.add( new Target( peerNames.get( i ), peers.get( i ), 123, false ) );
+            targets.clear();
+            targets.addAll( kept );
+            return targets;
+        }
+    }
+
+
+    /*
+     * One server we probe, its channel, and its samples...
+     */
+    private class Target {
+
+        private final String     name;
+        private final String     host;
+        private final int        port;
+        private final boolean    local;             // true if the target shares our clock, so its true offset is zero...
+
+        // used only on the probing thread...
+        private DatagramChannel  channel;           // null until opened (and after a failure)...
+        private long             transmit;
+        private boolean          answered;
+        private String           lastFailure;
+
+        // guarded by the prober...
+        private final SampleRing offsetMs;
+        private final SampleRing delayMs;
+        private final SampleRing asymmetryMs;
+        private final SampleRing filteredOffsetMs;
+        private final double[]   filterOffset;      // the clock filter's register, as a ring...
+        private final double[]   filterDelay;
+        private int              filterNext;
+        private int              filterCount;
+        private double           bestOffset;        // the clock filter's latest output...
+        private double           bestDelay;
+        private double           jitter;
+        private double           minDelayOffset;    // the exchange with the least delay in this interval...
+        private double           minDelay;
+        private int              sent;
+        private int              received;
+        private int              stratum;
+        private int              leap;
+
+
+        private Target( final String _name, final String _host, final int _port, final boolean _local ) {
+            name             = _name;
+            host             = _host;
+            port             = _port;
+            local            = _local;
+            offsetMs         = new SampleRing( capacity );
+            delayMs          = new SampleRing( capacity );
+            asymmetryMs      = new SampleRing( capacity );
+            filteredOffsetMs = new SampleRing( capacity );
+            filterOffset     = new double[filterSize];
+            filterDelay      = new double[filterSize];
+            bestOffset       = Double.NaN;
+            bestDelay        = Double.NaN;
+            jitter           = Double.NaN;
+            leap             = NTPPacket.LEAP_UNSYNC;
+            clear();
+        }
+
+
+        /*
+         * Opens our channel, if it isn't already, returning false if we can't...
+         */
+        private boolean open( final Selector _selector ) {
+            if( channel != null ) return true;
+            try {
+                InetSocketAddress address = new InetSocketAddress( host, port );
+                if( address.isUnresolved() ) throw new IOException( "Can't resolve " + host );
+                channel = DatagramChannel.open();
+                channel.configureBlocking( false );
+                channel.connect( address );
+                channel.register( _selector, SelectionKey.OP_READ );
+                return true;
+            }
+            catch( IOException _e ) {
+                failed( _e );
+                return false;
+            }
+        }
+
+
+        /*
+         * Notes a failure, logging it if it's a different failure than the last, and closes our channel so that it's reopened next time...
+         */
+        private void failed( final IOException _e ) {
+            String failure = String.valueOf( _e.getMessage() );
+            if( !failure.equals( lastFailure ) )
+                LOGGER.log( Level.WARNING, "SNTP probe of " + name + " failed: " + failure );
+            lastFailure = failure;
+            close();
+        }
+
+
+        private void close() {
+            try {
+                if( channel != null ) channel.close();
+            }
+            catch( IOException _e ) {
+                // naught to do here...
+            }
+            channel = null;
+        }
+
+
+        /*
+         * Adds the results of an exchange, and runs the clock filter...
+         */
+        private void add( final double _offsetMs, final double _delayMs, final int _stratum, final int _leap ) {
+
+            received++;
+            stratum = _stratum;
+            leap    = _leap;
+            offsetMs.add( _offsetMs );
+            delayMs.add( _delayMs );
+            if( _delayMs < minDelay ) {
+                minDelay       = _delayMs;
+                minDelayOffset = _offsetMs;
+            }
+
+            // the clock filter: of the exchanges in the register, the one with the least delay wins...
+            filterOffset[filterNext] = _offsetMs;
+            filterDelay[filterNext]  = _delayMs;
+            filterNext = (filterNext + 1) % filterSize;
+            if( filterCount < filterSize ) filterCount++;
+            int best = 0;
+            for( int i = 1; i < filterCount; i++ )
+                if( filterDelay[i] < filterDelay[best] ) best = i;
+            bestOffset = filterOffset[best];
+            bestDelay  = filterDelay[best];
+            double sum = 0;
+            for( int i = 0; i < filterCount; i++ ) {
+                double d = filterOffset[i] - bestOffset;
+                sum += d * d;
+            }
+            jitter = (filterCount > 1) ? Math.sqrt( sum / (filterCount - 1) ) : 0;
+            filteredOffsetMs.add( bestOffset );
+
+            // the asymmetry: the outbound leg less the return leg, taking the filtered offset (or zero, for a server on our clock) as true...
+            asymmetryMs.add( 2 * (_offsetMs - (local ? 0 : bestOffset)) );
+        }
+
+
+        private TargetSummary summarize() {
+            return new TargetSummary( name, sent, received, stratum, leap, offsetMs.stats(), delayMs.stats(), asymmetryMs.stats(),
+                    filteredOffsetMs.stats(), bestOffset, bestDelay, jitter,
+                    (received == 0) ? Double.NaN : minDelayOffset, (received == 0) ? Double.NaN : minDelay );
+        }
+
+
+        private void clear() {
+            offsetMs.clear();
+            delayMs.clear();
+            asymmetryMs.clear();
+            filteredOffsetMs.clear();
+            minDelay       = Double.POSITIVE_INFINITY;
+            minDelayOffset = Double.NaN;
+            sent           = 0;
+            received       = 0;
+        }
+    }
+
+
+    /**
+     * The summary of the exchanges with all the targets during one publishing interval.  Instances of this class are immutable and threadsafe.
+     */
+    public static class Summary {
+
+        public final long                intervalMs;        // length of the interval summarized...
+        public final long                probeIntervalMs;   // the interval between requests to each target...
+        public final List<TargetSummary> targets;
+
+
+        /* package-private */ Summary( final long _intervalMs, final long _probeIntervalMs, final List<TargetSummary> _targets ) {
+            intervalMs      = _intervalMs;
+            probeIntervalMs = _probeIntervalMs;
+            targets         = _targets;
+        }
+
+
+        /**
+         * Returns the summary for the local server, or <code>null</code> if it isn't probed.
+         *
+         * @return the local server's summary, or null
+         */
+        public TargetSummary local() {
+            for( TargetSummary target : targets )
+                if( "local".equals( target.name ) ) return target;
+            return null;
+        }
+    }
+
+
+    /**
+     * The summary of the exchanges with one target during one publishing interval.  The statistics are <code>null</code>, and the filter and
+     * minimum delay values NaN, if there were no replies.  Instances of this class are immutable and threadsafe.
+     */
+    public static class TargetSummary {
+
+        public final String      name;
+        public final int         sent;
+        public final int         received;
+        public final int         stratum;
+        public final int         leap;
+        public final SampleStats offsetMs;              // each exchange's offset of the target from our clock...
+        public final SampleStats delayMs;               // each exchange's round trip delay...
+        public final SampleStats asymmetryMs;           // each exchange's outbound leg less its return leg...
+        public final SampleStats filteredOffsetMs;      // the clock filter's output after each exchange...
+        public final double      filterOffsetMs;        // the clock filter's latest output...
+        public final double      filterDelayMs;
+        public final double      filterJitterMs;
+        public final double      minDelayOffsetMs;      // the offset of the exchange with the least delay in the interval...
+        public final double      minDelayMs;
+
+
+        /* package-private */ TargetSummary( final String _name, final int _sent, final int _received, final int _stratum, final int _leap,
+                                             final SampleStats _offsetMs, final SampleStats _delayMs, final SampleStats _asymmetryMs,
+                                             final SampleStats _filteredOffsetMs, final double _filterOffsetMs, final double _filterDelayMs,
+                                             final double _filterJitterMs, final double _minDelayOffsetMs, final double _minDelayMs ) {
+            name             = _name;
+            sent             = _sent;
+            received         = _received;
+            stratum          = _stratum;
+            leap             = _leap;
+            offsetMs         = _offsetMs;
+            delayMs          = _delayMs;
+            asymmetryMs      = _asymmetryMs;
+            filteredOffsetMs = _filteredOffsetMs;
+            filterOffsetMs   = _filterOffsetMs;
+            filterDelayMs    = _filterDelayMs;
+            filterJitterMs   = _filterJitterMs;
+            minDelayOffsetMs = _minDelayOffsetMs;
+            minDelayMs       = _minDelayMs;
+        }
+    }
+}
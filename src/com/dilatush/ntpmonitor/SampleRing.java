@@ -0,0 +1,97 @@
+package com.dilatush.ntpmonitor;
+
+import java.util.Arrays;
+
+/**
+ * A fixed-capacity ring buffer of double samples, with the summary statistics we publish for each monitor interval.  When the ring is full,
+ * the oldest samples are overwritten.  Nothing is allocated after construction except the {@link SampleStats} returned by {@link #stats()}.
+ * Instances of this class are mutable and NOT threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class SampleRing {
+
+    private final double[] samples;
+    private final double[] sorted;      // scratch space for computing percentiles...
+    private int            next;        // index of the next sample to write...
+    private int            count;       // number of valid samples (up to the capacity)...
+
+
+    /**
+     * Creates a new instance of this class with the given capacity.
+     *
+     * @param _capacity the maximum number of samples this ring holds
+     */
+    public SampleRing( final int _capacity ) {
+        samples = new double[_capacity];
+        sorted  = new double[_capacity];
+    }
+
+
+    /**
+     * Adds the given sample to this ring, overwriting the oldest sample if the ring is full.  NaN samples are ignored.
+     *
+     * @param _sample the sample to add
+     */
+    public void add( final double _sample ) {
+        if( Double.isNaN( _sample ) ) return;
+        samples[next] = _sample;
+        next = (next + 1) % samples.length;
+        if( count < samples.length ) count++;
+    }
+
+
+    /**
+     * Returns the number of samples in this ring.
+     *
+     * @return the number of samples in this ring
+     */
+    public int size() {
+        return count;
+    }
+
+
+    /**
+     * Discards all the samples in this ring.
+     */
+    public void clear() {
+        next  = 0;
+        count = 0;
+    }
+
+
+    /**
+     * Returns the summary statistics for the samples in this ring, or <code>null</code> if it's empty.
+     *
+     * @return the summary statistics for the samples in this ring
+     */
+    public SampleStats stats() {
+
+        if( count == 0 ) return null;
+
+        // mean and standard deviation, using Welford's method for numerical stability...
+        double mean = 0;
+        double m2   = 0;
+        for( int i = 0; i < count; i++ ) {
+            double delta = samples[i] - mean;
+            mean += delta / (i + 1);
+            m2   += delta * (samples[i] - mean);
+        }
+        double stdDev = (count > 1) ? Math.sqrt( m2 / (count - 1) ) : 0;
+
+        // min, max, and percentiles from a sorted copy...
+        System.arraycopy( samples, 0, sorted, 0, count );
+        Arrays.sort( sorted, 0, count );
+        return new SampleStats( count, sorted[0], sorted[count - 1], mean, stdDev,
+                percentile( 50 ), percentile( 90 ), percentile( 99 ) );
+    }
+
+
+    /*
+     * Returns the given percentile (nearest rank) of our sorted samples.
+     */
+    private double percentile( final int _percent ) {
+        int rank = (int) Math.ceil( _percent / 100.0 * count );
+        return sorted[Math.max( 0, Math.min( count - 1, rank - 1 ) )];
+    }
+}
@@ -0,0 +1,64 @@
+package com.dilatush.ntpmonitor;
+
+import com.dilatush.util.HJSONObject;
+
+/**
+ * A POJO for the summary statistics of a set of samples collected over one monitor interval.  Instances of this class are immutable and
+ * threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class SampleStats {
+
+    public final int    count;
+    public final double min;
+    public final double max;
+    public final double mean;
+    public final double stdDev;
+    public final double p50;
+    public final double p90;
+    public final double p99;
+
+
+    /**
+     * Creates a new instance of this class with the given statistics.
+     *
+     * @param _count the number of samples
+     * @param _min the smallest sample
+     * @param _max the largest sample
+     * @param _mean the mean of the samples
+     * @param _stdDev the (sample) standard deviation of the samples
+     * @param _p50 the median sample
+     * @param _p90 the 90th percentile sample
+     * @param _p99 the 99th percentile sample
+     */
+    public SampleStats( final int _count, final double _min, final double _max, final double _mean, final double _stdDev,
+                        final double _p50, final double _p90, final double _p99 ) {
+        count  = _count;
+        min    = _min;
+        max    = _max;
+        mean   = _mean;
+        stdDev = _stdDev;
+        p50    = _p50;
+        p90    = _p90;
+        p99    = _p99;
+    }
+
+
+    /**
+     * Puts these statistics into the given JSON object, as fields of the given dotted path.
+     *
+     * @param _json the JSON object (or message) to put these statistics into
+     * @param _path the dotted path to put the statistics under
+     */
+    public void putDotted( final HJSONObject _json, final String _path ) {
+        _json.putDotted( _path + ".count",  count  );
+        _json.putDotted( _path + ".min",    min    );
+        _json.putDotted( _path + ".max",    max    );
+        _json.putDotted( _path + ".mean",   mean   );
+        _json.putDotted( _path + ".stdDev", stdDev );
+        _json.putDotted( _path + ".p50",    p50    );
+        _json.putDotted( _path + ".p90",    p90    );
+        _json.putDotted( _path + ".p99",    p99    );
+    }
+}
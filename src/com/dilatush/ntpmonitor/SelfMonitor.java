@@ -0,0 +1,250 @@
+package com.dilatush.ntpmonitor;
+
+import com.dilatush.util.HJSONObject;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The monitor's instrumentation of itself: a {@link LatencyHistogram} for each timed stage of a monitor cycle (each probe, each parse, each
+ * monitor's fill, the send), a counter for each kind of failure, and the duration and allocation of each whole cycle.  A cycle that takes longer
+ * than its budget is logged as a warning, with the stages that took the longest, so that a late publish can be explained.
+ * <p>
+ * Allocation is measured with the JVM's per-thread allocation counters (where the JVM supports them), on the monitor's thread for the whole
+ * cycle and on the probe threads for each poll.  Instances of this class are threadsafe: stages may be timed and failures counted from any
+ * thread.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class SelfMonitor {
+
+    private static final Logger LOGGER = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName() );
+
+    private static final int    SLOWEST_STAGES = 3;     // how many stages an over budget warning names...
+
+    private final Map<String,LatencyHistogram> timers;
+    private final Map<String,AtomicLong>       failures;
+    private final LatencyHistogram             cycles;
+    private final ThreadMXBean                 threads;
+    private final boolean                      allocationSupported;
+    private final long                         budgetNanos;
+    private final AtomicLong                   probeAllocated;   // bytes allocated on probe threads during the current cycle...
+    private final AtomicLong                   overBudget;
+    private long                               cycleStartNanos;
+    private long                               cycleStartAllocated;
+    private volatile long                      lastAllocated;    // bytes allocated during the last cycle, or -1 if unknown...
+
+
+    /**
+     * Creates a new instance of this class configured by the given monitor configuration.  The optional configuration item is:
+     * <ul>
+     *    <li><code>self.budgetMs</code> the longest a monitor cycle should take, in milliseconds; longer cycles are logged as warnings (default
+     *        half the <code>monitorInterval</code>)</li>
+     * </ul>
+     *
+     * @param _config the monitor's configuration, or <code>null</code> for the defaults
+     */
+    public SelfMonitor( final HJSONObject _config ) {
+
+        HJSONObject config = (_config == null) ? new HJSONObject() : _config;
+        budgetNanos    = 1_000_000L * config.optLongDotted( "self.budgetMs", 500 * config.optLongDotted( "monitorInterval", 60 ) );
+        timers         = new ConcurrentSkipListMap<>();
+        failures       = new ConcurrentSkipListMap<>();
+        cycles         = new LatencyHistogram();
+        probeAllocated = new AtomicLong();
+        overBudget     = new AtomicLong();
+        lastAllocated  = -1;
+
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        boolean supported = false;
+        if( mx instanceof com.sun.management.ThreadMXBean ) {
+            com.sun.management.ThreadMXBean sunMX = (com.sun.management.ThreadMXBean) mx;
+            supported = sunMX.isThreadAllocatedMemorySupported();
+            if( supported && !sunMX.isThreadAllocatedMemoryEnabled() ) sunMX.setThreadAllocatedMemoryEnabled( true );
+        }
+        threads             = mx;
+        allocationSupported = supported;
+    }
+
+
+    /**
+     * Returns the timer for the given stage, creating it if need be.
+     *
+     * @param _stage the name of the stage (dotted names are published as nested objects)
+     * @return the stage's timer
+     */
+    public LatencyHistogram timer( final String _stage ) {
+        LatencyHistogram timer = timers.get( _stage );
+        return (timer != null) ? timer : timers.computeIfAbsent( _stage, _key -> new LatencyHistogram() );
+    }
+
+
+    /**
+     * Records that the given stage took the given time.
+     *
+     * @param _stage the name of the stage
+     * @param _nanos how long it took, in nanoseconds
+     */
+    public void time( final String _stage, final long _nanos ) {
+        timer( _stage ).record( _nanos );
+    }
+
+
+    /**
+     * Counts one failure of the given kind.
+     *
+     * @param _kind the kind of failure (dotted names are published as nested objects)
+     */
+    public void fail( final String _kind ) {
+        AtomicLong counter = failures.get( _kind );
+        if( counter == null ) counter = failures.computeIfAbsent( _kind, _key -> new AtomicLong() );
+        counter.incrementAndGet();
+    }
+
+
+    /**
+     * Returns the bytes allocated so far by the current thread, or -1 if the JVM can't tell us.
+     *
+     * @return the bytes allocated so far by the current thread
+     */
+    public long threadAllocated() {
+        return allocationSupported
+                ? ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes( Thread.currentThread().getId() )
+                : -1;
+    }
+
+
+    /**
+     * Adds the given bytes, allocated on a probe thread, to the current cycle's allocation.
+     *
+     * @param _bytes the bytes allocated, or -1 if unknown
+     */
+    public void addProbeAllocated( final long _bytes ) {
+        if( _bytes > 0 ) probeAllocated.addAndGet( _bytes );
+    }
+
+
+    /**
+     * Marks the start of a monitor cycle.  Must be called on the monitor's thread, which must also call {@link #endCycle()}.
+     */
+    public void beginCycle() {
+        cycleStartNanos     = System.nanoTime();
+        cycleStartAllocated = threadAllocated();
+        probeAllocated.set( 0 );
+    }
+
+
+    /**
+     * Marks the end of a monitor cycle, recording its duration and allocation, and logging a warning if it was over budget.
+     */
+    public void endCycle() {
+
+        long nanos = System.nanoTime() - cycleStartNanos;
+        cycles.record( nanos );
+        long allocated = threadAllocated();
+        lastAllocated = ((allocated < 0) || (cycleStartAllocated < 0)) ? -1 : allocated - cycleStartAllocated + probeAllocated.get();
+
+        if( nanos > budgetNanos ) {
+            overBudget.incrementAndGet();
+            LOGGER.log( Level.WARNING, "Monitor cycle took " + (nanos / 1_000_000) + " ms, over its budget of " + (budgetNanos / 1_000_000)
+                    + " ms; slowest stages: " + slowestStages() );
+        }
+    }
+
+
+    /*
+     * Returns a description of the stages that took the longest in the last cycle...
+     */
+    private String slowestStages() {
+        List<Map.Entry<String,LatencyHistogram>> stages = new ArrayList<>( timers.entrySet() );
+        stages.sort( (_a, _b) -> Long.compare( _b.getValue().lastNanos(), _a.getValue().lastNanos() ) );
+        StringBuilder sb = new StringBuilder();
+        for( int i = 0; i < Math.min( SLOWEST_STAGES, stages.size() ); i++ ) {
+            if( i > 0 ) sb.append( ", " );
+            sb.append( stages.get( i ).getKey() ).append( ' ' ).append( stages.get( i ).getValue().lastNanos() / 1_000_000 ).append( " ms" );
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * Returns the timers for all the stages timed so far, by name.  The map may gain entries while it's being read, but is otherwise unchanging.
+     *
+     * @return the timers, by stage name
+     */
+    public Map<String,LatencyHistogram> timers() {
+        return timers;
+    }
+
+
+    /**
+     * Returns the count of each kind of failure so far, by kind.
+     *
+     * @return the failure counts, by kind
+     */
+    public Map<String,Long> failures() {
+        Map<String,Long> result = new TreeMap<>();
+        for( Map.Entry<String,AtomicLong> entry : failures.entrySet() )
+            result.put( entry.getKey(), entry.getValue().get() );
+        return result;
+    }
+
+
+    /**
+     * Returns the number of cycles that took longer than their budget.
+     *
+     * @return the number of cycles over budget
+     */
+    public long overBudget() {
+        return overBudget.get();
+    }
+
+
+    /**
+     * Returns the bytes allocated by the last cycle (on the monitor's thread and its probe threads), or -1 if unknown.
+     *
+     * @return the bytes allocated by the last cycle, or -1
+     */
+    public long lastAllocated() {
+        return lastAllocated;
+    }
+
+
+    /**
+     * Returns the timer for whole monitor cycles.
+     *
+     * @return the timer for whole monitor cycles
+     */
+    public LatencyHistogram cycles() {
+        return cycles;
+    }
+
+
+    /**
+     * Puts our instrumentation into the given JSON object at the given dotted path (normally <code>monitor.self</code>): the cycle timer, the
+     * cycles over budget, the bytes allocated by the last cycle (if known), a timer for each stage, and a count of each kind of failure.  As this
+     * is normally called during a cycle, the cycle figures are for the cycles before it.
+     *
+     * @param _json the JSON object to put our instrumentation into
+     * @param _path the dotted path to put it at
+     */
+    public void putDotted( final HJSONObject _json, final String _path ) {
+        cycles.putDotted( _json, _path + ".cycle" );
+        _json.putDotted( _path + ".budgetMs",   budgetNanos / 1_000_000 );
+        _json.putDotted( _path + ".overBudget", overBudget.get()       );
+        if( lastAllocated >= 0 )
+            _json.putDotted( _path + ".allocatedBytes", lastAllocated );
+        for( Map.Entry<String,LatencyHistogram> entry : timers.entrySet() )
+            entry.getValue().putDotted( _json, _path + ".timers." + entry.getKey() );
+        for( Map.Entry<String,AtomicLong> entry : failures.entrySet() )
+            _json.putDotted( _path + ".failures." + entry.getKey(), entry.getValue().get() );
+    }
+}
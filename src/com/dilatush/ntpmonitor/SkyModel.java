@@ -0,0 +1,520 @@
+package com.dilatush.ntpmonitor;
+
+import com.dilatush.util.HJSONObject;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A persistent model of the sky as the GNSS receiver sees it, updated from each list of satellites in view.  Every satellite ever seen (until
+ * it's forgotten) has a row in a primitive, open-addressed table keyed by its GNSS type and id, holding its latest elevation, azimuth, and
+ * carrier to noise ratio (CNo), a short history of its CNo and elevation, when its current pass began, and how many times it has gone between
+ * used and not used in the fix.  From these, the model keeps a rolling mean CNo for each band of elevation (and, for low satellites, each
+ * sector of azimuth), which is what a healthy antenna's CNo-vs-elevation curve should look like; a satellite well below the mean for its
+ * elevation, or a sector of azimuth that's consistently weak, points to an obstruction or an antenna problem.
+ * <p>
+ * Updating the model allocates nothing.  The model is published in <code>monitor.ntp.sky</code> as the current view (one short array per
+ * satellite in view) and the compact CNo summaries, rather than as a full object per satellite.  The model can be kept in a {@link Checkpoint},
+ * so that its CNo curves and the satellites' histories carry on across a restart of the monitor.  Instances of this class are mutable and NOT
+ * threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class SkyModel implements Checkpoint.Part {
+
+    // the GNSS types we know in advance (the u-blox GNSS IDs, as gpsd and gpsctl use); others are added as they're seen...
+    private static final String[] KNOWN_TYPES = { "GPS", "SBAS", "Galileo", "BeiDou", "IMES", "QZSS", "GLONASS" };
+
+    private static final int    CAPACITY         = 512;             // a power of two, several times the satellites in all the constellations...
+    private static final int    MAX_SIZE         = CAPACITY * 3 / 4;
+    private static final int    EMPTY            = -1;
+    private static final int    HISTORY          = 32;              // the samples of CNo and elevation we keep for each satellite...
+    private static final int    ELEVATION_BIN    = 10;              // degrees per elevation band (0..9, 10..19, ..., 80..90)...
+    private static final int    ELEVATION_BINS   = 9;
+    private static final int    AZIMUTH_SECTOR   = 45;              // degrees per azimuth sector (0..44, 45..89, ...)...
+    private static final int    AZIMUTH_SECTORS  = 8;
+    private static final int    LOW_ELEVATION    = 30;              // satellites below this elevation count in the azimuth sectors...
+    private static final long   PASS_GAP_MS      = 600_000;         // a restored satellite out of view longer than this starts a new pass...
+
+    private final List<String> types;
+    private final int          window;
+    private final long         forgetAfterMs;
+
+    // the table, one row per satellite; a row is in use if its key isn't EMPTY...
+    private final int[]        keys;            // (type index << 16) | id...
+    private final byte[]       elevation;
+    private final short[]      azimuth;
+    private final byte[]       cno;
+    private final boolean[]    inView;
+    private final boolean[]    used;
+    private final long[]       passStartMs;     // when the satellite came into view for its current (or latest) pass...
+    private final long[]       lastSeenMs;
+    private final int[]        usedTransitions;
+    private final byte[]       cnoHistory;      // HISTORY samples per row, as a ring...
+    private final byte[]       elevationHistory;
+    private final int[]        historyCount;    // the samples ever added to the row's ring (the next goes at historyCount % HISTORY)...
+    private int                size;
+
+    // the rolling mean CNo in each elevation band and each low azimuth sector...
+    private final double[]     elevationMean;
+    private final long[]       elevationSamples;
+    private final double[]     azimuthMean;
+    private final long[]       azimuthSamples;
+
+    private long               lastUpdateMs;
+    private int                viewCount;
+    private int                usedCount;
+    private long               transitions;     // used/not used transitions since we started (or were checkpointed from)...
+    private long               passes;          // passes (a satellite coming into view) since we started (or were checkpointed from)...
+
+
+    /**
+     * Creates a new instance of this class configured by the given monitor configuration.  The optional configuration items are:
+     * <ul>
+     *    <li><code>sky.window</code> the number of samples the rolling CNo means follow (default 1000)</li>
+     *    <li><code>sky.forgetAfterHours</code> how long a satellite may be out of view before it's forgotten (default 12)</li>
+     * </ul>
+     *
+     * @param _config the monitor's configuration, or <code>null</code> for the defaults
+     */
+    public SkyModel( final HJSONObject _config ) {
+
+        HJSONObject config = (_config == null) ? new HJSONObject() : _config;
+        window        = Math.max( 1, config.optIntDotted( "sky.window", 1000 ) );
+        forgetAfterMs = 3_600_000L * Math.max( 1, config.optLongDotted( "sky.forgetAfterHours", 12 ) );
+
+        types = new ArrayList<>();
+        for( String type : KNOWN_TYPES ) types.add( type );
+
+        keys             = new int[CAPACITY];
+        elevation        = new byte[CAPACITY];
+        azimuth          = new short[CAPACITY];
+        cno              = new byte[CAPACITY];
+        inView           = new boolean[CAPACITY];
+        used             = new boolean[CAPACITY];
+        passStartMs      = new long[CAPACITY];
+        lastSeenMs       = new long[CAPACITY];
+        usedTransitions  = new int[CAPACITY];
+        cnoHistory       = new byte[CAPACITY * HISTORY];
+        elevationHistory = new byte[CAPACITY * HISTORY];
+        historyCount     = new int[CAPACITY];
+        for( int i = 0; i < CAPACITY; i++ ) keys[i] = EMPTY;
+
+        elevationMean    = new double[ELEVATION_BINS];
+        elevationSamples = new long[ELEVATION_BINS];
+        azimuthMean      = new double[AZIMUTH_SECTORS];
+        azimuthSamples   = new long[AZIMUTH_SECTORS];
+    }
+
+
+    /**
+     * Updates the model from the given satellites in view.  Satellites that aren't in the list are out of view; those that have been out of view
+     * for too long are forgotten.
+     *
+     * @param _nowMs the time the satellites were seen (System.currentTimeMillis())
+     * @param _inView the satellites in view
+     */
+    public void update( final long _nowMs, final List<GNSSSatellite> _inView ) {
+
+        // anything we don't see this time is out of view...
+        for( int row = 0; row < CAPACITY; row++ ) inView[row] = false;
+        viewCount = 0;
+        usedCount = 0;
+
+        for( int i = 0; i < _inView.size(); i++ ) {
+
+            GNSSSatellite sat = _inView.get( i );
+            int row = row( key( sat.type, sat.id ), _nowMs );
+
+            // a satellite we didn't see last time is starting a new pass...
+            if( lastSeenMs[row] != lastUpdateMs || lastUpdateMs == 0 ) {
+                passStartMs[row] = _nowMs;
+                passes++;
+            }
+            else if( used[row] != sat.used ) {
+                usedTransitions[row]++;
+                transitions++;
+            }
+
+            inView[row]     = true;
+            used[row]       = sat.used;
+            lastSeenMs[row] = _nowMs;
+            elevation[row]  = (byte) Math.max( -90, Math.min( 90, sat.elevation ) );
+            azimuth[row]    = (short) Math.max( 0, Math.min( 359, sat.azimuth ) );
+            cno[row]        = (byte) Math.max( 0, Math.min( 127, sat.cno ) );
+            int slot = row * HISTORY + (historyCount[row]++ % HISTORY);
+            cnoHistory[slot]       = cno[row];
+            elevationHistory[slot] = elevation[row];
+            viewCount++;
+            if( sat.used ) usedCount++;
+
+            // satellites that aren't being tracked (CNo zero) say nothing about the antenna...
+            if( cno[row] > 0 && elevation[row] >= 0 ) {
+                int bin = Math.min( ELEVATION_BINS - 1, elevation[row] / ELEVATION_BIN );
+                elevationMean[bin] = roll( elevationMean[bin], ++elevationSamples[bin], cno[row] );
+                if( elevation[row] < LOW_ELEVATION ) {
+                    int sector = azimuth[row] / AZIMUTH_SECTOR;
+                    azimuthMean[sector] = roll( azimuthMean[sector], ++azimuthSamples[sector], cno[row] );
+                }
+            }
+        }
+        lastUpdateMs = _nowMs;
+
+        // forget the satellites we haven't seen for a long time...
+        for( int row = 0; row < CAPACITY; ) {
+            if( (keys[row] != EMPTY) && (_nowMs - lastSeenMs[row] > forgetAfterMs) )
+                remove( row );      // moves a later row into this one, so look at it again...
+            else
+                row++;
+        }
+    }
+
+
+    /**
+     * Returns the number of satellites in the model (in view or not).
+     *
+     * @return the number of satellites in the model
+     */
+    public int size() {
+        return size;
+    }
+
+
+    /**
+     * Puts the model into the given JSON object at the given dotted path (normally <code>monitor.ntp.sky</code>): the counts, the current view,
+     * and the CNo summaries.
+     *
+     * @param _json the JSON object to put the model into
+     * @param _path the dotted path to put it at
+     */
+    public void putDotted( final HJSONObject _json, final String _path ) {
+
+        _json.putDotted( _path + ".tracked",     size        );
+        _json.putDotted( _path + ".inView",      viewCount   );
+        _json.putDotted( _path + ".used",        usedCount   );
+        _json.putDotted( _path + ".passes",      passes      );
+        _json.putDotted( _path + ".transitions", transitions );
+
+        // the current view: for each satellite in view, [elevation, azimuth, cno, used, seconds in view, recent mean cno, cno - elevation
+        // band's mean, used transitions]...
+        JSONObject view = new JSONObject();
+        for( int row = 0; row < CAPACITY; row++ ) {
+            if( (keys[row] == EMPTY) || !inView[row] ) continue;
+            int bin = Math.min( ELEVATION_BINS - 1, Math.max( 0, elevation[row] ) / ELEVATION_BIN );
+            JSONArray sat = new JSONArray();
+            sat.put( elevation[row] );
+            sat.put( azimuth[row] );
+            sat.put( cno[row] );
+            sat.put( used[row] ? 1 : 0 );
+            sat.put( (lastSeenMs[row] - passStartMs[row]) / 1000 );
+            sat.put( round( recentMeanCNo( row ) ) );
+            sat.put( (elevationSamples[bin] == 0) ? 0 : round( cno[row] - elevationMean[bin] ) );
+            sat.put( usedTransitions[row] );
+            view.put( types.get( keys[row] >>> 16 ) + ":" + (keys[row] & 0xFFFF), sat );
+        }
+        _json.putDotted( _path + ".view", view );
+
+        _json.putDotted( _path + ".cnoByElevation.binDegrees", ELEVATION_BIN );
+        _json.putDotted( _path + ".cnoByElevation.mean",       means( elevationMean, elevationSamples ) );
+        _json.putDotted( _path + ".cnoByElevation.samples",    samples( elevationSamples )             );
+        _json.putDotted( _path + ".cnoByAzimuth.sectorDegrees", AZIMUTH_SECTOR );
+        _json.putDotted( _path + ".cnoByAzimuth.maxElevation",  LOW_ELEVATION  );
+        _json.putDotted( _path + ".cnoByAzimuth.mean",          means( azimuthMean, azimuthSamples ) );
+        _json.putDotted( _path + ".cnoByAzimuth.samples",       samples( azimuthSamples )           );
+    }
+
+
+    /**
+     * Writes the model to the given output: the counts and the CNo means, then each satellite's row (with its type by name).
+     *
+     * @param _out the output to write the model to
+     * @throws IOException if it can't be written
+     */
+    @Override
+    public void save( final DataOutput _out ) throws IOException {
+
+        _out.writeLong( lastUpdateMs );
+        _out.writeInt( viewCount );
+        _out.writeInt( usedCount );
+        _out.writeLong( transitions );
+        _out.writeLong( passes );
+        _out.writeInt( ELEVATION_BINS );
+        for( int i = 0; i < ELEVATION_BINS; i++ ) {
+            _out.writeDouble( elevationMean[i] );
+            _out.writeLong( elevationSamples[i] );
+        }
+        _out.writeInt( AZIMUTH_SECTORS );
+        for( int i = 0; i < AZIMUTH_SECTORS; i++ ) {
+            _out.writeDouble( azimuthMean[i] );
+            _out.writeLong( azimuthSamples[i] );
+        }
+
+        _out.writeInt( HISTORY );
+        _out.writeInt( size );
+        for( int row = 0; row < CAPACITY; row++ ) {
+            if( keys[row] == EMPTY ) continue;
+            _out.writeUTF( types.get( keys[row] >>> 16 ) );
+            _out.writeShort( keys[row] & 0xFFFF );
+            _out.writeByte( elevation[row] );
+            _out.writeShort( azimuth[row] );
+            _out.writeByte( cno[row] );
+            _out.writeBoolean( inView[row] );
+            _out.writeBoolean( used[row] );
+            _out.writeLong( passStartMs[row] );
+            _out.writeLong( lastSeenMs[row] );
+            _out.writeInt( usedTransitions[row] );
+            _out.writeInt( historyCount[row] );
+            _out.write( cnoHistory,       row * HISTORY, HISTORY );
+            _out.write( elevationHistory, row * HISTORY, HISTORY );
+        }
+    }
+
+
+    /**
+     * Reads the model, as written by {@link #save(DataOutput)}, into this model, which must not have been updated yet.  If the model was saved
+     * long enough ago that the satellites in view then may have set, none are in view, and every satellite seen next starts a new pass.  The
+     * model is read into a scratch model first, and copied into this one only once it has all been read, so that if it can't be, this model
+     * is left as it was.
+     *
+     * @param _in the input to read the model from
+     * @param _ageMs how long ago the model was saved, in milliseconds
+     * @throws IOException if the model can't be read, or was saved with different bins or history
+     */
+    @Override
+    public void restore( final DataInput _in, final long _ageMs ) throws IOException {
+
+        if( size != 0 ) throw new IllegalStateException( "Sky model has already been updated" );
+        SkyModel scratch = new SkyModel( null );
+        scratch.read( _in, _ageMs );
+        copy( scratch );
+    }
+
+
+    /*
+     * Reads the model, as written by save(), into this model, which must be empty...
+     */
+    private void read( final DataInput _in, final long _ageMs ) throws IOException {
+
+        long savedUpdateMs = _in.readLong();
+        int  savedView     = _in.readInt();
+        int  savedUsed     = _in.readInt();
+        long savedTrans    = _in.readLong();
+        long savedPasses   = _in.readLong();
+        double[] savedElevationMean    = new double[ELEVATION_BINS];
+        long[]   savedElevationSamples = new long[ELEVATION_BINS];
+        double[] savedAzimuthMean      = new double[AZIMUTH_SECTORS];
+        long[]   savedAzimuthSamples   = new long[AZIMUTH_SECTORS];
+        if( _in.readInt() != ELEVATION_BINS ) throw new IOException( "Saved with different elevation bins" );
+        for( int i = 0; i < ELEVATION_BINS; i++ ) {
+            savedElevationMean[i]    = _in.readDouble();
+            savedElevationSamples[i] = _in.readLong();
+        }
+        if( _in.readInt() != AZIMUTH_SECTORS ) throw new IOException( "Saved with different azimuth sectors" );
+        for( int i = 0; i < AZIMUTH_SECTORS; i++ ) {
+            savedAzimuthMean[i]    = _in.readDouble();
+            savedAzimuthSamples[i] = _in.readLong();
+        }
+        if( _in.readInt() != HISTORY ) throw new IOException( "Saved with a different history" );
+
+        // the rows go straight into the table (it's empty)...
+        boolean fresh = _ageMs <= PASS_GAP_MS;
+        int rows = _in.readInt();
+        for( int i = 0; (i < rows) && (size < MAX_SIZE); i++ ) {
+            String type = _in.readUTF();
+            int    row  = row( key( type, _in.readUnsignedShort() ), 0 );
+            elevation[row]       = _in.readByte();
+            azimuth[row]         = _in.readShort();
+            cno[row]             = _in.readByte();
+            inView[row]          = _in.readBoolean() && fresh;
+            used[row]            = _in.readBoolean();
+            passStartMs[row]     = _in.readLong();
+            lastSeenMs[row]      = _in.readLong();
+            usedTransitions[row] = _in.readInt();
+            historyCount[row]    = _in.readInt();
+            _in.readFully( cnoHistory,       row * HISTORY, HISTORY );
+            _in.readFully( elevationHistory, row * HISTORY, HISTORY );
+        }
+
+        lastUpdateMs = fresh ? savedUpdateMs : 0;
+        viewCount    = fresh ? savedView     : 0;
+        usedCount    = fresh ? savedUsed     : 0;
+        transitions  = savedTrans;
+        passes       = savedPasses;
+        System.arraycopy( savedElevationMean,    0, elevationMean,    0, ELEVATION_BINS  );
+        System.arraycopy( savedElevationSamples, 0, elevationSamples, 0, ELEVATION_BINS  );
+        System.arraycopy( savedAzimuthMean,      0, azimuthMean,      0, AZIMUTH_SECTORS );
+        System.arraycopy( savedAzimuthSamples,   0, azimuthSamples,   0, AZIMUTH_SECTORS );
+    }
+
+
+    /*
+     * Makes this model a copy of the given one (but for its configuration)...
+     */
+    private void copy( final SkyModel _from ) {
+        types.clear();
+        types.addAll( _from.types );
+        System.arraycopy( _from.keys,             0, keys,             0, CAPACITY           );
+        System.arraycopy( _from.elevation,        0, elevation,        0, CAPACITY           );
+        System.arraycopy( _from.azimuth,          0, azimuth,          0, CAPACITY           );
+        System.arraycopy( _from.cno,              0, cno,              0, CAPACITY           );
+        System.arraycopy( _from.inView,           0, inView,           0, CAPACITY           );
+        System.arraycopy( _from.used,             0, used,             0, CAPACITY           );
+        System.arraycopy( _from.passStartMs,      0, passStartMs,      0, CAPACITY           );
+        System.arraycopy( _from.lastSeenMs,       0, lastSeenMs,       0, CAPACITY           );
+        System.arraycopy( _from.usedTransitions,  0, usedTransitions,  0, CAPACITY           );
+        System.arraycopy( _from.cnoHistory,       0, cnoHistory,       0, CAPACITY * HISTORY );
+        System.arraycopy( _from.elevationHistory, 0, elevationHistory, 0, CAPACITY * HISTORY );
+        System.arraycopy( _from.historyCount,     0, historyCount,     0, CAPACITY           );
+        System.arraycopy( _from.elevationMean,    0, elevationMean,    0, ELEVATION_BINS     );
+        System.arraycopy( _from.elevationSamples, 0, elevationSamples, 0, ELEVATION_BINS     );
+        System.arraycopy( _from.azimuthMean,      0, azimuthMean,      0, AZIMUTH_SECTORS    );
+        System.arraycopy( _from.azimuthSamples,   0, azimuthSamples,   0, AZIMUTH_SECTORS    );
+        size         = _from.size;
+        lastUpdateMs = _from.lastUpdateMs;
+        viewCount    = _from.viewCount;
+        usedCount    = _from.usedCount;
+        transitions  = _from.transitions;
+        passes       = _from.passes;
+    }
+
+
+    /*
+     * Returns the mean of the given row's recent CNo samples...
+     */
+    private double recentMeanCNo( final int _row ) {
+        int count = Math.min( HISTORY, historyCount[_row] );
+        if( count == 0 ) return 0;
+        int sum = 0;
+        for( int i = 0; i < count; i++ ) sum += cnoHistory[_row * HISTORY + i];
+        return (double) sum / count;
+    }
+
+
+    /*
+     * Returns the row for the given key, adding one (and forgetting the least recently seen satellite, if the table is full) if there isn't
+     * one...
+     */
+    private int row( final int _key, final long _nowMs ) {
+        int row = find( _key );
+        if( keys[row] == _key ) return row;
+
+        if( size >= MAX_SIZE ) {
+            int oldest = -1;
+            for( int i = 0; i < CAPACITY; i++ )
+                if( (keys[i] != EMPTY) && !inView[i] && ((oldest < 0) || (lastSeenMs[i] < lastSeenMs[oldest])) ) oldest = i;
+            if( oldest >= 0 ) {
+                remove( oldest );
+                row = find( _key );
+            }
+        }
+
+        keys[row]            = _key;
+        usedTransitions[row] = 0;
+        historyCount[row]    = 0;
+        lastSeenMs[row]      = 0;
+        size++;
+        return row;
+    }
+
+
+    /*
+     * Returns the row holding the given key, or the empty row where it would go...
+     */
+    private int find( final int _key ) {
+        int row = hash( _key );
+        while( (keys[row] != EMPTY) && (keys[row] != _key) )
+            row = (row + 1) & (CAPACITY - 1);
+        return row;
+    }
+
+
+    private static int hash( final int _key ) {
+        return (_key * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros( CAPACITY ));
+    }
+
+
+    /*
+     * Removes the given row, shifting any later rows in its probe sequence back so that no lookup is cut short...
+     */
+    private void remove( final int _row ) {
+        int hole = _row;
+        int row  = _row;
+        while( true ) {
+            row = (row + 1) & (CAPACITY - 1);
+            if( keys[row] == EMPTY ) break;
+            int home = hash( keys[row] );
+            // the row can move back to the hole only if its home isn't (cyclically) between the hole and the row...
+            boolean between = (hole <= row) ? ((hole < home) && (home <= row)) : ((hole < home) || (home <= row));
+            if( between ) continue;
+            move( row, hole );
+            hole = row;
+        }
+        keys[hole] = EMPTY;
+        inView[hole] = false;
+        size--;
+    }
+
+
+    private void move( final int _from, final int _to ) {
+        keys[_to]            = keys[_from];
+        elevation[_to]       = elevation[_from];
+        azimuth[_to]         = azimuth[_from];
+        cno[_to]             = cno[_from];
+        inView[_to]          = inView[_from];
+        used[_to]            = used[_from];
+        passStartMs[_to]     = passStartMs[_from];
+        lastSeenMs[_to]      = lastSeenMs[_from];
+        usedTransitions[_to] = usedTransitions[_from];
+        historyCount[_to]    = historyCount[_from];
+        System.arraycopy( cnoHistory,       _from * HISTORY, cnoHistory,       _to * HISTORY, HISTORY );
+        System.arraycopy( elevationHistory, _from * HISTORY, elevationHistory, _to * HISTORY, HISTORY );
+    }
+
+
+    /*
+     * Returns the key for the given satellite...
+     */
+    private int key( final String _type, final int _id ) {
+        int type = -1;
+        for( int i = 0; i < types.size(); i++ )
+            if( types.get( i ).equals( _type ) ) {
+                type = i;
+                break;
+            }
+        if( type < 0 ) {
+            type = types.size();
+            types.add( _type );
+        }
+        return (type << 16) | (_id & 0xFFFF);
+    }
+
+
+    // a mean over the first window samples, then exponentially weighted with weight 1/window...
+    private double roll( final double _mean, final long _count, final double _value ) {
+        return _mean + (_value - _mean) / Math.min( _count, window );
+    }
+
+
+    private static double round( final double _value ) {
+        return Math.round( _value * 10 ) / 10.0;
+    }
+
+
+    private static JSONArray means( final double[] _means, final long[] _samples ) {
+        JSONArray result = new JSONArray();
+        for( int i = 0; i < _means.length; i++ ) result.put( (_samples[i] == 0) ? 0 : round( _means[i] ) );
+        return result;
+    }
+
+
+    private static JSONArray samples( final long[] _samples ) {
+        JSONArray result = new JSONArray();
+        for( long sample : _samples ) result.put( sample );
+        return result;
+    }
+}
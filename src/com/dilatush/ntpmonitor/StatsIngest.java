@@ -0,0 +1,316 @@
+package com.dilatush.ntpmonitor;
+
+import com.dilatush.mop.Mailbox;
+import com.dilatush.mop.Message;
+import com.dilatush.mop.PostOffice;
+import com.dilatush.util.Config;
+import com.dilatush.util.HJSONObject;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A tool that backfills our history from the statistics files ntpd has been writing (see {@link NTPDStatsParser}), which hold the same
+ * offsets, frequency, and per-peer measurements the monitor gets from ntpq, going back as far as they've been kept.  The files are parsed in
+ * parallel, and their records divided into intervals of time; each interval with any records becomes a message with the same fields (see
+ * <code>Message Schema.txt</code>) as the monitor's, plus <code>monitor.ntp.history</code> saying when it was.  The messages are one of:
+ * <ul>
+ *    <li>replayed: what the monitor would have published at the end of each interval (by default the <code>monitorInterval</code>): the PLL
+ *        offset and frequency offset, the peers (with their state, offset, delay, and jitter), and the GNSS fix, each as it was last recorded
+ *        (and left out if it wasn't recorded in the last hour)</li>
+ *    <li>summarized: the statistics of each interval's samples (by default a day), in <code>monitor.ntp.samples</code></li>
+ * </ul>
+ * The statistics files don't have everything <code>ntpq</code> reports, so fields they don't have (a peer's reference ID, stratum, and
+ * reach register, the kernel's maximum error, the server's status word, and the satellites in view) are absent.  Accepts these arguments on
+ * the command line:
+ * <ol>
+ *    <li>"publish" to publish replayed messages through the post office, at a limited rate, or "summary" to write summarized messages to
+ *        standard output, one per line</li>
+ *    <li>the monitor configuration file path (for the post office, and for the configuration items below)</li>
+ *    <li>the statistics files, or the directories they're in (like <code>/var/log/ntpstats</code>)</li>
+ * </ol>
+ * The configuration items are:
+ * <ul>
+ *    <li><code>ingest.topic</code> the topic replayed messages are published as (default "ntp.history", so they aren't taken for live
+ *        ones)</li>
+ *    <li><code>ingest.messagesPerSecond</code> the most replayed messages to publish each second (default 10)</li>
+ *    <li><code>ingest.intervalSeconds</code> the interval of each replayed message (default the <code>monitorInterval</code>)</li>
+ *    <li><code>ingest.summarySeconds</code> the interval of each summarized message (default 86400)</li>
+ *    <li><code>ingest.threads</code> the threads to parse with (default one per processor)</li>
+ *    <li><code>ingest.chunkKB</code> the largest piece of a file parsed as a single task, in kilobytes (default 1024)</li>
+ * </ul>
+ * Instances of this class hold only their interval, and are threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class StatsIngest {
+
+    private static final Logger LOGGER   = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName() );
+
+    private static final long   STALE_MS = 3_600_000L;      // what hasn't been recorded for this long is left out of replayed messages...
+
+    private final long intervalMs;
+
+
+    /**
+     * Creates a new instance of this class that divides the records into intervals of the given length, aligned to the epoch.
+     *
+     * @param _intervalMs the length of each interval, in milliseconds
+     */
+    public StatsIngest( final long _intervalMs ) {
+        intervalMs = Math.max( 1, _intervalMs );
+    }
+
+
+    public static void main( final String[] _args ) throws IOException, InterruptedException {
+
+        if( (_args.length < 3) || !("publish".equals( _args[0] ) || "summary".equals( _args[0] )) ) {
+            System.out.println( "Usage: StatsIngest publish|summary <monitor configuration file> <statistics file or directory>..." );
+            return;
+        }
+        boolean publish = "publish".equals( _args[0] );
+        if( !new File( _args[1] ).exists() ) {
+            System.out.println( "NTP configuration file " + _args[1] + " does not exist!" );
+            return;
+        }
+        Config config = Config.fromJSONFile( _args[1] );
+        List<File> paths = new ArrayList<>();
+        for( int i = 2; i < _args.length; i++ ) paths.add( new File( _args[i] ) );
+
+        // parse the files...
+        List<File> files = NTPDStatsParser.statsFiles( paths );
+        int threads = config.optIntDotted( "ingest.threads", Runtime.getRuntime().availableProcessors() );
+        ForkJoinPool pool = new ForkJoinPool( Math.max( 1, threads ) );
+        NTPDStatsParser parser = new NTPDStatsParser( pool, 1024 * config.optIntDotted( "ingest.chunkKB", 1024 ) );
+        long start = System.nanoTime();
+        NTPDStats stats = parser.parse( files );
+        double seconds = (System.nanoTime() - start) / 1e9;
+        pool.shutdown();
+        stats.sort();
+        LOGGER.log( Level.INFO, String.format( "Parsed %,d lines (%,d skipped) in %,d files, %.1f MB, in %.3f seconds: %.2f million lines/s, "
+                + "%.0f MB/s, with %d threads", stats.lines(), stats.skipped(), files.size(), stats.bytes() / 1e6, seconds,
+                stats.lines() / seconds / 1e6, stats.bytes() / seconds / 1e6, threads ) );
+        LOGGER.log( Level.INFO, String.format( "Found %,d loop records, %,d peer records, and %,d fixes, from %d sources", stats.loops(),
+                stats.peerRecords(), stats.fixes(), stats.sources() ) );
+
+        // summarize them to standard output...
+        if( !publish ) {
+            int messages = new StatsIngest( 1000 * config.optLongDotted( "ingest.summarySeconds", 86400 ) )
+                    .summarize( stats, HJSONObject::new, _message -> System.out.println( _message.toString() ) );
+            LOGGER.log( Level.INFO, "Wrote " + messages + " summaries" );
+            return;
+        }
+
+        // or publish them, no faster than we're allowed to...
+        String topic = config.optStringDotted( "ingest.topic", "ntp.history" );
+        JSONObject ingest = config.optJSONObject( "ingest" );
+        double perSecond = Math.max( 0.001, (ingest == null) ? 10 : ingest.optDouble( "messagesPerSecond", 10 ) );
+        long interval = 1000 * config.optLongDotted( "ingest.intervalSeconds", config.optLongDotted( "monitorInterval", 60 ) );
+        Mailbox box = new PostOffice( _args[1] ).createMailbox( "history" );
+        Outbox outbox = new Outbox( box );
+        long publishStart = System.nanoTime();
+        long[] published = new long[1];
+        int messages = new StatsIngest( interval ).replay( stats, () -> box.createPublishMessage( topic ), _message -> {
+            long wait = publishStart + (long) (published[0]++ * 1e9 / perSecond) - System.nanoTime();
+            if( wait > 0 ) {
+                try {
+                    Thread.sleep( wait / 1_000_000, (int) (wait % 1_000_000) );
+                }
+                catch( InterruptedException _e ) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            outbox.publish( topic, (Message) _message );
+        } );
+        LOGGER.log( Level.INFO, "Published " + messages + " messages as " + topic );
+
+        // give the post office a moment to send the last of them, then quit (its threads would keep us running)...
+        Thread.sleep( 5000 );
+        System.exit( 0 );
+    }
+
+
+    /**
+     * Replays the given records: for each interval that has any, makes a message (from the given factory) with the values recorded last as of
+     * the end of the interval, and hands it to the given sink, in time order.
+     *
+     * @param _stats the records, in time order (see {@link NTPDStats#sort()})
+     * @param _factory makes each empty message
+     * @param _sink takes each message when it's filled in
+     * @return the number of messages made
+     */
+    public int replay( final NTPDStats _stats, final Supplier<HJSONObject> _factory, final Consumer<HJSONObject> _sink ) {
+
+        int   loop     = 0;
+        int   peer     = 0;
+        int   fix      = 0;
+        int   lastLoop = -1;
+        int   lastFix  = -1;
+        int[] lastPeer = new int[_stats.sources()];
+        long[] pollMs  = new long[_stats.sources()];
+        Arrays.fill( lastPeer, -1 );
+        int messages = 0;
+        while( (loop < _stats.loops) || (peer < _stats.peerRecords) || (fix < _stats.fixes) ) {
+
+            // catch up on everything recorded in the next interval that has anything...
+            long endMs = nextEnd( _stats, loop, peer, fix );
+            while( (loop < _stats.loops) && (_stats.loopTimeMs[loop] < endMs) )
+                lastLoop = loop++;
+            for( ; (peer < _stats.peerRecords) && (_stats.peerTimeMs[peer] < endMs); peer++ ) {
+                int source = _stats.peerSource[peer];
+                if( lastPeer[source] >= 0 ) pollMs[source] = _stats.peerTimeMs[peer] - _stats.peerTimeMs[lastPeer[source]];
+                lastPeer[source] = peer;
+            }
+            while( (fix < _stats.fixes) && (_stats.fixTimeMs[fix] < endMs) )
+                lastFix = fix++;
+
+            // then fill in what's recent enough...
+            HJSONObject message = _factory.get();
+            fillHistory( message, endMs );
+            if( (lastLoop >= 0) && (endMs - _stats.loopTimeMs[lastLoop] <= STALE_MS) ) {
+                message.putDotted( "monitor.ntp.pllOffsetMs",      _stats.loopOffsetMs[lastLoop] );
+                message.putDotted( "monitor.ntp.pllFreqOffsetPpm", _stats.loopFreqPpm[lastLoop]  );
+            }
+            JSONArray peersJSON = new JSONArray();
+            message.putDotted( "monitor.ntp.peers", peersJSON );
+            for( int source = 0; source < lastPeer.length; source++ ) {
+                int last = lastPeer[source];
+                if( (last < 0) || (endMs - _stats.peerTimeMs[last] > STALE_MS) ) continue;
+                String remote = _stats.source( source );
+                String state  = PeerTable.stateOf( PeerTable.tallyFromStatus( _stats.peerStatus[last] ) );
+                JSONObject peerJSON = new JSONObject();
+                peerJSON.put( "state",             state                                    );
+                peerJSON.put( "remote",            remote                                   );
+                peerJSON.put( "local",             remote.startsWith( "127.127." )          );
+                peerJSON.put( "lastPolledSeconds", (endMs - _stats.peerTimeMs[last]) / 1000 );
+                if( pollMs[source] > 0 ) peerJSON.put( "pollIntervalSeconds", Math.round( pollMs[source] / 1000.0 ) );
+                peerJSON.put( "delayMs",           _stats.peerDelayMs[last]                 );
+                peerJSON.put( "offsetMs",          _stats.peerOffsetMs[last]                );
+                peerJSON.put( "jitterRmsMs",       _stats.peerJitterMs[last]                );
+                peersJSON.put( peerJSON );
+            }
+            if( (lastFix >= 0) && (endMs - _stats.fixTimeMs[lastFix] <= STALE_MS) ) {
+                message.putDotted( "monitor.ntp.satellitesUsed", _stats.fixSatellites[lastFix]  );
+                message.putDotted( "monitor.ntp.validFix",       _stats.fixQuality[lastFix] > 0 );
+                if( !Double.isNaN( _stats.fixLatitude[lastFix] ) && !Double.isNaN( _stats.fixLongitude[lastFix] ) ) {
+                    message.putDotted( "monitor.ntp.latitude",  _stats.fixLatitude[lastFix]  );
+                    message.putDotted( "monitor.ntp.longitude", _stats.fixLongitude[lastFix] );
+                }
+                if( !Double.isNaN( _stats.fixAltitudeFt[lastFix] ) )
+                    message.putDotted( "monitor.ntp.altitudeFt", _stats.fixAltitudeFt[lastFix] );
+            }
+            _sink.accept( message );
+            messages++;
+        }
+        return messages;
+    }
+
+
+    /**
+     * Summarizes the given records: for each interval that has any, makes a message (from the given factory) with the statistics of the PLL
+     * offset, the frequency offset, the satellites used, and each peer's offset and jitter recorded in the interval, and hands it to the given
+     * sink, in time order.
+     *
+     * @param _stats the records, in time order (see {@link NTPDStats#sort()})
+     * @param _factory makes each empty message
+     * @param _sink takes each message when it's filled in
+     * @return the number of messages made
+     */
+    public int summarize( final NTPDStats _stats, final Supplier<HJSONObject> _factory, final Consumer<HJSONObject> _sink ) {
+
+        int   loop   = 0;
+        int   peer   = 0;
+        int   fix    = 0;
+        int[] counts = new int[_stats.sources()];
+        int messages = 0;
+        while( (loop < _stats.loops) || (peer < _stats.peerRecords) || (fix < _stats.fixes) ) {
+
+            // find the records in the next interval that has anything...
+            long endMs = nextEnd( _stats, loop, peer, fix );
+            int firstLoop = loop;
+            int firstPeer = peer;
+            int firstFix  = fix;
+            while( (loop < _stats.loops) && (_stats.loopTimeMs[loop] < endMs) ) loop++;
+            while( (peer < _stats.peerRecords) && (_stats.peerTimeMs[peer] < endMs) ) peer++;
+            while( (fix < _stats.fixes) && (_stats.fixTimeMs[fix] < endMs) ) fix++;
+
+            // the PLL's and the fixes' statistics...
+            Map<String,SampleStats> scalars = new HashMap<>();
+            int loops = loop - firstLoop;
+            if( loops > 0 ) {
+                scalars.put( "pllOffsetMs",      stats( _stats.loopOffsetMs, firstLoop, loop ) );
+                scalars.put( "pllFreqOffsetPpm", stats( _stats.loopFreqPpm,  firstLoop, loop ) );
+            }
+            if( fix > firstFix ) {
+                SampleRing satellites = new SampleRing( fix - firstFix );
+                for( int i = firstFix; i < fix; i++ ) satellites.add( _stats.fixSatellites[i] );
+                scalars.put( "satellitesUsed", satellites.stats() );
+            }
+            long sampleIntervalMs = (loops > 1) ? (_stats.loopTimeMs[loop - 1] - _stats.loopTimeMs[firstLoop]) / (loops - 1) : 0;
+
+            // and each peer's, in the order they were first seen...
+            Arrays.fill( counts, 0 );
+            for( int i = firstPeer; i < peer; i++ ) counts[_stats.peerSource[i]]++;
+            SampleRing[] offsets = new SampleRing[counts.length];
+            SampleRing[] jitters = new SampleRing[counts.length];
+            for( int i = firstPeer; i < peer; i++ ) {
+                int source = _stats.peerSource[i];
+                if( offsets[source] == null ) {
+                    offsets[source] = new SampleRing( counts[source] );
+                    jitters[source] = new SampleRing( counts[source] );
+                }
+                offsets[source].add( _stats.peerOffsetMs[i] );
+                jitters[source].add( _stats.peerJitterMs[i] );
+            }
+            List<HighRateSampler.PeerSummary> peers = new ArrayList<>();
+            for( int source = 0; source < counts.length; source++ )
+                if( offsets[source] != null )
+                    peers.add( new HighRateSampler.PeerSummary( _stats.source( source ), offsets[source].stats(), jitters[source].stats() ) );
+
+            HJSONObject message = _factory.get();
+            fillHistory( message, endMs );
+            NTPMonitor.fillSamples( message, new HighRateSampler.Summary( intervalMs, sampleIntervalMs, 0, scalars, peers ) );
+            _sink.accept( message );
+            messages++;
+        }
+        return messages;
+    }
+
+
+    /*
+     * Returns the end of the interval holding the earliest record not yet taken...
+     */
+    private long nextEnd( final NTPDStats _stats, final int _loop, final int _peer, final int _fix ) {
+        long earliest = Long.MAX_VALUE;
+        if( _loop < _stats.loops       ) earliest = Math.min( earliest, _stats.loopTimeMs[_loop] );
+        if( _peer < _stats.peerRecords ) earliest = Math.min( earliest, _stats.peerTimeMs[_peer] );
+        if( _fix  < _stats.fixes       ) earliest = Math.min( earliest, _stats.fixTimeMs[_fix]   );
+        return (Math.floorDiv( earliest, intervalMs ) + 1) * intervalMs;
+    }
+
+
+    private void fillHistory( final HJSONObject _message, final long _endMs ) {
+        _message.putDotted( "monitor.ntp.valid",              true       );
+        _message.putDotted( "monitor.ntp.history.timeMs",     _endMs     );
+        _message.putDotted( "monitor.ntp.history.intervalMs", intervalMs );
+    }
+
+
+    private static SampleStats stats( final double[] _column, final int _from, final int _to ) {
+        SampleRing ring = new SampleRing( _to - _from );
+        for( int i = _from; i < _to; i++ ) ring.add( _column[i] );
+        return ring.stats();
+    }
+}
@@ -23,6 +23,16 @@ public enum SynchronizationSource {
 
     private static EnumIndexer<SynchronizationSource> indexer;
 
+    // cached lookup table for decoding status words, indexed by the 6 bit source field; unassigned codes decode as unknown...
+    private static final SynchronizationSource[] BY_CODE = new SynchronizationSource[64];
+
+    static {
+        for( int i = 0; i < BY_CODE.length; i++ )
+            BY_CODE[i] = SYNC_SRC_UNKNOWN;
+        for( SynchronizationSource source : values() )
+            BY_CODE[source.info().index] = source;
+    }
+
 
     /**
      * Creates a new instance of {@link SynchronizationSource} with the given index, identifying string, and descriptive string.
@@ -91,13 +101,6 @@ public enum SynchronizationSource {
      * @return the decoded {@link SynchronizationSource} value
      */
     public static SynchronizationSource fromStatus( final int _statusWord ) {
-
-        // isolate the source field and make sure it's within range...
-        int source = (_statusWord >>> 8) & 0x3F;
-        if( source > 9 )
-            return SYNC_SRC_UNKNOWN;
-
-        // it's within range, so look it up...
-        return indexer.fromIndex( source );
+        return BY_CODE[(_statusWord >>> 8) & 0x3F];
     }
 }
@@ -1,19 +1,36 @@
 package com.dilatush.ntpmonitor;
 
 /**
+ * Checks the system status word decoders against a straightforward reference decoding, for every possible 16 bit status word.  Exits with a
+ * status of 1 if any is decoded incorrectly.
+ *
  * @author Tom Dilatush  tom@dilatush.com
  */
 public class Test {
 
     public static void main( String[] _args ) {
 
-        int status = 0x4115;
-        LeapSecondMode leapSecondMode = LeapSecondMode.fromStatus( status );
-        String descr = leapSecondMode.info().description;
-        String id    = leapSecondMode.info().id;
+        int failures = 0;
+        for( int status = 0; status <= 0xFFFF; status++ ) {
 
-        leapSecondMode.hashCode();
-    }
+            // the reference decoding, straight from the bit layout of the system status word: LI(2) SOURCE(6) COUNT(4) CODE(4)...
+            int sourceCode = (status >>> 8) & 0x3F;
+            LeapSecondMode        leap   = LeapSecondMode.fromIndex( status >>> 14 );
+            SynchronizationSource source = (sourceCode <= 9) ? SynchronizationSource.fromIndex( sourceCode ) : SynchronizationSource.SYNC_SRC_UNKNOWN;
+            int                   count  = (status >>> 4) & 0xF;
+            Event                 event  = Event.fromIndex( status & 0xF );
 
+            LocalServer server = new LocalServer( status, 0, 0, 0, 0, 0 );
+            if( (leap   != server.leapSecMode) || (leap   == null) || (leap   != LeapSecondMode.fromStatus( status ))
+             || (source != server.syncSource)  || (source == null) || (source != SynchronizationSource.fromStatus( status ))
+             || (count  != server.count)
+             || (event  != server.event)       || (event  == null) || (event  != Event.fromStatus( status )) ) {
+                if( failures++ < 20 )
+                    System.out.println( String.format( "Status word 0x%04x decoded incorrectly", status ) );
+            }
+        }
 
+        System.out.println( (failures == 0) ? "All 65,536 status words decoded correctly" : failures + " status words decoded incorrectly" );
+        if( failures > 0 ) System.exit( 1 );
+    }
 }
@@ -0,0 +1,520 @@
+package com.dilatush.ntpmonitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An embedded, append-only store of time series, kept in memory-mapped segment files in a single directory.  Each series has a fixed set of
+ * named double columns, and each record is a timestamp (Java milliseconds) and a value for each column.  Segments are columnar: after a
+ * fixed-size header come all the timestamps, then all the values of the first column, and so on, each as a fixed-size array sized for the
+ * segment's capacity.  Appending a record writes straight into the mapping, and a range query binary searches the timestamps and then bulk
+ * copies each column into a primitive array, so scanning a week of once-a-second samples takes milliseconds.
+ * <p>
+ * A series rolls over to a new segment when its current segment is full, or when it spans more than the configured segment span.  Each new
+ * segment is sized for the segment span at the rate records were appended to the one before it (with some room to spare), up to the
+ * configured most records, so that a series appended to once a minute doesn't map a segment sized for once a second.  At each rollover, and
+ * on each {@link #sweep(long)}, segments whose newest record is older than the retention period are deleted; a sweep also drops the series
+ * left with no segments at all (as those of departed peers are, in time), releasing their mappings.  Records must be appended in time
+ * order; a record older than the newest one in its series (as after the wall clock is stepped back) is dropped.  Segment files are named
+ * <code>&lt;series&gt;@&lt;first timestamp&gt;.seg</code>.  Instances of this class are threadsafe.
+ *
+ * @author Tom Dilatush  tom@dilatush.com
+ */
+public class TimeSeriesStore {
+
+    private static final Logger LOGGER       = Logger.getLogger( new Object(){}.getClass().getEnclosingClass().getCanonicalName() );
+
+    private static final int    MAGIC        = 0x4E545453;    // "NTTS"...
+    private static final int    VERSION      = 1;
+    private static final int    HEADER_SIZE  = 4096;
+    private static final int    ROWS_OFFSET  = 12;            // where the header holds the number of records in the segment...
+    private static final String SUFFIX       = ".seg";
+    private static final int    FIRST_ROWS   = 1024;          // the most records in a series' first segment, before we know its rate...
+    private static final double ROOM         = 1.25;          // the room to spare in a segment sized from the rate of the last...
+
+    private final File                    directory;
+    private final int                     segmentRows;
+    private final long                    segmentSpanMs;
+    private final long                    retentionMs;
+    private final Map<String,TimeSeries>  series;
+
+
+    /**
+     * Creates a new instance of this class that keeps its segment files in the given directory, creating it if necessary.
+     *
+     * @param _directory the directory to keep the segment files in
+     * @param _segmentRows the maximum number of records in a segment (each is sized from the rate of the one before, up to this)
+     * @param _segmentSpanMs the maximum time from the first to the last record of a segment, in milliseconds
+     * @param _retentionMs how long to keep records, in milliseconds
+     * @throws IOException if the directory doesn't exist and can't be created
+     */
+    public TimeSeriesStore( final File _directory, final int _segmentRows, final long _segmentSpanMs, final long _retentionMs )
+            throws IOException {
+
+        if( !_directory.isDirectory() && !_directory.mkdirs() )
+            throw new IOException( "Can't create time series directory " + _directory );
+        if( _segmentRows <= 0 )
+            throw new IllegalArgumentException( "Segment rows must be positive: " + _segmentRows );
+
+        directory     = _directory;
+        segmentRows   = _segmentRows;
+        segmentSpanMs = _segmentSpanMs;
+        retentionMs   = _retentionMs;
+        series        = new HashMap<>();
+    }
+
+
+    /**
+     * Returns the series with the given name and columns, opening its existing segments (or creating it) if this is the first time it's been
+     * asked for.  Segments that can't be read are logged and ignored.  Series names may contain only letters, digits, dots, dashes, and
+     * underscores; see {@link #seriesName(String)}.
+     *
+     * @param _name the name of the series
+     * @param _columns the names of the series' columns
+     * @return the series
+     */
+    public synchronized TimeSeries series( final String _name, final String... _columns ) {
+
+        if( !_name.matches( "[A-Za-z0-9._\\-]+" ) )
+            throw new IllegalArgumentException( "Invalid series name: " + _name );
+
+        TimeSeries result = series.get( _name );
+        if( result == null ) {
+            result = new TimeSeries( _name, _columns.clone() );
+            series.put( _name, result );
+        }
+        else if( !Arrays.equals( result.columns, _columns ) )
+            throw new IllegalArgumentException( "Series " + _name + " already has columns " + Arrays.toString( result.columns ) );
+        return result;
+    }
+
+
+    /**
+     * Deletes the segments of every series whose newest record is older than the retention period, and drops the series that are left with
+     * no segments.  The segment files of series that haven't been asked for since the store was opened (like those of peers that left before
+     * a restart) are deleted too, once they expire.  A series that has been dropped still works, but it's better asked for again with
+     * {@link #series(String, String...)}.  Called periodically (the store doesn't sweep on its own), as series that are no longer appended to
+     * are otherwise never pruned.
+     *
+     * @param _now the current time, in Java milliseconds
+     * @return the number of series dropped
+     */
+    public int sweep( final long _now ) {
+
+        List<TimeSeries> all;
+        synchronized( this ) {
+            all = new ArrayList<>( series.values() );
+        }
+        int dropped = 0;
+        for( TimeSeries timeSeries : all )
+            if( timeSeries.sweep( _now ) ) dropped++;
+
+        // then the segment files of the series that aren't open...
+        File[] files = directory.listFiles( ( _dir, _file ) -> _file.endsWith( SUFFIX ) && (_file.lastIndexOf( '@' ) > 0) );
+        if( files == null ) return dropped;
+        for( File file : files ) {
+            String name = file.getName();
+            synchronized( this ) {
+                if( series.containsKey( name.substring( 0, name.lastIndexOf( '@' ) ) ) ) continue;
+            }
+            try {
+                Segment segment = Segment.open( file );
+                if( (segment.rows > 0) && (_now - segment.lastTime() <= retentionMs) ) continue;
+            }
+            catch( IOException _e ) {
+                continue;       // we'll leave what we can't read alone...
+            }
+            if( !file.delete() )
+                LOGGER.log( Level.WARNING, "Couldn't delete expired time series segment " + file );
+        }
+        return dropped;
+    }
+
+
+    /**
+     * Returns the number of series in this store (that have been asked for, and not dropped).
+     *
+     * @return the number of series
+     */
+    public synchronized int size() {
+        return series.size();
+    }
+
+
+    /**
+     * Returns the given string with any characters that aren't allowed in series names replaced by underscores.
+     *
+     * @param _name the string to turn into a series name
+     * @return the series name
+     */
+    public static String seriesName( final String _name ) {
+        return _name.replaceAll( "[^A-Za-z0-9._\\-]", "_" );
+    }
+
+
+    /**
+     * The records of one series over a range of time, as primitive arrays.  Instances of this class are immutable and threadsafe, as long as
+     * the arrays aren't modified.
+     */
+    public static class Range {
+
+        public final String[]   columns;
+        public final long[]     times;
+        public final double[][] values;     // indexed by column, then by record...
+
+
+        private Range( final String[] _columns, final long[] _times, final double[][] _values ) {
+            columns = _columns;
+            times   = _times;
+            values  = _values;
+        }
+
+
+        /**
+         * Returns the values of the given column, or <code>null</code> if there is no such column.
+         *
+         * @param _column the name of the column
+         * @return the values of the column
+         */
+        public double[] column( final String _column ) {
+            for( int i = 0; i < columns.length; i++ )
+                if( columns[i].equals( _column ) ) return values[i];
+            return null;
+        }
+    }
+
+
+    /**
+     * A single series in the store.  Instances of this class are threadsafe; each locks itself, and then (if need be) the store, never the
+     * other way around.
+     */
+    public class TimeSeries {
+
+        private final String        name;
+        private final String[]      columns;
+        private final List<Segment> segments;       // oldest first; the last one is the one we append to...
+        private boolean             dropped;        // true if a sweep dropped this series from the store...
+
+
+        private TimeSeries( final String _name, final String[] _columns ) {
+
+            name     = _name;
+            columns  = _columns;
+            segments = new ArrayList<>();
+
+            // open any segments we already have, oldest first...
+            File[] files = directory.listFiles( ( _dir, _file ) -> _file.startsWith( name + "@" ) && _file.endsWith( SUFFIX ) );
+            if( files != null ) {
+                Arrays.sort( files, ( _a, _b ) -> Long.compare( startOf( _a ), startOf( _b ) ) );
+                for( File file : files ) {
+                    try {
+                        Segment segment = Segment.open( file );
+                        if( segment.rows > 0 ) segments.add( segment );
+                    }
+                    catch( IOException _e ) {
+                        LOGGER.log( Level.WARNING, "Ignoring unreadable time series segment " + file + ": " + _e.getMessage() );
+                    }
+                }
+            }
+            prune( System.currentTimeMillis() );
+        }
+
+
+        /**
+         * Appends a record to this series.  A record older than the newest one already in the series is dropped.
+         *
+         * @param _time the time of the record, in Java milliseconds
+         * @param _values the values of the record, one for each column
+         * @return true if the record was appended, false if it was dropped
+         * @throws IOException if a new segment was needed and couldn't be created
+         */
+        public synchronized boolean append( final long _time, final double... _values ) throws IOException {
+
+            if( _values.length != columns.length )
+                throw new IllegalArgumentException( "Series " + name + " has " + columns.length + " columns, not " + _values.length );
+
+            Segment current = segments.isEmpty() ? null : segments.get( segments.size() - 1 );
+            if( (current != null) && (_time < current.lastTime()) ) return false;
+
+            // if a sweep dropped us, put us back (unless we've been replaced)...
+            if( dropped ) {
+                synchronized( TimeSeriesStore.this ) {
+                    if( series.containsKey( name ) ) {
+                        LOGGER.log( Level.WARNING, "Dropping a record for time series " + name + ", which has been replaced" );
+                        return false;
+                    }
+                    series.put( name, this );
+                    dropped = false;
+                }
+            }
+
+            // roll over if we need to...
+            if( (current == null) || (current.rows >= current.capacity) || !Arrays.equals( current.columns, columns )
+                    || (_time - current.firstTime() >= segmentSpanMs) ) {
+                current = Segment.create( new File( directory, name + "@" + _time + SUFFIX ), columns, rowsAfter( current ) );
+                segments.add( current );
+                prune( _time );
+            }
+
+            current.append( _time, _values );
+            return true;
+        }
+
+
+        /**
+         * Returns the records in this series from the given start time (inclusive) to the given end time (exclusive).
+         *
+         * @param _from the start of the range, in Java milliseconds
+         * @param _to the end of the range, in Java milliseconds
+         * @return the records in the range
+         */
+        public synchronized Range query( final long _from, final long _to ) {
+
+            // first find out how many records there are, so we can allocate our arrays just once...
+            int[] starts = new int[segments.size()];
+            int[] ends   = new int[segments.size()];
+            int total = 0;
+            for( int s = 0; s < segments.size(); s++ ) {
+                Segment segment = segments.get( s );
+                if( !Arrays.equals( segment.columns, columns ) ) continue;
+                starts[s] = segment.lowerBound( _from );
+                ends[s]   = segment.lowerBound( _to );
+                total += Math.max( 0, ends[s] - starts[s] );
+            }
+
+            long[]     times  = new long[total];
+            double[][] values = new double[columns.length][total];
+            int offset = 0;
+            for( int s = 0; s < segments.size(); s++ ) {
+                int count = ends[s] - starts[s];
+                if( count <= 0 ) continue;
+                segments.get( s ).copy( starts[s], count, times, values, offset );
+                offset += count;
+            }
+            return new Range( columns, times, values );
+        }
+
+
+        /*
+         * Returns the number of records the segment after the given one should have room for: enough for the segment span at the rate records
+         * were appended to the given one (with room to spare), no more than the configured most, and no fewer than two...
+         */
+        private int rowsAfter( final Segment _last ) {
+            if( (_last == null) || (_last.rows < 2) || (_last.lastTime() <= _last.firstTime()) )
+                return Math.min( segmentRows, FIRST_ROWS );
+            double intervalMs = (_last.lastTime() - _last.firstTime()) / (double) (_last.rows - 1);
+            return (int) Math.max( 2, Math.min( segmentRows, Math.ceil( ROOM * segmentSpanMs / intervalMs ) ) );
+        }
+
+
+        /*
+         * Deletes any segments (other than the current one) whose newest record is older than our retention period...
+         */
+        private void prune( final long _now ) {
+            Iterator<Segment> it = segments.iterator();
+            while( it.hasNext() ) {
+                Segment segment = it.next();
+                if( (segment == segments.get( segments.size() - 1 )) || (_now - segment.lastTime() <= retentionMs) ) break;
+                it.remove();
+                delete( segment );
+            }
+        }
+
+
+        /*
+         * Deletes any segments (including the current one) whose newest record is older than our retention period, then drops this series
+         * from the store if it has no segments left, returning true if it was dropped...
+         */
+        private synchronized boolean sweep( final long _now ) {
+            prune( _now );
+            if( !segments.isEmpty() ) {
+                Segment current = segments.get( segments.size() - 1 );
+                if( _now - current.lastTime() <= retentionMs ) return false;
+                segments.clear();
+                delete( current );
+            }
+            if( dropped ) return false;
+            synchronized( TimeSeriesStore.this ) {
+                series.remove( name, this );
+                dropped = true;
+            }
+            return true;
+        }
+
+
+        // the mapping goes when the segment is collected; deleting its file while it's still mapped is fine...
+        private void delete( final Segment _segment ) {
+            if( !_segment.file.delete() )
+                LOGGER.log( Level.WARNING, "Couldn't delete expired time series segment " + _segment.file );
+        }
+    }
+
+
+    /*
+     * Returns the start time from the name of the given segment file...
+     */
+    private static long startOf( final File _file ) {
+        String name = _file.getName();
+        try {
+            return Long.parseLong( name.substring( name.lastIndexOf( '@' ) + 1, name.length() - SUFFIX.length() ) );
+        }
+        catch( NumberFormatException _e ) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+
+    /*
+     * One segment file, mapped into memory.  The header holds the magic number, version, capacity, number of records, and the column names; the
+     * timestamps and columns follow...
+     */
+    private static class Segment {
+
+        private final File             file;
+        private final MappedByteBuffer buffer;
+        private final int              capacity;
+        private final String[]         columns;
+        private int                    rows;
+
+
+        private Segment( final File _file, final MappedByteBuffer _buffer, final int _capacity, final String[] _columns, final int _rows ) {
+            file     = _file;
+            buffer   = _buffer;
+            capacity = _capacity;
+            columns  = _columns;
+            rows     = _rows;
+        }
+
+
+        private static Segment create( final File _file, final String[] _columns, final int _capacity ) throws IOException {
+
+            // build the header...
+            ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+            header.putInt( MAGIC ).putInt( VERSION ).putInt( _capacity ).putInt( 0 ).putInt( _columns.length );
+            for( String column : _columns ) {
+                byte[] bytes = column.getBytes( StandardCharsets.UTF_8 );
+                if( header.remaining() < 2 + bytes.length )
+                    throw new IllegalArgumentException( "Too many columns for a time series segment header" );
+                header.putShort( (short) bytes.length ).put( bytes );
+            }
+
+            long size = HEADER_SIZE + 8L * _capacity * (1 + _columns.length);
+            if( size > Integer.MAX_VALUE )
+                throw new IllegalArgumentException( "Time series segment would be too big: " + size + " bytes" );
+            try( RandomAccessFile raf = new RandomAccessFile( _file, "rw" ); FileChannel channel = raf.getChannel() ) {
+                raf.setLength( size );
+                MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_WRITE, 0, size );
+                header.flip();
+                buffer.put( header );
+                return new Segment( _file, buffer, _capacity, _columns, 0 );
+            }
+        }
+
+
+        private static Segment open( final File _file ) throws IOException {
+
+            try( RandomAccessFile raf = new RandomAccessFile( _file, "rw" ); FileChannel channel = raf.getChannel() ) {
+                if( raf.length() < HEADER_SIZE )
+                    throw new IOException( "Segment file is too short" );
+                if( raf.length() > Integer.MAX_VALUE )
+                    throw new IOException( "Segment file is too long" );
+                MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_WRITE, 0, raf.length() );
+                if( (buffer.getInt( 0 ) != MAGIC) || (buffer.getInt( 4 ) != VERSION) )
+                    throw new IOException( "Not a time series segment, or an unsupported version" );
+                int capacity = buffer.getInt( 8 );
+                int rows     = buffer.getInt( ROWS_OFFSET );
+                int count    = buffer.getInt( 16 );
+
+                // a corrupt header must not send us past the end of it (each column name takes at least its two byte length)...
+                if( (capacity < 0) || (rows < 0) || (rows > capacity) || (count < 0) || (count > (HEADER_SIZE - 20) / 2)
+                        || (raf.length() < HEADER_SIZE + 8L * capacity * (1 + count)) )
+                    throw new IOException( "Segment file header is inconsistent" );
+                String[] columns = new String[count];
+                buffer.position( 20 );
+                for( int i = 0; i < count; i++ ) {
+                    int length = (HEADER_SIZE - buffer.position() < 2) ? -1 : buffer.getShort();
+                    if( (length < 0) || (length > HEADER_SIZE - buffer.position()) )
+                        throw new IOException( "Segment file header has a bad column name" );
+                    byte[] bytes = new byte[length];
+                    buffer.get( bytes );
+                    columns[i] = new String( bytes, StandardCharsets.UTF_8 );
+                }
+                return new Segment( _file, buffer, capacity, columns, rows );
+            }
+        }
+
+
+        private long time( final int _row ) {
+            return buffer.getLong( HEADER_SIZE + 8 * _row );
+        }
+
+
+        private long firstTime() {
+            return time( 0 );
+        }
+
+
+        private long lastTime() {
+            return time( rows - 1 );
+        }
+
+
+        private int columnOffset( final int _column ) {
+            return HEADER_SIZE + 8 * capacity * (1 + _column);
+        }
+
+
+        /*
+         * Writes the record, and only then updates the count of records, so a crash part way through leaves the record unseen...
+         */
+        private void append( final long _time, final double[] _values ) {
+            buffer.putLong( HEADER_SIZE + 8 * rows, _time );
+            for( int c = 0; c < _values.length; c++ )
+                buffer.putDouble( columnOffset( c ) + 8 * rows, _values[c] );
+            rows++;
+            buffer.putInt( ROWS_OFFSET, rows );
+        }
+
+
+        /*
+         * Returns the index of the first record at or after the given time (or the number of records, if there is none)...
+         */
+        private int lowerBound( final long _time ) {
+            int low  = 0;
+            int high = rows;
+            while( low < high ) {
+                int mid = (low + high) >>> 1;
+                if( time( mid ) < _time ) low = mid + 1;
+                else                      high = mid;
+            }
+            return low;
+        }
+
+
+        /*
+         * Copies the given records into the given arrays, at the given offset...
+         */
+        private void copy( final int _start, final int _count, final long[] _times, final double[][] _values, final int _offset ) {
+            ByteBuffer view = buffer.duplicate();
+            view.position( HEADER_SIZE + 8 * _start );
+            view.asLongBuffer().get( _times, _offset, _count );
+            for( int c = 0; c < _values.length; c++ ) {
+                view.position( columnOffset( c ) + 8 * _start );
+                view.asDoubleBuffer().get( _values[c], _offset, _count );
+            }
+        }
+    }
+}